@@ -0,0 +1,118 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares the two LUT transfer protocols of {@link LocalLutProvider} side by side, from the call
+ * to lattices ready for {@link LookupTable}. Results are logged under {@value #TAG} and kept in
+ * the {@link MetricsRegistry} histograms {@code transfer.bitmaps.<count>} and {@code
+ * transfer.pack.<count>}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LutTransferBenchmark {
+
+  private static final String TAG = "LutTransferBenchmark";
+  private static final int[] LOOKS_COUNTS = {9, 64, 256};
+  private static final int ITERATIONS = 20;
+
+  private final ContentResolver resolver =
+      InstrumentationRegistry.getTargetContext().getContentResolver();
+
+  @Test
+  public void bothProtocols_deliverSameLattices() {
+    List<int[]> fromBitmaps = transferBitmaps(9);
+    List<int[]> fromPack = transferPack(9);
+
+    assertEquals(fromBitmaps.size(), fromPack.size());
+    for (int i = 0; i < fromBitmaps.size(); i++) {
+      assertArrayEquals(fromBitmaps.get(i), fromPack.get(i));
+    }
+  }
+
+  @Test
+  public void compareProtocols() {
+    for (int count : LOOKS_COUNTS) {
+      // The first pack call writes the pack file, which is not part of the transfer.
+      transferPack(count);
+      LatencyHistogram bitmaps = MetricsRegistry.histogram("transfer.bitmaps." + count);
+      LatencyHistogram pack = MetricsRegistry.histogram("transfer.pack." + count);
+      for (int i = 0; i < ITERATIONS; i++) {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        try {
+          transferBitmaps(count);
+          bitmaps.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+        } catch (RuntimeException e) {
+          // TransactionTooLargeException surfaces as a RuntimeException from call().
+          Log.w(TAG, "Bitmaps of " + count + " looks failed: " + e);
+          break;
+        }
+      }
+      for (int i = 0; i < ITERATIONS; i++) {
+        long startNanos = SystemClock.elapsedRealtimeNanos();
+        transferPack(count);
+        pack.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+      }
+      Log.i(TAG, count + " looks, bitmaps " + summarize(bitmaps) + ", pack " + summarize(pack));
+    }
+  }
+
+  private List<int[]> transferBitmaps(int count) {
+    Bundle result =
+        resolver.call(
+            LocalLutProvider.AUTHORITY_URI,
+            PartnerContentProviderCaller.GET_FILTER_METHOD_NAME,
+            String.valueOf(count),
+            /* extras= */ null);
+    assertNotNull(result);
+    ArrayList<Bitmap> bitmaps =
+        result.getParcelableArrayList(PartnerContentProviderCaller.FILTER_BITMAPS_LIST_KEY_NAME);
+    int size = LookupTable.DEFAULT_LATTICE_SIZE;
+    List<int[]> lattices = new ArrayList<>(bitmaps.size());
+    for (Bitmap bitmap : bitmaps) {
+      int[] lattice = new int[size * size * size];
+      bitmap.getPixels(lattice, /* offset= */ 0, size, 0, 0, size, size * size);
+      lattices.add(lattice);
+    }
+    return lattices;
+  }
+
+  private List<int[]> transferPack(int count) {
+    Bundle result =
+        resolver.call(
+            LocalLutProvider.AUTHORITY_URI,
+            PartnerContentProviderCaller.GET_FILTER_PACK_METHOD_NAME,
+            String.valueOf(count),
+            /* extras= */ null);
+    assertNotNull(result);
+    LutPack pack = PartnerContentProviderCaller.readFilterPack(result);
+    assertNotNull(pack);
+    List<int[]> lattices = new ArrayList<>(pack.size());
+    for (int i = 0; i < pack.size(); i++) {
+      lattices.add(pack.toLookupTable(i).getLatticePixels());
+    }
+    return lattices;
+  }
+
+  private static String summarize(LatencyHistogram histogram) {
+    if (histogram.getCount() == 0) {
+      return "failed";
+    }
+    return String.format(
+        "p50 %.2f ms p90 %.2f ms",
+        histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6);
+  }
+}
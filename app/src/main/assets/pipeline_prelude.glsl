@@ -0,0 +1,27 @@
+// Helpers shared by every generated pipeline shader.
+
+// Retrieve the index of the filter we should apply to this texture coordinate.
+// Because of how we orient the camera, the texture coordinates are rotated in the following way:
+// (0, 1) ---- (0, 0)
+//   |           |
+//   |           |
+// (1, 1) ---- (1, 0)
+// We want the filter indices to be organized in the following matter:
+// 6, 7, 8
+// 3, 4, 5
+// 0, 1, 2
+float GetLutIndex(vec2 texture_coordinate) {
+  float xPosScaled = clamp(floor(texture_coordinate.x * 3.0), 0.0, 2.0);
+  float yPosScaled = clamp(floor(texture_coordinate.y * 3.0), 0.0, 2.0);
+  return (2.0 - xPosScaled) * 3.0 + (2.0 - yPosScaled);
+}
+
+// Scales the texture coordinate so that we get the nine-tile look.
+vec2 getScaledCoordinates(vec2 texture_coordinates) {
+  float xPosScaled = texture_coordinates.x * 3.0;
+  float yPosScaled = texture_coordinates.y * 3.0;
+
+  xPosScaled = xPosScaled - clamp(floor(xPosScaled), 0.0, 2.0);
+  yPosScaled = yPosScaled - clamp(floor(yPosScaled), 0.0, 2.0);
+  return vec2(xPosScaled, yPosScaled);
+}
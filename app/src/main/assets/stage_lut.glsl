@@ -0,0 +1,66 @@
+// LUT stage. Applies the selected look, or the look of each tile in the nine-tile view.
+
+// 3D lookup table to apply.
+uniform sampler2D u_LutTable;
+
+// Number of looks side by side in the texture.
+uniform float u_LutLooksCount;
+
+// Index of look we want to use (for single tile view only).
+uniform float u_LutIndex;
+
+// Lattice size of the looks in the texture in each of the three dimensions, from 2 to 256.
+uniform float u_LutLatticeSize;
+
+// Per channel shaper curves, 256 wide and one row per look, mapping each channel to its lattice
+// coordinate before the lookup. Only read when u_LutHasShaper is 1, see LookupTable#hasShaper.
+uniform sampler2D u_LutShaper;
+uniform float u_LutHasShaper;
+
+// Grayscale looks have the conversion baked into their lattice, see LookupTable#bakeGrayscale.
+vec3 ApplyLookup(vec3 color,
+                 sampler2D lookup_table,
+                 float lut_index,
+                 float luts_count) {
+  vec3 clamped = clamp(color, vec3(0.0), vec3(1.0));
+  if (u_LutHasShaper > 0.5) {
+    // Texel centers, so that 0 and 1 map onto the first and the last entry of each curve.
+    vec3 texel = clamped * (255.0 / 256.0) + 0.5 / 256.0;
+    float row = (lut_index + 0.5) / luts_count;
+    clamped = vec3(texture2D(u_LutShaper, vec2(texel.r, row)).r,
+                   texture2D(u_LutShaper, vec2(texel.g, row)).g,
+                   texture2D(u_LutShaper, vec2(texel.b, row)).b);
+  }
+
+  float blue_coord = (u_LutLatticeSize - 1.0) * clamped.b;
+  float blue_coord_low = clamp(floor(blue_coord), 0.0, u_LutLatticeSize - 2.0);
+
+  float lower_y =
+      (0.5 + blue_coord_low * u_LutLatticeSize + clamped.g * (u_LutLatticeSize - 1.0)) /
+      (u_LutLatticeSize * u_LutLatticeSize);
+  float upper_y = lower_y + 1.0 / u_LutLatticeSize;
+
+  float x = 0.5 + u_LutLatticeSize * lut_index + clamped.r * (u_LutLatticeSize - 1.0);
+  x = (x + u_LutLatticeSize * lut_index) / 2.0;
+
+  x /= u_LutLatticeSize * luts_count;
+  vec3 lower_rgb = texture2D(lookup_table, vec2(x, lower_y)).rgb;
+  vec3 upper_rgb = texture2D(lookup_table, vec2(x, upper_y)).rgb;
+  float frac_b = blue_coord - blue_coord_low;
+  return mix(lower_rgb, upper_rgb, frac_b);
+}
+
+vec3 stage_lut(vec3 color) {
+  float filterIndex = u_LutIndex;
+  if (u_ShowNineTiles > 0.5) {
+    filterIndex = GetLutIndex(v_TexCoord);
+  }
+  // Only apply filter if filterIndex is valid.
+  if (filterIndex < 0.0) {
+    return color;
+  }
+  return ApplyLookup(color,
+                     u_LutTable,
+                     filterIndex,
+                     u_LutLooksCount);
+}
@@ -0,0 +1,13 @@
+// Sharpen stage. Adds back the difference between a pixel and its four neighbours.
+
+// 0 leaves the image unchanged, 1 is a strong sharpen.
+uniform float u_SharpenAmount;
+
+vec3 stage_sharpen(vec2 coord) {
+  vec3 center = SAMPLE_INPUT(coord);
+  vec3 neighbours = SAMPLE_INPUT(coord + vec2(u_InputTexelSize.x, 0.0))
+      + SAMPLE_INPUT(coord - vec2(u_InputTexelSize.x, 0.0))
+      + SAMPLE_INPUT(coord + vec2(0.0, u_InputTexelSize.y))
+      + SAMPLE_INPUT(coord - vec2(0.0, u_InputTexelSize.y));
+  return clamp(center + u_SharpenAmount * (4.0 * center - neighbours), 0.0, 1.0);
+}
@@ -0,0 +1,11 @@
+// Vignette stage. Darkens the image towards its corners.
+
+// 0 leaves the image unchanged, 1 turns the corners black.
+uniform float u_VignetteStrength;
+
+vec3 stage_vignette(vec3 color) {
+  // 0 in the center of the view, 1 in its corners.
+  float cornerDistance = length(v_TexCoord - vec2(0.5)) * 1.41421356;
+  float falloff = 1.0 - smoothstep(0.5, 1.0, cornerDistance);
+  return color * mix(1.0, falloff, u_VignetteStrength);
+}
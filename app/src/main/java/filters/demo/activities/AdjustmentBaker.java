@@ -0,0 +1,161 @@
+package filters.demo.activities;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Bakes {@link Adjustments} together with the selected look into a fresh lattice on a background
+ * thread, so the renderer keeps doing a single lookup per pixel however many adjustments are set.
+ *
+ * <p>Updates are coalesced: the first one schedules a bake {@value #THROTTLE_MILLIS} ms later and
+ * every update until then only replaces the parameters it will use. A slider that keeps moving
+ * therefore gets a new look a few times a second, and its final position always gets baked.
+ * Parameters equal to the last baked ones are skipped.
+ */
+final class AdjustmentBaker {
+
+  private static final String TAG = AdjustmentBaker.class.getSimpleName();
+  private static final String THREAD_NAME = "AdjustmentBaker";
+  private static final long THROTTLE_MILLIS = 50;
+  private static final LatencyHistogram bakeHistogram =
+      MetricsRegistry.histogram("adjustments.bake");
+
+  /** Receives baked looks on the baker thread. */
+  interface Callback {
+    /**
+     * @param bakedLook The adjusted look, or null if the look should be drawn unadjusted.
+     * @param lutIndex Index of the look in the atlas that was adjusted, or {@link
+     *     FilterGLRenderer#NO_FILTER_ID} if the camera image itself was.
+     */
+    void onLookBaked(@Nullable BakedLook bakedLook, int lutIndex);
+  }
+
+  /**
+   * An adjusted lattice, and the same lattice and its shaper curves, if any, as bitmaps ready for
+   * upload.
+   */
+  static final class BakedLook {
+    final LookupTable lookupTable;
+    final Bitmap bitmap;
+    @Nullable final Bitmap shaperBitmap;
+
+    BakedLook(LookupTable lookupTable, Bitmap bitmap, @Nullable Bitmap shaperBitmap) {
+      this.lookupTable = lookupTable;
+      this.bitmap = bitmap;
+      this.shaperBitmap = shaperBitmap;
+    }
+  }
+
+  private final Callback callback;
+  private final HandlerThread thread;
+  private final Handler handler;
+  private final Runnable bakeRunnable = this::bakePending;
+
+  // Guarded by this.
+  @Nullable
+  private LookupTable pendingLook;
+  private int pendingLutIndex = FilterGLRenderer.NO_FILTER_ID;
+  private Adjustments pendingAdjustments = Adjustments.NONE;
+  private boolean bakeScheduled;
+
+  // Only touched on the baker thread.
+  @Nullable
+  private LookupTable bakedLook;
+  private int bakedLutIndex = FilterGLRenderer.NO_FILTER_ID;
+  private Adjustments bakedAdjustments = Adjustments.NONE;
+
+  AdjustmentBaker(Callback callback) {
+    this.callback = callback;
+    thread = new HandlerThread(THREAD_NAME);
+    thread.start();
+    handler = new Handler(thread.getLooper());
+  }
+
+  /**
+   * Asks for {@code adjustments} to be baked into {@code look}. May be called from any thread, as
+   * often as the parameters change.
+   *
+   * @param look Selected look, or null to adjust the camera image alone. Needs a lattice.
+   * @param lutIndex Index of {@code look} in the atlas, passed back to the callback.
+   */
+  synchronized void update(@Nullable LookupTable look, int lutIndex, Adjustments adjustments) {
+    pendingLook = look;
+    pendingLutIndex = lutIndex;
+    pendingAdjustments = adjustments;
+    if (!bakeScheduled) {
+      bakeScheduled = true;
+      handler.postDelayed(bakeRunnable, THROTTLE_MILLIS);
+    }
+  }
+
+  /** Stops the baker thread. Pending updates are dropped. */
+  void release() {
+    thread.quitSafely();
+  }
+
+  private void bakePending() {
+    LookupTable look;
+    int lutIndex;
+    Adjustments adjustments;
+    synchronized (this) {
+      bakeScheduled = false;
+      look = pendingLook;
+      lutIndex = pendingLutIndex;
+      adjustments = pendingAdjustments;
+    }
+    if (look == bakedLook && lutIndex == bakedLutIndex && adjustments.equals(bakedAdjustments)) {
+      return;
+    }
+    bakedLook = look;
+    bakedLutIndex = lutIndex;
+    bakedAdjustments = adjustments;
+
+    if (adjustments.isIdentity()) {
+      callback.onLookBaked(/* bakedLook= */ null, lutIndex);
+      return;
+    }
+    if (look != null && !look.hasLattice()) {
+      Log.w(TAG, "LookupTable " + look.getName() + " has no lattice, adjustments disabled.");
+      callback.onLookBaked(/* bakedLook= */ null, lutIndex);
+      return;
+    }
+    long startNanos = System.nanoTime();
+    LookupTable adjusted;
+    if (look == null) {
+      adjusted =
+          LookupTable.bake(
+              "adjusted",
+              FilterGLRenderer.NO_FILTER_ID,
+              adjustments::apply,
+              LookupTable.DEFAULT_LATTICE_SIZE);
+    } else {
+      // The lattice size the capture atlas has for this look, and its shaper, so adjusting a
+      // large look does not cost its captures any accuracy.
+      int latticeSize =
+          Math.min(
+              Math.max(look.getLatticeSize(), LookupTable.DEFAULT_LATTICE_SIZE),
+              FilterGLRenderer.MAX_CAPTURE_LATTICE_SIZE);
+      adjusted =
+          look.bakeGrayscale().resample(latticeSize).transformOutputs(adjustments::apply);
+    }
+    // Photos only knows the unadjusted look by its id.
+    adjusted = adjusted.asLocalOnly();
+    int size = adjusted.getLatticeSize();
+    Bitmap bitmap =
+        Bitmap.createBitmap(
+            adjusted.getLatticePixels(), size, size * size, Bitmap.Config.ARGB_8888);
+    Bitmap shaperBitmap =
+        adjusted.hasShaper()
+            ? Bitmap.createBitmap(
+                adjusted.getShaperPixels(),
+                StitchedLuts.SHAPER_WIDTH,
+                /* height= */ 1,
+                Bitmap.Config.ARGB_8888)
+            : null;
+    bakeHistogram.record(System.nanoTime() - startNanos);
+    callback.onLookBaked(new BakedLook(adjusted, bitmap, shaperBitmap), lutIndex);
+  }
+}
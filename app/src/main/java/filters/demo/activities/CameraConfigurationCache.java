@@ -0,0 +1,148 @@
+package filters.demo.activities;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Size;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the camera configuration resolved by {@link CameraConfigurationManager}, keyed by
+ * camera direction and display metrics, so the camera can be opened before it is resolved again.
+ *
+ * <p>Entries are held in memory for the life of the process and persisted to {@link
+ * SharedPreferences} so they also survive a cold start. They are only hints: the configuration is
+ * always resolved again and the cache updated if the two differ.
+ */
+final class CameraConfigurationCache {
+
+  private static final String TAG = CameraConfigurationCache.class.getSimpleName();
+  private static final String PREFERENCES_NAME = "camera_configuration_cache";
+  private static final String FIELD_SEPARATOR = ";";
+  private static final int FIELD_COUNT = 5;
+
+  /** Shared by every instance, since a new manager is created on each resume. */
+  private static final Map<String, Entry> memoryCache = new ConcurrentHashMap<>();
+
+  private final SharedPreferences preferences;
+
+  /**
+   * The parts of a resolved camera configuration needed to open the device and size the preview.
+   * Capture streams wait for the configuration to be resolved again, so their sizes are not kept.
+   */
+  static final class Entry {
+    final String cameraId;
+    final Size previewSize;
+    final int sensorOrientation;
+    /** {@code CONTROL_AF_MODE} used for preview and still requests. */
+    final int afMode;
+
+    Entry(String cameraId, Size previewSize, int sensorOrientation, int afMode) {
+      this.cameraId = cameraId;
+      this.previewSize = previewSize;
+      this.sensorOrientation = sensorOrientation;
+      this.afMode = afMode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry other = (Entry) o;
+      return cameraId.equals(other.cameraId)
+          && previewSize.equals(other.previewSize)
+          && sensorOrientation == other.sensorOrientation
+          && afMode == other.afMode;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = cameraId.hashCode();
+      result = 31 * result + previewSize.hashCode();
+      result = 31 * result + sensorOrientation;
+      return 31 * result + afMode;
+    }
+
+    private String serialize() {
+      return String.join(
+          FIELD_SEPARATOR,
+          cameraId,
+          String.valueOf(previewSize.getWidth()),
+          String.valueOf(previewSize.getHeight()),
+          String.valueOf(sensorOrientation),
+          String.valueOf(afMode));
+    }
+
+    @Nullable
+    private static Entry deserialize(String value) {
+      String[] fields = value.split(FIELD_SEPARATOR);
+      if (fields.length != FIELD_COUNT) {
+        return null;
+      }
+      try {
+        return new Entry(
+            fields[0],
+            new Size(Integer.parseInt(fields[1]), Integer.parseInt(fields[2])),
+            Integer.parseInt(fields[3]),
+            Integer.parseInt(fields[4]));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+
+  CameraConfigurationCache(Context context) {
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * Builds the cache key. Everything the resolved configuration depends on, other than the camera
+   * characteristics themselves, must be part of it.
+   */
+  static String createKey(
+      CameraConfigurationManager.CameraDirection direction,
+      int viewWidth,
+      int viewHeight,
+      int displayRotation,
+      int displayWidth,
+      int displayHeight) {
+    return direction
+        + FIELD_SEPARATOR + viewWidth + "x" + viewHeight
+        + FIELD_SEPARATOR + displayRotation
+        + FIELD_SEPARATOR + displayWidth + "x" + displayHeight;
+  }
+
+  @Nullable
+  Entry get(String key) {
+    Entry entry = memoryCache.get(key);
+    if (entry != null) {
+      return entry;
+    }
+    String value = preferences.getString(key, /* defValue= */ null);
+    if (value == null) {
+      return null;
+    }
+    entry = Entry.deserialize(value);
+    if (entry == null) {
+      Log.w(TAG, "Dropping unreadable cached camera configuration " + value);
+      preferences.edit().remove(key).apply();
+      return null;
+    }
+    memoryCache.put(key, entry);
+    return entry;
+  }
+
+  /** Stores {@code entry}, writing it to disk only if it changed. */
+  void put(String key, Entry entry) {
+    Entry previous = memoryCache.put(key, entry);
+    if (!entry.equals(previous)) {
+      preferences.edit().putString(key, entry.serialize()).apply();
+    }
+  }
+}
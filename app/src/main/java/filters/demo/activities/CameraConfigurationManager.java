@@ -13,15 +13,13 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.os.Handler;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Display;
 import android.view.Surface;
 import android.view.WindowManager;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -35,6 +33,10 @@ final class CameraConfigurationManager {
   private static final int MAX_PREVIEW_WIDTH = 1920;
   /** Max preview height guaranteed by Camera2 API. */
   private static final int MAX_PREVIEW_HEIGHT = 1080;
+  /** Smallest preview width the {@link PreviewGovernor} may step down to. */
+  private static final int MIN_PREVIEW_WIDTH = 320;
+  /** Lowest upper frame rate bound the {@link PreviewGovernor} may step down to. */
+  private static final int MIN_PREVIEW_FPS = 15;
   private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
 
   /** Conversions needed for proper screen rotation to camera image orientation. */
@@ -48,9 +50,13 @@ final class CameraConfigurationManager {
   private final CameraManager cameraManager;
   private final Context context;
   private final ConfiguredOrientationCallback configuredOrientationCallback;
+  private final CameraConfigurationCache configurationCache;
   private StreamConfigurationMap streamConfigurationMap;
+  private CameraCharacteristics cameraCharacteristics;
   private String cameraId;
   private Size previewSize;
+  private int sensorOrientation;
+  private int afMode = CameraCharacteristics.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
 
   /** Specifies which camera on the phone we want to use. */
   enum CameraDirection {
@@ -68,6 +74,26 @@ final class CameraConfigurationManager {
     this.context = context;
     this.configuredOrientationCallback = configuredOrientationCallback;
     cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+    configurationCache = new CameraConfigurationCache(context);
+  }
+
+  /**
+   * Returns the configuration cached for the same arguments to {@link #setCameraOrientation}, or
+   * null if there is none. A cached configuration is adopted right away, so the camera can be
+   * opened while {@link #setCameraOrientation} resolves it again.
+   */
+  @Nullable
+  public CameraConfigurationCache.Entry getCachedConfiguration(
+      CameraDirection direction, int width, int height) {
+    CameraConfigurationCache.Entry entry =
+        configurationCache.get(createCacheKey(direction, width, height));
+    if (entry != null) {
+      cameraId = entry.cameraId;
+      previewSize = entry.previewSize;
+      sensorOrientation = entry.sensorOrientation;
+      afMode = entry.afMode;
+    }
+    return entry;
   }
 
   /**
@@ -100,6 +126,7 @@ final class CameraConfigurationManager {
     try {
       String[] cameraIds = cameraManager.getCameraIdList();
       CameraCharacteristics cameraCharacteristics = null;
+      cameraId = null;
       for (String cameraId : cameraIds) {
         this.cameraId = cameraId;
         cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
@@ -113,18 +140,19 @@ final class CameraConfigurationManager {
         return;
       }
 
+      this.cameraCharacteristics = cameraCharacteristics;
       streamConfigurationMap =
           cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
 
       // For still image captures, we want the largest available size.
+      Size[] jpegSizes = streamConfigurationMap.getOutputSizes(ImageFormat.JPEG);
       Size largestImageSize =
-          Collections.max(
-              Arrays.asList(streamConfigurationMap.getOutputSizes(ImageFormat.JPEG)),
-              new CompareSizesByArea());
+          jpegSizes[SizeSelector.chooseLargestArea(widthsOf(jpegSizes), heightsOf(jpegSizes))];
 
       // Swap width and height depending on display rotation and sensor orientation.
       int displayRotation = getDefaultDisplay().getRotation();
-      int sensorOrientation = cameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+      sensorOrientation = cameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+      afMode = chooseAfMode(cameraCharacteristics);
       boolean swappedDimensions = false;
       switch (displayRotation) {
         case Surface.ROTATION_0:
@@ -174,6 +202,9 @@ final class CameraConfigurationManager {
               maxPreviewWidth,
               maxPreviewHeight,
               largestImageSize);
+      configurationCache.put(
+          createCacheKey(direction, width, height),
+          new CameraConfigurationCache.Entry(cameraId, previewSize, sensorOrientation, afMode));
       configuredOrientationCallback.onConfiguredOrientation(largestImageSize, previewSize);
     } catch (CameraAccessException e) {
       Log.e(TAG, "Could not retrieve camera ID list.");
@@ -199,26 +230,41 @@ final class CameraConfigurationManager {
       Log.d(TAG, "cameraManager or cameraId null");
       return null;
     }
-    try {
-      // Sensor orientation is 90 degrees for most devices, but 270 for some.
-      // For devices with sensor orientation of 90, we simply return the mapping from ORIENTATIONS.
-      // For devices with sensor orientation of 270, we rotate 180 degrees.
-      CameraCharacteristics characteristics = cameraManager.getCameraCharacteristics(cameraId);
-      int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-      int orientation = ORIENTATIONS.get(getDefaultDisplay().getRotation());
-      return (orientation + sensorOrientation + 270) % 360;
-    } catch (CameraAccessException e) {
-      Log.e(TAG, "Could not access camera when getting JPEG orientation.");
-      return null;
+    // Sensor orientation is 90 degrees for most devices, but 270 for some.
+    // For devices with sensor orientation of 90, we simply return the mapping from ORIENTATIONS.
+    // For devices with sensor orientation of 270, we rotate 180 degrees.
+    int orientation = ORIENTATIONS.get(getDefaultDisplay().getRotation());
+    return (orientation + sensorOrientation + 270) % 360;
+  }
+
+  /** Id of the camera selected by the last configuration, cached or resolved. */
+  @Nullable
+  public String getCameraId() {
+    return cameraId;
+  }
+
+  /** {@code CONTROL_AF_MODE} to use for the selected camera. */
+  public int getAfMode() {
+    return afMode;
+  }
+
+  /**
+   * Whether sensor timestamps of the selected camera use the {@code elapsedRealtimeNanos} clock,
+   * so they can be compared with the time of an input event.
+   */
+  public boolean isSensorTimestampRealtime() {
+    if (cameraCharacteristics == null) {
+      return false;
     }
+    Integer source = cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+    return source != null && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
   }
 
   /**
    * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that is
    * at least as large as the respective texture view size, and that is at most as large as the
-   * respective max size, and whose aspect ratio matches with the specified value. If such size
-   * doesn't exist, choose the largest one that is at most as large as the respective max size, and
-   * whose aspect ratio matches with the specified value.
+   * respective max size, and whose aspect ratio matches with the specified value. See {@link
+   * SizeSelector#chooseOptimalSize}.
    *
    * @param choices The list of sizes that the camera supports for the intended output class
    * @param textureViewWidth The width of the texture view relative to sensor coordinate
@@ -235,48 +281,158 @@ final class CameraConfigurationManager {
       int maxWidth,
       int maxHeight,
       Size aspectRatio) {
+    return choices[
+        SizeSelector.chooseOptimalSize(
+            widthsOf(choices),
+            heightsOf(choices),
+            textureViewWidth,
+            textureViewHeight,
+            maxWidth,
+            maxHeight,
+            aspectRatio.getWidth(),
+            aspectRatio.getHeight())];
+  }
 
-    // Collect the supported resolutions that are at least as big as the preview Surface
-    List<Size> resolutionsGreaterThanOrEqualToPreviewSurface = new ArrayList<>();
-    // Collect the supported resolutions that are smaller than the preview Surface
-    List<Size> resolutionsSmallerThanPreviewSurface = new ArrayList<>();
-    int width = aspectRatio.getWidth();
-    int height = aspectRatio.getHeight();
-    for (Size option : choices) {
-      if (option.getWidth() <= maxWidth
-          && option.getHeight() <= maxHeight
-          && option.getHeight() == option.getWidth() * height / width) {
-        if (option.getWidth() >= textureViewWidth && option.getHeight() >= textureViewHeight) {
-          resolutionsGreaterThanOrEqualToPreviewSurface.add(option);
-        } else {
-          resolutionsSmallerThanPreviewSurface.add(option);
+  /**
+   * Returns the largest {@link SurfaceTexture} output size with the aspect ratio of {@code
+   * aspectRatio} whose sides both fit in {@code maxDimension}, or null if there is none.
+   *
+   * <p>Used to size the stream that stills are rendered from on the GPU.
+   */
+  @Nullable
+  public Size getLargestSurfaceTextureSize(Size aspectRatio, int maxDimension) {
+    if (streamConfigurationMap == null) {
+      return null;
+    }
+    return chooseLargestSize(
+        streamConfigurationMap.getOutputSizes(SurfaceTexture.class), aspectRatio, maxDimension);
+  }
+
+  /**
+   * Returns the largest YUV_420_888 output size with the aspect ratio of {@code aspectRatio}, or
+   * null if there is none.
+   */
+  @Nullable
+  public Size getLargestYuvSize(Size aspectRatio) {
+    if (streamConfigurationMap == null) {
+      return null;
+    }
+    return chooseLargestSize(
+        streamConfigurationMap.getOutputSizes(ImageFormat.YUV_420_888),
+        aspectRatio,
+        Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the preview stream configurations the {@link PreviewGovernor} can switch between:
+   * every {@link SurfaceTexture} size with the aspect ratio of {@code previewSize} and at most its
+   * area, combined with every supported AE target frame rate range the size can sustain.
+   */
+  public List<PreviewGovernor.Level> getPreviewLevels(Size previewSize) {
+    List<PreviewGovernor.Level> levels = new ArrayList<>();
+    if (streamConfigurationMap == null || cameraCharacteristics == null) {
+      return levels;
+    }
+    Range<Integer>[] fpsRanges =
+        cameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+    if (fpsRanges == null) {
+      return levels;
+    }
+    // For each upper bound keep the range with the lowest lower bound, so AE can still lengthen
+    // exposures in low light.
+    SparseIntArray lowestMinFpsByMaxFps = new SparseIntArray();
+    for (Range<Integer> range : fpsRanges) {
+      int maxFps = range.getUpper();
+      int minFps = range.getLower();
+      if (maxFps < MIN_PREVIEW_FPS) {
+        continue;
+      }
+      if (lowestMinFpsByMaxFps.indexOfKey(maxFps) < 0
+          || minFps < lowestMinFpsByMaxFps.get(maxFps)) {
+        lowestMinFpsByMaxFps.put(maxFps, minFps);
+      }
+    }
+    long maxArea = (long) previewSize.getWidth() * previewSize.getHeight();
+    for (Size size : streamConfigurationMap.getOutputSizes(SurfaceTexture.class)) {
+      if (size.getWidth() < MIN_PREVIEW_WIDTH
+          || (long) size.getWidth() * size.getHeight() > maxArea
+          || (long) size.getHeight() * previewSize.getWidth()
+              != (long) size.getWidth() * previewSize.getHeight()) {
+        continue;
+      }
+      long minFrameDurationNanos =
+          streamConfigurationMap.getOutputMinFrameDuration(SurfaceTexture.class, size);
+      for (int i = 0; i < lowestMinFpsByMaxFps.size(); i++) {
+        int maxFps = lowestMinFpsByMaxFps.keyAt(i);
+        if (minFrameDurationNanos > 0 && maxFps * minFrameDurationNanos > 1_000_000_000L) {
+          continue;
         }
+        levels.add(
+            new PreviewGovernor.Level(
+                size.getWidth(), size.getHeight(), lowestMinFpsByMaxFps.valueAt(i), maxFps));
       }
     }
+    return levels;
+  }
 
-    // Pick the smallest of those big enough. If there is no one big enough, pick the
-    // largest of those not big enough.
-    if (!resolutionsGreaterThanOrEqualToPreviewSurface.isEmpty()) {
-      return Collections.min(
-          resolutionsGreaterThanOrEqualToPreviewSurface, new CompareSizesByArea());
-    } else if (!resolutionsSmallerThanPreviewSurface.isEmpty()) {
-      return Collections.max(
-          resolutionsSmallerThanPreviewSurface, new CompareSizesByArea());
-    } else {
-      return choices[0];
+  @Nullable
+  private static Size chooseLargestSize(
+      @Nullable Size[] choices, Size aspectRatio, int maxDimension) {
+    if (choices == null) {
+      return null;
     }
+    int index =
+        SizeSelector.chooseLargestSize(
+            widthsOf(choices),
+            heightsOf(choices),
+            aspectRatio.getWidth(),
+            aspectRatio.getHeight(),
+            maxDimension);
+    return index < 0 ? null : choices[index];
   }
 
-  private Display getDefaultDisplay() {
-    return ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+  private static int[] widthsOf(Size[] sizes) {
+    int[] widths = new int[sizes.length];
+    for (int i = 0; i < sizes.length; i++) {
+      widths[i] = sizes[i].getWidth();
+    }
+    return widths;
   }
 
-  /** Compare two {@link Size}s based on their areas. */
-  private static class CompareSizesByArea implements Comparator<Size> {
-    @Override
-    public int compare(Size lhs, Size rhs) {
-      return Long.signum(
-          (long) lhs.getWidth() * lhs.getHeight() - (long) rhs.getWidth() * rhs.getHeight());
+  private static int[] heightsOf(Size[] sizes) {
+    int[] heights = new int[sizes.length];
+    for (int i = 0; i < sizes.length; i++) {
+      heights[i] = sizes[i].getHeight();
+    }
+    return heights;
+  }
+
+  /** Continuous picture focus if the camera has it, otherwise auto focus, otherwise none. */
+  private static int chooseAfMode(CameraCharacteristics characteristics) {
+    int[] modes = characteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+    if (modes == null) {
+      return CameraCharacteristics.CONTROL_AF_MODE_OFF;
+    }
+    int afMode = CameraCharacteristics.CONTROL_AF_MODE_OFF;
+    for (int mode : modes) {
+      if (mode == CameraCharacteristics.CONTROL_AF_MODE_CONTINUOUS_PICTURE) {
+        return mode;
+      } else if (mode == CameraCharacteristics.CONTROL_AF_MODE_AUTO) {
+        afMode = mode;
+      }
     }
+    return afMode;
+  }
+
+  private String createCacheKey(CameraDirection direction, int width, int height) {
+    Display display = getDefaultDisplay();
+    Point displaySize = new Point();
+    display.getSize(displaySize);
+    return CameraConfigurationCache.createKey(
+        direction, width, height, display.getRotation(), displaySize.x, displaySize.y);
+  }
+
+  private Display getDefaultDisplay() {
+    return ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
   }
 }
@@ -6,34 +6,74 @@ import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.widget.Toast;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Class that contains the variables required for camera usage. */
 public final class CameraModule {
 
   private static final String TAG = CameraModule.class.getSimpleName();
   private static final String CAMERA_THREAD_NAME = "CameraBackground";
-  private static final int SEMAPHORE_MAX_WAIT_TIME_MILLIS = 2500;
+  /** Recent frames kept for {@link CaptureFormat#ZSL}. */
+  private static final int ZSL_RING_CAPACITY = 3;
+  /** ZSL frames being saved at once. Further taps are ignored until one finishes. */
+  private static final int MAX_ZSL_SAVES = 1;
+  private static final LatencyHistogram openHistogram = MetricsRegistry.histogram("camera.open");
+  private static final MetricsRegistry.Counter errorCounter =
+      MetricsRegistry.counter("camera.errors");
+  private static final MetricsRegistry.Counter disconnectCounter =
+      MetricsRegistry.counter("camera.disconnects");
+  private static final MetricsRegistry.Counter sessionFailureCounter =
+      MetricsRegistry.counter("camera.session_failures");
+  private static final MetricsRegistry.Counter captureCounter =
+      MetricsRegistry.counter("capture.requests");
+  private static final MetricsRegistry.Counter captureFailureCounter =
+      MetricsRegistry.counter("capture.failures");
+  private static final MetricsRegistry.Counter zslFrameCounter =
+      MetricsRegistry.counter("zsl.frames");
+  private static final MetricsRegistry.Gauge thermalStatusGauge =
+      MetricsRegistry.gauge("camera.thermal_status");
+  private static final MetricsRegistry.Gauge previewWidthGauge =
+      MetricsRegistry.gauge("preview.width");
+  private static final MetricsRegistry.Gauge previewHeightGauge =
+      MetricsRegistry.gauge("preview.height");
+  private static final MetricsRegistry.Gauge previewMaxFpsGauge =
+      MetricsRegistry.gauge("preview.max_fps");
 
   private final Context context;
   private final CameraConfigurationManager cameraConfigurationManager;
-  /** A {@link Semaphore} to prevent the app from exiting before closing the camera. */
-  private final Semaphore cameraLock = new Semaphore(1);
+  private final CameraStateMachine stateMachine = new CameraStateMachine();
   private final CameraOpenListener cameraOpenListener;
+  private final FilterPathSelector filterPathSelector;
+  /** Runs {@link ImageSaver}s, so saves neither delay camera callbacks nor get cut off by close. */
+  private final Executor saveExecutor;
   private final ImageReader.OnImageAvailableListener onImageAvailableListener =
       this::onAvailableImage;
+  private final ZslRingBuffer<Image> zslRingBuffer =
+      new ZslRingBuffer<>(ZSL_RING_CAPACITY, Image::close);
+  /** ZSL frames handed to {@link #saveExecutor} and not saved yet. */
+  private final AtomicInteger zslSavesInFlight = new AtomicInteger();
   /**
    * A {@link CameraConfigurationManager.ConfiguredOrientationCallback} that indicates that
    * preview/image sizes have been determined and we can proceed to open the camera.
@@ -43,16 +83,53 @@ public final class CameraModule {
         @Override
         public void onConfiguredOrientation(Size imageSize, Size cameraPreviewSize) {
           previewSize = cameraPreviewSize;
-          imageReader =
-              ImageReader.newInstance(
-                  imageSize.getWidth(),
-                  imageSize.getHeight(),
-                  ImageFormat.JPEG,
-                  /* maxImages= */ 2);
-          imageReader.setOnImageAvailableListener(onImageAvailableListener, backgroundHandler);
+          previewWidthGauge.set(previewSize.getWidth());
+          previewHeightGauge.set(previewSize.getHeight());
+          jpegSize = imageSize;
+          if (captureFormat == CaptureFormat.GL_RENDERED && captureSurfaceTexture == null) {
+            Log.w(TAG, "No capture texture from the renderer, capturing JPEG instead.");
+            captureFormat = CaptureFormat.JPEG;
+          }
+          if (captureFormat == CaptureFormat.YUV || captureFormat == CaptureFormat.ZSL) {
+            yuvSize = cameraConfigurationManager.getLargestYuvSize(imageSize);
+            if (yuvSize == null) {
+              Log.w(TAG, "No YUV stream matches the still aspect ratio, capturing JPEG instead.");
+              captureFormat = CaptureFormat.JPEG;
+            }
+          }
+          if (captureFormat == CaptureFormat.GL_RENDERED) {
+            renderedCaptureSize =
+                cameraConfigurationManager.getLargestSurfaceTextureSize(
+                    imageSize, maxRenderedCaptureDimension);
+            if (renderedCaptureSize == null) {
+              Log.w(TAG, "No stream fits the GL capture limits, capturing JPEG instead.");
+              captureFormat = CaptureFormat.JPEG;
+            } else {
+              captureSurfaceTexture.setDefaultBufferSize(
+                  renderedCaptureSize.getWidth(), renderedCaptureSize.getHeight());
+              captureSurface = new Surface(captureSurfaceTexture);
+            }
+          }
+          if (captureFormat != CaptureFormat.GL_RENDERED) {
+            createImageReader();
+          }
+          createPreviewGovernor();
+          if (frameTelemetry != null) {
+            frameTelemetry.setTimestampsRealtime(
+                cameraConfigurationManager.isSensorTimestampRealtime());
+          }
           surfaceTexture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
           cameraOpenListener.onPreviewSizeDetermined(previewSize);
-          openCameraDevice();
+          if (!cameraOpenRequested) {
+            cameraOpenRequested = true;
+            openCameraDevice();
+          }
+          backgroundHandler.post(
+              () -> {
+                configurationResolved = true;
+                createCaptureSessionIfReady();
+              });
+          cameraOpenListener.onCameraReady();
         }
       };
   /** {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state. */
@@ -60,25 +137,56 @@ public final class CameraModule {
       new CameraDevice.StateCallback() {
         @Override
         public void onOpened(CameraDevice device) {
-          cameraLock.release();
+          openHistogram.record(SystemClock.elapsedRealtimeNanos() - openStartNanos);
           cameraDevice = device;
-          createCaptureSession();
+          if (!stateMachine.transition(CameraStateMachine.State.OPENING,
+              CameraStateMachine.State.OPEN)) {
+            // Closing was requested while the device was opening.
+            device.close();
+            return;
+          }
+          createCaptureSessionIfReady();
         }
 
         @Override
         public void onDisconnected(CameraDevice device) {
-          if (cameraDevice != null && cameraDevice != device) {
+          Log.w(TAG, "Camera " + device.getId() + " disconnected.");
+          disconnectCounter.increment();
+          closeDevice(device);
+        }
+
+        @Override
+        public void onError(CameraDevice device, int errorCode) {
+          Log.e(TAG, "Camera " + device.getId() + " failed with error " + errorCode);
+          errorCounter.increment();
+          if (cameraDevice == null) {
+            // The device never opened, so there is nothing to close and no onClosed to expect.
+            stateMachine.transition(CameraStateMachine.State.CLOSED);
+            finishShutdownIfClosed();
             return;
           }
-          close();
+          closeDevice(device);
         }
 
         @Override
-        public void onError(CameraDevice device, int errorCode) {
-          if (cameraDevice != null && cameraDevice != device) {
+        public void onClosed(CameraDevice device) {
+          if (device != cameraDevice) {
             return;
           }
-          close();
+          cameraDevice = null;
+          captureSession = null;
+          stillCapturesInFlight = 0;
+          for (CaptureTrace trace : pendingCaptureTraces) {
+            trace.abandon();
+          }
+          pendingCaptureTraces.clear();
+          stateMachine.transition(CameraStateMachine.State.CLOSED);
+          if (reopenAfterClose && !shuttingDown) {
+            reopenAfterClose = false;
+            openCameraDevice();
+            return;
+          }
+          finishShutdownIfClosed();
         }
       };
   /**
@@ -89,7 +197,8 @@ public final class CameraModule {
       new CameraCaptureSession.StateCallback() {
         @Override
         public void onConfigured(CameraCaptureSession session) {
-          if (cameraDevice == null || session.getDevice() != cameraDevice) {
+          if (cameraDevice == null || session.getDevice() != cameraDevice || shuttingDown) {
+            session.close();
             return;
           }
           captureSession = session;
@@ -98,20 +207,139 @@ public final class CameraModule {
 
         @Override
         public void onConfigureFailed(CameraCaptureSession cameraCaptureSession) {
+          boolean hasFallback =
+              captureFormat == CaptureFormat.GL_RENDERED || captureFormat == CaptureFormat.ZSL;
+          if (hasFallback && cameraDevice != null && !shuttingDown) {
+            // A second full size stream is not a guaranteed combination on every device.
+            Log.w(TAG, "Could not configure a " + captureFormat + " stream, falling back to JPEG.");
+            captureFormat = CaptureFormat.JPEG;
+            zslRingBuffer.clear();
+            if (imageReader != null) {
+              ImageReader reader = imageReader;
+              saveExecutor.execute(reader::close);
+            }
+            createImageReader();
+            createCaptureSession();
+            return;
+          }
           Log.e(TAG, "Could not configure CameraCaptureSession.");
+          sessionFailureCounter.increment();
         }
       };
 
+  /** Feeds {@link #frameTelemetry} from the results of the repeating preview request. */
+  private final CameraCaptureSession.CaptureCallback previewCaptureCallback =
+      new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+          FrameTelemetry telemetry = frameTelemetry;
+          if (telemetry != null) {
+            telemetry.onCaptureCompleted(
+                result.getFrameNumber(),
+                getOrMissing(result, CaptureResult.SENSOR_TIMESTAMP),
+                getOrMissing(result, CaptureResult.SENSOR_FRAME_DURATION),
+                getOrMissing(result, CaptureResult.SENSOR_EXPOSURE_TIME));
+          }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+          FrameTelemetry telemetry = frameTelemetry;
+          if (telemetry != null) {
+            telemetry.onCaptureFailed(failure.getFrameNumber());
+          }
+        }
+      };
+
+  /** Forwards thermal status changes to the {@link PreviewGovernor}. Needs API 29. */
+  @Nullable
+  private final PowerManager.OnThermalStatusChangedListener thermalStatusListener =
+      Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q ? this::onThermalStatusChanged : null;
+
   private HandlerThread backgroundThread;
   private Handler backgroundHandler;
   private SurfaceTexture surfaceTexture;
+  @Nullable
+  private Surface previewSurface;
+  /** Stream that stills are rendered from in {@link CaptureFormat#GL_RENDERED} mode. */
+  @Nullable
+  private SurfaceTexture captureSurfaceTexture;
+  @Nullable
+  private Surface captureSurface;
+  private int maxRenderedCaptureDimension;
+  private CaptureFormat captureFormat = CaptureFormat.JPEG;
   private ImageReader imageReader;
   private CameraCaptureSession captureSession;
   private CameraDevice cameraDevice;
   private CaptureRequest.Builder previewRequestBuilder;
   private CaptureRequest previewRequest;
   private Size previewSize;
-  private int filterId = FilterGLRenderer.NO_FILTER_ID;
+  private Size jpegSize;
+  @Nullable
+  private Size yuvSize;
+  @Nullable
+  private Size renderedCaptureSize;
+  @Nullable
+  private PreviewGovernor previewGovernor;
+  /** AE target frame rate range of the preview, or null for the template default. */
+  @Nullable
+  private Range<Integer> previewFpsRange;
+  private int thermalStatus;
+  /** Receives preview capture results, or null to not listen for them at all. */
+  @Nullable
+  private volatile FrameTelemetry frameTelemetry;
+  /** When the last open was requested, on the {@code elapsedRealtimeNanos} clock. */
+  private long openStartNanos;
+  /** Stills submitted and not yet completed. Only touched on the background thread. */
+  private int stillCapturesInFlight;
+  /** Level the governor asked for while a still was in flight. */
+  @Nullable
+  private PreviewGovernor.Level pendingPreviewLevel;
+  /** Whether the device was opened early from a cached configuration. */
+  private boolean cameraOpenRequested;
+  /**
+   * Set on the background thread once the configuration has been resolved, so the session is not
+   * created from cached values that turned out to be stale.
+   */
+  private boolean configurationResolved;
+  /** Set when the open device turned out to be the wrong one and must be reopened once closed. */
+  private boolean reopenAfterClose;
+  /** Set by {@link #close}. The module cannot be started again afterwards. */
+  private volatile boolean shuttingDown;
+  /** Look selected when the last still capture was requested, or null for no filter. */
+  @Nullable
+  private LookupTable lut;
+  /**
+   * Traces of submitted stills whose image has not arrived yet, oldest first. Images arrive in
+   * request order. Only touched on the background thread.
+   */
+  private final ArrayDeque<CaptureTrace> pendingCaptureTraces = new ArrayDeque<>();
+
+  /** Where still captures are produced. */
+  public enum CaptureFormat {
+    /** The camera encodes a JPEG which is then filtered by Photos or on the CPU. */
+    JPEG,
+    /**
+     * The camera streams the still into a {@link SurfaceTexture} and {@link FilterGLRenderer}
+     * renders it with the same shader as the preview, without any IPC.
+     */
+    GL_RENDERED,
+    /**
+     * The camera delivers YUV_420_888 planes which are converted, filtered and encoded in a single
+     * pass on the CPU, saving the JPEG decode of the local filter path.
+     */
+    YUV,
+    /**
+     * Zero shutter lag: full resolution YUV_420_888 frames are streamed next to the preview into a
+     * small {@link ZslRingBuffer}, and a capture saves the frame closest to the tap through the
+     * {@link #YUV} path instead of submitting a new request.
+     */
+    ZSL,
+  }
 
   /** Callback indicating when camera has started a CameraCaptureSession and a CaptureRequest. */
   public interface CameraOpenListener {
@@ -120,58 +348,262 @@ public final class CameraModule {
   }
 
   public CameraModule(
-      Context context, CameraOpenListener cameraOpenListener) {
+      Context context,
+      CameraOpenListener cameraOpenListener,
+      FilterPathSelector filterPathSelector,
+      Executor saveExecutor) {
     this.cameraOpenListener = cameraOpenListener;
     this.context = context;
+    this.filterPathSelector = filterPathSelector;
+    this.saveExecutor = saveExecutor;
     cameraConfigurationManager = new CameraConfigurationManager(context, configurationCallback);
   }
 
   /** Start the background thread. */
   public void start() {
     startBackgroundThread();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      PowerManager powerManager = context.getSystemService(PowerManager.class);
+      thermalStatus = powerManager.getCurrentThermalStatus();
+      powerManager.addThermalStatusListener(thermalStatusListener);
+    }
   }
 
-  /** Closes the camera and background thread. */
+  /**
+   * Closes the camera and background thread without blocking the caller. Once the device reports
+   * it is closed, the background thread quits. Saves already queued still run to completion on the
+   * save executor.
+   */
   public void close() {
-    closeCameraDevice();
-    stopBackgroundThread();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      context.getSystemService(PowerManager.class).removeThermalStatusListener(
+          thermalStatusListener);
+    }
+    shuttingDown = true;
+    if (backgroundHandler != null) {
+      backgroundHandler.post(this::shutdown);
+    }
   }
 
   public void setSurfaceTexture(SurfaceTexture surfaceTexture) {
     this.surfaceTexture = surfaceTexture;
   }
 
+  /**
+   * Provides the texture used by {@link CaptureFormat#GL_RENDERED} capture. Must be called before
+   * {@link #configureCamera}.
+   *
+   * @param captureSurfaceTexture Texture the renderer draws stills from.
+   * @param maxDimension Largest width or height the renderer can draw into.
+   */
+  public void setCaptureSurfaceTexture(SurfaceTexture captureSurfaceTexture, int maxDimension) {
+    this.captureSurfaceTexture = captureSurfaceTexture;
+    this.maxRenderedCaptureDimension = maxDimension;
+  }
+
+  /**
+   * Selects the preferred capture format. Must be called before {@link #configureCamera}. Formats
+   * the device cannot provide fall back to {@link CaptureFormat#JPEG}.
+   */
+  public void setCaptureFormat(CaptureFormat captureFormat) {
+    this.captureFormat = captureFormat;
+  }
+
+  /**
+   * Sets where results of the repeating preview request are recorded. Without one, no capture
+   * callback is attached to the preview at all. Must be called before {@link #configureCamera}.
+   */
+  public void setFrameTelemetry(@Nullable FrameTelemetry frameTelemetry) {
+    this.frameTelemetry = frameTelemetry;
+  }
+
+  public CaptureFormat getCaptureFormat() {
+    return captureFormat;
+  }
+
+  /** Size of the rendered capture stream in sensor orientation, or null if not in use. */
+  @Nullable
+  public Size getRenderedCaptureSize() {
+    return renderedCaptureSize;
+  }
+
+  /**
+   * Governor adapting the preview stream to the renderer's frame times, or null if the camera
+   * offers a single preview configuration or has not been configured yet.
+   */
+  @Nullable
+  public PreviewGovernor getPreviewGovernor() {
+    return previewGovernor;
+  }
+
   /** Start setting up the back camera. */
   public void configureCamera(int availableWidth, int availableHeight) {
+    CameraConfigurationCache.Entry cached =
+        cameraConfigurationManager.getCachedConfiguration(
+            CameraConfigurationManager.CameraDirection.BACK, availableWidth, availableHeight);
+    if (cached != null) {
+      // Opening the device takes longest, so start it with the cached camera id and resolve the
+      // configuration while the device opens.
+      cameraOpenRequested = true;
+      surfaceTexture.setDefaultBufferSize(
+          cached.previewSize.getWidth(), cached.previewSize.getHeight());
+      cameraOpenListener.onPreviewSizeDetermined(cached.previewSize);
+      openCameraDevice();
+    }
     cameraConfigurationManager.setCameraOrientation(
         CameraConfigurationManager.CameraDirection.BACK,
         availableWidth,
         availableHeight);
   }
 
-  /** Send a capture request to take a still picture. */
-  public void captureStillPicture(int filterId) {
-    this.filterId = filterId;
+  /**
+   * Send a capture request to take a still picture.
+   *
+   * @param lut The look to apply to the picture, or null to save it unfiltered.
+   * @param trace Trace started when the shutter was pressed.
+   * @param onCaptureDropped Run if no frame will be delivered for this request, for example
+   *     because the camera is not open. May be null.
+   */
+  public void captureStillPicture(
+      @Nullable LookupTable lut, CaptureTrace trace, @Nullable Runnable onCaptureDropped) {
+    Handler handler = backgroundHandler;
+    if (handler == null) {
+      trace.abandon();
+      runIfNotNull(onCaptureDropped);
+      return;
+    }
+    if (captureFormat == CaptureFormat.ZSL) {
+      long tapTimestampNanos = SystemClock.elapsedRealtimeNanos();
+      handler.post(() -> saveZslFrame(lut, tapTimestampNanos, trace));
+    } else {
+      handler.post(() -> submitStillCapture(lut, trace, onCaptureDropped));
+    }
+  }
+
+  private static void runIfNotNull(@Nullable Runnable runnable) {
+    if (runnable != null) {
+      runnable.run();
+    }
+  }
+
+  /**
+   * Saves the buffered frame closest to {@code tapTimestampNanos} on the background thread. Frames
+   * are only matched by timestamp when the sensor uses the same clock, otherwise the newest wins.
+   */
+  private void saveZslFrame(
+      @Nullable LookupTable lut, long tapTimestampNanos, CaptureTrace trace) {
+    if (captureSession == null || stateMachine.getState() != CameraStateMachine.State.OPEN) {
+      Log.w(TAG, "Camera is " + stateMachine.getState() + ", ignoring the capture request.");
+      trace.abandon();
+      return;
+    }
+    if (zslSavesInFlight.get() >= MAX_ZSL_SAVES) {
+      Log.w(TAG, "Still saving the previous picture, ignoring the capture request.");
+      trace.abandon();
+      return;
+    }
+    Image image =
+        cameraConfigurationManager.isSensorTimestampRealtime()
+            ? zslRingBuffer.removeClosest(tapTimestampNanos)
+            : zslRingBuffer.removeNewest();
+    if (image == null) {
+      Log.w(TAG, "No frame buffered yet, ignoring the capture request.");
+      trace.abandon();
+      return;
+    }
+    trace.mark(CaptureTrace.Stage.IMAGE_AVAILABLE);
+    captureCounter.increment();
+    Integer rotation = getCameraRotationAngle();
+    ImageSaver imageSaver =
+        new ImageSaver(
+            context, image, lut, filterPathSelector, rotation == null ? 0 : rotation, trace);
+    zslSavesInFlight.incrementAndGet();
+    saveExecutor.execute(
+        () -> {
+          try {
+            imageSaver.run();
+          } finally {
+            zslSavesInFlight.decrementAndGet();
+          }
+        });
+    Toast.makeText(context, "Picture taken!", Toast.LENGTH_SHORT).show();
+  }
+
+  /** Submits a still capture on the background thread if the device is ready for one. */
+  private void submitStillCapture(
+      @Nullable LookupTable lut, CaptureTrace trace, @Nullable Runnable onCaptureDropped) {
+    if (captureSession == null
+        || !(stateMachine.transition(CameraStateMachine.State.OPEN,
+                CameraStateMachine.State.CAPTURING)
+            || stateMachine.getState() == CameraStateMachine.State.CAPTURING)) {
+      Log.w(TAG, "Camera is " + stateMachine.getState() + ", ignoring the capture request.");
+      trace.abandon();
+      runIfNotNull(onCaptureDropped);
+      return;
+    }
+    this.lut = lut;
     try {
       final CaptureRequest.Builder captureBuilder =
           cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-      captureBuilder.addTarget(imageReader.getSurface());
-      captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-          CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-      captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getCameraRotationAngle());
+      captureBuilder.set(CaptureRequest.CONTROL_AF_MODE, cameraConfigurationManager.getAfMode());
+      if (captureFormat == CaptureFormat.GL_RENDERED) {
+        // The renderer rotates the still upright itself, like it does for the preview.
+        captureBuilder.addTarget(captureSurface);
+      } else {
+        captureBuilder.addTarget(imageReader.getSurface());
+        if (captureFormat == CaptureFormat.JPEG) {
+          captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getCameraRotationAngle());
+        }
+      }
 
       final CameraCaptureSession.CaptureCallback captureCallback =
           new CameraCaptureSession.CaptureCallback() {
+            @Override
+            public void onCaptureStarted(@NonNull CameraCaptureSession session,
+                                         @NonNull CaptureRequest request,
+                                         long timestamp,
+                                         long frameNumber) {
+              FrameTelemetry telemetry = frameTelemetry;
+              if (telemetry != null) {
+                telemetry.onStillCaptureStarted(frameNumber);
+              }
+            }
+
             @Override
             public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                            @NonNull CaptureRequest request,
                                            @NonNull TotalCaptureResult result) {
+              trace.mark(CaptureTrace.Stage.CAPTURE_COMPLETED);
               Toast.makeText(context, "Picture taken!", Toast.LENGTH_SHORT).show();
+              onStillCaptureDone();
+            }
+
+            @Override
+            public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                        @NonNull CaptureRequest request,
+                                        @NonNull CaptureFailure failure) {
+              captureFailureCounter.increment();
+              pendingCaptureTraces.remove(trace);
+              trace.abandon();
+              if (!failure.wasImageCaptured()) {
+                runIfNotNull(onCaptureDropped);
+              }
+              onStillCaptureDone();
             }
       };
       captureSession.capture(captureBuilder.build(), captureCallback, backgroundHandler);
+      captureCounter.increment();
+      stillCapturesInFlight++;
+      if (captureFormat != CaptureFormat.GL_RENDERED) {
+        pendingCaptureTraces.add(trace);
+      }
     } catch (CameraAccessException e) {
       Log.e(TAG, "Could not access camera when trying to capture an image", e);
+      trace.abandon();
+      runIfNotNull(onCaptureDropped);
+      if (stillCapturesInFlight == 0) {
+        stateMachine.transition(CameraStateMachine.State.CAPTURING, CameraStateMachine.State.OPEN);
+      }
     }
   }
 
@@ -181,46 +613,123 @@ public final class CameraModule {
   }
 
   private void openCameraDevice() {
+    if (shuttingDown || !stateMachine.transition(CameraStateMachine.State.OPENING)) {
+      Log.w(TAG, "Not opening the camera while it is " + stateMachine.getState());
+      return;
+    }
+    openStartNanos = SystemClock.elapsedRealtimeNanos();
     try {
-      if (!cameraLock.tryAcquire(SEMAPHORE_MAX_WAIT_TIME_MILLIS, TimeUnit.MILLISECONDS)) {
-        throw new RuntimeException("Time out waiting to lock camera opening.");
-      }
       cameraConfigurationManager.openCamera(deviceStateCallback, backgroundHandler);
-      cameraOpenListener.onCameraReady();
-    } catch (CameraAccessException | InterruptedException e) {
-      Log.e(TAG, e.toString());
+    } catch (CameraAccessException | RuntimeException e) {
+      Log.e(TAG, "Could not open camera.", e);
+      stateMachine.transition(CameraStateMachine.State.OPENING, CameraStateMachine.State.CLOSED);
     }
   }
 
-  private void closeCameraDevice() {
-    try {
-      cameraLock.acquire();
-      if (captureSession != null) {
-        closeCaptureSession();
-      }
-      if (cameraDevice != null) {
-        cameraDevice.close();
-        cameraDevice = null;
-      }
-      if (imageReader != null) {
-        imageReader.close();
-        imageReader = null;
-      }
-    } catch (InterruptedException e) {
-      throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-    } finally {
-      cameraLock.release();
+  /** Starts closing {@code device}. Completion is reported to {@code onClosed}. */
+  private void closeDevice(CameraDevice device) {
+    stateMachine.transition(CameraStateMachine.State.CLOSING);
+    if (captureSession != null) {
+      closeCaptureSession();
+    }
+    device.close();
+  }
+
+  /** Runs on the background thread after {@link #close}. */
+  private void shutdown() {
+    switch (stateMachine.getState()) {
+      case OPENING:
+        // onOpened closes the device as soon as it arrives.
+        stateMachine.transition(CameraStateMachine.State.CLOSING);
+        break;
+      case OPEN:
+      case CAPTURING:
+        closeDevice(cameraDevice);
+        break;
+      case CLOSING:
+        break;
+      case CLOSED:
+      default:
+        finishShutdownIfClosed();
     }
   }
 
+  /** Releases everything else once the device is closed and {@link #close} was called. */
+  private void finishShutdownIfClosed() {
+    if (!shuttingDown || stateMachine.getState() != CameraStateMachine.State.CLOSED) {
+      return;
+    }
+    configurationResolved = false;
+    cameraOpenRequested = false;
+    if (captureSurface != null) {
+      captureSurface.release();
+      captureSurface = null;
+    }
+    if (previewSurface != null) {
+      previewSurface.release();
+      previewSurface = null;
+    }
+    zslRingBuffer.clear();
+    // Queued savers may still be reading images from the reader, so close it after them.
+    ImageReader reader = imageReader;
+    imageReader = null;
+    if (reader != null) {
+      saveExecutor.execute(reader::close);
+    }
+    stopBackgroundThread();
+  }
+
+  private void createImageReader() {
+    boolean isZsl = captureFormat == CaptureFormat.ZSL;
+    boolean isYuv = isZsl || captureFormat == CaptureFormat.YUV;
+    Size size = isYuv ? yuvSize : jpegSize;
+    imageReader =
+        ImageReader.newInstance(
+            size.getWidth(),
+            size.getHeight(),
+            isYuv ? ImageFormat.YUV_420_888 : ImageFormat.JPEG,
+            // The ring and the frames being saved may hold every image at once.
+            isZsl ? ZSL_RING_CAPACITY + MAX_ZSL_SAVES : 2);
+    imageReader.setOnImageAvailableListener(
+        isZsl ? this::onZslImageAvailable : onImageAvailableListener, backgroundHandler);
+  }
+
+  /**
+   * Creates the session once the device is open and the configuration resolved, whichever happens
+   * last. Runs on the background thread.
+   */
+  private void createCaptureSessionIfReady() {
+    if (cameraDevice == null || !configurationResolved) {
+      return;
+    }
+    String cameraId = cameraConfigurationManager.getCameraId();
+    if (!cameraDevice.getId().equals(cameraId)) {
+      Log.w(TAG, "Cached camera " + cameraDevice.getId() + " is stale, opening " + cameraId);
+      reopenAfterClose = true;
+      closeDevice(cameraDevice);
+      return;
+    }
+    createCaptureSession();
+  }
+
   private void createCaptureSession() {
     try {
-      Surface surface = new Surface(surfaceTexture);
-      surfaceTexture = null;
-      previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-      previewRequestBuilder.addTarget(surface);
+      if (previewSurface == null) {
+        previewSurface = new Surface(surfaceTexture);
+      }
+      Surface stillSurface =
+          captureFormat == CaptureFormat.GL_RENDERED ? captureSurface : imageReader.getSurface();
+      if (captureFormat == CaptureFormat.ZSL) {
+        // The repeating request fills the ring, so every preview frame is a candidate still.
+        previewRequestBuilder =
+            cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG);
+        previewRequestBuilder.addTarget(stillSurface);
+      } else {
+        previewRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+      }
+      previewRequestBuilder.addTarget(previewSurface);
       cameraDevice.createCaptureSession(
-          Arrays.asList(surface, imageReader.getSurface()), sessionStateCallback, null);
+          Arrays.asList(previewSurface, stillSurface), sessionStateCallback, null);
     } catch (CameraAccessException e) {
       Log.e(TAG, "Trouble accessing camera while trying to create a capture session.");
     }
@@ -243,14 +752,113 @@ public final class CameraModule {
     }
     try {
       previewRequestBuilder.set(
-          CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+          CaptureRequest.CONTROL_AF_MODE, cameraConfigurationManager.getAfMode());
+      if (previewFpsRange != null) {
+        previewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, previewFpsRange);
+      }
       previewRequest = previewRequestBuilder.build();
-      captureSession.setRepeatingRequest(previewRequest, /* listener= */ null, backgroundHandler);
+      captureSession.setRepeatingRequest(
+          previewRequest,
+          frameTelemetry == null ? null : previewCaptureCallback,
+          backgroundHandler);
     } catch (CameraAccessException e) {
       Log.e(TAG, "Trouble accessing camera when trying to create preview request.");
     }
   }
 
+  /** Sets up the {@link PreviewGovernor} for the preview size that was just chosen. */
+  private void createPreviewGovernor() {
+    List<PreviewGovernor.Level> levels = cameraConfigurationManager.getPreviewLevels(previewSize);
+    if (levels.size() < 2) {
+      previewGovernor = null;
+      previewFpsRange = null;
+      return;
+    }
+    previewGovernor =
+        new PreviewGovernor(
+            levels,
+            level -> {
+              Handler handler = backgroundHandler;
+              if (handler != null) {
+                handler.post(() -> applyPreviewLevel(level));
+              }
+            });
+    previewGovernor.setThermalPressure(toThermalPressure(thermalStatus));
+    PreviewGovernor.Level level = previewGovernor.getCurrentLevel();
+    previewSize = new Size(level.width, level.height);
+    previewFpsRange = new Range<>(level.minFps, level.maxFps);
+  }
+
+  /**
+   * Switches the preview to {@code level}. A new frame rate only updates the repeating request,
+   * while a new buffer size needs the session to be recreated.
+   */
+  private void applyPreviewLevel(PreviewGovernor.Level level) {
+    if (captureSession == null || stateMachine.getState() == CameraStateMachine.State.CLOSING) {
+      return;
+    }
+    if (stateMachine.getState() == CameraStateMachine.State.CAPTURING) {
+      pendingPreviewLevel = level;
+      return;
+    }
+    Log.d(TAG, "Switching preview to " + level);
+    previewWidthGauge.set(level.width);
+    previewHeightGauge.set(level.height);
+    previewMaxFpsGauge.set(level.maxFps);
+    previewFpsRange = new Range<>(level.minFps, level.maxFps);
+    if (level.width == previewSize.getWidth() && level.height == previewSize.getHeight()) {
+      createPreviewRequest();
+      return;
+    }
+    // The aspect ratio is unchanged, so the view and renderer need no update.
+    previewSize = new Size(level.width, level.height);
+    closeCaptureSession();
+    surfaceTexture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
+    createCaptureSession();
+  }
+
+  private void onStillCaptureDone() {
+    if (stillCapturesInFlight > 0) {
+      stillCapturesInFlight--;
+    }
+    if (stillCapturesInFlight > 0
+        || !stateMachine.transition(
+            CameraStateMachine.State.CAPTURING, CameraStateMachine.State.OPEN)) {
+      return;
+    }
+    PreviewGovernor.Level level = pendingPreviewLevel;
+    pendingPreviewLevel = null;
+    if (level != null) {
+      applyPreviewLevel(level);
+    }
+  }
+
+  private void onThermalStatusChanged(int status) {
+    thermalStatus = status;
+    thermalStatusGauge.set(status);
+    PreviewGovernor governor = previewGovernor;
+    if (governor != null) {
+      governor.setThermalPressure(toThermalPressure(status));
+    }
+  }
+
+  /** Returns the value of {@code key} in {@code result}, or -1 if the result does not carry it. */
+  private static long getOrMissing(CaptureResult result, CaptureResult.Key<Long> key) {
+    Long value = result.get(key);
+    return value == null ? -1 : value;
+  }
+
+  private static PreviewGovernor.ThermalPressure toThermalPressure(int thermalStatus) {
+    if (thermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL) {
+      return PreviewGovernor.ThermalPressure.CRITICAL;
+    } else if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+      return PreviewGovernor.ThermalPressure.SEVERE;
+    } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+      return PreviewGovernor.ThermalPressure.MODERATE;
+    }
+    return PreviewGovernor.ThermalPressure.NONE;
+  }
+
   private void startBackgroundThread() {
     backgroundThread = new HandlerThread(CAMERA_THREAD_NAME);
     backgroundThread.start();
@@ -258,17 +866,50 @@ public final class CameraModule {
   }
 
   private void onAvailableImage(ImageReader reader) {
-    backgroundHandler.post(new ImageSaver(context, reader.acquireLatestImage(), filterId));
+    if (reader != imageReader) {
+      // Shutting down. The reader is closed together with any image left in it.
+      Log.w(TAG, "Dropping an image that arrived after the camera was closed.");
+      return;
+    }
+    CaptureTrace trace = pendingCaptureTraces.poll();
+    if (trace == null) {
+      // Not requested through captureStillPicture, so only the saving is traced.
+      trace = CaptureTrace.start();
+    }
+    trace.mark(CaptureTrace.Stage.IMAGE_AVAILABLE);
+    Integer rotation = getCameraRotationAngle();
+    int rotationDegrees = rotation == null ? 0 : rotation;
+    saveExecutor.execute(
+        new ImageSaver(
+            context,
+            reader.acquireLatestImage(),
+            lut,
+            filterPathSelector,
+            rotationDegrees,
+            trace));
   }
 
+  /**
+   * Moves a new frame into the ZSL ring. Room is made first, so the reader never runs out of
+   * images and the camera never stalls on a full queue.
+   */
+  private void onZslImageAvailable(ImageReader reader) {
+    if (reader != imageReader) {
+      return;
+    }
+    zslRingBuffer.trimTo(ZSL_RING_CAPACITY - 1);
+    Image image = reader.acquireNextImage();
+    if (image != null) {
+      zslFrameCounter.increment();
+      zslRingBuffer.add(image, image.getTimestamp());
+    }
+  }
+
+  /**
+   * Lets the background thread finish its queued messages and exit. Called on that thread, so it
+   * must not wait for it. Posting to the handler afterwards is a harmless no-op.
+   */
   private void stopBackgroundThread() {
     backgroundThread.quitSafely();
-    try {
-      backgroundThread.join();
-      backgroundThread = null;
-      backgroundHandler = null;
-    } catch (InterruptedException e) {
-      Log.e(TAG, e.toString());
-    }
   }
 }
@@ -0,0 +1,159 @@
+package filters.demo.activities;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timestamps one still capture at every stage from the shutter to the saved file.
+ *
+ * <p>A trace starts when the shutter is pressed and travels with the capture through {@link
+ * CameraModule} and the savers. Each stage records the time since the previous recorded stage, or
+ * the start, into a {@link MetricsRegistry} histogram, which the static query methods also read.
+ * Stages a capture path does not go through are skipped, so their time is counted by the next
+ * stage. The whole capture also shows up as an async {@link Trace} section named {@value
+ * #TRACE_SECTION} on API 29 and above, and the savers add a section for each blocking step.
+ */
+final class CaptureTrace {
+
+  private static final String TAG = CaptureTrace.class.getSimpleName();
+  private static final String TRACE_SECTION = "StillCapture";
+
+  /** Stages in the order a capture goes through them. */
+  enum Stage {
+    /** The camera completed the capture request. */
+    CAPTURE_COMPLETED,
+    /** The image reached the app, or was taken from the ZSL ring. */
+    IMAGE_AVAILABLE,
+    /** The JPEG bytes were copied out of the image planes. */
+    PLANES_COPIED,
+    /** The unfiltered, or GL rendered, file was written. */
+    WRITTEN,
+    /** Photos returned the filtered file, or the look was applied and written on the device. */
+    FILTERED,
+    /** The media scanner was notified of the file. */
+    MEDIA_SCANNED,
+  }
+
+  private static final AtomicInteger nextId = new AtomicInteger();
+  private static final Map<Stage, LatencyHistogram> stageHistograms = new EnumMap<>(Stage.class);
+  private static final Map<FilterPathSelector.Path, LatencyHistogram> filterHistograms =
+      new EnumMap<>(FilterPathSelector.Path.class);
+  private static final LatencyHistogram totalHistogram =
+      MetricsRegistry.histogram("capture.total");
+  private static final MetricsRegistry.Counter abandonedCounter =
+      MetricsRegistry.counter("capture.abandoned");
+
+  static {
+    // Filled once, so the maps are only read afterwards and need no locking.
+    for (Stage stage : Stage.values()) {
+      stageHistograms.put(
+          stage, MetricsRegistry.histogram("capture.stage." + stage.name().toLowerCase(Locale.US)));
+    }
+    for (FilterPathSelector.Path path : FilterPathSelector.Path.values()) {
+      filterHistograms.put(
+          path, MetricsRegistry.histogram("capture.filter." + path.name().toLowerCase(Locale.US)));
+    }
+  }
+
+  private final int id;
+  private final long startNanos;
+  private long lastMarkNanos;
+  @Nullable
+  private FilterPathSelector.Path filterPath;
+  private boolean finished;
+
+  private CaptureTrace() {
+    id = nextId.incrementAndGet();
+    startNanos = SystemClock.elapsedRealtimeNanos();
+    lastMarkNanos = startNanos;
+  }
+
+  /** Starts tracing a capture that was just requested. */
+  static CaptureTrace start() {
+    CaptureTrace trace = new CaptureTrace();
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.beginAsyncSection(TRACE_SECTION, trace.id);
+    }
+    return trace;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  /** Records that the capture reached {@code stage}. */
+  synchronized void mark(Stage stage) {
+    if (finished) {
+      return;
+    }
+    long nowNanos = SystemClock.elapsedRealtimeNanos();
+    long stageNanos = nowNanos - lastMarkNanos;
+    lastMarkNanos = nowNanos;
+    stageHistograms.get(stage).record(stageNanos);
+    if (stage == Stage.FILTERED && filterPath != null) {
+      filterHistograms.get(filterPath).record(stageNanos);
+    }
+  }
+
+  /** Sets the path that the {@link Stage#FILTERED} stage of this capture went through. */
+  synchronized void setFilterPath(FilterPathSelector.Path filterPath) {
+    this.filterPath = filterPath;
+  }
+
+  /** Marks {@link Stage#MEDIA_SCANNED} and records the total latency of the capture. */
+  synchronized void finish() {
+    if (finished) {
+      return;
+    }
+    mark(Stage.MEDIA_SCANNED);
+    end();
+    long totalNanos = lastMarkNanos - startNanos;
+    totalHistogram.record(totalNanos);
+    Log.d(TAG, "Capture " + id + " saved in " + totalNanos / 1_000_000 + " ms");
+  }
+
+  /** Stops tracing a capture that failed, without recording a total. */
+  synchronized void abandon() {
+    if (!finished) {
+      abandonedCounter.increment();
+    }
+    end();
+  }
+
+  private void end() {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+      Trace.endAsyncSection(TRACE_SECTION, id);
+    }
+  }
+
+  /** Returns the given percentile of the time spent reaching {@code stage}, in nanoseconds. */
+  static long getStageLatencyNanos(Stage stage, double percentile) {
+    return stageHistograms.get(stage).getValueAtPercentile(percentile);
+  }
+
+  /** Returns the given percentile of the {@link Stage#FILTERED} stage through {@code path}. */
+  static long getFilterLatencyNanos(FilterPathSelector.Path path, double percentile) {
+    return filterHistograms.get(path).getValueAtPercentile(percentile);
+  }
+
+  /** Returns the given percentile of the time from the shutter to the saved file. */
+  static long getTotalLatencyNanos(double percentile) {
+    return totalHistogram.getValueAtPercentile(percentile);
+  }
+
+  /** Returns the number of captures that were saved. */
+  static long getCaptureCount() {
+    return totalHistogram.getCount();
+  }
+}
@@ -1,6 +1,7 @@
 package filters.demo.activities;
 
 import android.Manifest;
+import android.app.ActivityManager;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
@@ -9,6 +10,7 @@ import android.graphics.SurfaceTexture;
 import android.opengl.GLSurfaceView;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.util.Size;
@@ -16,11 +18,18 @@ import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.View;
 import android.widget.Button;
+import android.widget.SeekBar;
 import android.widget.Toast;
 
 import filters.demo.R;
 import filters.demo.libraries.PermissionsRequestActivity;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * The critical pieces for integration with the OEM Filter's API includes:
@@ -45,18 +54,53 @@ public class DemoActivity extends AppCompatActivity {
   private static final int ALL_PERMISSION_REQUEST_CODE = 3;
   /** This is just a sample test for checking if our version is currently up to date with Photos. */
   private static final int MINIMIMUM_VALID_PROVIDER_VERSION = 1;
+  /** How captures choose between filtering in Photos and filtering on the device. */
+  private static final FilterPathSelector.Policy FILTER_PATH_POLICY =
+      FilterPathSelector.Policy.FASTEST_OBSERVED;
+  /**
+   * Preferred capture format. {@link CameraModule.CaptureFormat#GL_RENDERED} falls back to JPEG
+   * when the device lacks GLES 3.0 or cannot stream a second full size preview-format surface.
+   * {@link CameraModule.CaptureFormat#YUV} filters on the CPU without decoding a JPEG, and
+   * {@link CameraModule.CaptureFormat#ZSL} does the same with a frame buffered before the tap.
+   */
+  private static final CameraModule.CaptureFormat CAPTURE_FORMAT =
+      CameraModule.CaptureFormat.GL_RENDERED;
+  /**
+   * Optional stages around the look. 0 leaves them out, so the preview and rendered captures stay a
+   * single pass that only applies the look.
+   */
+  private static final float SHARPEN_AMOUNT = 0f;
+  private static final float VIGNETTE_STRENGTH = 0f;
+  private static final int GLES_3_0 = 0x30000;
+  private static final String SAVE_THREAD_NAME = "ImageSaver";
+  /** Pack of the catalog as of the last sync, in the files directory. */
+  private static final String CATALOG_CACHE_FILENAME = "catalog.lutpack";
 
   /** Pass {@link SurfaceTexture} to the {@link CameraModule} for configuration. */
   private final FilterGLRenderer.SurfaceReadyCallback surfaceReadyCallback =
       new FilterGLRenderer.SurfaceReadyCallback() {
         @Override
-        public void onSurfaceReady(SurfaceTexture surfaceTexture) {
+        public void onSurfaceReady(
+            SurfaceTexture surfaceTexture,
+            @Nullable SurfaceTexture captureSurfaceTexture,
+            int maxTextureSize) {
           surfaceTexture.setOnFrameAvailableListener(
               (unusedTexture) -> {
-                autoFitGLSurfaceView.requestRender();
+                filterGLRenderer.onPreviewFrameAvailable();
+                framePacer.onFrameAvailable();
               });
+          if (captureSurfaceTexture != null) {
+            captureSurfaceTexture.setOnFrameAvailableListener(
+                (unusedTexture) -> {
+                  filterGLRenderer.onCaptureFrameAvailable();
+                  autoFitGLSurfaceView.requestRender();
+                });
+          }
           if (cameraModule != null) {
             cameraModule.setSurfaceTexture(surfaceTexture);
+            if (captureSurfaceTexture != null) {
+              cameraModule.setCaptureSurfaceTexture(captureSurfaceTexture, maxTextureSize);
+            }
             cameraModule.configureCamera(
                 autoFitGLSurfaceView.getWidth(), autoFitGLSurfaceView.getHeight());
           }
@@ -81,6 +125,7 @@ public class DemoActivity extends AppCompatActivity {
           if (rotationAngle != null) {
             filterGLRenderer.setRotationAngle(rotationAngle);
           }
+          filterGLRenderer.setPreviewGovernor(cameraModule.getPreviewGovernor());
 
           // Don't allow changing filters until both the renderer and camera are ready.
           changeFilterButton.setOnClickListener(v -> filterGLRenderer.shouldShowNineTiles(true));
@@ -88,10 +133,23 @@ public class DemoActivity extends AppCompatActivity {
         }
       };
 
+  /** Outlives the {@link CameraModule} so latency observations carry across resumes. */
+  private final FilterPathSelector filterPathSelector = new FilterPathSelector(FILTER_PATH_POLICY);
+  private final FrameTelemetry frameTelemetry = new FrameTelemetry();
+  /**
+   * Encodes and writes captures. Outlives the {@link CameraModule} so saves still queued when the
+   * activity pauses finish in the background instead of holding up the pause.
+   */
+  private final ExecutorService saveExecutor =
+      Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, SAVE_THREAD_NAME));
+
   private AutoFitGLSurfaceView autoFitGLSurfaceView;
   private FilterGLRenderer filterGLRenderer;
+  private FramePacer framePacer;
   private CameraModule cameraModule;
   private Button changeFilterButton;
+  private AdjustmentBaker adjustmentBaker;
+  private Adjustments adjustments = Adjustments.NONE;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -111,24 +169,60 @@ public class DemoActivity extends AppCompatActivity {
   @Override
   public void onResume() {
     super.onResume();
-    if (cameraModule != null) {
-      cameraModule.start();
-    } else {
+    if (filterGLRenderer == null) {
+      // The view is set up once permissions are granted, and kept across pause and resume.
       startActivityForResult(
           PermissionsRequestActivity.getIntent(this, REQUIRED_PERMISSIONS),
           ALL_PERMISSION_REQUEST_CODE);
+      return;
     }
+    cameraModule = new CameraModule(this, cameraOpenListener, filterPathSelector, saveExecutor);
+    cameraModule.setCaptureFormat(CAPTURE_FORMAT);
+    cameraModule.setFrameTelemetry(frameTelemetry);
+    cameraModule.start();
+    // The preserved EGL context keeps the textures, so the new camera module is handed the
+    // existing ones when the surface comes back instead of the renderer being rebuilt.
+    filterGLRenderer.requestSurfaceReady();
+    autoFitGLSurfaceView.onResume();
   }
 
   @Override
   public void onPause() {
     if (cameraModule != null) {
+      // Returns right away, the camera finishes closing on its own thread.
       cameraModule.close();
       cameraModule = null;
+      filterGLRenderer.setPreviewGovernor(null);
+    }
+    if (framePacer != null) {
+      framePacer.stop();
+    }
+    if (autoFitGLSurfaceView != null) {
+      autoFitGLSurfaceView.onPause();
     }
     super.onPause();
   }
 
+  @Override
+  public void dump(
+      String prefix, @Nullable FileDescriptor fd, PrintWriter writer, @Nullable String[] args) {
+    super.dump(prefix, fd, writer, args);
+    writer.print(prefix);
+    writer.println("Metrics:");
+    MetricsRegistry.dump(prefix + "  ", writer);
+    frameTelemetry.dump(prefix + "  ", writer);
+  }
+
+  @Override
+  protected void onDestroy() {
+    // Saves already queued still complete.
+    saveExecutor.shutdown();
+    if (adjustmentBaker != null) {
+      adjustmentBaker.release();
+    }
+    super.onDestroy();
+  }
+
   private void setUpView() {
     new LUTFilterRetrievalTask().execute(PartnerContentProviderCaller.GET_VERSION_METHOD_NAME);
     new LUTFilterRetrievalTask().execute(PartnerContentProviderCaller.GET_FILTER_METHOD_NAME);
@@ -139,7 +233,13 @@ public class DemoActivity extends AppCompatActivity {
     });
     changeFilterButton = findViewById(R.id.change_filter);
     autoFitGLSurfaceView = findViewById(R.id.camera_preview);
-    autoFitGLSurfaceView.setEGLContextClientVersion(2);
+    // A 3.0 context is needed for the asynchronous readback of rendered captures.
+    ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+    boolean supportsGles3 =
+        activityManager.getDeviceConfigurationInfo().reqGlEsVersion >= GLES_3_0;
+    autoFitGLSurfaceView.setEGLContextClientVersion(supportsGles3 ? 3 : 2);
+    // Keep the program, textures and LUT atlas across pause so resuming does not rebuild them.
+    autoFitGLSurfaceView.setPreserveEGLContextOnPause(true);
     autoFitGLSurfaceView.setEGLConfigChooser(
         /* redSize= */ 8,
         /* greenSize= */ 8,
@@ -152,10 +252,42 @@ public class DemoActivity extends AppCompatActivity {
       throw new IllegalStateException("Failed to get surface texture holder.");
     }
     surfaceHolder.setFormat(PixelFormat.TRANSLUCENT);
-    filterGLRenderer = new FilterGLRenderer(this, surfaceReadyCallback);
+    filterGLRenderer =
+        new FilterGLRenderer(this, surfaceReadyCallback, SHARPEN_AMOUNT, VIGNETTE_STRENGTH);
     autoFitGLSurfaceView.setRenderer(filterGLRenderer);
     autoFitGLSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
-    cameraModule = new CameraModule(this, cameraOpenListener);
+    // Preview frames are drawn on vsync, captures still render as soon as they arrive.
+    framePacer =
+        new FramePacer(
+            autoFitGLSurfaceView::requestRender,
+            getWindowManager().getDefaultDisplay().getRefreshRate());
+    filterGLRenderer.setFramePacer(framePacer);
+    filterGLRenderer.setFrameTelemetry(frameTelemetry);
+
+    adjustmentBaker = new AdjustmentBaker(filterGLRenderer::setAdjustedLook);
+    SeekBar brightnessSeekBar = findViewById(R.id.brightness);
+    brightnessSeekBar.setOnSeekBarChangeListener(
+        new SeekBar.OnSeekBarChangeListener() {
+          @Override
+          public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+            // The middle of the bar leaves the brightness unchanged.
+            float half = seekBar.getMax() / 2f;
+            adjustments = adjustments.withBrightness((progress - half) / half);
+            bakeAdjustments();
+          }
+
+          @Override
+          public void onStartTrackingTouch(SeekBar seekBar) {}
+
+          @Override
+          public void onStopTrackingTouch(SeekBar seekBar) {}
+        });
+  }
+
+  /** Bakes the current adjustments into the selected look, off the UI and render threads. */
+  private void bakeAdjustments() {
+    int lutIndex = filterGLRenderer.getLutIndex();
+    adjustmentBaker.update(filterGLRenderer.getLookupTable(lutIndex), lutIndex, adjustments);
   }
 
   /**
@@ -187,10 +319,12 @@ public class DemoActivity extends AppCompatActivity {
                 float endY = event.getY();
                 int startIndex = obtainLutIndexFromTouch(startX, startY);
                 int endIndex = obtainLutIndexFromTouch(endX, endY);
-                // Only select filter if both the touch down and up indices are the same.
-                if (startIndex == endIndex) {
+                // Only select filter if both the touch down and up indices are the same. Tiles
+                // past the end of a small catalog are empty.
+                if (startIndex == endIndex && startIndex < filterGLRenderer.getLutsCount()) {
                   filterGLRenderer.setLutIndex(startIndex);
                   filterGLRenderer.shouldShowNineTiles(false);
+                  bakeAdjustments();
                 }
                 break;
               default: // fall out
@@ -217,7 +351,10 @@ public class DemoActivity extends AppCompatActivity {
     return x + y * 3;
   }
 
-  /** Stitch all the LUT bitmaps together side by side horizontally. */
+  /**
+   * Stitch all the LUT bitmaps together side by side horizontally. Only if some of them could not
+   * be read back, otherwise the renderer builds atlases of its own lattice sizes from the lattices.
+   */
   private void stitchBitmaps(ArrayList<Bitmap> lutBitmaps) {
     if (lutBitmaps.isEmpty()) {
       Log.e(TAG, "Bitmap list was empty.");
@@ -225,6 +362,10 @@ public class DemoActivity extends AppCompatActivity {
     }
 
     filterGLRenderer.setLutsCount(lutBitmaps.size());
+    if (filterGLRenderer.createLutAtlases()) {
+      enableFilterSelection();
+      return;
+    }
     // Determine size of new Bitmap.
     int totalWidth = 0;
     int totalHeight = 0;
@@ -243,6 +384,10 @@ public class DemoActivity extends AppCompatActivity {
       previousBitmapLeftCoordinate += lut.getWidth();
     }
     filterGLRenderer.setLutBitmap(stitchedBitmap);
+    enableFilterSelection();
+  }
+
+  private void enableFilterSelection() {
     // Allow changing of filters now.
     if (!isValidVersion(version)) {
       Toast.makeText(
@@ -252,12 +397,42 @@ public class DemoActivity extends AppCompatActivity {
     changeFilterButton.setEnabled(/* enabled= */ true);
   }
 
+  /**
+   * Reads the lattice out of a LUT bitmap so the look can also be applied on the CPU.
+   *
+   * <p>Returns null if the bitmap does not have the expected 17 x 17*17 layout.
+   */
+  @Nullable
+  private static int[] extractLattice(Bitmap lutBitmap) {
+    int size = LookupTable.DEFAULT_LATTICE_SIZE;
+    if (lutBitmap.getWidth() != size || lutBitmap.getHeight() != size * size) {
+      Log.w(TAG, "Unexpected LUT bitmap size " + lutBitmap.getWidth() + "x"
+          + lutBitmap.getHeight() + ", on-device filtering disabled for this look.");
+      return null;
+    }
+    int[] lattice = new int[size * size * size];
+    lutBitmap.getPixels(lattice, /* offset= */ 0, size, 0, 0, size, size * size);
+    for (int i = 0; i < lattice.length; i++) {
+      lattice[i] &= 0xFFFFFF;
+    }
+    return lattice;
+  }
+
   private boolean isValidVersion(int version) {
     return version >= MINIMIMUM_VALID_PROVIDER_VERSION;
   }
 
   private void captureImage() {
-    cameraModule.captureStillPicture(filterGLRenderer.getFilterId());
+    CaptureTrace trace = CaptureTrace.start();
+    LookupTable lut = filterGLRenderer.getSelectedLookupTable();
+    Runnable onCaptureDropped = null;
+    if (cameraModule.getCaptureFormat() == CameraModule.CaptureFormat.GL_RENDERED) {
+      RenderedImageSaver saver =
+          new RenderedImageSaver(this, saveExecutor, /* isFiltered= */ lut != null, trace);
+      filterGLRenderer.requestCapture(cameraModule.getRenderedCaptureSize(), saver);
+      onCaptureDropped = () -> filterGLRenderer.cancelCapture(saver);
+    }
+    cameraModule.captureStillPicture(lut, trace, onCaptureDropped);
   }
 
   /** Call some of the PartnerContentProvider methods. */
@@ -265,6 +440,10 @@ public class DemoActivity extends AppCompatActivity {
 
     private PartnerContentProviderCaller caller;
     private Bundle returnedBundle = null;
+    /** Looks read from a filter pack, if the provider handed one over. */
+    @Nullable private List<LookupTable> packedLuts;
+    /** Whether a catalog sync already delivered the looks while in the background. */
+    private boolean synced;
     private String method;
 
     @Override
@@ -276,7 +455,24 @@ public class DemoActivity extends AppCompatActivity {
           version = caller.getVersionFromPhotos();
           break;
         case PartnerContentProviderCaller.GET_FILTER_METHOD_NAME:
-          returnedBundle = caller.getFilters();
+          LutCatalogSync sync =
+              new LutCatalogSync(
+                  caller.asCatalogSource(),
+                  new File(getFilesDir(), CATALOG_CACHE_FILENAME),
+                  this::onCatalogSynced);
+          synced = sync.sync(filterGLRenderer.getFilterId());
+          if (synced) {
+            break;
+          }
+          LutPack pack = caller.getFilterPack();
+          if (pack == null) {
+            returnedBundle = caller.getFilters();
+            break;
+          }
+          packedLuts = new ArrayList<>(pack.size());
+          for (int i = 0; i < pack.size(); i++) {
+            packedLuts.add(pack.toLookupTable(i));
+          }
           break;
         default:
           throw new IllegalArgumentException("Unknown PartnerContentProvider call requested");
@@ -286,6 +482,13 @@ public class DemoActivity extends AppCompatActivity {
 
     @Override
     protected void onPostExecute(Void v) {
+      if (synced) {
+        return;
+      }
+      if (packedLuts != null) {
+        handlePackedLookupTables();
+        return;
+      }
       if (returnedBundle == null || method == null) {
         Log.e(TAG, "Error calling PartnerContentProvider");
         return;
@@ -299,6 +502,44 @@ public class DemoActivity extends AppCompatActivity {
       }
     }
 
+    /**
+     * Swaps in each state of the catalog as the sync delivers it. The atlases are built on the
+     * background thread, the selection follows on the UI thread, where touches change it too.
+     */
+    private void onCatalogSynced(List<LookupTable> catalog) {
+      if (catalog.isEmpty()) {
+        Log.e(TAG, "Filter catalog was empty.");
+        return;
+      }
+      filterGLRenderer.setLookupTables(catalog);
+      if (!filterGLRenderer.createLutAtlases()) {
+        return;
+      }
+      runOnUiThread(
+          () -> {
+            if (filterGLRenderer.getLutIndex() >= catalog.size()) {
+              // The selected look left the catalog.
+              filterGLRenderer.setLutIndex(FilterGLRenderer.NO_FILTER_ID);
+            }
+            filterGLRenderer.setLutsCount(catalog.size());
+            // The adjusted look was baked from the previous version of the look.
+            bakeAdjustments();
+            enableFilterSelection();
+          });
+    }
+
+    private void handlePackedLookupTables() {
+      if (packedLuts.isEmpty()) {
+        Log.e(TAG, "Filter pack was empty.");
+        return;
+      }
+      filterGLRenderer.setLookupTables(packedLuts);
+      filterGLRenderer.setLutsCount(packedLuts.size());
+      if (filterGLRenderer.createLutAtlases()) {
+        enableFilterSelection();
+      }
+    }
+
     private void handleLookupTableRetrieval() {
       ArrayList<String> filterNames =
           returnedBundle.getStringArrayList(
@@ -319,8 +560,22 @@ public class DemoActivity extends AppCompatActivity {
         Log.e(TAG, "Bundle contained a null value.");
         return;
       }
-      filterGLRenderer.createLutObjects(filterNames, filterIsGrayscaleList, filterIds);
-      filterGLRenderer.updateGrayscaleList();
+      ArrayList<int[]> lattices = new ArrayList<>();
+      for (Bitmap lutBitmap : lutBitmaps) {
+        lattices.add(extractLattice(lutBitmap));
+      }
+      filterGLRenderer.createLutObjects(filterNames, filterIsGrayscaleList, filterIds, lattices);
+      // Grayscale looks were baked into new lattices, which replace their bitmaps in the atlas.
+      int size = LookupTable.DEFAULT_LATTICE_SIZE;
+      for (int i = 0; i < lutBitmaps.size(); i++) {
+        LookupTable lut = filterGLRenderer.getLookupTable(i);
+        if (filterIsGrayscaleList[i] && lut.hasLattice()) {
+          lutBitmaps.set(
+              i,
+              Bitmap.createBitmap(
+                  lut.getLatticePixels(), size, size * size, Bitmap.Config.ARGB_8888));
+        }
+      }
       stitchBitmaps(lutBitmaps);
     }
   }
@@ -5,8 +5,8 @@ import android.os.Environment;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /** Util class to help perform file operations. */
 public final class FileUtil {
@@ -22,24 +22,12 @@ public final class FileUtil {
   @Nullable
   public static File writeBytesToFile(File directory, String uniqueId, byte[] data) {
     File unfilteredImageFile = createUnfilteredFile(directory, uniqueId);
-    FileOutputStream output = null;
     try {
-      output = new FileOutputStream(unfilteredImageFile);
-      output.write(data);
-      output.close();
+      BufferWriter.write(ByteBuffer.wrap(data), unfilteredImageFile);
     } catch (IOException e) {
       Log.e(TAG, "Could not write bytes to designated file.", e);
       unfilteredImageFile.delete();
       return null;
-    } finally {
-      if (output != null) {
-        try {
-          output.close();
-        } catch (IOException e) {
-          // Safely ignore because we would have already handled a partial data write in our catch
-          // block.
-        }
-      }
     }
     return unfilteredImageFile;
   }
@@ -68,12 +56,13 @@ public final class FileUtil {
         FILTERED_FILE_PREFIX + uniqueId + JPEG_FILE_EXTENSION);
   }
 
+  @SuppressWarnings("deprecation") // Legacy storage applies while targetSdkVersion is below 29.
   private static File getDCIMDirectory() {
     return Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM);
   }
 
   /** Create a file that looks like "tempImage[uniqueId].jpg" in a specified directory. */
-  private static File createUnfilteredFile(File directory, String uniqueId) {
+  static File createUnfilteredFile(File directory, String uniqueId) {
     return new File(directory, UNFILTERED_FILE_PREFIX + uniqueId + JPEG_FILE_EXTENSION);
   }
 }
@@ -5,11 +5,14 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.PrintWriter;
 import filters.demo.libraries.TrustedPartners;
 import filters.demo.libraries.TrustedPartnersUtil;
 
@@ -18,13 +21,20 @@ public final class FilterDemoContentProvider extends ContentProvider {
 
   private static final String TAG = FilterDemoContentProvider.class.getSimpleName();
   private static final String READ_MODE = "r";
+  private static final LatencyHistogram openFileHistogram =
+      MetricsRegistry.histogram("provider.open_file");
+  private static final MetricsRegistry.Counter rejectedCounter =
+      MetricsRegistry.counter("provider.rejected_calls");
 
   private TrustedPartners trustedPartners;
 
   @Override
   public final boolean onCreate() {
     trustedPartners =
-        new TrustedPartners(getContext(), TrustedPartnersUtil.getTrustedPartnerCertificateHashes());
+        new TrustedPartners(
+            getContext(),
+            TrustedPartnersUtil.getTrustedPartnerCertificateHashes(),
+            /* trustsOwnPackage= */ TrustedPartnersUtil.isLocalPartnerEnabled());
     return true;
   }
 
@@ -69,6 +79,7 @@ public final class FilterDemoContentProvider extends ContentProvider {
   @Nullable
   @Override
   public ParcelFileDescriptor openFile(Uri uri, String mode) {
+    long startNanos = SystemClock.elapsedRealtimeNanos();
     validateCallingPackage();
     String filename = uri.getLastPathSegment();
     if (filename.startsWith(FileUtil.UNFILTERED_FILE_PREFIX)) {
@@ -78,7 +89,10 @@ public final class FilterDemoContentProvider extends ContentProvider {
       String directoryPath = FileUtil.getOrCreateUnfilteredDirectory(getContext()).getPath();
       File file = new File(directoryPath, filename);
       try {
-        return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        ParcelFileDescriptor descriptor =
+            ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        openFileHistogram.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+        return descriptor;
       } catch (FileNotFoundException e) {
         Log.e(TAG, "Unable to open file");
       }
@@ -86,10 +100,17 @@ public final class FilterDemoContentProvider extends ContentProvider {
     return null;
   }
 
+  @Override
+  public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    writer.println("Metrics:");
+    MetricsRegistry.dump(/* prefix= */ "  ", writer);
+  }
+
   /** Validate calling package has a trusted signing certificate. */
   private void validateCallingPackage() {
     String callingPackageName = getCallingPackage();
     if (callingPackageName.isEmpty() || !trustedPartners.isTrustedApplication(callingPackageName)) {
+      rejectedCounter.increment();
       throw new SecurityException(callingPackageName + " is not authorized to access the content");
     }
   }
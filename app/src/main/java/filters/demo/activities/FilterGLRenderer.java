@@ -3,21 +3,24 @@ package filters.demo.activities;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
-import android.opengl.GLES11Ext;
+import android.opengl.EGL14;
+import android.opengl.EGLExt;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.Size;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -28,253 +31,474 @@ public final class FilterGLRenderer implements GLSurfaceView.Renderer {
 
   public static final int NO_FILTER_ID = -1;
   private static final String TAG = FilterGLRenderer.class.getSimpleName();
-  private static final int BYTES_PER_FLOAT = 4;
-  private static final int VERTEX_COUNT = 4;
-  private static final int POSITION_OFFSET = 0;
-  private static final int POSITION_COUNT = 2;
-  private static final int TEXTURE_COORDINATE_COUNT = 2;
-  private static final int TEXTURE_COORDINATE_OFFSET = 2;
-  private static final int STRIDE_BYTES =
-      (TEXTURE_COORDINATE_COUNT + TEXTURE_COORDINATE_OFFSET) * BYTES_PER_FLOAT;
+  /** Lattice size of the preview and nine-tile atlas. Small, so its lookups stay in cache. */
+  private static final int PREVIEW_LATTICE_SIZE = 9;
+  /**
+   * Largest lattice size of the capture atlas, which otherwise uses the largest size of any look.
+   * 33^2 rows fit every GLES 3.0 texture size limit, 65^2 would not.
+   */
+  static final int MAX_CAPTURE_LATTICE_SIZE = 33;
   private static final String VERTEX_SHADER_CODE_FILENAME = "photo_vsh.vsh";
-  private static final String FRAGMENT_SHADER_CODE_FILENAME = "photo_fsh.fsh";
+  private static final String PRELUDE_CODE_FILENAME = "pipeline_prelude.glsl";
+  private static final String LUT_STAGE_CODE_FILENAME = "stage_lut.glsl";
+  private static final String VIGNETTE_STAGE_CODE_FILENAME = "stage_vignette.glsl";
+  private static final String SHARPEN_STAGE_CODE_FILENAME = "stage_sharpen.glsl";
+  private static final LatencyHistogram drawHistogram = MetricsRegistry.histogram("render.draw");
+  private static final MetricsRegistry.Counter framesAvailableCounter =
+      MetricsRegistry.counter("render.frames_available");
 
   private final Context context;
-  private final FloatBuffer verticesBuffer;
   private final SurfaceReadyCallback surfaceReadyCallback;
   private final float[] mvpMatrix = new float[16];
-  /** List that maps which filters are treated as grayscale. */
-  private final float[] isGrayscaleList = new float[9];
-
-  // Handles for shader attributes and uniforms.
-  private int positionHandle;
-  private int mvpMatrixHandle;
-  private int textureCoordinateHandle;
-  private int textureHandle;
-  private int isGrayscaleHandle;
-  private int showNineTilesHandle;
-  private int lutIndexHandle;
-  private int lutsCountHandle;
-  private int lutHandle;
-  private int[] textureNames;
+  private OffscreenCaptureRenderer offscreenCaptureRenderer = new OffscreenCaptureRenderer();
+
+  /** Sharpen amount, or 0 to leave the stage out. */
+  private final float sharpenAmount;
+  /** Vignette strength, or 0 to leave the stage out. */
+  private final float vignetteStrength;
 
+  /** Textures of the current EGL context. Only touched on the GL thread. */
+  @Nullable
+  private GlResources resources;
+  /** Programs of the current EGL context, recreated with {@link #resources}. */
+  @Nullable
+  private GlPipeline pipeline;
+  @Nullable
+  private LutStage lutStage;
   private String vertexShaderCode;
-  private String fragmentShaderCode;
+  private String preludeCode;
+  private String lutStageCode;
+  private String vignetteStageCode;
+  private String sharpenStageCode;
   private int angle;
-  private int lutsCount;
+  /** Set on the UI thread and read on the GL thread, like {@link #lutIndex}. */
+  private volatile int lutsCount;
   /** Index of the filter we want to show (single tile view only). */
-  private int lutIndex = NO_FILTER_ID;
+  private volatile int lutIndex = NO_FILTER_ID;
   private boolean showNineTiles;
+  /** Stitched LUTs of every look, kept for re-upload after a context loss. */
+  @Nullable
+  private volatile LutAtlases lutAtlases;
+  private volatile boolean lutUploadPending;
+  /** The atlases in the textures, swapped in between frames. Only used on the GL thread. */
+  @Nullable
+  private LutAtlases uploadedLutAtlases;
+  /** Latest look baked by {@link AdjustmentBaker}, or null if there are no adjustments. */
   @Nullable
-  private Bitmap lutBitmap;
+  private volatile AdjustedLook adjustedLook;
+  private volatile boolean adjustedUploadPending;
+  /** The adjusted look in the texture, swapped in between frames. Only used on the GL thread. */
   @Nullable
-  private ArrayList<LookupTable> luts;
+  private AdjustedLook uploadedAdjustedLook;
+  private volatile boolean surfaceReadyRequested;
+  /** Replaced as a whole, so other threads never see a list being built. */
+  @Nullable
+  private volatile ArrayList<LookupTable> luts;
   @Nullable
   private SurfaceTexture surfaceTexture;
+  /** Receives full resolution stills to render offscreen. Null if GLES 3.0 is unavailable. */
+  @Nullable
+  private SurfaceTexture captureSurfaceTexture;
+  private int viewportWidth;
+  private int viewportHeight;
+  private int maxTextureSize;
+  private volatile boolean captureFrameAvailable;
+  /**
+   * Added on the UI thread by {@link #requestCapture} and consumed on the GL thread, one per
+   * capture frame in the order the stills were requested.
+   */
+  private final ConcurrentLinkedQueue<PendingCapture> pendingCaptures =
+      new ConcurrentLinkedQueue<>();
+  /** Told about every preview frame so it can adapt the stream. Null if there is no choice. */
+  @Nullable
+  private volatile PreviewGovernor previewGovernor;
+  @Nullable
+  private volatile FramePacer framePacer;
+  @Nullable
+  private volatile FrameTelemetry frameTelemetry;
+  /** Whether the EGL display supports EGL_ANDROID_presentation_time. */
+  private boolean presentationTimeSupported;
 
   /** Callback to pass {@link SurfaceTexture} with proper texture ID to {@link CameraModule}.*/
   public interface SurfaceReadyCallback {
-    void onSurfaceReady(SurfaceTexture surfaceTexture);
+    /**
+     * @param surfaceTexture Receives the camera preview stream.
+     * @param captureSurfaceTexture Receives stills to be rendered with the selected look, or null
+     *     if the context does not support the GLES 3.0 readback path.
+     * @param maxTextureSize Largest width or height the capture can be rendered at.
+     */
+    void onSurfaceReady(
+        SurfaceTexture surfaceTexture,
+        @Nullable SurfaceTexture captureSurfaceTexture,
+        int maxTextureSize);
   }
 
-  public FilterGLRenderer(Context context, SurfaceReadyCallback surfaceReadyCallback) {
+  /**
+   * @param sharpenAmount Strength of the sharpen stage drawn before the look, or 0 for none.
+   * @param vignetteStrength Darkening of the corners applied after the look, or 0 for none.
+   */
+  public FilterGLRenderer(
+      Context context,
+      SurfaceReadyCallback surfaceReadyCallback,
+      float sharpenAmount,
+      float vignetteStrength) {
     this.context = context;
     this.surfaceReadyCallback = surfaceReadyCallback;
+    this.sharpenAmount = sharpenAmount;
+    this.vignetteStrength = vignetteStrength;
     this.angle = 0;
-    this.lutsCountHandle = 0;
     this.luts = null;
-    verticesBuffer =
-        ByteBuffer.allocateDirect(VERTEX_COUNT * STRIDE_BYTES)
-            .order(ByteOrder.nativeOrder())
-            .asFloatBuffer();
     loadShaderFromAssets();
   }
 
   @Override
   public void onSurfaceCreated(GL10 glUnused, EGLConfig config) {
-    // Compile vertex shader code.
-    int vertexShaderHandle = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
-    if (vertexShaderHandle != 0) {
-      GLES20.glShaderSource(vertexShaderHandle, vertexShaderCode);
-      GLES20.glCompileShader(vertexShaderHandle);
-      final int[] compileStatus = new int[1];
-      GLES20.glGetShaderiv(
-          vertexShaderHandle, GLES20.GL_COMPILE_STATUS, compileStatus, /* offset= */ 0);
-      if (compileStatus[0] == 0) {
-        GLES20.glDeleteShader(vertexShaderHandle);
-        vertexShaderHandle = 0;
-      }
+    String eglExtensions =
+        EGL14.eglQueryString(EGL14.eglGetCurrentDisplay(), EGL14.EGL_EXTENSIONS);
+    presentationTimeSupported =
+        eglExtensions != null && eglExtensions.contains("EGL_ANDROID_presentation_time");
+    // GLSurfaceView only calls this for a new EGL context, so anything made in the old one is gone.
+    if (resources != null && resources.isCurrent()) {
+      deliverSurfaceReady();
+      return;
     }
-    if (vertexShaderHandle == 0) {
-      throw new RuntimeException("Error creating vertex shader.");
-    }
-
-    // Compile fragment shader code.
-    int fragmentShaderHandle = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-    if (fragmentShaderHandle != 0) {
-      GLES20.glShaderSource(fragmentShaderHandle, fragmentShaderCode);
-      GLES20.glCompileShader(fragmentShaderHandle);
-      final int[] compileStatus = new int[1];
-      GLES20.glGetShaderiv(
-          fragmentShaderHandle, GLES20.GL_COMPILE_STATUS, compileStatus, /* offset= */ 0);
-      if (compileStatus[0] == 0) {
-        GLES20.glDeleteShader(fragmentShaderHandle);
-        fragmentShaderHandle = 0;
-      }
+    Log.d(TAG, resources == null ? "Creating GL resources." : "EGL context lost, recreating.");
+    resources = new GlResources();
+    pipeline = createPipeline();
+    if (offscreenCaptureRenderer.isBusy()) {
+      // Its framebuffer and pixel buffers died with the old context.
+      offscreenCaptureRenderer.abandon();
+      offscreenCaptureRenderer = new OffscreenCaptureRenderer();
     }
-    if (fragmentShaderHandle == 0) {
-      throw new RuntimeException("Error creating fragment shader.");
-    }
-
-    // Setup program handle and attach vertex/fragment shader code.
-    int programHandle = GLES20.glCreateProgram();
-    if (programHandle != 0) {
-      GLES20.glAttachShader(programHandle, vertexShaderHandle);
-      GLES20.glAttachShader(programHandle, fragmentShaderHandle);
-      GLES20.glLinkProgram(programHandle);
-      final int[] linkStatus = new int[1];
-      GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, /* offset= */ 0);
-      if (linkStatus[0] == 0) {
-        GLES20.glDeleteProgram(programHandle);
-        programHandle = 0;
-      }
+    // The new textures are empty, so nothing can be updated in place.
+    uploadedLutAtlases = null;
+    lutUploadPending = true;
+    adjustedUploadPending = true;
+
+    final int[] maxSize = new int[1];
+    GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxSize, /* offset= */ 0);
+    maxTextureSize = maxSize[0];
+
+    if (surfaceTexture != null) {
+      surfaceTexture.release();
+    }
+    if (captureSurfaceTexture != null) {
+      captureSurfaceTexture.release();
     }
-    if (programHandle == 0) {
-      throw new RuntimeException("Error creating program.");
-    }
-
-    // Link handles to variables in shader code.
-    positionHandle = GLES20.glGetAttribLocation(programHandle, "a_Position");
-    mvpMatrixHandle = GLES20.glGetUniformLocation(programHandle, "u_MVPMatrix");
-    textureCoordinateHandle = GLES20.glGetAttribLocation(programHandle, "a_TexCoord");
-    textureHandle = GLES20.glGetUniformLocation(programHandle, "u_Texture");
-    isGrayscaleHandle = GLES20.glGetUniformLocation(programHandle, "u_LookIsGrayscale");
-    showNineTilesHandle = GLES20.glGetUniformLocation(programHandle, "u_ShowNineTiles");
-    lutIndexHandle = GLES20.glGetUniformLocation(programHandle, "u_LookIndex");
-    lutsCountHandle = GLES20.glGetUniformLocation(programHandle, "u_LooksCount");
-    lutHandle = GLES20.glGetUniformLocation(programHandle, "u_TextureLookupTable");
-
-    GLES20.glUseProgram(programHandle);
-
-    textureNames = new int[2];
-    GLES20.glGenTextures(/* n= */ 2, textureNames, /* offset= */ 0);
-
-    // Setup camera preview texture.
-    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureNames[0]);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-    // Pass vertex/texture coordinates to the FloatBuffer.
-    final float[] verticesBufferData = {
-      // Vertex X, Y
-      // Texture coordinates U, V
-      -1f, -1f,
-      1f, 0f,
-      1f, -1f,
-      0f, 0f,
-      -1f, 1f,
-      1f, 1f,
-      1f, 1f,
-      0f, 1f,
-    };
-    verticesBuffer.position(0);
-    verticesBuffer.put(verticesBufferData).position(0);
-
-    surfaceTexture = new SurfaceTexture(textureNames[0]);
-    surfaceReadyCallback.onSurfaceReady(surfaceTexture);
+    surfaceTexture = new SurfaceTexture(resources.textureNames[GlResources.PREVIEW_TEXTURE]);
+    String glVersion = GLES20.glGetString(GLES20.GL_VERSION);
+    if (glVersion != null && glVersion.startsWith("OpenGL ES 3")) {
+      captureSurfaceTexture =
+          new SurfaceTexture(resources.textureNames[GlResources.CAPTURE_TEXTURE]);
+    } else {
+      Log.w(TAG, "GLES 3.0 unavailable (" + glVersion + "), rendered capture disabled.");
+      captureSurfaceTexture = null;
+    }
+    deliverSurfaceReady();
   }
 
   @Override
   public void onSurfaceChanged(GL10 glUnused, int width, int height) {
+    viewportWidth = width;
+    viewportHeight = height;
     GLES20.glViewport(/* x= */ 0, /* y= */ 0, width, height);
+    // A resume that kept the EGL context skips onSurfaceCreated, but always lands here.
+    if (surfaceReadyRequested) {
+      deliverSurfaceReady();
+    }
+  }
+
+  /**
+   * Asks for {@link SurfaceReadyCallback#onSurfaceReady} to be called again with the current
+   * textures, as soon as the surface is back. Call before resuming the view.
+   */
+  public void requestSurfaceReady() {
+    surfaceReadyRequested = true;
+  }
+
+  private void deliverSurfaceReady() {
+    surfaceReadyRequested = false;
+    surfaceReadyCallback.onSurfaceReady(surfaceTexture, captureSurfaceTexture, maxTextureSize);
   }
 
   @Override
   public void onDrawFrame(GL10 glUnused) {
+    long startNanos = System.nanoTime();
+    // Copy out finished strips of an earlier capture before queueing new GPU work.
+    offscreenCaptureRenderer.advance();
+
     GLES20.glClear(GLES20.GL_DEPTH_BUFFER_BIT | GLES20.GL_COLOR_BUFFER_BIT);
 
-    // Load texture from the LUT bitmap if it exists.
-    if (lutBitmap != null) {
+    // Upload the LUT atlas if it is new or the context was recreated.
+    if (lutUploadPending) {
       loadLutTexture();
     }
+    if (adjustedUploadPending) {
+      loadAdjustedLutTexture();
+    }
 
     if (surfaceTexture == null) {
       return;
     }
 
+    if (captureFrameAvailable) {
+      captureFrameAvailable = false;
+      renderCapture();
+    }
+
     // Update the texture image to the most recent frame from the image stream.
     surfaceTexture.updateTexImage();
 
-    // Pass in the vertex coordinates.
-    verticesBuffer.position(POSITION_OFFSET);
-    GLES20.glVertexAttribPointer(
-      positionHandle,
-      POSITION_COUNT,
-      GLES20.GL_FLOAT,
-      /* normalized= */ false,
-      STRIDE_BYTES,
-      verticesBuffer);
-    GLES20.glEnableVertexAttribArray(positionHandle);
-
-    // Pass in the texture coordinates.
-    verticesBuffer.position(TEXTURE_COORDINATE_COUNT);
-    GLES20.glVertexAttribPointer(
-      textureCoordinateHandle,
-      TEXTURE_COORDINATE_COUNT,
-      GLES20.GL_FLOAT,
-      /* normalized= */ false,
-      STRIDE_BYTES,
-      verticesBuffer);
-    GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
-
     // Set rotation matrix to orient the image properly.
     Matrix.setIdentityM(mvpMatrix, /* smOffset= */ 0);
     Matrix.rotateM(mvpMatrix, /* mOffset= */ 0, angle, /* x= */ 0f, /* y= */ 0f, /* z= */ 1f);
-    GLES20.glUniformMatrix4fv(
-        mvpMatrixHandle, /* count= */ 1, /* transpose= */ false, mvpMatrix, /* offset= */ 0);
-
-    // Pass grayscale list.
-    GLES20.glUniform1fv(
-        isGrayscaleHandle,
-        /* count= */ isGrayscaleList.length,
-        isGrayscaleList,
-        /* offset= */ 0);
-
-    // Pass the texture
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glUniform1i(textureHandle, /* x= */ textureNames[0]);
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-    GLES20.glUniform1i(lutHandle, /* x= */ textureNames[1]);
-    GLES20.glUniform1f(lutsCountHandle, lutsCount);
-    GLES20.glUniform1f(lutIndexHandle, lutIndex);
-    GLES20.glUniform1f(showNineTilesHandle, showNineTiles ? 1.0f : 0.0f);
-    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, /* first= */ 0, /* offset= */ VERTEX_COUNT);
-  }
-
-  /** Build our list of LookupTables. */
+    selectLook(lutIndex, showNineTiles, /* forCapture= */ false);
+    // Intermediate passes stay in camera orientation, at the size of the view.
+    boolean rotated = angle % 180 != 0;
+    pipeline.draw(
+        resources.textureNames[GlResources.PREVIEW_TEXTURE],
+        rotated ? viewportHeight : viewportWidth,
+        rotated ? viewportWidth : viewportHeight,
+        /* outputFramebuffer= */ 0,
+        viewportWidth,
+        viewportHeight,
+        mvpMatrix,
+        showNineTiles);
+    pipeline.endFrame();
+
+    long endNanos = System.nanoTime();
+    drawHistogram.record(endNanos - startNanos);
+    FrameTelemetry telemetry = frameTelemetry;
+    if (telemetry != null) {
+      telemetry.onFrameDrawn(surfaceTexture.getTimestamp(), SystemClock.elapsedRealtimeNanos());
+    }
+    FramePacer pacer = framePacer;
+    if (pacer != null) {
+      long presentationNanos = pacer.onFrameDrawn(endNanos);
+      if (presentationNanos != 0 && presentationTimeSupported) {
+        // Lets the compositor skip this frame for a newer one that is due at the same vsync.
+        EGLExt.eglPresentationTimeANDROID(
+            EGL14.eglGetCurrentDisplay(),
+            EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW),
+            presentationNanos);
+      }
+    }
+    PreviewGovernor governor = previewGovernor;
+    if (governor != null) {
+      governor.onFrameRendered(endNanos, endNanos - startNanos);
+    }
+  }
+
+  /** Called when the preview {@link SurfaceTexture} has received a new camera frame. */
+  public void onPreviewFrameAvailable() {
+    framesAvailableCounter.increment();
+    PreviewGovernor governor = previewGovernor;
+    if (governor != null) {
+      governor.onFrameAvailable();
+    }
+  }
+
+  /** Sets where the latency from the camera sensor to the drawn preview is recorded. */
+  public void setFrameTelemetry(@Nullable FrameTelemetry frameTelemetry) {
+    this.frameTelemetry = frameTelemetry;
+  }
+
+  /** Sets the pacer that preview draws are requested by, so it can time them. */
+  public void setFramePacer(@Nullable FramePacer framePacer) {
+    this.framePacer = framePacer;
+  }
+
+  /** Sets the governor that adapts the preview stream to how fast frames are drawn. */
+  public void setPreviewGovernor(@Nullable PreviewGovernor previewGovernor) {
+    if (previewGovernor != null) {
+      previewGovernor.setNineTiles(showNineTiles);
+    }
+    this.previewGovernor = previewGovernor;
+  }
+
+  /**
+   * Asks the renderer to render the next frame of the capture surface with the selected look.
+   *
+   * @param captureSize Size of the capture stream in sensor orientation.
+   * @param consumer Receives the rendered, upright image.
+   */
+  public void requestCapture(Size captureSize, OffscreenCaptureRenderer.StripConsumer consumer) {
+    pendingCaptures.add(new PendingCapture(captureSize, lutIndex, consumer));
+  }
+
+  /**
+   * Withdraws a capture requested with {@link #requestCapture} whose frame will never arrive, so it
+   * is not paired with the frame of a later capture. Fails {@code consumer} if it was still
+   * waiting. May be called from any thread.
+   */
+  public void cancelCapture(OffscreenCaptureRenderer.StripConsumer consumer) {
+    for (PendingCapture capture : pendingCaptures) {
+      if (capture.consumer == consumer && pendingCaptures.remove(capture)) {
+        consumer.onCaptureFailed();
+        return;
+      }
+    }
+  }
+
+  /** Called when the capture {@link SurfaceTexture} has received a new still. */
+  public void onCaptureFrameAvailable() {
+    captureFrameAvailable = true;
+  }
+
+  /** Draws the pending still into the offscreen framebuffer and starts reading it back. */
+  private void renderCapture() {
+    captureSurfaceTexture.updateTexImage();
+    PendingCapture capture = pendingCaptures.poll();
+    if (capture == null) {
+      Log.w(TAG, "Dropping a capture frame that nobody requested.");
+      return;
+    }
+    if (offscreenCaptureRenderer.isBusy()) {
+      // Only one framebuffer is kept alive at a time to bound GPU memory.
+      Log.w(TAG, "Previous capture is still being read back, dropping this one.");
+      capture.consumer.onCaptureFailed();
+      return;
+    }
+    boolean rotated = angle % 180 != 0;
+    int width = rotated ? capture.size.getHeight() : capture.size.getWidth();
+    int height = rotated ? capture.size.getWidth() : capture.size.getHeight();
+    offscreenCaptureRenderer.begin(width, height, capture.consumer);
+
+    // Flip vertically so that the first row read back is the top of the image.
+    Matrix.setIdentityM(mvpMatrix, /* smOffset= */ 0);
+    Matrix.scaleM(mvpMatrix, /* mOffset= */ 0, /* x= */ 1f, /* y= */ -1f, /* z= */ 1f);
+    Matrix.rotateM(mvpMatrix, /* mOffset= */ 0, angle, /* x= */ 0f, /* y= */ 0f, /* z= */ 1f);
+    selectLook(capture.lutIndex, /* showNineTiles= */ false, /* forCapture= */ true);
+    pipeline.draw(
+        resources.textureNames[GlResources.CAPTURE_TEXTURE],
+        capture.size.getWidth(),
+        capture.size.getHeight(),
+        offscreenCaptureRenderer.getFramebuffer(),
+        width,
+        height,
+        mvpMatrix,
+        /* showNineTiles= */ false);
+    // Queue the first readbacks right away, they complete while the preview is drawn.
+    offscreenCaptureRenderer.advance();
+
+    GLES30.glBindFramebuffer(GLES30.GL_FRAMEBUFFER, 0);
+    GLES20.glViewport(/* x= */ 0, /* y= */ 0, viewportWidth, viewportHeight);
+  }
+
+  /**
+   * Points the LUT stage at the adjusted look if it was baked for {@code lutIndex}, and at the
+   * preview or capture atlas otherwise. The nine-tile view always shows the looks unadjusted. The
+   * number of looks comes from the atlas itself, so it fits while a new catalog is swapped in.
+   */
+  private void selectLook(int lutIndex, boolean showNineTiles, boolean forCapture) {
+    AdjustedLook adjusted = uploadedAdjustedLook;
+    LutAtlases atlases = uploadedLutAtlases;
+    if (!showNineTiles && adjusted != null && adjusted.lutIndex == lutIndex) {
+      lutStage.setLook(
+          resources.textureNames[GlResources.ADJUSTED_LUT_TEXTURE],
+          /* lutIndex= */ 0,
+          /* looksCount= */ 1,
+          adjusted.bakedLook.lookupTable.getLatticeSize(),
+          adjusted.bakedLook.shaperBitmap != null
+              ? resources.textureNames[GlResources.ADJUSTED_SHAPER_TEXTURE]
+              : 0);
+    } else if (atlases == null) {
+      // Nothing to look up yet.
+      lutStage.setLook(
+          resources.textureNames[GlResources.LUT_TEXTURE],
+          NO_FILTER_ID,
+          lutsCount,
+          LookupTable.DEFAULT_LATTICE_SIZE,
+          /* shaperTexture= */ 0);
+    } else if (forCapture) {
+      lutStage.setLook(
+          resources.textureNames[GlResources.CAPTURE_LUT_TEXTURE],
+          lutIndex,
+          atlases.capture.getLooksCount(),
+          atlases.capture.latticeSize,
+          // Looks that came with a shaper keep it through resampling.
+          atlases.capture.shaperBitmap != null
+              ? resources.textureNames[GlResources.CAPTURE_SHAPER_TEXTURE]
+              : 0);
+    } else {
+      lutStage.setLook(
+          resources.textureNames[GlResources.LUT_TEXTURE],
+          lutIndex,
+          atlases.preview.getLooksCount(),
+          atlases.preview.latticeSize,
+          atlases.preview.shaperBitmap != null
+              ? resources.textureNames[GlResources.SHAPER_TEXTURE]
+              : 0);
+    }
+  }
+
+  /**
+   * Builds the stages in the order they apply and compiles them in the current context. Sharpen
+   * reads neighbouring pixels, so it comes first, where it samples the camera directly and the
+   * per pixel stages fuse into its pass. Disabled stages are left out.
+   */
+  private GlPipeline createPipeline() {
+    ArrayList<GlStage> stages = new ArrayList<>();
+    if (sharpenAmount > 0f) {
+      stages.add(new SharpenStage(sharpenStageCode, sharpenAmount));
+    }
+    lutStage = new LutStage(lutStageCode);
+    stages.add(lutStage);
+    if (vignetteStrength > 0f) {
+      stages.add(new VignetteStage(vignetteStageCode, vignetteStrength));
+    }
+    return new GlPipeline(vertexShaderCode, preludeCode, stages);
+  }
+
+  /**
+   * Build our list of LookupTables. Grayscale looks with a lattice get the conversion baked in, see
+   * {@link LookupTable#bakeGrayscale}, so the atlas must be built from their lattices.
+   *
+   * @param lattices Lattice data for each filter so it can also be applied on the CPU. Entries may
+   *     be null if the LUT bitmap could not be read back.
+   */
   public void createLutObjects(
       ArrayList<String> filterNames,
       boolean[] filterIsGrayscaleList,
-      ArrayList<Integer> filterIds) {
-    luts = new ArrayList<>();
+      ArrayList<Integer> filterIds,
+      ArrayList<int[]> lattices) {
+    ArrayList<LookupTable> luts = new ArrayList<>();
     for (int i = 0; i < filterNames.size(); i++) {
+      int[] lattice = lattices.get(i);
       LookupTable lut =
-          LookupTable.create(filterNames.get(i), filterIsGrayscaleList[i], filterIds.get(i));
-      luts.add(lut);
+          lattice == null
+              ? LookupTable.create(filterNames.get(i), filterIsGrayscaleList[i], filterIds.get(i))
+              : LookupTable.create(
+                  filterNames.get(i),
+                  filterIsGrayscaleList[i],
+                  filterIds.get(i),
+                  lattice,
+                  LookupTable.DEFAULT_LATTICE_SIZE);
+      luts.add(lut.bakeGrayscale());
     }
+    this.luts = luts;
   }
 
-  /** Update the grayscale list based on our list of LookupTables. */
-  public void updateGrayscaleList() {
-    for (int i = 0; i < luts.size() && i < isGrayscaleList.length; i++) {
-      isGrayscaleList[i] = luts.get(i).isGrayscale() ? 1.0f : 0.0f;
+  /**
+   * Uses looks that come with their lattices already, for example from a {@link LutPack}. May be
+   * called again with an updated catalog, which {@link #createLutAtlases} then swaps in between
+   * frames.
+   */
+  public void setLookupTables(List<LookupTable> lookupTables) {
+    ArrayList<LookupTable> luts = new ArrayList<>(lookupTables.size());
+    for (LookupTable lut : lookupTables) {
+      luts.add(lut.bakeGrayscale());
     }
+    this.luts = luts;
   }
 
   public void shouldShowNineTiles(boolean showNineTiles) {
     this.showNineTiles = showNineTiles;
+    PreviewGovernor governor = previewGovernor;
+    if (governor != null) {
+      // Each tile is a third of the view, so a smaller stream looks the same.
+      governor.setNineTiles(showNineTiles);
+    }
   }
 
   public void setLutIndex(int lutIndex) {
@@ -285,36 +509,214 @@ public final class FilterGLRenderer implements GLSurfaceView.Renderer {
     this.angle = angle;
   }
 
+  /**
+   * Sets a LUT atlas of {@link LookupTable#DEFAULT_LATTICE_SIZE} looks, used for the preview and
+   * captures alike. It is kept, so it can be uploaded again if the EGL context is lost.
+   */
   public void setLutBitmap(Bitmap lutBitmap) {
-    this.lutBitmap = lutBitmap;
+    LutAtlas atlas = new LutAtlas(lutBitmap, LookupTable.DEFAULT_LATTICE_SIZE);
+    this.lutAtlases = new LutAtlases(atlas, atlas);
+    lutUploadPending = true;
+  }
+
+  /**
+   * Builds the LUT atlases from the lattices of the looks instead: a {@value
+   * #PREVIEW_LATTICE_SIZE}^3 one with fitted shaper curves for the preview and the nine-tile view,
+   * and one at the largest lattice size of any look, up to {@value #MAX_CAPTURE_LATTICE_SIZE}^3,
+   * for captures.
+   *
+   * @return False if a look has no lattice, in which case {@link #setLutBitmap} must be used.
+   */
+  public boolean createLutAtlases() {
+    ArrayList<LookupTable> luts = this.luts;
+    if (luts == null || luts.isEmpty()) {
+      return false;
+    }
+    int captureLatticeSize = PREVIEW_LATTICE_SIZE;
+    for (LookupTable lut : luts) {
+      if (!lut.hasLattice()) {
+        return false;
+      }
+      captureLatticeSize = Math.max(captureLatticeSize, lut.getLatticeSize());
+    }
+    captureLatticeSize = Math.min(captureLatticeSize, MAX_CAPTURE_LATTICE_SIZE);
+    this.lutAtlases =
+        new LutAtlases(
+            LutAtlas.stitch(luts, PREVIEW_LATTICE_SIZE, /* fitShapers= */ true),
+            LutAtlas.stitch(luts, captureLatticeSize, /* fitShapers= */ false));
+    lutUploadPending = true;
+    return true;
   }
 
   public void setLutsCount(int lutsCount) {
     this.lutsCount = lutsCount;
   }
 
+  public int getLutsCount() {
+    return lutsCount;
+  }
+
+  /** Returns the id of the selected look, or {@link #NO_FILTER_ID} if none is selected. */
   public int getFilterId() {
-    if (lutIndex == NO_FILTER_ID) {
-      return NO_FILTER_ID;
+    LookupTable lut = getLookupTable(lutIndex);
+    return lut == null ? NO_FILTER_ID : lut.getId();
+  }
+
+  /**
+   * Returns the look selected in the single tile view with any adjustments baked in, or null if
+   * neither a filter nor adjustments are selected.
+   */
+  @Nullable
+  public LookupTable getSelectedLookupTable() {
+    AdjustedLook adjusted = adjustedLook;
+    if (adjusted != null && adjusted.lutIndex == lutIndex) {
+      return adjusted.bakedLook.lookupTable;
+    }
+    return getLookupTable(lutIndex);
+  }
+
+  /**
+   * Returns the unadjusted look at {@code lutIndex}, or null for {@link #NO_FILTER_ID} and for
+   * indices past the end of the catalog.
+   */
+  @Nullable
+  public LookupTable getLookupTable(int lutIndex) {
+    ArrayList<LookupTable> luts = this.luts;
+    if (lutIndex < 0 || luts == null || lutIndex >= luts.size()) {
+      return null;
     }
-    return luts.get(lutIndex).getId();
+    return luts.get(lutIndex);
+  }
+
+  public int getLutIndex() {
+    return lutIndex;
+  }
+
+  /**
+   * Sets the look that {@link AdjustmentBaker} baked for {@code lutIndex}. It replaces that look
+   * from the next frame on, for the preview and for captures. May be called from any thread.
+   *
+   * @param bakedLook The adjusted look, or null to draw every look unadjusted again.
+   */
+  public void setAdjustedLook(@Nullable AdjustmentBaker.BakedLook bakedLook, int lutIndex) {
+    adjustedLook = bakedLook == null ? null : new AdjustedLook(bakedLook, lutIndex);
+    adjustedUploadPending = true;
   }
 
   public boolean showNineTiles() {
     return showNineTiles;
   }
 
-  /** Load texture from LUT bitmap to the proper texture id. */
+  /** A still capture requested on the UI thread, waiting for its camera frame. */
+  private static final class PendingCapture {
+    final Size size;
+    final int lutIndex;
+    final OffscreenCaptureRenderer.StripConsumer consumer;
+
+    PendingCapture(Size size, int lutIndex, OffscreenCaptureRenderer.StripConsumer consumer) {
+      this.size = size;
+      this.lutIndex = lutIndex;
+      this.consumer = consumer;
+    }
+  }
+
+  /** A look with adjustments baked in, and the index of the look it replaces. */
+  private static final class AdjustedLook {
+    final AdjustmentBaker.BakedLook bakedLook;
+    final int lutIndex;
+
+    AdjustedLook(AdjustmentBaker.BakedLook bakedLook, int lutIndex) {
+      this.bakedLook = bakedLook;
+      this.lutIndex = lutIndex;
+    }
+  }
+
+  /**
+   * Uploads the latest adjusted look. The draws of this frame are the first to use it, so a frame
+   * never mixes two versions.
+   */
+  private void loadAdjustedLutTexture() {
+    adjustedUploadPending = false;
+    AdjustedLook adjusted = adjustedLook;
+    if (adjusted != null) {
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+      GLES20.glBindTexture(
+          GLES20.GL_TEXTURE_2D, resources.textureNames[GlResources.ADJUSTED_LUT_TEXTURE]);
+      GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, adjusted.bakedLook.bitmap, 0);
+      if (adjusted.bakedLook.shaperBitmap != null) {
+        GLES20.glBindTexture(
+            GLES20.GL_TEXTURE_2D, resources.textureNames[GlResources.ADJUSTED_SHAPER_TEXTURE]);
+        GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, adjusted.bakedLook.shaperBitmap, 0);
+      }
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+    uploadedAdjustedLook = adjusted;
+  }
+
+  /** The atlas the preview is drawn with and the one captures are rendered with. */
+  private static final class LutAtlases {
+    final LutAtlas preview;
+    final LutAtlas capture;
+
+    LutAtlases(LutAtlas preview, LutAtlas capture) {
+      this.preview = preview;
+      this.capture = capture;
+    }
+  }
+
+  /**
+   * Load texture from LUT bitmap to the proper texture id. An atlas of the same dimensions as the
+   * uploaded one, as a catalog sync delivers, is written into the existing texture, so the swap
+   * neither reallocates nor shows an incomplete texture.
+   */
   private void loadLutTexture() {
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, lutBitmap, 0);
-    lutBitmap.recycle();
-    lutBitmap = null;
+    lutUploadPending = false;
+    LutAtlases atlases = lutAtlases;
+    LutAtlases uploaded = uploadedLutAtlases;
+    if (atlases != null) {
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+      uploadLutBitmap(
+          GlResources.LUT_TEXTURE,
+          atlases.preview.bitmap,
+          uploaded == null ? null : uploaded.preview.bitmap);
+      uploadLutBitmap(
+          GlResources.CAPTURE_LUT_TEXTURE,
+          atlases.capture.bitmap,
+          uploaded == null ? null : uploaded.capture.bitmap);
+      if (atlases.preview.shaperBitmap != null) {
+        uploadLutBitmap(
+            GlResources.SHAPER_TEXTURE,
+            atlases.preview.shaperBitmap,
+            uploaded == null ? null : uploaded.preview.shaperBitmap);
+      }
+      if (atlases.capture.shaperBitmap != null) {
+        uploadLutBitmap(
+            GlResources.CAPTURE_SHAPER_TEXTURE,
+            atlases.capture.shaperBitmap,
+            uploaded == null ? null : uploaded.capture.shaperBitmap);
+      }
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
+    uploadedLutAtlases = atlases;
+  }
+
+  private void uploadLutBitmap(int texture, Bitmap bitmap, @Nullable Bitmap uploadedBitmap) {
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, resources.textureNames[texture]);
+    if (uploadedBitmap != null
+        && uploadedBitmap.getWidth() == bitmap.getWidth()
+        && uploadedBitmap.getHeight() == bitmap.getHeight()) {
+      GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, /* xoffset= */ 0, /* yoffset= */ 0, bitmap);
+    } else {
+      GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+    }
   }
 
   private void loadShaderFromAssets() {
     vertexShaderCode = getStringFromFileInAssets(context, VERTEX_SHADER_CODE_FILENAME);
-    fragmentShaderCode = getStringFromFileInAssets(context, FRAGMENT_SHADER_CODE_FILENAME);
+    preludeCode = getStringFromFileInAssets(context, PRELUDE_CODE_FILENAME);
+    lutStageCode = getStringFromFileInAssets(context, LUT_STAGE_CODE_FILENAME);
+    vignetteStageCode = getStringFromFileInAssets(context, VIGNETTE_STAGE_CODE_FILENAME);
+    sharpenStageCode = getStringFromFileInAssets(context, SHARPEN_STAGE_CODE_FILENAME);
   }
 
   /**
@@ -0,0 +1,136 @@
+package filters.demo.activities;
+
+/**
+ * Decides whether a captured image is filtered by Photos or on the device.
+ *
+ * <p>The selector is shared between captures so that {@link Policy#FASTEST_OBSERVED} can learn the
+ * latency of each path over time.
+ */
+public final class FilterPathSelector {
+
+  /** The first Photos API version that can write the filtered image to our output uri. */
+  static final int MINIMUM_APPLY_FILTER_VERSION = 2;
+  /** Weight of the newest sample in the moving average of each path's latency. */
+  private static final double LATENCY_SMOOTHING = 0.3;
+  /** Captures a failed path sits out before {@link Policy#FASTEST_OBSERVED} tries it again. */
+  static final int RETRY_AFTER_CAPTURES = 10;
+
+  /** How to choose between the available filter paths. */
+  public enum Policy {
+    /** Always filter on the device, never call Photos. */
+    ALWAYS_LOCAL,
+    /** Use Photos whenever it is usable, filter locally only as a fallback. */
+    PREFER_PHOTOS,
+    /**
+     * Use whichever path has been faster so far, trying each path at least once and a failed path
+     * again every {@link #RETRY_AFTER_CAPTURES} captures.
+     */
+    FASTEST_OBSERVED,
+  }
+
+  /** Where a capture gets filtered. */
+  public enum Path {
+    PHOTOS,
+    LOCAL,
+  }
+
+  private final Policy policy;
+  private double averagePhotosNanos = -1;
+  private double averageLocalNanos = -1;
+  private int capturesUntilPhotosRetry;
+  private int capturesUntilLocalRetry;
+
+  public FilterPathSelector(Policy policy) {
+    this.policy = policy;
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * Chooses the path for the next capture.
+   *
+   * @param photosVersion Version returned by Photos' getVersion, or a negative number if unknown.
+   * @param hasLocalLut Whether the selected look carries lattice data for on-device filtering.
+   * @param isLocalOnly Whether the look only exists on the device, see {@link
+   *     LookupTable#isLocalOnly}. Photos would apply the catalog look of the same id instead.
+   */
+  public synchronized Path choosePath(int photosVersion, boolean hasLocalLut, boolean isLocalOnly) {
+    boolean photosUsable = photosVersion >= MINIMUM_APPLY_FILTER_VERSION;
+    if (isLocalOnly) {
+      return Path.LOCAL;
+    }
+    if (!hasLocalLut) {
+      return Path.PHOTOS;
+    }
+    if (!photosUsable) {
+      return Path.LOCAL;
+    }
+    switch (policy) {
+      case ALWAYS_LOCAL:
+        return Path.LOCAL;
+      case PREFER_PHOTOS:
+        return Path.PHOTOS;
+      case FASTEST_OBSERVED:
+        if (averagePhotosNanos < 0 || isDueForRetry(Path.PHOTOS)) {
+          return Path.PHOTOS;
+        }
+        if (averageLocalNanos < 0 || isDueForRetry(Path.LOCAL)) {
+          return Path.LOCAL;
+        }
+        return averageLocalNanos <= averagePhotosNanos ? Path.LOCAL : Path.PHOTOS;
+      default:
+        throw new IllegalStateException("Unknown filter path policy " + policy);
+    }
+  }
+
+  /** Records how long a successful run of {@code path} took, end to end. */
+  public synchronized void recordLatency(Path path, long nanos) {
+    if (path == Path.PHOTOS) {
+      averagePhotosNanos = smooth(averagePhotosNanos, nanos);
+    } else {
+      averageLocalNanos = smooth(averageLocalNanos, nanos);
+    }
+  }
+
+  /**
+   * Records that {@code path} failed. A failing path is treated as infinitely slow so the fastest
+   * policy only picks it again once it sat out {@link #RETRY_AFTER_CAPTURES} captures.
+   */
+  public synchronized void recordFailure(Path path) {
+    if (path == Path.PHOTOS) {
+      averagePhotosNanos = Double.MAX_VALUE;
+      capturesUntilPhotosRetry = RETRY_AFTER_CAPTURES;
+    } else {
+      averageLocalNanos = Double.MAX_VALUE;
+      capturesUntilLocalRetry = RETRY_AFTER_CAPTURES;
+    }
+  }
+
+  /**
+   * Counts down the captures a failed {@code path} sits out. Returns true once they are over, and
+   * starts another count in case the retry never reports back.
+   */
+  private boolean isDueForRetry(Path path) {
+    if (path == Path.PHOTOS) {
+      if (averagePhotosNanos != Double.MAX_VALUE || --capturesUntilPhotosRetry > 0) {
+        return false;
+      }
+      capturesUntilPhotosRetry = RETRY_AFTER_CAPTURES;
+    } else {
+      if (averageLocalNanos != Double.MAX_VALUE || --capturesUntilLocalRetry > 0) {
+        return false;
+      }
+      capturesUntilLocalRetry = RETRY_AFTER_CAPTURES;
+    }
+    return true;
+  }
+
+  private static double smooth(double average, long sample) {
+    if (average < 0 || average == Double.MAX_VALUE) {
+      return sample;
+    }
+    return average + LATENCY_SMOOTHING * (sample - average);
+  }
+}
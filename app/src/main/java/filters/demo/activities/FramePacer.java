@@ -0,0 +1,96 @@
+package filters.demo.activities;
+
+import android.view.Choreographer;
+
+/**
+ * Requests at most one preview render per display vsync, so the renderer latches only the newest
+ * camera frame instead of drawing every frame as soon as it arrives.
+ *
+ * <p>Camera frames that arrive within the same vsync replace each other and are counted as
+ * dropped. A frame is late when its draw finishes after the vsync it was meant for. Frame
+ * callbacks are only posted while camera frames keep arriving.
+ *
+ * <p>Created and driven on the main thread. {@link #onFrameDrawn} is called on the GL thread.
+ */
+final class FramePacer implements Choreographer.FrameCallback {
+
+  private static final MetricsRegistry.Counter droppedCounter =
+      MetricsRegistry.counter("render.frames_dropped");
+  private static final MetricsRegistry.Counter lateCounter =
+      MetricsRegistry.counter("render.frames_late");
+  private static final LatencyHistogram vsyncToDrawnHistogram =
+      MetricsRegistry.histogram("render.vsync_to_drawn");
+
+  private final Choreographer choreographer = Choreographer.getInstance();
+  private final Runnable renderRequest;
+  private final long frameIntervalNanos;
+
+  // Only touched on the main thread.
+  private int pendingFrames;
+  private boolean callbackPosted;
+
+  /** Vsync that the last render was requested for, on the {@code System.nanoTime} clock. */
+  private volatile long vsyncNanos;
+  /** Vsync of the last frame passed to {@link #onFrameDrawn}. Only touched on the GL thread. */
+  private long drawnVsyncNanos;
+
+  /**
+   * @param renderRequest Asks the GL thread to draw a frame, usually {@code requestRender}.
+   * @param refreshRate Display refresh rate in frames per second.
+   */
+  FramePacer(Runnable renderRequest, float refreshRate) {
+    this.renderRequest = renderRequest;
+    this.frameIntervalNanos = (long) (1_000_000_000L / refreshRate);
+  }
+
+  /** Called when the preview {@code SurfaceTexture} receives a camera frame. */
+  void onFrameAvailable() {
+    pendingFrames++;
+    if (!callbackPosted) {
+      callbackPosted = true;
+      choreographer.postFrameCallback(this);
+    }
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    callbackPosted = false;
+    if (pendingFrames == 0) {
+      return;
+    }
+    if (pendingFrames > 1) {
+      droppedCounter.add(pendingFrames - 1);
+    }
+    pendingFrames = 0;
+    vsyncNanos = frameTimeNanos;
+    renderRequest.run();
+  }
+
+  /**
+   * Records that a frame finished drawing at {@code drawnNanos}.
+   *
+   * @return The time the frame should be presented at, which is the vsync after the one it was
+   *     requested for, or 0 if the frame was not requested by this pacer.
+   */
+  long onFrameDrawn(long drawnNanos) {
+    long requestedVsyncNanos = vsyncNanos;
+    if (requestedVsyncNanos == drawnVsyncNanos) {
+      // A capture or a view change asked for this draw, not a vsync.
+      return 0;
+    }
+    drawnVsyncNanos = requestedVsyncNanos;
+    long presentationNanos = requestedVsyncNanos + frameIntervalNanos;
+    vsyncToDrawnHistogram.record(drawnNanos - requestedVsyncNanos);
+    if (drawnNanos > presentationNanos) {
+      lateCounter.increment();
+    }
+    return presentationNanos;
+  }
+
+  /** Stops pacing until the next camera frame, for example when the activity pauses. */
+  void stop() {
+    choreographer.removeFrameCallback(this);
+    callbackPosted = false;
+    pendingFrames = 0;
+  }
+}
@@ -0,0 +1,111 @@
+package filters.demo.activities;
+
+import android.opengl.GLES20;
+import java.util.ArrayList;
+
+/**
+ * Color textures with framebuffers attached, reused across frames for the intermediate passes of
+ * a {@link GlPipeline}.
+ *
+ * <p>Released framebuffers are kept for {@value #MAX_IDLE_FRAMES} frames, so the preview reuses
+ * the same ones every frame while a one off full resolution capture frees its memory soon after.
+ * Must only be used on the GL thread of the context the framebuffers were created in.
+ */
+final class FramebufferPool {
+
+  private static final int MAX_IDLE_FRAMES = 30;
+
+  /** A texture and the framebuffer that renders into it. */
+  static final class Framebuffer {
+    final int framebuffer;
+    final int texture;
+    final int width;
+    final int height;
+    private long releasedFrame;
+
+    private Framebuffer(int framebuffer, int texture, int width, int height) {
+      this.framebuffer = framebuffer;
+      this.texture = texture;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  private final ArrayList<Framebuffer> free = new ArrayList<>();
+  private final int[] names = new int[1];
+  private long frame;
+
+  /** Returns a framebuffer of the given size, reusing a free one if possible. */
+  Framebuffer acquire(int width, int height) {
+    for (int i = free.size() - 1; i >= 0; i--) {
+      Framebuffer candidate = free.get(i);
+      if (candidate.width == width && candidate.height == height) {
+        free.remove(i);
+        return candidate;
+      }
+    }
+    return create(width, height);
+  }
+
+  /** Returns {@code framebuffer} to the pool. Its contents may be overwritten from now on. */
+  void release(Framebuffer framebuffer) {
+    framebuffer.releasedFrame = frame;
+    free.add(framebuffer);
+  }
+
+  /** Called once per drawn frame. Deletes framebuffers that have not been reused for a while. */
+  void endFrame() {
+    frame++;
+    for (int i = free.size() - 1; i >= 0; i--) {
+      Framebuffer candidate = free.get(i);
+      if (frame - candidate.releasedFrame > MAX_IDLE_FRAMES) {
+        free.remove(i);
+        delete(candidate);
+      }
+    }
+  }
+
+  private Framebuffer create(int width, int height) {
+    GLES20.glGenTextures(/* n= */ 1, names, /* offset= */ 0);
+    int texture = names[0];
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+    GLES20.glTexImage2D(
+        GLES20.GL_TEXTURE_2D,
+        /* level= */ 0,
+        GLES20.GL_RGBA,
+        width,
+        height,
+        /* border= */ 0,
+        GLES20.GL_RGBA,
+        GLES20.GL_UNSIGNED_BYTE,
+        /* pixels= */ null);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+    GLES20.glGenFramebuffers(/* n= */ 1, names, /* offset= */ 0);
+    Framebuffer framebuffer = new Framebuffer(names[0], texture, width, height);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer.framebuffer);
+    GLES20.glFramebufferTexture2D(
+        GLES20.GL_FRAMEBUFFER,
+        GLES20.GL_COLOR_ATTACHMENT0,
+        GLES20.GL_TEXTURE_2D,
+        texture,
+        /* level= */ 0);
+    if (GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER)
+        != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+      delete(framebuffer);
+      throw new IllegalStateException(
+          "Intermediate framebuffer " + width + "x" + height + " is incomplete.");
+    }
+    return framebuffer;
+  }
+
+  private void delete(Framebuffer framebuffer) {
+    names[0] = framebuffer.framebuffer;
+    GLES20.glDeleteFramebuffers(/* n= */ 1, names, /* offset= */ 0);
+    names[0] = framebuffer.texture;
+    GLES20.glDeleteTextures(/* n= */ 1, names, /* offset= */ 0);
+  }
+}
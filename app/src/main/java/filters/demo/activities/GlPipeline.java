@@ -0,0 +1,319 @@
+package filters.demo.activities;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws a camera texture through an ordered list of {@link GlStage}s.
+ *
+ * <p>Stages are grouped into passes: a pass starts with a {@link GlStage.Kind#SAMPLING} stage, or
+ * a plain read of its input, followed by every {@link GlStage.Kind#PER_PIXEL} stage up to the next
+ * sampling stage. Each pass is one generated fragment shader and one full screen draw, so adding
+ * per pixel stages does not add passes. Passes other than the last draw into framebuffers from a
+ * {@link FramebufferPool} in camera orientation, and only the last one applies the caller's
+ * matrix. When the context supports it, the GPU time of every pass goes into a {@link
+ * MetricsRegistry} histogram named {@code render.gpu.pass<index>.<stage names>}.
+ *
+ * <p>Created on the GL thread for the current EGL context, and dropped with it.
+ */
+final class GlPipeline {
+
+  private static final String TAG = GlPipeline.class.getSimpleName();
+  private static final int BYTES_PER_FLOAT = 4;
+  private static final int VERTEX_COUNT = 4;
+  private static final int POSITION_OFFSET = 0;
+  private static final int POSITION_COUNT = 2;
+  private static final int TEXTURE_COORDINATE_COUNT = 2;
+  private static final int TEXTURE_COORDINATE_OFFSET = 2;
+  private static final int STRIDE_BYTES =
+      (TEXTURE_COORDINATE_COUNT + TEXTURE_COORDINATE_OFFSET) * BYTES_PER_FLOAT;
+
+  private final List<Pass> passes = new ArrayList<>();
+  private final FramebufferPool framebufferPool = new FramebufferPool();
+  private final FloatBuffer verticesBuffer;
+  private final float[] identityMatrix = new float[16];
+  private final int[] scratch = new int[1];
+  private final boolean timersSupported;
+
+  /** One generated program and the stages compiled into it. */
+  private static final class Pass {
+    final List<GlStage> stages;
+    final int program;
+    final int positionHandle;
+    final int textureCoordinateHandle;
+    final int mvpMatrixHandle;
+    final int inputHandle;
+    final int inputTexelSizeHandle;
+    final int showNineTilesHandle;
+    @Nullable
+    final GpuTimer timer;
+
+    Pass(List<GlStage> stages, int program, @Nullable GpuTimer timer) {
+      this.stages = stages;
+      this.program = program;
+      this.timer = timer;
+      positionHandle = GLES20.glGetAttribLocation(program, "a_Position");
+      textureCoordinateHandle = GLES20.glGetAttribLocation(program, "a_TexCoord");
+      mvpMatrixHandle = GLES20.glGetUniformLocation(program, "u_MVPMatrix");
+      inputHandle = GLES20.glGetUniformLocation(program, "u_Input");
+      inputTexelSizeHandle = GLES20.glGetUniformLocation(program, "u_InputTexelSize");
+      showNineTilesHandle = GLES20.glGetUniformLocation(program, "u_ShowNineTiles");
+    }
+  }
+
+  /**
+   * Generates, compiles and links one program per pass in the current context.
+   *
+   * @param vertexShaderCode Shared vertex shader of every pass.
+   * @param preludeCode GLSL helpers pasted into every fragment shader before the stages.
+   * @param stages Stages in the order they apply, at most one per name.
+   */
+  GlPipeline(String vertexShaderCode, String preludeCode, List<GlStage> stages) {
+    // Vertex X, Y followed by texture coordinates U, V. The texture is mirrored horizontally.
+    final float[] verticesBufferData = {
+      -1f, -1f, 1f, 0f,
+      1f, -1f, 0f, 0f,
+      -1f, 1f, 1f, 1f,
+      1f, 1f, 0f, 1f,
+    };
+    verticesBuffer =
+        ByteBuffer.allocateDirect(VERTEX_COUNT * STRIDE_BYTES)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    verticesBuffer.put(verticesBufferData).position(0);
+    Matrix.setIdentityM(identityMatrix, /* smOffset= */ 0);
+
+    timersSupported = GpuTimer.isSupported();
+    if (!timersSupported) {
+      Log.w(TAG, "GPU timer queries unavailable, pass costs are not reported.");
+    }
+    List<List<GlStage>> plan = planPasses(stages);
+    for (int i = 0; i < plan.size(); i++) {
+      List<GlStage> passStages = plan.get(i);
+      String fragmentShaderCode =
+          generateFragmentShader(preludeCode, passStages, /* readsCamera= */ i == 0);
+      int program = GlResources.createProgram(vertexShaderCode, fragmentShaderCode);
+      GLES20.glUseProgram(program);
+      for (GlStage stage : passStages) {
+        stage.onProgramLinked(program);
+      }
+      GpuTimer timer =
+          timersSupported
+              ? new GpuTimer(MetricsRegistry.histogram(createMetricName(i, passStages)))
+              : null;
+      passes.add(new Pass(passStages, program, timer));
+    }
+    Log.d(TAG, stages.size() + " stages fused into " + passes.size() + " passes.");
+  }
+
+  /**
+   * Groups {@code stages} into passes. A sampling stage starts a new pass unless it is the first
+   * stage, every per pixel stage joins the current pass.
+   */
+  static List<List<GlStage>> planPasses(List<GlStage> stages) {
+    List<List<GlStage>> plan = new ArrayList<>();
+    List<GlStage> current = new ArrayList<>();
+    for (GlStage stage : stages) {
+      if (stage.getKind() == GlStage.Kind.SAMPLING && !current.isEmpty()) {
+        plan.add(current);
+        current = new ArrayList<>();
+      }
+      current.add(stage);
+    }
+    if (!current.isEmpty() || plan.isEmpty()) {
+      plan.add(current);
+    }
+    return plan;
+  }
+
+  /**
+   * Returns the fragment shader of one pass.
+   *
+   * @param stages A pass from {@link #planPasses}. Only the first stage may be a sampling one.
+   * @param readsCamera Whether the input is the external camera texture rather than a framebuffer
+   *     written by the previous pass.
+   */
+  static String generateFragmentShader(
+      String preludeCode, List<GlStage> stages, boolean readsCamera) {
+    StringBuilder code = new StringBuilder();
+    if (readsCamera) {
+      // This extension is necessary to use samplerExternalOES.
+      code.append("#extension GL_OES_EGL_image_external : require\n");
+    }
+    code.append("precision highp float;\n\n")
+        .append("// Coordinates of the pixel on the camera image.\n")
+        .append("varying vec2 v_TexCoord;\n")
+        .append(readsCamera ? "uniform samplerExternalOES" : "uniform sampler2D")
+        .append(" u_Input;\n")
+        .append("uniform vec2 u_InputTexelSize;\n")
+        .append("// Whether to show nine tile or single tile look.\n")
+        .append("uniform float u_ShowNineTiles;\n");
+    if (readsCamera) {
+      code.append("#define SAMPLE_INPUT(coord) texture2D(u_Input, coord).rgb\n");
+    } else {
+      // Passes draw mirrored, see the vertex data, so mirror back when reading one.
+      code.append(
+          "#define SAMPLE_INPUT(coord) texture2D(u_Input, vec2(1.0 - (coord).x, (coord).y)).rgb\n");
+    }
+    code.append('\n').append(preludeCode).append('\n');
+    for (GlStage stage : stages) {
+      code.append(stage.getSource()).append('\n');
+    }
+
+    code.append("void main() {\n")
+        .append("  vec2 coord = v_TexCoord;\n");
+    if (readsCamera) {
+      // Later passes read a framebuffer that is already tiled.
+      code.append("  if (u_ShowNineTiles > 0.5) {\n")
+          .append("    coord = getScaledCoordinates(v_TexCoord);\n")
+          .append("  }\n");
+    }
+    int firstPerPixel = 0;
+    if (!stages.isEmpty() && stages.get(0).getKind() == GlStage.Kind.SAMPLING) {
+      code.append("  vec3 color = ").append(stages.get(0).getFunctionName()).append("(coord);\n");
+      firstPerPixel = 1;
+    } else {
+      code.append("  vec3 color = SAMPLE_INPUT(coord);\n");
+    }
+    for (int i = firstPerPixel; i < stages.size(); i++) {
+      GlStage stage = stages.get(i);
+      if (stage.getKind() != GlStage.Kind.PER_PIXEL) {
+        throw new IllegalArgumentException(stage.getName() + " must start its own pass.");
+      }
+      code.append("  color = ").append(stage.getFunctionName()).append("(color);\n");
+    }
+    code.append("  gl_FragColor = vec4(color, 1.0);\n")
+        .append("}\n");
+    return code.toString();
+  }
+
+  /**
+   * Draws {@code cameraTexture} through every pass.
+   *
+   * @param cameraTexture External texture holding the camera frame.
+   * @param cameraWidth Width of intermediate framebuffers, in camera orientation.
+   * @param cameraHeight Height of intermediate framebuffers, in camera orientation.
+   * @param outputFramebuffer Framebuffer of the last pass, 0 for the view.
+   * @param mvpMatrix Orients the camera image in the output. Only the last pass applies it.
+   */
+  void draw(
+      int cameraTexture,
+      int cameraWidth,
+      int cameraHeight,
+      int outputFramebuffer,
+      int outputWidth,
+      int outputHeight,
+      float[] mvpMatrix,
+      boolean showNineTiles) {
+    int inputTexture = cameraTexture;
+    FramebufferPool.Framebuffer previous = null;
+    for (int i = 0; i < passes.size(); i++) {
+      Pass pass = passes.get(i);
+      boolean isLast = i == passes.size() - 1;
+      FramebufferPool.Framebuffer target =
+          isLast ? null : framebufferPool.acquire(cameraWidth, cameraHeight);
+      GLES20.glBindFramebuffer(
+          GLES20.GL_FRAMEBUFFER, target == null ? outputFramebuffer : target.framebuffer);
+      GLES20.glViewport(
+          /* x= */ 0,
+          /* y= */ 0,
+          isLast ? outputWidth : cameraWidth,
+          isLast ? outputHeight : cameraHeight);
+      if (pass.timer != null) {
+        pass.timer.begin();
+      }
+
+      GLES20.glUseProgram(pass.program);
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+      GLES20.glBindTexture(
+          i == 0 ? GLES11Ext.GL_TEXTURE_EXTERNAL_OES : GLES20.GL_TEXTURE_2D, inputTexture);
+      GLES20.glUniform1i(pass.inputHandle, /* x= */ 0);
+      GLES20.glUniform2f(pass.inputTexelSizeHandle, 1f / cameraWidth, 1f / cameraHeight);
+      GLES20.glUniform1f(pass.showNineTilesHandle, showNineTiles ? 1.0f : 0.0f);
+      GLES20.glUniformMatrix4fv(
+          pass.mvpMatrixHandle,
+          /* count= */ 1,
+          /* transpose= */ false,
+          isLast ? mvpMatrix : identityMatrix,
+          /* offset= */ 0);
+      for (GlStage stage : pass.stages) {
+        stage.setUniforms();
+      }
+      drawQuad(pass);
+
+      if (pass.timer != null) {
+        pass.timer.end();
+      }
+      if (previous != null) {
+        framebufferPool.release(previous);
+      }
+      if (target != null) {
+        previous = target;
+        inputTexture = target.texture;
+      }
+    }
+  }
+
+  /**
+   * Called once per frame after the last draw. Records finished GPU timings and frees
+   * framebuffers that are no longer used.
+   */
+  void endFrame() {
+    framebufferPool.endFrame();
+    if (!timersSupported) {
+      return;
+    }
+    boolean disjoint = GpuTimer.checkDisjoint(scratch);
+    for (Pass pass : passes) {
+      pass.timer.collect(disjoint);
+    }
+  }
+
+  private void drawQuad(Pass pass) {
+    // Pass in the vertex coordinates.
+    verticesBuffer.position(POSITION_OFFSET);
+    GLES20.glVertexAttribPointer(
+        pass.positionHandle,
+        POSITION_COUNT,
+        GLES20.GL_FLOAT,
+        /* normalized= */ false,
+        STRIDE_BYTES,
+        verticesBuffer);
+    GLES20.glEnableVertexAttribArray(pass.positionHandle);
+
+    // Pass in the texture coordinates.
+    verticesBuffer.position(TEXTURE_COORDINATE_OFFSET);
+    GLES20.glVertexAttribPointer(
+        pass.textureCoordinateHandle,
+        TEXTURE_COORDINATE_COUNT,
+        GLES20.GL_FLOAT,
+        /* normalized= */ false,
+        STRIDE_BYTES,
+        verticesBuffer);
+    GLES20.glEnableVertexAttribArray(pass.textureCoordinateHandle);
+
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, /* first= */ 0, VERTEX_COUNT);
+  }
+
+  private static String createMetricName(int passIndex, List<GlStage> stages) {
+    StringBuilder name = new StringBuilder("render.gpu.pass").append(passIndex).append('.');
+    if (stages.isEmpty()) {
+      name.append("copy");
+    }
+    for (int i = 0; i < stages.size(); i++) {
+      if (i > 0) {
+        name.append('+');
+      }
+      name.append(stages.get(i).getName());
+    }
+    return name.toString();
+  }
+}
@@ -0,0 +1,128 @@
+package filters.demo.activities;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * The textures {@link FilterGLRenderer} draws with, together with the EGL context they belong to.
+ * The programs are owned by its {@link GlPipeline}.
+ *
+ * <p>The surface view preserves its EGL context across pause and resume, so these normally live as
+ * long as the renderer. They are only created again when {@link #isCurrent} reports that the
+ * context was lost, which the renderer checks whenever GLSurfaceView reports a new context.
+ */
+final class GlResources {
+
+  private static final String TAG = GlResources.class.getSimpleName();
+
+  static final int PREVIEW_TEXTURE = 0;
+  static final int LUT_TEXTURE = 1;
+  static final int CAPTURE_TEXTURE = 2;
+  /** The selected look with {@link Adjustments} baked in, a single look wide. */
+  static final int ADJUSTED_LUT_TEXTURE = 3;
+  /** LUT atlas with larger lattices, for rendered captures. */
+  static final int CAPTURE_LUT_TEXTURE = 4;
+  /** Shaper curves of the looks in the preview atlas, one row per look. */
+  static final int SHAPER_TEXTURE = 5;
+  /** Shaper curves of the looks in the capture atlas, one row per look. */
+  static final int CAPTURE_SHAPER_TEXTURE = 6;
+  /** Shaper curves of the adjusted look, a single row. */
+  static final int ADJUSTED_SHAPER_TEXTURE = 7;
+  private static final int TEXTURE_COUNT = 8;
+
+  final int[] textureNames = new int[TEXTURE_COUNT];
+  private final EGLContext eglContext;
+
+  /** Creates the textures in the current context. */
+  GlResources() {
+    eglContext = EGL14.eglGetCurrentContext();
+    GLES20.glGenTextures(TEXTURE_COUNT, textureNames, /* offset= */ 0);
+    setUpExternalTexture(textureNames[PREVIEW_TEXTURE]);
+    setUpExternalTexture(textureNames[CAPTURE_TEXTURE]);
+    setUpLutTexture(textureNames[LUT_TEXTURE]);
+    setUpLutTexture(textureNames[ADJUSTED_LUT_TEXTURE]);
+    setUpLutTexture(textureNames[CAPTURE_LUT_TEXTURE]);
+    setUpLutTexture(textureNames[SHAPER_TEXTURE]);
+    setUpLutTexture(textureNames[CAPTURE_SHAPER_TEXTURE]);
+    setUpLutTexture(textureNames[ADJUSTED_SHAPER_TEXTURE]);
+  }
+
+  /**
+   * Compiles and links a program in the current context. The shaders are deleted again, the
+   * linked program keeps its own copy of the binaries.
+   */
+  static int createProgram(String vertexShaderCode, String fragmentShaderCode) {
+    int vertexShaderHandle = compileShader(GLES20.GL_VERTEX_SHADER, vertexShaderCode);
+    if (vertexShaderHandle == 0) {
+      throw new RuntimeException("Error creating vertex shader.");
+    }
+    int fragmentShaderHandle = compileShader(GLES20.GL_FRAGMENT_SHADER, fragmentShaderCode);
+    if (fragmentShaderHandle == 0) {
+      throw new RuntimeException("Error creating fragment shader.");
+    }
+
+    // Setup program handle and attach vertex/fragment shader code.
+    int programHandle = GLES20.glCreateProgram();
+    if (programHandle != 0) {
+      GLES20.glAttachShader(programHandle, vertexShaderHandle);
+      GLES20.glAttachShader(programHandle, fragmentShaderHandle);
+      GLES20.glLinkProgram(programHandle);
+      final int[] linkStatus = new int[1];
+      GLES20.glGetProgramiv(programHandle, GLES20.GL_LINK_STATUS, linkStatus, /* offset= */ 0);
+      if (linkStatus[0] == 0) {
+        Log.e(TAG, "Could not link program: " + GLES20.glGetProgramInfoLog(programHandle));
+        GLES20.glDeleteProgram(programHandle);
+        programHandle = 0;
+      }
+    }
+    GLES20.glDeleteShader(vertexShaderHandle);
+    GLES20.glDeleteShader(fragmentShaderHandle);
+    if (programHandle == 0) {
+      throw new RuntimeException("Error creating program.");
+    }
+    return programHandle;
+  }
+
+  /** Whether these resources belong to the context current on the calling thread. */
+  boolean isCurrent() {
+    return eglContext.equals(EGL14.eglGetCurrentContext());
+  }
+
+  private static void setUpLutTexture(int textureName) {
+    // The shader interpolates between blue slices itself, filtering handles red and green.
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureName);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+  }
+
+  private static void setUpExternalTexture(int textureName) {
+    int target = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+    GLES20.glBindTexture(target, textureName);
+    GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+  }
+
+  /** Returns the compiled shader, or 0 if it did not compile. */
+  private static int compileShader(int type, String code) {
+    int shaderHandle = GLES20.glCreateShader(type);
+    if (shaderHandle != 0) {
+      GLES20.glShaderSource(shaderHandle, code);
+      GLES20.glCompileShader(shaderHandle);
+      final int[] compileStatus = new int[1];
+      GLES20.glGetShaderiv(shaderHandle, GLES20.GL_COMPILE_STATUS, compileStatus, /* offset= */ 0);
+      if (compileStatus[0] == 0) {
+        Log.e(TAG, "Could not compile shader: " + GLES20.glGetShaderInfoLog(shaderHandle));
+        GLES20.glDeleteShader(shaderHandle);
+        shaderHandle = 0;
+      }
+    }
+    return shaderHandle;
+  }
+}
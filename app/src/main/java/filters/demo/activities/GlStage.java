@@ -0,0 +1,58 @@
+package filters.demo.activities;
+
+/**
+ * One step of a {@link GlPipeline}, written as a GLSL function that the pipeline pastes into a
+ * generated fragment shader.
+ *
+ * <p>A {@link Kind#PER_PIXEL} stage defines {@code vec3 stage_<name>(vec3 color)} and only looks at
+ * the color of its own pixel, so the pipeline fuses it into the pass before it. A {@link
+ * Kind#SAMPLING} stage defines {@code vec3 stage_<name>(vec2 coord)} and reads its input with
+ * {@code SAMPLE_INPUT(coord)}, usually at several coordinates, so it starts a new pass. Both can
+ * read {@code v_TexCoord}, {@code u_InputTexelSize} and {@code u_ShowNineTiles}.
+ *
+ * <p>Stage uniforms must be prefixed with the stage name in the GLSL source, so that stages fused
+ * into one shader do not collide. A pipeline holds at most one stage of each name.
+ */
+abstract class GlStage {
+
+  enum Kind {
+    PER_PIXEL,
+    SAMPLING,
+  }
+
+  private final String name;
+  private final Kind kind;
+  private final String source;
+
+  /**
+   * @param name Lower case GLSL identifier of the stage, also used in metric names.
+   * @param source GLSL declarations and the {@code stage_<name>} function.
+   */
+  GlStage(String name, Kind kind, String source) {
+    this.name = name;
+    this.kind = kind;
+    this.source = source;
+  }
+
+  final String getName() {
+    return name;
+  }
+
+  final Kind getKind() {
+    return kind;
+  }
+
+  final String getSource() {
+    return source;
+  }
+
+  final String getFunctionName() {
+    return "stage_" + name;
+  }
+
+  /** Looks up uniform locations once the program that contains this stage is linked. */
+  abstract void onProgramLinked(int program);
+
+  /** Sets the uniforms of this stage. Called with its program in use before every draw. */
+  abstract void setUniforms();
+}
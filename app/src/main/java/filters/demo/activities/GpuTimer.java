@@ -0,0 +1,94 @@
+package filters.demo.activities;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * Measures how long the GPU spends on a span of draw calls with EXT_disjoint_timer_query, and
+ * records the results into a {@link LatencyHistogram} a few frames later without waiting for them.
+ *
+ * <p>Needs a GLES 3.0 context that exposes the extension, see {@link #isSupported}. Must only be
+ * used on the GL thread of the context it was created in.
+ */
+final class GpuTimer {
+
+  private static final String EXTENSION = "GL_EXT_disjoint_timer_query";
+  // From EXT_disjoint_timer_query, which has no Java bindings.
+  private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+  private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+  /** Spans in flight at once. Results usually arrive within two frames. */
+  private static final int QUERY_COUNT = 4;
+
+  private final LatencyHistogram histogram;
+  private final int[] queries = new int[QUERY_COUNT];
+  private final boolean[] pending = new boolean[QUERY_COUNT];
+  private final int[] result = new int[1];
+  private int nextQuery;
+  private boolean running;
+
+  GpuTimer(LatencyHistogram histogram) {
+    this.histogram = histogram;
+    GLES30.glGenQueries(QUERY_COUNT, queries, /* offset= */ 0);
+  }
+
+  /** Whether the current context can time GPU work. */
+  static boolean isSupported() {
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+    return version != null
+        && version.startsWith("OpenGL ES 3")
+        && extensions != null
+        && extensions.contains(EXTENSION);
+  }
+
+  /**
+   * Starts timing. Skipped if every query is still waiting for its result, so a slow GPU loses
+   * samples rather than stalling. Only one timer may run at a time.
+   */
+  void begin() {
+    if (pending[nextQuery]) {
+      return;
+    }
+    GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[nextQuery]);
+    running = true;
+  }
+
+  void end() {
+    if (!running) {
+      return;
+    }
+    GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+    running = false;
+    pending[nextQuery] = true;
+    nextQuery = (nextQuery + 1) % QUERY_COUNT;
+  }
+
+  /**
+   * Records the results that are available. Results are dropped if the GPU reported a disjoint
+   * event, such as a frequency change, which makes them meaningless.
+   */
+  void collect(boolean disjoint) {
+    for (int i = 0; i < QUERY_COUNT; i++) {
+      if (!pending[i]) {
+        continue;
+      }
+      GLES30.glGetQueryObjectuiv(
+          queries[i], GLES30.GL_QUERY_RESULT_AVAILABLE, result, /* offset= */ 0);
+      if (result[0] == 0) {
+        continue;
+      }
+      GLES30.glGetQueryObjectuiv(queries[i], GLES30.GL_QUERY_RESULT, result, /* offset= */ 0);
+      pending[i] = false;
+      if (!disjoint) {
+        // Unsigned 32 bit nanoseconds, enough for four seconds of GPU work.
+        histogram.record(result[0] & 0xFFFFFFFFL);
+      }
+    }
+  }
+
+  /** Reads and clears the disjoint flag. Call once per frame before {@link #collect}. */
+  static boolean checkDisjoint(int[] scratch) {
+    GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, scratch, /* offset= */ 0);
+    return scratch[0] != 0;
+  }
+}
@@ -2,77 +2,215 @@ package filters.demo.activities;
 
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.ImageFormat;
 import android.media.Image;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import com.google.common.io.Files;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.UUID;
 
-/** Handles saving a jpeg image into a file in DCIM directory. */
+/** Handles saving a jpeg or YUV_420_888 image into a file in DCIM directory. */
 public final class ImageSaver implements Runnable {
 
   private static final String TAG = ImageSaver.class.getSimpleName();
+  private static final LatencyHistogram runHistogram = MetricsRegistry.histogram("saver.run");
 
   private final Context context;
   private final Image image;
-  private final int filterId;
-  private final PartnerContentProviderCaller caller;
+  @Nullable
+  private final LookupTable lut;
+  private final FilterPathSelector filterPathSelector;
+  /** Clockwise rotation that makes a YUV capture upright. JPEG captures carry their own. */
+  private final int rotationDegrees;
+  private final CaptureTrace trace;
 
-  ImageSaver(Context context, Image image, int filterId) {
+  ImageSaver(
+      Context context,
+      Image image,
+      @Nullable LookupTable lut,
+      FilterPathSelector filterPathSelector,
+      int rotationDegrees,
+      CaptureTrace trace) {
     this.context = context;
     this.image = image;
-    this.filterId = filterId;
-    caller = new PartnerContentProviderCaller(context);
+    this.lut = lut;
+    this.filterPathSelector = filterPathSelector;
+    this.rotationDegrees = rotationDegrees;
+    this.trace = trace;
   }
 
   @Override
   public void run() {
     if (image == null) {
+      trace.abandon();
       return;
     }
-    // Extract data from image into a byte array.
-    ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-    byte[] bytes = new byte[buffer.remaining()];
-    buffer.get(bytes);
-    image.close();
+    long startNanos = SystemClock.elapsedRealtimeNanos();
+    // YUV captures are read straight from the image planes, so the image stays open until saved.
+    boolean isYuv = image.getFormat() == ImageFormat.YUV_420_888;
+    byte[] bytes = null;
+    if (!isYuv) {
+      // Extract data from image into a byte array.
+      Trace.beginSection("ImageSaver.copyPlanes");
+      ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+      bytes = new byte[buffer.remaining()];
+      buffer.get(bytes);
+      image.close();
+      Trace.endSection();
+      trace.mark(CaptureTrace.Stage.PLANES_COPIED);
+    }
+    try {
+      save(bytes);
+    } finally {
+      if (isYuv) {
+        image.close();
+      }
+      // No-op if the capture was saved.
+      trace.abandon();
+      runHistogram.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+    }
+  }
+
+  /**
+   * Saves the capture, filtering it if a look was selected.
+   *
+   * @param bytes The JPEG capture, or null if the image is YUV_420_888.
+   */
+  private void save(@Nullable byte[] bytes) {
     String uniqueId = createUniqueId();
-    boolean requiresFilter = filterId != FilterGLRenderer.NO_FILTER_ID;
-    File directory = FileUtil.getProperDirectory(context, requiresFilter);
-    // If not using a filter, we are done as we do not have to apply filters.
-    File unfilteredImageFile =
-        FileUtil.writeBytesToFile(
-            directory,
-            uniqueId,
-            bytes);
-    // We are done if no filter is applied as we have already saved to DCIM.
+    boolean requiresFilter = lut != null;
+    // We are done if no filter is applied as we can save straight to DCIM.
     if (!requiresFilter) {
-      notifyMediaStoreOfNewFile(context, Uri.fromFile(unfilteredImageFile));
+      File imageFile =
+          writeUnfiltered(
+              FileUtil.getProperDirectory(context, /* requiresFilter= */ false), uniqueId, bytes);
+      if (imageFile != null) {
+        notifyMediaStoreOfNewFile(context, Uri.fromFile(imageFile));
+      }
       return;
     }
-    if (unfilteredImageFile == null) {
-      Log.e(TAG, "Unable to write unfiltered image file.");
+
+    FilterPathSelector.Path path =
+        filterPathSelector.choosePath(DemoActivity.version, lut.hasLattice(), lut.isLocalOnly());
+    Uri filteredUri = null;
+    if (path == FilterPathSelector.Path.PHOTOS) {
+      filteredUri = filterWithPhotos(uniqueId, bytes);
+      if (filteredUri == null && lut.hasLattice()) {
+        Log.w(TAG, "Photos could not filter the image, falling back to on-device filtering.");
+        filteredUri = filterLocally(uniqueId, bytes);
+      }
+    } else {
+      filteredUri = filterLocally(uniqueId, bytes);
+    }
+    if (filteredUri == null) {
+      Log.e(TAG, "Unable to save filtered image.");
       return;
     }
+    notifyMediaStoreOfNewFile(context, filteredUri);
+  }
 
-    Uri photosFilteredUri = applyFilter(unfilteredImageFile);
+  /** Writes the capture without any look to a "tempImage" file in {@code directory}. */
+  @Nullable
+  private File writeUnfiltered(File directory, String uniqueId, @Nullable byte[] bytes) {
+    Trace.beginSection("ImageSaver.writeUnfiltered");
+    File file;
+    try {
+      if (bytes != null) {
+        file = FileUtil.writeBytesToFile(directory, uniqueId, bytes);
+      } else {
+        file = FileUtil.createUnfilteredFile(directory, uniqueId);
+        if (!LocalFilterProcessor.encodeYuv(image, /* lut= */ null, rotationDegrees, file)) {
+          file = null;
+        }
+      }
+    } finally {
+      Trace.endSection();
+    }
+    if (file != null) {
+      trace.mark(CaptureTrace.Stage.WRITTEN);
+    }
+    return file;
+  }
+
+  /** Saves the unfiltered image to our cache and asks Photos to write the filtered image. */
+  @Nullable
+  private Uri filterWithPhotos(String uniqueId, @Nullable byte[] bytes) {
+    long startNanos = SystemClock.elapsedRealtimeNanos();
+    File unfilteredImageFile =
+        writeUnfiltered(
+            FileUtil.getProperDirectory(context, /* requiresFilter= */ true), uniqueId, bytes);
+    if (unfilteredImageFile == null) {
+      Log.e(TAG, "Unable to write unfiltered image file.");
+      return null;
+    }
+    Uri photosFilteredUri;
+    Trace.beginSection("ImageSaver.applyFilter");
+    try {
+      photosFilteredUri = applyFilter(unfilteredImageFile);
+    } catch (SecurityException | UnsupportedOperationException e) {
+      Log.e(TAG, "Photos is not usable for filtering.", e);
+      photosFilteredUri = null;
+    } finally {
+      Trace.endSection();
+    }
     if (photosFilteredUri == null) {
       Log.e(TAG, "Uri returned from Google Photos was null.");
-      return;
+      filterPathSelector.recordFailure(FilterPathSelector.Path.PHOTOS);
+      // Photos did not take the file, so it would stay in our cache forever.
+      unfilteredImageFile.delete();
+      return null;
     }
+    filterPathSelector.recordLatency(
+        FilterPathSelector.Path.PHOTOS, SystemClock.elapsedRealtimeNanos() - startNanos);
+    trace.setFilterPath(FilterPathSelector.Path.PHOTOS);
+    trace.mark(CaptureTrace.Stage.FILTERED);
     // For version 2 and above Photos will save to the output uri specified by the partner app.
     // The only action needed after apply filters is to notify media store of the new media.
-    notifyMediaStoreOfNewFile(context, photosFilteredUri);
+    return photosFilteredUri;
+  }
+
+  /**
+   * Applies the selected look on the device and writes the result straight to DCIM. YUV captures
+   * are filtered during the color conversion, JPEG captures are decoded first.
+   */
+  @Nullable
+  private Uri filterLocally(String uniqueId, @Nullable byte[] bytes) {
+    long startNanos = SystemClock.elapsedRealtimeNanos();
+    File outputFile = FileUtil.createFilteredFile(uniqueId);
+    Trace.beginSection("ImageSaver.filterLocally");
+    boolean filtered;
+    try {
+      filtered =
+          bytes != null
+              ? LocalFilterProcessor.applyFilter(bytes, lut, outputFile)
+              : LocalFilterProcessor.encodeYuv(image, lut, rotationDegrees, outputFile);
+    } finally {
+      Trace.endSection();
+    }
+    if (!filtered) {
+      filterPathSelector.recordFailure(FilterPathSelector.Path.LOCAL);
+      return null;
+    }
+    filterPathSelector.recordLatency(
+        FilterPathSelector.Path.LOCAL, SystemClock.elapsedRealtimeNanos() - startNanos);
+    trace.setFilterPath(FilterPathSelector.Path.LOCAL);
+    trace.mark(CaptureTrace.Stage.FILTERED);
+    return Uri.fromFile(outputFile);
   }
 
   /** Call the applyFilter method in the PartnerContentProvider. */
   private Uri applyFilter(File unfilteredFile) {
     // Version 1 of the API was deprecated in Photos 3.27. Please use versions 2 and above.
-    if (DemoActivity.version >= 2) {
+    if (DemoActivity.version >= FilterPathSelector.MINIMUM_APPLY_FILTER_VERSION) {
       File outputFile = FileUtil
           .createFilteredFile(Files.getNameWithoutExtension(unfilteredFile.getName()));
-      return caller.applyFilter(unfilteredFile.getName(), filterId, Uri.fromFile(outputFile));
+      PartnerContentProviderCaller caller = PartnerContentProviderCaller.forPartner(context);
+      return caller.applyFilter(unfilteredFile.getName(), lut.getId(), Uri.fromFile(outputFile));
     } else {
       throw new
           UnsupportedOperationException("API " + DemoActivity.version + " is no longer supported");
@@ -80,9 +218,11 @@ public final class ImageSaver implements Runnable {
   }
 
   /** Notify MediaStore of the new file. */
+  @SuppressWarnings("deprecation") // Still delivered while targetSdkVersion is below 29.
   private void notifyMediaStoreOfNewFile(Context context, Uri uri) {
     context.sendBroadcast(
         new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, uri));
+    trace.finish();
   }
 
   private String createUniqueId() {
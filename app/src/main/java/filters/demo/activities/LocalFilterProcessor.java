@@ -0,0 +1,138 @@
+package filters.demo.activities;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.media.Image;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Applies a {@link LookupTable} to a captured JPEG on the device, without Photos.
+ *
+ * <p>The image is decoded in horizontal strips with {@link BitmapRegionDecoder} and re-encoded by
+ * {@link StripJpegEncoder}, so only one strip of ARGB pixels is ever held in memory regardless of
+ * the sensor resolution. YUV_420_888 captures skip the decode and are converted, filtered and
+ * encoded in one pass.
+ */
+final class LocalFilterProcessor {
+
+  private static final String TAG = LocalFilterProcessor.class.getSimpleName();
+  /** Rows decoded per strip. A multiple of the encoder band so strips never straddle a band. */
+  private static final int STRIP_HEIGHT = 4 * StripJpegEncoder.BAND_HEIGHT;
+  private static final int JPEG_QUALITY = 95;
+
+  private LocalFilterProcessor() {}
+
+  /**
+   * Filters {@code jpeg} with {@code lut} and writes the result to {@code outputFile}.
+   *
+   * @return true if the filtered file was written completely.
+   */
+  static boolean applyFilter(byte[] jpeg, LookupTable lut, File outputFile) {
+    BitmapRegionDecoder decoder;
+    try {
+      decoder = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, /* isShareable= */ false);
+    } catch (IOException e) {
+      Log.e(TAG, "Could not create region decoder for captured image.", e);
+      return false;
+    }
+    try (OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+      int width = decoder.getWidth();
+      int height = decoder.getHeight();
+      // Keep the EXIF block so the orientation written by the camera still applies.
+      StripJpegEncoder encoder =
+          new StripJpegEncoder(
+              output, width, height, JPEG_QUALITY, StripJpegEncoder.extractExifSegment(jpeg));
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      options.inMutable = true;
+      int[] pixels = new int[width * STRIP_HEIGHT];
+      Rect region = new Rect();
+      for (int top = 0; top < height; top += STRIP_HEIGHT) {
+        int rows = Math.min(STRIP_HEIGHT, height - top);
+        region.set(0, top, width, top + rows);
+        Bitmap strip = decoder.decodeRegion(region, options);
+        if (strip == null) {
+          throw new IOException("Failed to decode rows " + top + " to " + (top + rows));
+        }
+        // Reuse the strip bitmap for the next region. The last strip may be shorter, in which case
+        // the decoded rows land in the top-left corner of the reused bitmap.
+        options.inBitmap = strip;
+        strip.getPixels(pixels, /* offset= */ 0, width, 0, 0, width, rows);
+        lut.apply(pixels, /* offset= */ 0, width * rows);
+        encoder.writeRows(pixels, /* offset= */ 0, /* stride= */ width, rows);
+      }
+      encoder.finish();
+      if (options.inBitmap != null) {
+        options.inBitmap.recycle();
+      }
+      return true;
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Could not filter captured image on the device.", e);
+      outputFile.delete();
+      return false;
+    } finally {
+      decoder.recycle();
+    }
+  }
+
+  /**
+   * Converts a YUV_420_888 capture to JPEG, applying {@code lut} in the same pass as the color
+   * conversion. The image is not closed.
+   *
+   * @param lut The look to apply, or null to encode the capture unfiltered.
+   * @param rotationDegrees Clockwise rotation recorded in EXIF to show the image upright.
+   * @return true if the file was written completely.
+   */
+  static boolean encodeYuv(
+      Image image, @Nullable LookupTable lut, int rotationDegrees, File outputFile) {
+    if (image.getFormat() != ImageFormat.YUV_420_888) {
+      throw new IllegalArgumentException("Unsupported image format " + image.getFormat());
+    }
+    int width = image.getWidth();
+    int height = image.getHeight();
+    Image.Plane[] planes = image.getPlanes();
+    YuvLutConverter converter =
+        new YuvLutConverter(
+            width,
+            height,
+            toConverterPlane(planes[0]),
+            toConverterPlane(planes[1]),
+            toConverterPlane(planes[2]),
+            lut);
+    try (OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+      StripJpegEncoder encoder =
+          new StripJpegEncoder(
+              output,
+              width,
+              height,
+              JPEG_QUALITY,
+              StripJpegEncoder.createOrientationExifSegment(rotationDegrees));
+      int[] pixels = new int[width * STRIP_HEIGHT];
+      for (int top = 0; top < height; top += STRIP_HEIGHT) {
+        int rows = Math.min(STRIP_HEIGHT, height - top);
+        converter.convertRows(top, rows, pixels);
+        encoder.writeRows(pixels, /* offset= */ 0, /* stride= */ width, rows);
+      }
+      encoder.finish();
+      return true;
+    } catch (IOException | RuntimeException e) {
+      Log.e(TAG, "Could not encode YUV capture.", e);
+      outputFile.delete();
+      return false;
+    }
+  }
+
+  private static YuvLutConverter.Plane toConverterPlane(Image.Plane plane) {
+    return new YuvLutConverter.Plane(
+        plane.getBuffer(), plane.getRowStride(), plane.getPixelStride());
+  }
+}
@@ -0,0 +1,442 @@
+package filters.demo.activities;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.res.AssetManager;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the Photos partner provider inside this app, for work that should not depend on
+ * Photos. Debug builds made with {@code -PlocalPartner} send every partner call here instead of to
+ * Photos. It implements the contract of Photos:
+ *
+ * <ul>
+ *   <li>{@code getVersion}, {@link FilterPathSelector#MINIMUM_APPLY_FILTER_VERSION}.
+ *   <li>{@code getFilters}, every look as a parceled Bitmap in the result Bundle, as Photos does.
+ *   <li>{@code applyFilter}, which filters the capture in the unfiltered directory on the device,
+ *       writes it to the output uri and deletes the capture.
+ *   <li>{@code deleteFilteredPhoto}, which has nothing to delete, as no copy is kept.
+ * </ul>
+ *
+ * <p>It also serves the LUT transfer protocols of this app, so they can be compared on a device:
+ *
+ * <ul>
+ *   <li>{@code getFilterPack}, a {@link LutPack} file handed over as a file descriptor, of only the
+ *       requested ids if the extras name some.
+ *   <li>{@code getFilterManifest}, ids and content hashes for {@link LutCatalogSync}.
+ * </ul>
+ *
+ * <p>The catalog is synthetic and of any size, followed by the {@code .cube} files in the {@value
+ * #CUBE_ASSET_DIRECTORY} assets, read with {@link LutImporter}. The {@code arg} of a call is its
+ * number of synthetic looks, the configured count if it is absent. {@code configure} sets that
+ * count, the {@link PartnerLoad} every other call goes through and whether {@code applyFilter}
+ * only copies the capture, from the keys of its extras. Unset keys go back to their defaults:
+ * {@value #DEFAULT_LOOKS_COUNT} synthetic looks, no load and filtering. The settings last until
+ * the process dies. Not exported.
+ */
+public final class LocalLutProvider extends ContentProvider {
+
+  static final String AUTHORITY = "filters.demo.activities.locallutprovider";
+  static final Uri AUTHORITY_URI = Uri.parse("content://" + AUTHORITY);
+
+  /** configure method name and extra names: an int, two longs, two doubles, a seed and a flag */
+  static final String CONFIGURE_METHOD_NAME = "configure";
+  static final String LOOKS_COUNT_KEY_NAME = "looks_count";
+  static final String LATENCY_MILLIS_KEY_NAME = "latency_millis";
+  static final String JITTER_MILLIS_KEY_NAME = "jitter_millis";
+  static final String FAILURE_RATE_KEY_NAME = "failure_rate";
+  static final String CALLS_PER_SECOND_KEY_NAME = "calls_per_second";
+  static final String SEED_KEY_NAME = "seed";
+  static final String COPY_ONLY_KEY_NAME = "copy_only";
+
+  private static final String TAG = LocalLutProvider.class.getSimpleName();
+  private static final int DEFAULT_LOOKS_COUNT = 9;
+  private static final int MAX_LOOKS_COUNT = 0xFFFF;
+  private static final String PACK_DIRECTORY = "lutpacks";
+  private static final String CUBE_ASSET_DIRECTORY = "luts";
+  private static final String CUBE_EXTENSION = ".cube";
+  /** Ids of the asset looks start above every synthetic id. */
+  private static final int FIRST_ASSET_ID = MAX_LOOKS_COUNT;
+
+  private volatile int looksCount = DEFAULT_LOOKS_COUNT;
+  private volatile PartnerLoad load = PartnerLoad.NONE;
+  /** Whether applyFilter copies captures unchanged, so inputs need not be decodable. */
+  private volatile boolean copyOnly;
+  /** Catalog of the last count asked for, baking a large one takes a while. */
+  @Nullable private List<LookupTable> catalog;
+  private int catalogCount;
+  /** Looks read from the assets, once. */
+  @Nullable private List<LookupTable> assetLooks;
+
+  @Override
+  public boolean onCreate() {
+    return true;
+  }
+
+  @Nullable
+  @Override
+  public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+    if (method.equals(CONFIGURE_METHOD_NAME)) {
+      configure(extras != null ? extras : Bundle.EMPTY);
+      return new Bundle();
+    }
+    try {
+      if (!load.await()) {
+        Log.i(TAG, "Failing " + method + " as configured.");
+        return null;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    switch (method) {
+      case PartnerContentProviderCaller.GET_VERSION_METHOD_NAME:
+        Bundle version = new Bundle();
+        version.putInt(
+            PartnerContentProviderCaller.VERSION_KEY_NAME,
+            FilterPathSelector.MINIMUM_APPLY_FILTER_VERSION);
+        return version;
+      case PartnerContentProviderCaller.GET_FILTER_METHOD_NAME:
+        return createBitmapsResult(getCatalog(parseLooksCount(arg)));
+      case PartnerContentProviderCaller.GET_FILTER_PACK_METHOD_NAME:
+        int[] requestedIds =
+            extras == null
+                ? null
+                : extras.getIntArray(PartnerContentProviderCaller.REQUESTED_FILTER_IDS_KEY_NAME);
+        return requestedIds == null
+            ? createPackResult(parseLooksCount(arg))
+            : createSubsetPackResult(getCatalog(parseLooksCount(arg)), requestedIds);
+      case PartnerContentProviderCaller.GET_FILTER_MANIFEST_METHOD_NAME:
+        return createManifestResult(getCatalog(parseLooksCount(arg)));
+      case PartnerContentProviderCaller.APPLY_FILTER_METHOD_NAME:
+        return applyFilter(getCatalog(parseLooksCount(arg)), extras);
+      case PartnerContentProviderCaller.DELETE_FILTERED_PHOTO_METHOD_NAME:
+        Bundle deleted = new Bundle();
+        deleted.putBoolean(PartnerContentProviderCaller.IS_DELETE_SUCCESS_KEY_NAME, true);
+        return deleted;
+      default:
+        throw new IllegalArgumentException("Unknown method " + method);
+    }
+  }
+
+  private void configure(Bundle extras) {
+    looksCount =
+        Math.max(
+            1, Math.min(MAX_LOOKS_COUNT, extras.getInt(LOOKS_COUNT_KEY_NAME, DEFAULT_LOOKS_COUNT)));
+    load =
+        new PartnerLoad(
+            TimeUnit.MILLISECONDS.toNanos(extras.getLong(LATENCY_MILLIS_KEY_NAME)),
+            TimeUnit.MILLISECONDS.toNanos(extras.getLong(JITTER_MILLIS_KEY_NAME)),
+            extras.getDouble(FAILURE_RATE_KEY_NAME),
+            extras.getDouble(CALLS_PER_SECOND_KEY_NAME),
+            extras.getLong(SEED_KEY_NAME));
+    copyOnly = extras.getBoolean(COPY_ONLY_KEY_NAME);
+    Log.i(TAG, "Configured " + looksCount + " looks and load " + extras);
+  }
+
+  private synchronized List<LookupTable> getCatalog(int count) {
+    if (catalog == null || catalogCount != count) {
+      catalog = createCatalog(count);
+      catalog.addAll(getAssetLooks());
+      catalogCount = count;
+    }
+    return catalog;
+  }
+
+  /**
+   * Returns the {@code .cube} looks of the assets in file name order, baked into lattices of
+   * {@link LookupTable#DEFAULT_LATTICE_SIZE} without a shaper like the synthetic ones. Files that
+   * do not parse are skipped.
+   */
+  private synchronized List<LookupTable> getAssetLooks() {
+    if (assetLooks != null) {
+      return assetLooks;
+    }
+    List<LookupTable> looks = new ArrayList<>();
+    AssetManager assets = getContext().getAssets();
+    String[] files;
+    try {
+      files = assets.list(CUBE_ASSET_DIRECTORY);
+    } catch (IOException e) {
+      Log.e(TAG, "Could not list " + CUBE_ASSET_DIRECTORY + " assets.", e);
+      files = new String[0];
+    }
+    Arrays.sort(files);
+    for (String file : files) {
+      if (!file.endsWith(CUBE_EXTENSION)) {
+        continue;
+      }
+      String name = toLookName(file.substring(0, file.length() - CUBE_EXTENSION.length()));
+      int id = FIRST_ASSET_ID + looks.size();
+      try (InputStream input = assets.open(CUBE_ASSET_DIRECTORY + "/" + file)) {
+        LookupTable cube = LutImporter.readCube(name, id, input);
+        looks.add(
+            LookupTable.compose(
+                name, id, Collections.singletonList(cube), LookupTable.DEFAULT_LATTICE_SIZE));
+      } catch (IOException e) {
+        Log.e(TAG, "Skipping look " + file, e);
+      }
+    }
+    assetLooks = looks;
+    return looks;
+  }
+
+  /** Turns a file name like "warm_fade" into "Warm fade". */
+  private static String toLookName(String fileName) {
+    String name = fileName.replace('_', ' ');
+    return name.isEmpty() ? name : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+  }
+
+  /**
+   * Returns {@code count} distinct looks of {@link LookupTable#DEFAULT_LATTICE_SIZE}, the same
+   * ones for the same count.
+   */
+  static List<LookupTable> createCatalog(int count) {
+    List<LookupTable> luts = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      // Per channel gamma between 0.6 and 1.4, a different mix for every look.
+      float gammaR = 0.6f + 0.8f * fraction(i * 0.37f);
+      float gammaG = 0.6f + 0.8f * fraction(i * 0.61f + 0.2f);
+      float gammaB = 0.6f + 0.8f * fraction(i * 0.83f + 0.5f);
+      luts.add(
+          LookupTable.bake(
+              "Look " + (i + 1),
+              /* id= */ i,
+              color ->
+                  (applyGamma((color >> 16) & 0xFF, gammaR) << 16)
+                      | (applyGamma((color >> 8) & 0xFF, gammaG) << 8)
+                      | applyGamma(color & 0xFF, gammaB),
+              LookupTable.DEFAULT_LATTICE_SIZE));
+    }
+    return luts;
+  }
+
+  private static Bundle createBitmapsResult(List<LookupTable> luts) {
+    int size = LookupTable.DEFAULT_LATTICE_SIZE;
+    ArrayList<Bitmap> bitmaps = new ArrayList<>(luts.size());
+    ArrayList<String> names = new ArrayList<>(luts.size());
+    ArrayList<Integer> ids = new ArrayList<>(luts.size());
+    boolean[] isGrayscale = new boolean[luts.size()];
+    for (LookupTable lut : luts) {
+      bitmaps.add(
+          Bitmap.createBitmap(lut.getLatticePixels(), size, size * size, Bitmap.Config.ARGB_8888));
+      names.add(lut.getName());
+      ids.add(lut.getId());
+    }
+    Bundle result = new Bundle();
+    result.putParcelableArrayList(
+        PartnerContentProviderCaller.FILTER_BITMAPS_LIST_KEY_NAME, bitmaps);
+    result.putStringArrayList(PartnerContentProviderCaller.FILTER_NAMES_LIST_KEY_NAME, names);
+    result.putIntegerArrayList(PartnerContentProviderCaller.FILTER_IDS_KEY_NAME, ids);
+    result.putBooleanArray(
+        PartnerContentProviderCaller.FILTER_IS_GRAYSCALE_BOOL_LIST_KEY_NAME, isGrayscale);
+    return result;
+  }
+
+  /** Hands out a read only descriptor of the pack, written once per count into the cache. */
+  @Nullable
+  private Bundle createPackResult(int count) {
+    try {
+      File pack = getOrCreatePack(count);
+      Bundle result = new Bundle();
+      result.putParcelable(
+          PartnerContentProviderCaller.FILTER_PACK_KEY_NAME,
+          ParcelFileDescriptor.open(pack, ParcelFileDescriptor.MODE_READ_ONLY));
+      result.putInt(PartnerContentProviderCaller.FILTER_PACK_VERSION_KEY_NAME, LutPack.VERSION);
+      return result;
+    } catch (IOException e) {
+      Log.e(TAG, "Could not write filter pack.", e);
+      return null;
+    }
+  }
+
+  /** Writes the requested looks to an unlinked file and hands out its descriptor. */
+  @Nullable
+  private Bundle createSubsetPackResult(List<LookupTable> catalog, int[] ids) {
+    Map<Integer, LookupTable> looks = new HashMap<>();
+    for (LookupTable lut : catalog) {
+      looks.put(lut.getId(), lut);
+    }
+    List<LookupTable> subset = new ArrayList<>(ids.length);
+    for (int id : ids) {
+      LookupTable lut = looks.get(id);
+      if (lut != null) {
+        subset.add(lut);
+      }
+    }
+    File pack = null;
+    try {
+      pack = File.createTempFile("subset", ".lutpack", getContext().getCacheDir());
+      try (FileOutputStream output = new FileOutputStream(pack)) {
+        LutPack.write(subset, 8, LutPack.ENCODING_RAW, output.getChannel());
+      }
+      Bundle result = new Bundle();
+      result.putParcelable(
+          PartnerContentProviderCaller.FILTER_PACK_KEY_NAME,
+          ParcelFileDescriptor.open(pack, ParcelFileDescriptor.MODE_READ_ONLY));
+      result.putInt(PartnerContentProviderCaller.FILTER_PACK_VERSION_KEY_NAME, LutPack.VERSION);
+      return result;
+    } catch (IOException e) {
+      Log.e(TAG, "Could not write filter pack.", e);
+      return null;
+    } finally {
+      // The open descriptor keeps the contents alive for the caller.
+      if (pack != null) {
+        pack.delete();
+      }
+    }
+  }
+
+  /** Filters the capture with the look of the requested id, as Photos would. */
+  @Nullable
+  private Bundle applyFilter(List<LookupTable> catalog, @Nullable Bundle extras) {
+    if (extras == null) {
+      throw new IllegalArgumentException("applyFilter needs extras");
+    }
+    int filterId = extras.getInt(PartnerContentProviderCaller.FILTER_ID_KEY_NAME);
+    String filename = extras.getString(PartnerContentProviderCaller.PARTNER_FILE_KEY_NAME);
+    Uri outputUri = extras.getParcelable(PartnerContentProviderCaller.OUTPUT_URI_KEY_NAME);
+    LookupTable lut = null;
+    for (LookupTable look : catalog) {
+      if (look.getId() == filterId) {
+        lut = look;
+        break;
+      }
+    }
+    if (lut == null || filename == null || outputUri == null) {
+      Log.e(TAG, "No look " + filterId + ", file " + filename + " or output uri " + outputUri);
+      return null;
+    }
+    // The capture is ours, so it is read straight from the directory FilterDemoContentProvider
+    // would serve it from.
+    File input = new File(FileUtil.getOrCreateUnfilteredDirectory(getContext()), filename);
+    File output = new File(outputUri.getPath());
+    try {
+      if (copyOnly) {
+        Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } else if (!LocalFilterProcessor.applyFilter(
+          Files.readAllBytes(input.toPath()), lut, output)) {
+        return null;
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Could not filter " + input, e);
+      return null;
+    } finally {
+      input.delete();
+    }
+    return new Bundle();
+  }
+
+  private static Bundle createManifestResult(List<LookupTable> catalog) {
+    int[] ids = new int[catalog.size()];
+    long[] hashes = new long[catalog.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = catalog.get(i).getId();
+      hashes[i] = LutPack.contentHash(catalog.get(i));
+    }
+    Bundle result = new Bundle();
+    result.putIntArray(PartnerContentProviderCaller.FILTER_IDS_KEY_NAME, ids);
+    result.putLongArray(PartnerContentProviderCaller.FILTER_HASHES_KEY_NAME, hashes);
+    return result;
+  }
+
+  private synchronized File getOrCreatePack(int count) throws IOException {
+    File directory = new File(getContext().getCacheDir(), PACK_DIRECTORY);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    List<LookupTable> catalog = getCatalog(count);
+    // Named by the asset count too, so a pack cached before an update does not miss its looks.
+    File pack =
+        new File(directory, "catalog-" + count + "-" + (catalog.size() - count) + ".lutpack");
+    if (pack.exists()) {
+      return pack;
+    }
+    // Written under another name first, so a reader never maps a partial pack.
+    File temporary = new File(directory, pack.getName() + ".tmp");
+    try (FileOutputStream output = new FileOutputStream(temporary)) {
+      LutPack.write(catalog, 8, LutPack.ENCODING_RAW, output.getChannel());
+    }
+    if (!temporary.renameTo(pack)) {
+      throw new IOException("Could not rename " + temporary);
+    }
+    return pack;
+  }
+
+  private int parseLooksCount(@Nullable String arg) {
+    if (arg == null) {
+      return looksCount;
+    }
+    try {
+      return Math.max(1, Math.min(MAX_LOOKS_COUNT, Integer.parseInt(arg)));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Looks count " + arg + " is not a number");
+    }
+  }
+
+  private static int applyGamma(int value, float gamma) {
+    return Math.round(255f * (float) Math.pow(value / 255f, gamma));
+  }
+
+  private static float fraction(float value) {
+    return value - (float) Math.floor(value);
+  }
+
+  @Nullable
+  @Override
+  public Cursor query(
+      @NonNull Uri uri,
+      @Nullable String[] projection,
+      @Nullable String selection,
+      @Nullable String[] selectionArgs,
+      @Nullable String sortOrder) {
+    throw new UnsupportedOperationException("query not supported");
+  }
+
+  @Nullable
+  @Override
+  public String getType(@NonNull Uri uri) {
+    return null;
+  }
+
+  @Nullable
+  @Override
+  public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+    throw new UnsupportedOperationException("insert not supported");
+  }
+
+  @Override
+  public int delete(
+      @NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+    throw new UnsupportedOperationException("delete not supported");
+  }
+
+  @Override
+  public int update(
+      @NonNull Uri uri,
+      @Nullable ContentValues values,
+      @Nullable String selection,
+      @Nullable String[] selectionArgs) {
+    throw new UnsupportedOperationException("update not supported");
+  }
+}
@@ -0,0 +1,57 @@
+package filters.demo.activities;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+import java.util.List;
+
+/**
+ * Looks stitched side by side into one bitmap for upload, each {@code latticeSize} wide and {@code
+ * latticeSize}^2 high in the layout of the LUT bitmaps from Photos. Every look in an atlas has the
+ * same lattice size.
+ *
+ * <p>If any look has shaper curves, {@link #shaperBitmap} holds them as well, 256 wide and one row
+ * per look. Looks without a shaper get identity curves.
+ */
+final class LutAtlas {
+
+  final Bitmap bitmap;
+  final int latticeSize;
+  @Nullable final Bitmap shaperBitmap;
+
+  LutAtlas(Bitmap bitmap, int latticeSize) {
+    this(bitmap, latticeSize, /* shaperBitmap= */ null);
+  }
+
+  private LutAtlas(Bitmap bitmap, int latticeSize, @Nullable Bitmap shaperBitmap) {
+    this.bitmap = bitmap;
+    this.latticeSize = latticeSize;
+    this.shaperBitmap = shaperBitmap;
+  }
+
+  /** Number of looks side by side in the atlas. */
+  int getLooksCount() {
+    return bitmap.getWidth() / latticeSize;
+  }
+
+  /**
+   * Resamples every look to {@code latticeSize} and stitches them. All need a lattice.
+   *
+   * @param fitShapers Whether looks with a larger lattice are fitted with shaper curves by {@link
+   *     ShaperFitter} instead of resampled evenly, which keeps small lattices closer to the look.
+   */
+  static LutAtlas stitch(List<LookupTable> luts, int latticeSize, boolean fitShapers) {
+    StitchedLuts stitched = StitchedLuts.stitch(luts, latticeSize, fitShapers);
+    Bitmap bitmap =
+        Bitmap.createBitmap(
+            stitched.pixels, stitched.width, stitched.height, Bitmap.Config.ARGB_8888);
+    Bitmap shaperBitmap =
+        stitched.shaperPixels == null
+            ? null
+            : Bitmap.createBitmap(
+                stitched.shaperPixels,
+                StitchedLuts.SHAPER_WIDTH,
+                luts.size(),
+                Bitmap.Config.ARGB_8888);
+    return new LutAtlas(bitmap, latticeSize, shaperBitmap);
+  }
+}
@@ -0,0 +1,79 @@
+package filters.demo.activities;
+
+import android.opengl.GLES20;
+
+/**
+ * Applies a look from a LUT atlas, or in the nine-tile view the look of each tile. The atlas is
+ * bound on texture unit {@value #LUT_TEXTURE_UNIT}, its shaper curves if any on unit {@value
+ * #SHAPER_TEXTURE_UNIT}.
+ */
+final class LutStage extends GlStage {
+
+  static final String NAME = "lut";
+  private static final int LUT_TEXTURE_UNIT = 1;
+  private static final int SHAPER_TEXTURE_UNIT = 2;
+
+  private int lutHandle;
+  private int looksCountHandle;
+  private int lutIndexHandle;
+  private int latticeSizeHandle;
+  private int shaperHandle;
+  private int hasShaperHandle;
+
+  // Set on the GL thread before each draw.
+  private int lutTexture;
+  private int lutIndex = FilterGLRenderer.NO_FILTER_ID;
+  private int looksCount;
+  private int latticeSize = LookupTable.DEFAULT_LATTICE_SIZE;
+  private int shaperTexture;
+
+  /** @param source Contents of {@code stage_lut.glsl}. */
+  LutStage(String source) {
+    super(NAME, Kind.PER_PIXEL, source);
+  }
+
+  /**
+   * Selects the look for the next draw.
+   *
+   * @param lutTexture Texture holding the LUT atlas.
+   * @param lutIndex Look of the single tile view, or {@link FilterGLRenderer#NO_FILTER_ID}.
+   * @param looksCount Number of looks in the atlas.
+   * @param latticeSize Lattice size of every look in the atlas.
+   * @param shaperTexture Texture holding the shaper curves of the atlas, one row per look, or 0
+   *     if no look in it has a shaper.
+   */
+  void setLook(int lutTexture, int lutIndex, int looksCount, int latticeSize, int shaperTexture) {
+    this.lutTexture = lutTexture;
+    this.lutIndex = lutIndex;
+    this.looksCount = looksCount;
+    this.latticeSize = latticeSize;
+    this.shaperTexture = shaperTexture;
+  }
+
+  @Override
+  void onProgramLinked(int program) {
+    lutHandle = GLES20.glGetUniformLocation(program, "u_LutTable");
+    looksCountHandle = GLES20.glGetUniformLocation(program, "u_LutLooksCount");
+    lutIndexHandle = GLES20.glGetUniformLocation(program, "u_LutIndex");
+    latticeSizeHandle = GLES20.glGetUniformLocation(program, "u_LutLatticeSize");
+    shaperHandle = GLES20.glGetUniformLocation(program, "u_LutShaper");
+    hasShaperHandle = GLES20.glGetUniformLocation(program, "u_LutHasShaper");
+  }
+
+  @Override
+  void setUniforms() {
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + LUT_TEXTURE_UNIT);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, lutTexture);
+    if (shaperTexture != 0) {
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + SHAPER_TEXTURE_UNIT);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, shaperTexture);
+    }
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glUniform1i(lutHandle, LUT_TEXTURE_UNIT);
+    GLES20.glUniform1f(looksCountHandle, looksCount);
+    GLES20.glUniform1f(lutIndexHandle, lutIndex);
+    GLES20.glUniform1f(latticeSizeHandle, latticeSize);
+    GLES20.glUniform1i(shaperHandle, SHAPER_TEXTURE_UNIT);
+    GLES20.glUniform1f(hasShaperHandle, shaperTexture != 0 ? 1f : 0f);
+  }
+}
@@ -0,0 +1,239 @@
+package filters.demo.activities;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+/**
+ * Owns the framebuffer that a still capture is rendered into and reads it back without stalling.
+ *
+ * <p>The rendered image is read back in horizontal strips through two pixel buffer objects. Each
+ * call to {@link #advance()} copies out at most the strips whose transfer has already completed and
+ * queues the next ones, so the preview frame loop never waits on the GPU. Requires GLES 3.0.
+ */
+final class OffscreenCaptureRenderer {
+
+  /** Rows per readback strip. A multiple of the JPEG band height so strips never split a band. */
+  static final int STRIP_HEIGHT = 8 * StripJpegEncoder.BAND_HEIGHT;
+  static final int BYTES_PER_PIXEL = 4;
+  private static final int PIXEL_BUFFER_COUNT = 2;
+
+  /** Receives the rendered capture strip by strip. All methods are called on the GL thread. */
+  interface StripConsumer {
+    /** Called once before any strip with the size of the rendered (upright) image. */
+    void onCaptureStarted(int width, int height);
+
+    /**
+     * Returns an empty buffer of at least {@code width * STRIP_HEIGHT * BYTES_PER_PIXEL} bytes, or
+     * null if none is free yet. Must not block.
+     */
+    @Nullable
+    ByteBuffer obtainStripBuffer();
+
+    /** Hands over {@code rowCount} RGBA rows, top row first, filled into an obtained buffer. */
+    void onStripReady(ByteBuffer strip, int rowCount);
+
+    void onCaptureFinished();
+
+    /**
+     * Called instead of {@link #onCaptureFinished} if the capture was dropped, possibly before
+     * {@link #onCaptureStarted}. No other call follows.
+     */
+    void onCaptureFailed();
+  }
+
+  private final int[] framebuffer = new int[1];
+  private final int[] colorTexture = new int[1];
+  private final int[] pixelBuffers = new int[PIXEL_BUFFER_COUNT];
+  private final long[] fences = new long[PIXEL_BUFFER_COUNT];
+
+  @Nullable
+  private StripConsumer consumer;
+  private int width;
+  private int height;
+  private int stripCount;
+  /** Index of the next strip to queue a readback for. */
+  private int nextStripToRead;
+  /** Index of the next strip to hand to the consumer. Strips are delivered in order. */
+  private int nextStripToDeliver;
+
+  /** Whether a capture is currently being rendered or read back. */
+  boolean isBusy() {
+    return consumer != null;
+  }
+
+  /** Returns the framebuffer that {@link #begin} allocated, for the capture to be drawn into. */
+  int getFramebuffer() {
+    return framebuffer[0];
+  }
+
+  /**
+   * Allocates the framebuffer for a capture of the given upright size and binds it for drawing.
+   * The caller draws the frame, then calls {@link #advance()} from every subsequent frame.
+   */
+  void begin(int width, int height, StripConsumer consumer) {
+    if (isBusy()) {
+      throw new IllegalStateException("A capture is already being read back.");
+    }
+    this.consumer = consumer;
+    this.width = width;
+    this.height = height;
+    stripCount = (height + STRIP_HEIGHT - 1) / STRIP_HEIGHT;
+    nextStripToRead = 0;
+    nextStripToDeliver = 0;
+
+    GLES20.glGenTextures(/* n= */ 1, colorTexture, /* offset= */ 0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, colorTexture[0]);
+    GLES20.glTexImage2D(
+        GLES20.GL_TEXTURE_2D,
+        /* level= */ 0,
+        GLES20.GL_RGBA,
+        width,
+        height,
+        /* border= */ 0,
+        GLES20.GL_RGBA,
+        GLES20.GL_UNSIGNED_BYTE,
+        /* pixels= */ null);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+
+    GLES20.glGenFramebuffers(/* n= */ 1, framebuffer, /* offset= */ 0);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+    GLES20.glFramebufferTexture2D(
+        GLES20.GL_FRAMEBUFFER,
+        GLES20.GL_COLOR_ATTACHMENT0,
+        GLES20.GL_TEXTURE_2D,
+        colorTexture[0],
+        /* level= */ 0);
+    if (GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER)
+        != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+      release();
+      throw new IllegalStateException("Capture framebuffer " + width + "x" + height
+          + " is incomplete.");
+    }
+
+    GLES30.glGenBuffers(PIXEL_BUFFER_COUNT, pixelBuffers, /* offset= */ 0);
+    for (int pixelBuffer : pixelBuffers) {
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffer);
+      GLES30.glBufferData(
+          GLES30.GL_PIXEL_PACK_BUFFER,
+          width * STRIP_HEIGHT * BYTES_PER_PIXEL,
+          /* data= */ null,
+          GLES30.GL_STREAM_READ);
+    }
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    GLES20.glViewport(/* x= */ 0, /* y= */ 0, width, height);
+    consumer.onCaptureStarted(width, height);
+  }
+
+  /**
+   * Delivers the strips whose readback has completed and queues readbacks into free pixel
+   * buffers. Never blocks on the GPU. Returns true while the capture still needs more frames.
+   */
+  boolean advance() {
+    if (consumer == null) {
+      return false;
+    }
+    while (nextStripToDeliver < nextStripToRead) {
+      int slot = nextStripToDeliver % PIXEL_BUFFER_COUNT;
+      int status =
+          GLES30.glClientWaitSync(fences[slot], /* flags= */ 0, /* timeout= */ 0);
+      if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+        break;
+      }
+      ByteBuffer strip = consumer.obtainStripBuffer();
+      if (strip == null) {
+        // The save thread is behind. Try again next frame rather than waiting here.
+        break;
+      }
+      int rows = rowsInStrip(nextStripToDeliver);
+      int byteCount = width * rows * BYTES_PER_PIXEL;
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[slot]);
+      ByteBuffer mapped =
+          (ByteBuffer)
+              GLES30.glMapBufferRange(
+                  GLES30.GL_PIXEL_PACK_BUFFER, /* offset= */ 0, byteCount, GLES30.GL_MAP_READ_BIT);
+      strip.clear();
+      if (mapped != null) {
+        strip.put(mapped);
+      }
+      strip.flip();
+      GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+      GLES30.glDeleteSync(fences[slot]);
+      fences[slot] = 0;
+      consumer.onStripReady(strip, rows);
+      nextStripToDeliver++;
+    }
+
+    if (nextStripToRead < stripCount) {
+      GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, framebuffer[0]);
+      while (nextStripToRead < stripCount
+          && nextStripToRead - nextStripToDeliver < PIXEL_BUFFER_COUNT) {
+        int slot = nextStripToRead % PIXEL_BUFFER_COUNT;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffers[slot]);
+        GLES30.glReadPixels(
+            /* x= */ 0,
+            nextStripToRead * STRIP_HEIGHT,
+            width,
+            rowsInStrip(nextStripToRead),
+            GLES30.GL_RGBA,
+            GLES30.GL_UNSIGNED_BYTE,
+            /* offset= */ 0);
+        fences[slot] =
+            GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, /* flags= */ 0);
+        nextStripToRead++;
+      }
+      GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, 0);
+    }
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+
+    if (nextStripToDeliver == stripCount) {
+      StripConsumer finishedConsumer = consumer;
+      release();
+      finishedConsumer.onCaptureFinished();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Drops the current capture, if any, after its GL objects died with the EGL context, and tells
+   * its consumer. Nothing is deleted, as the objects are gone already.
+   */
+  void abandon() {
+    StripConsumer abandonedConsumer = consumer;
+    consumer = null;
+    if (abandonedConsumer != null) {
+      abandonedConsumer.onCaptureFailed();
+    }
+  }
+
+  /** Frees the GL objects of the current capture. Must be called on the GL thread. */
+  void release() {
+    for (int slot = 0; slot < PIXEL_BUFFER_COUNT; slot++) {
+      if (fences[slot] != 0) {
+        GLES30.glDeleteSync(fences[slot]);
+        fences[slot] = 0;
+      }
+    }
+    if (pixelBuffers[0] != 0) {
+      GLES30.glDeleteBuffers(PIXEL_BUFFER_COUNT, pixelBuffers, /* offset= */ 0);
+      pixelBuffers[0] = 0;
+      pixelBuffers[1] = 0;
+    }
+    if (framebuffer[0] != 0) {
+      GLES20.glDeleteFramebuffers(/* n= */ 1, framebuffer, /* offset= */ 0);
+      framebuffer[0] = 0;
+    }
+    if (colorTexture[0] != 0) {
+      GLES20.glDeleteTextures(/* n= */ 1, colorTexture, /* offset= */ 0);
+      colorTexture[0] = 0;
+    }
+    consumer = null;
+  }
+
+  private int rowsInStrip(int strip) {
+    return Math.min(STRIP_HEIGHT, height - strip * STRIP_HEIGHT);
+  }
+}
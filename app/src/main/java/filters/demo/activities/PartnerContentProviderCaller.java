@@ -3,10 +3,14 @@ package filters.demo.activities;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import filters.demo.libraries.TrustedPartners;
 import filters.demo.libraries.TrustedPartnersUtil;
+import java.io.IOException;
 
 /** Handles calls to the PartnerContentProvider. */
 public final class PartnerContentProviderCaller {
@@ -31,41 +35,190 @@ public final class PartnerContentProviderCaller {
   public static final String FILTER_NAMES_LIST_KEY_NAME = "filter_names";
   public static final String FILTER_IS_GRAYSCALE_BOOL_LIST_KEY_NAME = "filter_isGrayscale";
 
+  /** getFilterPack method name, the catalog as a {@link LutPack} instead of parceled Bitmaps */
+  public static final String GET_FILTER_PACK_METHOD_NAME = "getFilterPack";
+  /** getFilterPack result bundle key names */
+  public static final String FILTER_PACK_KEY_NAME = "filter_pack";
+  public static final String FILTER_PACK_VERSION_KEY_NAME = "filter_pack_version";
+
+  /** getFilterManifest method name, ids and content hashes of the catalog for syncing */
+  public static final String GET_FILTER_MANIFEST_METHOD_NAME = "getFilterManifest";
+  /** getFilterManifest result bundle key names, ids are under FILTER_IDS_KEY_NAME as an int[] */
+  public static final String FILTER_HASHES_KEY_NAME = "filter_hashes";
+  /** getFilterPack extra, an int[] of the ids wanted; the whole catalog if absent */
+  public static final String REQUESTED_FILTER_IDS_KEY_NAME = "requested_filter_ids";
+
   /** applyFilter method name and extra param names */
-  private static final String APPLY_FILTER_METHOD_NAME = "applyFilter";
-  private static final String FILTER_ID_KEY_NAME = "filter_id";
-  private static final String PARTNER_FILE_KEY_NAME = "file_name";
+  static final String APPLY_FILTER_METHOD_NAME = "applyFilter";
+  static final String FILTER_ID_KEY_NAME = "filter_id";
+  static final String PARTNER_FILE_KEY_NAME = "file_name";
   private static final String PARTNER_AUTHORITY_KEY_NAME = "partner_authority";
-  private static final String OUTPUT_URI_KEY_NAME = "output_uri";
+  static final String OUTPUT_URI_KEY_NAME = "output_uri";
 
   /** deleteFilteredPhoto method name */
-  private static final String DELETE_FILTERED_PHOTO_METHOD_NAME = "deleteFilteredPhoto";
+  static final String DELETE_FILTERED_PHOTO_METHOD_NAME = "deleteFilteredPhoto";
   /** deleteFilteredPhoto result bundle key names */
-  private static final String IS_DELETE_SUCCESS_KEY_NAME = "is_delete_success";
+  static final String IS_DELETE_SUCCESS_KEY_NAME = "is_delete_success";
+
+  private static final MetricsRegistry.Counter nullResultCounter =
+      MetricsRegistry.counter("partner.null_results");
+  private static final LatencyHistogram openPackHistogram =
+      MetricsRegistry.histogram("partner.filter_pack.open");
+
+  /** Provider that stands in for Photos when filtering captures, or null for Photos itself. */
+  @Nullable
+  private static volatile Uri partnerAuthorityUriForTesting;
 
   private final Context context;
+  private final Uri authorityUri;
   private final TrustedPartners trustedPartners;
 
+  /**
+   * Returns a caller for Photos, or for {@link LocalLutProvider} in debug builds made with {@code
+   * -PlocalPartner}.
+   *
+   * @throws SecurityException If the provider does not belong to a trusted partner.
+   */
   public PartnerContentProviderCaller(Context context) {
+    this(
+        context,
+        TrustedPartnersUtil.isLocalPartnerEnabled()
+            ? LocalLutProvider.AUTHORITY_URI
+            : PHOTOS_AUTHORITY_URI);
+    validateAuthority();
+  }
+
+  private PartnerContentProviderCaller(Context context, Uri authorityUri) {
     this.context = context;
+    this.authorityUri = authorityUri;
     this.trustedPartners =
-        new TrustedPartners(context, TrustedPartnersUtil.getTrustedPartnerCertificateHashes());
-    validateAuthority();
+        new TrustedPartners(
+            context,
+            TrustedPartnersUtil.getTrustedPartnerCertificateHashes(),
+            /* trustsOwnPackage= */ TrustedPartnersUtil.isLocalPartnerEnabled());
+  }
+
+  /**
+   * Returns a caller for {@link LocalLutProvider} instead of Photos. It is part of this app, so its
+   * authority is not checked against the trusted partners.
+   */
+  static PartnerContentProviderCaller forLocalLutProvider(Context context) {
+    return new PartnerContentProviderCaller(context, LocalLutProvider.AUTHORITY_URI);
   }
 
+  /**
+   * Returns a caller for the partner that filters captures: the one of {@link
+   * #PartnerContentProviderCaller(Context)}, or the provider set with {@link
+   * #setPartnerAuthorityForTesting}.
+   */
+  static PartnerContentProviderCaller forPartner(Context context) {
+    Uri authorityUri = partnerAuthorityUriForTesting;
+    return authorityUri == null
+        ? new PartnerContentProviderCaller(context)
+        : new PartnerContentProviderCaller(context, authorityUri);
+  }
+
+  /**
+   * Points {@link #forPartner} at a provider of the test itself, which is not checked against the
+   * trusted partners, or back at the partner of this build if null.
+   */
+  @VisibleForTesting
+  static void setPartnerAuthorityForTesting(@Nullable Uri authorityUri) {
+    partnerAuthorityUriForTesting = authorityUri;
+  }
+
+  /** Returns the API version of the partner, or -1 if it did not answer. */
   public int getVersionFromPhotos() {
-    Bundle bundle = context
-        .getContentResolver()
-        .call(PHOTOS_AUTHORITY_URI, GET_VERSION_METHOD_NAME, /* arg= */ null, /* extras= */ null);
+    Bundle bundle = call(GET_VERSION_METHOD_NAME, /* arg= */ null, /* extras= */ null);
+    if (bundle == null) {
+      return -1;
+    }
     return bundle.getInt(PartnerContentProviderCaller.VERSION_KEY_NAME);
   }
 
   /** Returns the bundle retrieved from PartnerContentProvider getFilters method. */
   @Nullable
   public Bundle getFilters() {
-    return context
-        .getContentResolver()
-        .call(PHOTOS_AUTHORITY_URI, GET_FILTER_METHOD_NAME, /* arg= */ null, /* extras= */ null);
+    return call(GET_FILTER_METHOD_NAME, /* arg= */ null, /* extras= */ null);
+  }
+
+  /**
+   * Returns the catalog as a {@link LutPack} handed over as a file descriptor, which is neither
+   * bounded by the binder transaction limit nor unparceled Bitmap by Bitmap. Returns null if the
+   * provider does not offer it, in which case {@link #getFilters} must be used.
+   */
+  @Nullable
+  public LutPack getFilterPack() {
+    return getFilterPack(/* ids= */ null);
+  }
+
+  /** Returns a pack of only the looks with {@code ids}, or of all if null. See getFilterPack(). */
+  @Nullable
+  LutPack getFilterPack(@Nullable int[] ids) {
+    Bundle extras = null;
+    if (ids != null) {
+      extras = new Bundle();
+      extras.putIntArray(REQUESTED_FILTER_IDS_KEY_NAME, ids);
+    }
+    Bundle bundle = callIfSupported(GET_FILTER_PACK_METHOD_NAME, extras);
+    return bundle == null ? null : readFilterPack(bundle);
+  }
+
+  /**
+   * Returns the ids and content hashes of the catalog, for {@link LutCatalogSync}, or null if the
+   * provider does not support syncing.
+   */
+  @Nullable
+  LutCatalogSync.Manifest getFilterManifest() {
+    Bundle bundle = callIfSupported(GET_FILTER_MANIFEST_METHOD_NAME, /* extras= */ null);
+    if (bundle == null) {
+      return null;
+    }
+    int[] ids = bundle.getIntArray(FILTER_IDS_KEY_NAME);
+    long[] hashes = bundle.getLongArray(FILTER_HASHES_KEY_NAME);
+    if (ids == null || hashes == null || ids.length != hashes.length) {
+      Log.w(TAG, "Malformed filter manifest.");
+      return null;
+    }
+    return new LutCatalogSync.Manifest(ids, hashes);
+  }
+
+  /** Adapts this caller for {@link LutCatalogSync}. */
+  LutCatalogSync.Source asCatalogSource() {
+    return new LutCatalogSync.Source() {
+      @Override
+      public LutCatalogSync.Manifest getManifest() {
+        return getFilterManifest();
+      }
+
+      @Override
+      public LutPack getLooks(int[] ids) {
+        return getFilterPack(ids);
+      }
+    };
+  }
+
+  /** Maps the pack in a getFilterPack result, or returns null if there is none or it is bad. */
+  @Nullable
+  static LutPack readFilterPack(Bundle bundle) {
+    ParcelFileDescriptor descriptor = bundle.getParcelable(FILTER_PACK_KEY_NAME);
+    if (descriptor == null || bundle.getInt(FILTER_PACK_VERSION_KEY_NAME) != LutPack.VERSION) {
+      Log.w(TAG, "No filter pack of version " + LutPack.VERSION + " in result.");
+      return null;
+    }
+    long startNanos = SystemClock.elapsedRealtimeNanos();
+    // A regular file is mapped and shares its pages with the provider, a pipe has to be read.
+    boolean mappable = descriptor.getStatSize() >= 0;
+    try (ParcelFileDescriptor.AutoCloseInputStream input =
+        new ParcelFileDescriptor.AutoCloseInputStream(descriptor)) {
+      LutPack pack =
+          mappable ? LutPack.open(input.getChannel()) : LutPack.read(input.getChannel());
+      openPackHistogram.record(SystemClock.elapsedRealtimeNanos() - startNanos);
+      return pack;
+    } catch (IOException e) {
+      Log.e(TAG, "Could not read filter pack.", e);
+      return null;
+    }
   }
 
   /**
@@ -85,10 +238,7 @@ public final class PartnerContentProviderCaller {
     paramsBundle.putString(PARTNER_AUTHORITY_KEY_NAME, PARTNER_AUTHORITY);
     paramsBundle.putParcelable(OUTPUT_URI_KEY_NAME, outputUri);
 
-    Bundle returnedBundle =
-        context
-            .getContentResolver()
-            .call(PHOTOS_AUTHORITY_URI, APPLY_FILTER_METHOD_NAME, /* arg= */ null, paramsBundle);
+    Bundle returnedBundle = call(APPLY_FILTER_METHOD_NAME, /* arg= */ null, paramsBundle);
     // A null returnedBundle indicates the Photos was not able to successfully apply and save the
     // filtered photo.
     if (returnedBundle == null) {
@@ -101,21 +251,43 @@ public final class PartnerContentProviderCaller {
   /** Alert Photos we are done using the filtered file stored in the Photos app. */
   @Nullable
   public Boolean deleteFilteredPhoto(String filename) {
-    Bundle returnedBundle = context.getContentResolver().call(
-        PHOTOS_AUTHORITY_URI,
-        DELETE_FILTERED_PHOTO_METHOD_NAME,
-        filename,
-        /* extras= */ null);
+    Bundle returnedBundle = call(DELETE_FILTERED_PHOTO_METHOD_NAME, filename, /* extras= */ null);
     if (returnedBundle == null) {
       return null;
     }
     return returnedBundle.getBoolean(IS_DELETE_SUCCESS_KEY_NAME);
   }
 
+  /** Calls a method that older providers may not know, returning null if it is rejected. */
+  @Nullable
+  private Bundle callIfSupported(String method, @Nullable Bundle extras) {
+    try {
+      return call(method, /* arg= */ null, extras);
+    } catch (IllegalArgumentException | UnsupportedOperationException e) {
+      // Providers are free to reject methods they do not know.
+      Log.i(TAG, method + " not supported.");
+      return null;
+    }
+  }
+
+  /** Calls {@code method} on the provider, recording how long the round trip took. */
+  @Nullable
+  private Bundle call(String method, @Nullable String arg, @Nullable Bundle extras) {
+    long startNanos = SystemClock.elapsedRealtimeNanos();
+    Bundle result = context.getContentResolver().call(authorityUri, method, arg, extras);
+    MetricsRegistry.histogram("partner." + method)
+        .record(SystemClock.elapsedRealtimeNanos() - startNanos);
+    if (result == null) {
+      nullResultCounter.increment();
+    }
+    return result;
+  }
+
   /** Validate given authority before calling the content provider methods. */
   private void validateAuthority() {
-    if (!trustedPartners.isTrustedAuthority(PHOTOS_AUTHORITY)) {
-      throw new SecurityException(PHOTOS_AUTHORITY + " is not authorized to access the content");
+    String authority = authorityUri.getAuthority();
+    if (!trustedPartners.isTrustedAuthority(authority)) {
+      throw new SecurityException(authority + " is not authorized to access the content");
     }
   }
 }
@@ -0,0 +1,190 @@
+package filters.demo.activities;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Saves a still that was rendered by {@link FilterGLRenderer}, so the file matches the preview.
+ *
+ * <p>Strips arrive on the GL thread and are encoded on the save executor. A small pool of
+ * strip buffers bounds the memory in flight; when it is empty the renderer simply retries on its
+ * next frame instead of blocking.
+ */
+final class RenderedImageSaver implements OffscreenCaptureRenderer.StripConsumer {
+
+  private static final String TAG = RenderedImageSaver.class.getSimpleName();
+  private static final int JPEG_QUALITY = 95;
+  private static final int STRIP_BUFFER_COUNT = 2;
+
+  private final Context context;
+  private final Executor saveExecutor;
+  private final boolean isFiltered;
+  private final CaptureTrace trace;
+  private final ArrayBlockingQueue<ByteBuffer> freeStripBuffers =
+      new ArrayBlockingQueue<>(STRIP_BUFFER_COUNT);
+
+  // Only touched by tasks on the save executor, which run one at a time.
+  private int width;
+  private int height;
+  private File outputFile;
+  private OutputStream output;
+  private StripJpegEncoder encoder;
+  private int[] pixels;
+  private boolean failed;
+
+  /**
+   * @param saveExecutor Single threaded executor that encodes and writes the image.
+   * @param isFiltered Whether a look was applied, which decides the file name.
+   * @param trace Trace started when the shutter was pressed.
+   */
+  RenderedImageSaver(
+      Context context, Executor saveExecutor, boolean isFiltered, CaptureTrace trace) {
+    this.context = context;
+    this.saveExecutor = saveExecutor;
+    this.isFiltered = isFiltered;
+    this.trace = trace;
+  }
+
+  @Override
+  public void onCaptureStarted(int width, int height) {
+    int stripBytes =
+        width * OffscreenCaptureRenderer.STRIP_HEIGHT * OffscreenCaptureRenderer.BYTES_PER_PIXEL;
+    for (int i = 0; i < STRIP_BUFFER_COUNT; i++) {
+      freeStripBuffers.add(ByteBuffer.allocateDirect(stripBytes).order(ByteOrder.nativeOrder()));
+    }
+    saveExecutor.execute(() -> open(width, height));
+  }
+
+  @Nullable
+  @Override
+  public ByteBuffer obtainStripBuffer() {
+    return freeStripBuffers.poll();
+  }
+
+  @Override
+  public void onStripReady(ByteBuffer strip, int rowCount) {
+    saveExecutor.execute(() -> {
+      writeStrip(strip, rowCount);
+      freeStripBuffers.add(strip);
+    });
+  }
+
+  @Override
+  public void onCaptureFinished() {
+    saveExecutor.execute(this::close);
+  }
+
+  @Override
+  public void onCaptureFailed() {
+    saveExecutor.execute(
+        () -> {
+          Log.w(TAG, "Rendered capture was dropped.");
+          discard();
+        });
+  }
+
+  private void open(int width, int height) {
+    this.width = width;
+    this.height = height;
+    String uniqueId = UUID.randomUUID().toString();
+    outputFile =
+        isFiltered
+            ? FileUtil.createFilteredFile(uniqueId)
+            : FileUtil.createUnfilteredFile(
+                FileUtil.getProperDirectory(context, /* requiresFilter= */ false), uniqueId);
+    pixels = new int[width * OffscreenCaptureRenderer.STRIP_HEIGHT];
+    try {
+      output = new BufferedOutputStream(new FileOutputStream(outputFile));
+      // The image is rendered upright, so the orientation is always normal.
+      encoder =
+          new StripJpegEncoder(
+              output,
+              width,
+              height,
+              JPEG_QUALITY,
+              StripJpegEncoder.createOrientationExifSegment(/* rotationDegrees= */ 0));
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void writeStrip(ByteBuffer strip, int rowCount) {
+    if (failed) {
+      return;
+    }
+    // RGBA bytes in memory order to ARGB ints.
+    int count = width * rowCount;
+    for (int i = 0; i < count; i++) {
+      int r = strip.get() & 0xFF;
+      int g = strip.get() & 0xFF;
+      int b = strip.get() & 0xFF;
+      strip.get();
+      pixels[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+    try {
+      encoder.writeRows(pixels, /* offset= */ 0, /* stride= */ width, rowCount);
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private void close() {
+    if (failed) {
+      return;
+    }
+    try {
+      encoder.finish();
+      output.close();
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    trace.mark(CaptureTrace.Stage.WRITTEN);
+    Log.d(TAG, "Saved rendered capture " + width + "x" + height + " to " + outputFile);
+    notifyMediaStoreOfNewFile(Uri.fromFile(outputFile));
+    trace.finish();
+  }
+
+  /** Notify MediaStore of the new file, as {@link ImageSaver} does. */
+  @SuppressWarnings("deprecation") // Still delivered while targetSdkVersion is below 29.
+  private void notifyMediaStoreOfNewFile(Uri uri) {
+    context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, uri));
+  }
+
+  private void fail(IOException e) {
+    Log.e(TAG, "Could not save rendered capture.", e);
+    discard();
+  }
+
+  /** Abandons the trace and deletes the partial file, once. */
+  private void discard() {
+    if (failed) {
+      return;
+    }
+    failed = true;
+    trace.abandon();
+    if (output != null) {
+      try {
+        output.close();
+      } catch (IOException ignored) {
+        // Already failing, the partial file is deleted below.
+      }
+    }
+    if (outputFile != null) {
+      outputFile.delete();
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package filters.demo.activities;
+
+import android.opengl.GLES20;
+
+/**
+ * Sharpens with a four neighbour Laplacian. It reads neighbouring pixels of its input, so it
+ * starts a new pass.
+ */
+final class SharpenStage extends GlStage {
+
+  static final String NAME = "sharpen";
+
+  private final float amount;
+  private int amountHandle;
+
+  /**
+   * @param source Contents of {@code stage_sharpen.glsl}.
+   * @param amount 0 leaves the image unchanged, 1 is a strong sharpen.
+   */
+  SharpenStage(String source, float amount) {
+    super(NAME, Kind.SAMPLING, source);
+    this.amount = amount;
+  }
+
+  @Override
+  void onProgramLinked(int program) {
+    amountHandle = GLES20.glGetUniformLocation(program, "u_SharpenAmount");
+  }
+
+  @Override
+  void setUniforms() {
+    GLES20.glUniform1f(amountHandle, amount);
+  }
+}
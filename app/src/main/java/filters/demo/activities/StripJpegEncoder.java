@@ -0,0 +1,538 @@
+package filters.demo.activities;
+
+import android.support.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Baseline JPEG encoder that consumes an image top to bottom in strips of rows.
+ *
+ * <p>Only one 16-row band of YCbCr samples is held at any time, so the heap usage depends on the
+ * image width and not on its height. Output is 4:2:0 subsampled with the standard Annex K tables.
+ */
+public final class StripJpegEncoder {
+
+  /** Height of one 4:2:0 MCU row. Strips of any height are accepted, this is the internal band. */
+  public static final int BAND_HEIGHT = 16;
+
+  private static final int[] ZIGZAG = {
+    0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27,
+    20, 13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51, 58,
+    59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63,
+  };
+  private static final int[] LUMINANCE_QUANTIZATION = {
+    16, 11, 10, 16, 24, 40, 51, 61, 12, 12, 14, 19, 26, 58, 60, 55, 14, 13, 16, 24, 40, 57, 69,
+    56, 14, 17, 22, 29, 51, 87, 80, 62, 18, 22, 37, 56, 68, 109, 103, 77, 24, 35, 55, 64, 81, 104,
+    113, 92, 49, 64, 78, 87, 103, 121, 120, 101, 72, 92, 95, 98, 112, 100, 103, 99,
+  };
+  private static final int[] CHROMINANCE_QUANTIZATION = {
+    17, 18, 24, 47, 99, 99, 99, 99, 18, 21, 26, 66, 99, 99, 99, 99, 24, 26, 56, 99, 99, 99, 99,
+    99, 47, 66, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99, 99,
+  };
+  private static final float[] AAN_SCALE = {
+    1.0f, 1.387039845f, 1.306562965f, 1.175875602f, 1.0f, 0.785694958f, 0.541196100f, 0.275899379f,
+  };
+
+  private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+  private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+  private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+  private static final int[] AC_LUMINANCE_BITS =
+      {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+  private static final int[] AC_LUMINANCE_VALUES = {
+    0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61,
+    0x07, 0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52,
+    0xd1, 0xf0, 0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25,
+    0x26, 0x27, 0x28, 0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45,
+    0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64,
+    0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83,
+    0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99,
+    0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+    0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3,
+    0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8,
+    0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+  };
+  private static final int[] AC_CHROMINANCE_BITS =
+      {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+  private static final int[] AC_CHROMINANCE_VALUES = {
+    0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61,
+    0x71, 0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33,
+    0x52, 0xf0, 0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18,
+    0x19, 0x1a, 0x26, 0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44,
+    0x45, 0x46, 0x47, 0x48, 0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63,
+    0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a,
+    0x82, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97,
+    0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+    0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca,
+    0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7,
+    0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8, 0xf9, 0xfa,
+  };
+
+  private final OutputStream output;
+  private final int width;
+  private final int height;
+  /** Width rounded up to a whole number of MCUs. */
+  private final int paddedWidth;
+  private final int[] luminanceTable = new int[64];
+  private final int[] chrominanceTable = new int[64];
+  private final float[] luminanceDivisors = new float[64];
+  private final float[] chrominanceDivisors = new float[64];
+  private final HuffmanTable dcLuminance = new HuffmanTable(DC_LUMINANCE_BITS, DC_VALUES);
+  private final HuffmanTable acLuminance =
+      new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+  private final HuffmanTable dcChrominance = new HuffmanTable(DC_CHROMINANCE_BITS, DC_VALUES);
+  private final HuffmanTable acChrominance =
+      new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+  // One band of level-shifted samples. Chroma is stored at full resolution and averaged per MCU.
+  private final float[] bandY;
+  private final float[] bandCb;
+  private final float[] bandCr;
+  private final float[] block = new float[64];
+  private final int[] quantized = new int[64];
+  private final byte[] buffer = new byte[64 * 1024];
+
+  private int bufferPosition;
+  private int bitBuffer;
+  private int bitCount;
+  private int bandRows;
+  private int rowsWritten;
+  private int previousDcY;
+  private int previousDcCb;
+  private int previousDcCr;
+  private boolean finished;
+
+  /**
+   * Creates an encoder and writes the JPEG headers.
+   *
+   * @param output Destination stream. It is not closed by {@link #finish()}.
+   * @param quality Quality in 1..100 using the IJG scaling of the Annex K tables.
+   * @param exifSegment A complete APP1 segment (including marker) to copy into the output, or
+   *     null to write a plain JFIF header.
+   */
+  public StripJpegEncoder(
+      OutputStream output, int width, int height, int quality, @Nullable byte[] exifSegment)
+      throws IOException {
+    if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF) {
+      throw new IllegalArgumentException("Unsupported JPEG size " + width + "x" + height);
+    }
+    this.output = output;
+    this.width = width;
+    this.height = height;
+    paddedWidth = (width + BAND_HEIGHT - 1) / BAND_HEIGHT * BAND_HEIGHT;
+    bandY = new float[paddedWidth * BAND_HEIGHT];
+    bandCb = new float[paddedWidth * BAND_HEIGHT];
+    bandCr = new float[paddedWidth * BAND_HEIGHT];
+    initQuantizationTables(quality);
+    writeHeaders(exifSegment);
+  }
+
+  /**
+   * Encodes the next {@code rowCount} rows of ARGB pixels.
+   *
+   * @param pixels Source pixels, alpha is ignored.
+   * @param offset Index of the first pixel of the first row.
+   * @param stride Distance in pixels between the starts of two rows.
+   */
+  public void writeRows(int[] pixels, int offset, int stride, int rowCount) throws IOException {
+    if (finished || rowsWritten + bandRows + rowCount > height) {
+      throw new IllegalStateException("More rows written than the declared height " + height);
+    }
+    for (int row = 0; row < rowCount; row++) {
+      convertRow(pixels, offset + row * stride, bandRows);
+      if (++bandRows == BAND_HEIGHT) {
+        encodeBand();
+      }
+    }
+  }
+
+  /** Pads and flushes the last band, then writes the end of image marker. */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    if (rowsWritten + bandRows != height) {
+      throw new IllegalStateException(
+          "Only " + (rowsWritten + bandRows) + " of " + height + " rows were written");
+    }
+    if (bandRows > 0) {
+      // Replicate the last row so the padding does not bleed a hard edge into the image.
+      int lastRow = (bandRows - 1) * paddedWidth;
+      for (int row = bandRows; row < BAND_HEIGHT; row++) {
+        System.arraycopy(bandY, lastRow, bandY, row * paddedWidth, paddedWidth);
+        System.arraycopy(bandCb, lastRow, bandCb, row * paddedWidth, paddedWidth);
+        System.arraycopy(bandCr, lastRow, bandCr, row * paddedWidth, paddedWidth);
+      }
+      encodeBand();
+    }
+    // Pad the final byte with 1 bits as required by the spec.
+    if (bitCount > 0) {
+      writeBits(0xFF, 8 - bitCount);
+    }
+    writeMarker(0xD9);
+    flushBuffer();
+    output.flush();
+    finished = true;
+  }
+
+  /**
+   * Returns the first APP1 (EXIF) segment of {@code jpeg}, including its marker, or null if there
+   * is none before the start of the image data.
+   */
+  @Nullable
+  public static byte[] extractExifSegment(byte[] jpeg) {
+    if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+      return null;
+    }
+    int position = 2;
+    while (position + 4 <= jpeg.length && (jpeg[position] & 0xFF) == 0xFF) {
+      int marker = jpeg[position + 1] & 0xFF;
+      int length = ((jpeg[position + 2] & 0xFF) << 8) | (jpeg[position + 3] & 0xFF);
+      if (marker == 0xDA || position + 2 + length > jpeg.length) {
+        return null;
+      }
+      if (marker == 0xE1) {
+        byte[] segment = new byte[length + 2];
+        System.arraycopy(jpeg, position, segment, 0, segment.length);
+        return segment;
+      }
+      position += 2 + length;
+    }
+    return null;
+  }
+
+  /**
+   * Builds a minimal APP1 segment whose only EXIF tag is the orientation, for images that are
+   * encoded in sensor orientation.
+   *
+   * @param rotationDegrees Clockwise rotation that makes the image upright: 0, 90, 180 or 270.
+   */
+  public static byte[] createOrientationExifSegment(int rotationDegrees) {
+    int orientation;
+    switch (rotationDegrees) {
+      case 0:
+        orientation = 1;
+        break;
+      case 90:
+        orientation = 6;
+        break;
+      case 180:
+        orientation = 3;
+        break;
+      case 270:
+        orientation = 8;
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported rotation " + rotationDegrees);
+    }
+    return new byte[] {
+      (byte) 0xFF, (byte) 0xE1, 0, 34, // APP1 marker and length.
+      'E', 'x', 'i', 'f', 0, 0,
+      'M', 'M', 0, 42, 0, 0, 0, 8, // Big endian TIFF header, IFD0 at offset 8.
+      0, 1, // One entry.
+      0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0, // Orientation, SHORT, 1 value.
+      0, 0, 0, 0, // No next IFD.
+    };
+  }
+
+  private void convertRow(int[] pixels, int offset, int bandRow) {
+    int rowStart = bandRow * paddedWidth;
+    for (int x = 0; x < paddedWidth; x++) {
+      int color = pixels[offset + Math.min(x, width - 1)];
+      float r = (color >> 16) & 0xFF;
+      float g = (color >> 8) & 0xFF;
+      float b = color & 0xFF;
+      bandY[rowStart + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+      bandCb[rowStart + x] = -0.168736f * r - 0.331264f * g + 0.5f * b;
+      bandCr[rowStart + x] = 0.5f * r - 0.418688f * g - 0.081312f * b;
+    }
+  }
+
+  private void encodeBand() throws IOException {
+    for (int x = 0; x < paddedWidth; x += BAND_HEIGHT) {
+      previousDcY = encodeLumaBlock(x, 0, previousDcY);
+      previousDcY = encodeLumaBlock(x + 8, 0, previousDcY);
+      previousDcY = encodeLumaBlock(x, 8, previousDcY);
+      previousDcY = encodeLumaBlock(x + 8, 8, previousDcY);
+      previousDcCb = encodeChromaBlock(bandCb, x, previousDcCb);
+      previousDcCr = encodeChromaBlock(bandCr, x, previousDcCr);
+    }
+    rowsWritten += bandRows;
+    bandRows = 0;
+  }
+
+  private int encodeLumaBlock(int left, int top, int previousDc) throws IOException {
+    for (int y = 0; y < 8; y++) {
+      System.arraycopy(bandY, (top + y) * paddedWidth + left, block, y * 8, 8);
+    }
+    return encodeBlock(luminanceDivisors, dcLuminance, acLuminance, previousDc);
+  }
+
+  private int encodeChromaBlock(float[] band, int left, int previousDc) throws IOException {
+    for (int y = 0; y < 8; y++) {
+      int top = (2 * y) * paddedWidth + left;
+      int bottom = top + paddedWidth;
+      for (int x = 0; x < 8; x++) {
+        int column = 2 * x;
+        block[y * 8 + x] =
+            0.25f
+                * (band[top + column]
+                    + band[top + column + 1]
+                    + band[bottom + column]
+                    + band[bottom + column + 1]);
+      }
+    }
+    return encodeBlock(chrominanceDivisors, dcChrominance, acChrominance, previousDc);
+  }
+
+  /** Transforms, quantizes and entropy codes {@link #block}. Returns the new DC predictor. */
+  private int encodeBlock(
+      float[] divisors, HuffmanTable dcTable, HuffmanTable acTable, int previousDc)
+      throws IOException {
+    forwardDct(block);
+    for (int i = 0; i < 64; i++) {
+      quantized[i] = Math.round(block[ZIGZAG[i]] * divisors[ZIGZAG[i]]);
+    }
+
+    int dc = quantized[0];
+    int difference = dc - previousDc;
+    int category = bitLength(difference);
+    writeBits(dcTable.codes[category], dcTable.lengths[category]);
+    writeAmplitude(difference, category);
+
+    int run = 0;
+    for (int i = 1; i < 64; i++) {
+      int coefficient = quantized[i];
+      if (coefficient == 0) {
+        run++;
+        continue;
+      }
+      while (run > 15) {
+        writeBits(acTable.codes[0xF0], acTable.lengths[0xF0]);
+        run -= 16;
+      }
+      int size = bitLength(coefficient);
+      int symbol = (run << 4) | size;
+      writeBits(acTable.codes[symbol], acTable.lengths[symbol]);
+      writeAmplitude(coefficient, size);
+      run = 0;
+    }
+    if (run > 0) {
+      writeBits(acTable.codes[0x00], acTable.lengths[0x00]);
+    }
+    return dc;
+  }
+
+  private void writeAmplitude(int value, int size) throws IOException {
+    if (size == 0) {
+      return;
+    }
+    if (value < 0) {
+      value += (1 << size) - 1;
+    }
+    writeBits(value & ((1 << size) - 1), size);
+  }
+
+  private static int bitLength(int value) {
+    return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+  }
+
+  /** Arai-Agui-Nakajima forward DCT. Output is scaled, which is folded into the divisors. */
+  private static void forwardDct(float[] data) {
+    for (int pass = 0; pass < 2; pass++) {
+      int step = pass == 0 ? 1 : 8;
+      int lineStep = pass == 0 ? 8 : 1;
+      for (int line = 0; line < 8; line++) {
+        int p = line * lineStep;
+        float tmp0 = data[p] + data[p + 7 * step];
+        float tmp7 = data[p] - data[p + 7 * step];
+        float tmp1 = data[p + step] + data[p + 6 * step];
+        float tmp6 = data[p + step] - data[p + 6 * step];
+        float tmp2 = data[p + 2 * step] + data[p + 5 * step];
+        float tmp5 = data[p + 2 * step] - data[p + 5 * step];
+        float tmp3 = data[p + 3 * step] + data[p + 4 * step];
+        float tmp4 = data[p + 3 * step] - data[p + 4 * step];
+
+        float tmp10 = tmp0 + tmp3;
+        float tmp13 = tmp0 - tmp3;
+        float tmp11 = tmp1 + tmp2;
+        float tmp12 = tmp1 - tmp2;
+        data[p] = tmp10 + tmp11;
+        data[p + 4 * step] = tmp10 - tmp11;
+        float z1 = (tmp12 + tmp13) * 0.707106781f;
+        data[p + 2 * step] = tmp13 + z1;
+        data[p + 6 * step] = tmp13 - z1;
+
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+        float z5 = (tmp10 - tmp12) * 0.382683433f;
+        float z2 = 0.541196100f * tmp10 + z5;
+        float z4 = 1.306562965f * tmp12 + z5;
+        float z3 = tmp11 * 0.707106781f;
+        float z11 = tmp7 + z3;
+        float z13 = tmp7 - z3;
+        data[p + 5 * step] = z13 + z2;
+        data[p + 3 * step] = z13 - z2;
+        data[p + step] = z11 + z4;
+        data[p + 7 * step] = z11 - z4;
+      }
+    }
+  }
+
+  private void initQuantizationTables(int quality) {
+    quality = Math.max(1, Math.min(100, quality));
+    int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+    for (int i = 0; i < 64; i++) {
+      luminanceTable[i] = clampQuantizer((LUMINANCE_QUANTIZATION[i] * scale + 50) / 100);
+      chrominanceTable[i] = clampQuantizer((CHROMINANCE_QUANTIZATION[i] * scale + 50) / 100);
+    }
+    for (int row = 0; row < 8; row++) {
+      for (int column = 0; column < 8; column++) {
+        int i = row * 8 + column;
+        float aan = AAN_SCALE[row] * AAN_SCALE[column] * 8f;
+        luminanceDivisors[i] = 1f / (luminanceTable[i] * aan);
+        chrominanceDivisors[i] = 1f / (chrominanceTable[i] * aan);
+      }
+    }
+  }
+
+  private static int clampQuantizer(int value) {
+    return Math.max(1, Math.min(255, value));
+  }
+
+  private void writeHeaders(@Nullable byte[] exifSegment) throws IOException {
+    writeMarker(0xD8);
+    if (exifSegment != null) {
+      for (byte b : exifSegment) {
+        writeByte(b & 0xFF);
+      }
+    } else {
+      writeMarker(0xE0);
+      writeShort(16);
+      writeByte('J');
+      writeByte('F');
+      writeByte('I');
+      writeByte('F');
+      writeByte(0);
+      writeShort(0x0101); // Version 1.1.
+      writeByte(0); // No density units.
+      writeShort(1);
+      writeShort(1);
+      writeShort(0); // No thumbnail.
+    }
+
+    writeMarker(0xDB);
+    writeShort(2 + 2 * 65);
+    writeByte(0);
+    for (int i = 0; i < 64; i++) {
+      writeByte(luminanceTable[ZIGZAG[i]]);
+    }
+    writeByte(1);
+    for (int i = 0; i < 64; i++) {
+      writeByte(chrominanceTable[ZIGZAG[i]]);
+    }
+
+    writeMarker(0xC0);
+    writeShort(17);
+    writeByte(8);
+    writeShort(height);
+    writeShort(width);
+    writeByte(3);
+    writeComponent(/* id= */ 1, /* sampling= */ 0x22, /* table= */ 0);
+    writeComponent(/* id= */ 2, /* sampling= */ 0x11, /* table= */ 1);
+    writeComponent(/* id= */ 3, /* sampling= */ 0x11, /* table= */ 1);
+
+    writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_VALUES);
+    writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_VALUES);
+    writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    writeMarker(0xDA);
+    writeShort(12);
+    writeByte(3);
+    writeByte(1);
+    writeByte(0x00);
+    writeByte(2);
+    writeByte(0x11);
+    writeByte(3);
+    writeByte(0x11);
+    writeByte(0); // Spectral selection start.
+    writeByte(63); // Spectral selection end.
+    writeByte(0); // Successive approximation.
+  }
+
+  private void writeComponent(int id, int sampling, int table) throws IOException {
+    writeByte(id);
+    writeByte(sampling);
+    writeByte(table);
+  }
+
+  private void writeHuffmanTable(int classAndId, int[] bits, int[] values) throws IOException {
+    writeMarker(0xC4);
+    writeShort(2 + 1 + 16 + values.length);
+    writeByte(classAndId);
+    for (int count : bits) {
+      writeByte(count);
+    }
+    for (int value : values) {
+      writeByte(value);
+    }
+  }
+
+  private void writeMarker(int marker) throws IOException {
+    writeByte(0xFF);
+    writeByte(marker);
+  }
+
+  private void writeShort(int value) throws IOException {
+    writeByte(value >> 8);
+    writeByte(value);
+  }
+
+  /** Appends entropy coded bits, stuffing a zero byte after every 0xFF. */
+  private void writeBits(int bits, int length) throws IOException {
+    bitBuffer = (bitBuffer << length) | (bits & ((1 << length) - 1));
+    bitCount += length;
+    while (bitCount >= 8) {
+      int value = (bitBuffer >> (bitCount - 8)) & 0xFF;
+      writeByte(value);
+      if (value == 0xFF) {
+        writeByte(0);
+      }
+      bitCount -= 8;
+    }
+  }
+
+  private void writeByte(int value) throws IOException {
+    if (bufferPosition == buffer.length) {
+      flushBuffer();
+    }
+    buffer[bufferPosition++] = (byte) value;
+  }
+
+  private void flushBuffer() throws IOException {
+    output.write(buffer, 0, bufferPosition);
+    bufferPosition = 0;
+  }
+
+  /** Canonical Huffman codes derived from a BITS/HUFFVAL table pair. */
+  private static final class HuffmanTable {
+    final int[] codes = new int[256];
+    final int[] lengths = new int[256];
+
+    HuffmanTable(int[] bits, int[] values) {
+      int code = 0;
+      int k = 0;
+      for (int length = 1; length <= 16; length++) {
+        for (int i = 0; i < bits[length - 1]; i++) {
+          codes[values[k]] = code;
+          lengths[values[k]] = length;
+          code++;
+          k++;
+        }
+        code <<= 1;
+      }
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package filters.demo.activities;
+
+import android.opengl.GLES20;
+
+/** Darkens the image towards its corners. Per pixel, so it is fused into the pass before it. */
+final class VignetteStage extends GlStage {
+
+  static final String NAME = "vignette";
+
+  private final float strength;
+  private int strengthHandle;
+
+  /**
+   * @param source Contents of {@code stage_vignette.glsl}.
+   * @param strength 0 leaves the image unchanged, 1 turns the corners black.
+   */
+  VignetteStage(String source, float strength) {
+    super(NAME, Kind.PER_PIXEL, source);
+    this.strength = strength;
+  }
+
+  @Override
+  void onProgramLinked(int program) {
+    strengthHandle = GLES20.glGetUniformLocation(program, "u_VignetteStrength");
+  }
+
+  @Override
+  void setUniforms() {
+    GLES20.glUniform1f(strengthHandle, strength);
+  }
+}
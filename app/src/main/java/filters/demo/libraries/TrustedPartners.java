@@ -7,7 +7,6 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ProviderInfo;
 import android.text.TextUtils;
 import android.util.Log;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Set;
 /**
@@ -22,10 +21,22 @@ public final class TrustedPartners {
   private static final String HASH_ALGORITHM = "SHA1";
   private final Set<String> trustedPartnerCertificateHashes;
   private final PackageManager packageManager;
+  /** Package of the consumer if it trusts itself, else null. */
+  private final String trustedOwnPackageName;
 
   public TrustedPartners(Context context, Set<String> trustedPartnerCertificateHashes) {
+    this(context, trustedPartnerCertificateHashes, /* trustsOwnPackage= */ false);
+  }
+
+  /**
+   * @param trustsOwnPackage Whether the package of {@code context} is trusted whatever its signing
+   *     certificate, for consumers that stand in for a partner themselves.
+   */
+  public TrustedPartners(
+      Context context, Set<String> trustedPartnerCertificateHashes, boolean trustsOwnPackage) {
     packageManager = context.getPackageManager();
     this.trustedPartnerCertificateHashes = trustedPartnerCertificateHashes;
+    trustedOwnPackageName = trustsOwnPackage ? context.getPackageName() : null;
   }
 
   /**
@@ -33,7 +44,8 @@ public final class TrustedPartners {
    * the {@link Set} of trusted signing certificate hashes passed to the constructor.
    *
    * @param packageName The name of the package to check (e.g. com.example.foo)
-   * @return true if the package signing certificate matches a trusted certificate, else false
+   * @return true if the package signing certificate matches a trusted certificate or the package
+   *     is the consumer's own and it trusts itself, else false
    */
   public boolean isTrustedApplication(String packageName) {
     if (TextUtils.isEmpty(packageName)) {
@@ -42,6 +54,9 @@ public final class TrustedPartners {
       }
       return false;
     }
+    if (packageName.equals(trustedOwnPackageName)) {
+      return true;
+    }
     PackageInfo info;
     try {
       info = packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES);
@@ -61,9 +76,8 @@ public final class TrustedPartners {
       return false;
     }
     try {
-      MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
-      digest.update(info.signatures[0].toByteArray());
-      String certHash = HexConvert.bytesToHex(digest.digest());
+      String certHash =
+          CertificateHashes.hash(HASH_ALGORITHM, info.signatures[0].toByteArray());
       return trustedPartnerCertificateHashes.contains(certHash);
     } catch (NoSuchAlgorithmException e) {
       if (Log.isLoggable(TAG, Log.ERROR)) {
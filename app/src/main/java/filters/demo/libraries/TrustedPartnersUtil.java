@@ -1,5 +1,6 @@
 package filters.demo.libraries;
 
+import filters.demo.BuildConfig;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -19,4 +20,12 @@ public final class TrustedPartnersUtil {
   public static Set<String> getTrustedPartnerCertificateHashes() {
     return new HashSet<>(Arrays.asList(PHOTOS_DEV_CERTIFICATE, PHOTOS_DEBUG_CERTIFICATE));
   }
+
+  /**
+   * Whether partner calls go to the LocalLutProvider of this app instead of Photos, as they do in
+   * debug builds made with -PlocalPartner. This app is then its own trusted partner.
+   */
+  public static boolean isLocalPartnerEnabled() {
+    return BuildConfig.LOCAL_PARTNER;
+  }
 }
@@ -0,0 +1,297 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.media.Image;
+import android.os.Bundle;
+import android.os.Environment;
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Throughput of the capture save path: {@link SyntheticCaptures} fed through {@link ImageSaver},
+ * which copies the plane, writes the file, hands it to {@link LocalLutProvider} in place of Photos
+ * if a look is selected and notifies the media scanner. The provider is configured to copy the
+ * capture instead of filtering it, so the numbers are those of the app's own I/O plus the
+ * configured partner latency.
+ *
+ * <p>Shots are scheduled at a fixed rate and their latency runs from the scheduled time to the
+ * notification, so a saver that falls behind shows up in the tail instead of slowing the schedule.
+ * Configured with system properties, passed through Gradle as {@code -Pcapture.<name>=<value>}:
+ *
+ * <ul>
+ *   <li>{@code capture.payloadBytes}: size of each JPEG, 4 MiB by default.
+ *   <li>{@code capture.shotsPerSecond}: rate of the schedule, 0 (the default) for back to back.
+ *   <li>{@code capture.shots}: shots per run, 40 by default.
+ *   <li>{@code capture.soakSeconds}: length of the soak, which is skipped if 0 (the default).
+ *   <li>{@code capture.partnerLatencyMillis}: latency of every partner call, 0 by default.
+ * </ul>
+ *
+ * <p>Time is taken from {@link System#nanoTime}, as the clock of {@code SystemClock} does not move
+ * under Robolectric. The stage timings of {@link CaptureTrace} read 0 here for the same reason.
+ * Filtering is left out on both paths, as the synthetic payloads do not decode.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CaptureSaveBenchmark {
+
+  private static final int PAYLOAD_BYTES = Integer.getInteger("capture.payloadBytes", 4 << 20);
+  private static final double SHOTS_PER_SECOND =
+      Double.parseDouble(System.getProperty("capture.shotsPerSecond", "0"));
+  private static final int SHOTS = Integer.getInteger("capture.shots", 40);
+  private static final int SOAK_SECONDS = Integer.getInteger("capture.soakSeconds", 0);
+  private static final long PARTNER_LATENCY_MILLIS =
+      Long.getLong("capture.partnerLatencyMillis", 0);
+
+  /** Shots before measuring, so class loading and JIT do not end up in the numbers. */
+  private static final int WARMUP_SHOTS = 5;
+  private static final int SOAK_WINDOW_SECONDS = 10;
+  /** How much the heap may grow between the first and the last window of a soak. */
+  private static final long MAX_SOAK_HEAP_GROWTH_BYTES = 32L << 20;
+
+  private final AtomicInteger notifiedCount = new AtomicInteger();
+  private final ExecutorService cleaner = Executors.newSingleThreadExecutor();
+  private Context context;
+  private SyntheticCaptures captures;
+  private int savedVersion;
+
+  @Before
+  public void setUp() {
+    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM).mkdirs();
+    // Counts the notifications and deletes the captures, as the media scanner would be too late
+    // to keep a soak from filling the disk.
+    context =
+        new ContextWrapper(RuntimeEnvironment.application) {
+          @Override
+          public void sendBroadcast(Intent intent) {
+            notifiedCount.incrementAndGet();
+            File file = new File(intent.getData().getPath());
+            cleaner.execute(file::delete);
+          }
+        };
+    Robolectric.buildContentProvider(LocalLutProvider.class).create(LocalLutProvider.AUTHORITY);
+    Bundle settings = new Bundle();
+    settings.putBoolean(LocalLutProvider.COPY_ONLY_KEY_NAME, true);
+    settings.putLong(LocalLutProvider.LATENCY_MILLIS_KEY_NAME, PARTNER_LATENCY_MILLIS);
+    context
+        .getContentResolver()
+        .call(
+            LocalLutProvider.AUTHORITY_URI,
+            LocalLutProvider.CONFIGURE_METHOD_NAME,
+            /* arg= */ null,
+            settings);
+    PartnerContentProviderCaller.setPartnerAuthorityForTesting(LocalLutProvider.AUTHORITY_URI);
+    savedVersion = DemoActivity.version;
+    DemoActivity.version = FilterPathSelector.MINIMUM_APPLY_FILTER_VERSION;
+    captures = new SyntheticCaptures(PAYLOAD_BYTES);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    PartnerContentProviderCaller.setPartnerAuthorityForTesting(null);
+    DemoActivity.version = savedVersion;
+    cleaner.shutdown();
+    cleaner.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void unfiltered() throws InterruptedException {
+    run("unfiltered", /* lut= */ null);
+  }
+
+  @Test
+  public void filteredByPhotos() throws InterruptedException {
+    run("photos", createLook());
+  }
+
+  @Test
+  public void soak() throws InterruptedException {
+    assumeTrue(SOAK_SECONDS > 0);
+    LookupTable lut = createLook();
+    runShots(lut, WARMUP_SHOTS, SHOTS_PER_SECOND);
+
+    int windows = Math.max(2, SOAK_SECONDS / SOAK_WINDOW_SECONDS);
+    // Back to back, a window is as many shots as the warm up managed in its time.
+    double windowRate = SHOTS_PER_SECOND > 0 ? SHOTS_PER_SECOND : estimateRate(lut);
+    int windowShots = Math.max(1, (int) (windowRate * SOAK_WINDOW_SECONDS));
+    Stats first = null;
+    Stats last = null;
+    for (int i = 0; i < windows; i++) {
+      last = runShots(lut, windowShots, SHOTS_PER_SECOND);
+      print("soak window " + i, last);
+      if (first == null) {
+        first = last;
+      }
+    }
+    long heapGrowth = last.heapUsedBytes - first.heapUsedBytes;
+    assertTrue(
+        "Heap grew by " + heapGrowth / 1024 + " KiB during the soak.",
+        heapGrowth < MAX_SOAK_HEAP_GROWTH_BYTES);
+    long p99Millis = TimeUnit.NANOSECONDS.toMillis(last.latency.getValueAtPercentile(99));
+    long firstP99Millis = TimeUnit.NANOSECONDS.toMillis(first.latency.getValueAtPercentile(99));
+    assertTrue(
+        "p99 went from " + firstP99Millis + " ms to " + p99Millis + " ms during the soak.",
+        p99Millis <= 2 * firstP99Millis + 50);
+  }
+
+  private void run(String name, LookupTable lut) throws InterruptedException {
+    runShots(lut, WARMUP_SHOTS, /* shotsPerSecond= */ 0);
+    Stats stats = runShots(lut, SHOTS, SHOTS_PER_SECOND);
+    print(name, stats);
+    if (SHOTS_PER_SECOND > 0) {
+      assertTrue(
+          String.format(
+              Locale.US,
+              "Sustained %.1f of %.1f shots/s.",
+              stats.getShotsPerSecond(),
+              SHOTS_PER_SECOND),
+          stats.getShotsPerSecond() >= 0.95 * SHOTS_PER_SECOND);
+    }
+  }
+
+  private double estimateRate(LookupTable lut) throws InterruptedException {
+    return runShots(lut, WARMUP_SHOTS, /* shotsPerSecond= */ 0).getShotsPerSecond();
+  }
+
+  /**
+   * Saves {@code shots} captures on a saver thread of its own, as {@link CameraModule} does, and
+   * asserts that every one of them reached the media scanner.
+   */
+  private Stats runShots(LookupTable lut, int shots, double shotsPerSecond)
+      throws InterruptedException {
+    FilterPathSelector selector = new FilterPathSelector(FilterPathSelector.Policy.PREFER_PHOTOS);
+    ExecutorService saver = Executors.newSingleThreadExecutor(r -> new Thread(r, "ImageSaver"));
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Stats stats = new Stats();
+    int notifiedBefore = notifiedCount.get();
+    long gcCountBefore = getGcCount();
+    long gcMillisBefore = getGcMillis();
+
+    long periodNanos = shotsPerSecond > 0 ? (long) (1e9 / shotsPerSecond) : 0;
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < shots; i++) {
+      long scheduledNanos = startNanos + i * periodNanos;
+      while (System.nanoTime() < scheduledNanos) {
+        LockSupport.parkNanos(scheduledNanos - System.nanoTime());
+      }
+      long captureNanos = periodNanos > 0 ? scheduledNanos : System.nanoTime();
+      // Blocks while the saver holds every image, like the camera would.
+      Image image = captures.acquire();
+      ImageSaver imageSaver =
+          new ImageSaver(context, image, lut, selector, /* rotationDegrees= */ 0,
+              CaptureTrace.start());
+      saver.execute(
+          () -> {
+            long allocatedBefore = getAllocatedBytes(threads);
+            imageSaver.run();
+            long nowNanos = System.nanoTime();
+            stats.allocatedBytes.addAndGet(getAllocatedBytes(threads) - allocatedBefore);
+            stats.latency.record(nowNanos - captureNanos);
+            stats.endNanos = nowNanos;
+          });
+    }
+    saver.shutdown();
+    assertTrue(saver.awaitTermination(5, TimeUnit.MINUTES));
+
+    stats.shots = shots;
+    stats.elapsedNanos = stats.endNanos - startNanos;
+    stats.gcCount = getGcCount() - gcCountBefore;
+    stats.gcMillis = getGcMillis() - gcMillisBefore;
+    System.gc();
+    stats.heapUsedBytes = getHeapUsedBytes();
+    assertEquals(shots, notifiedCount.get() - notifiedBefore);
+    return stats;
+  }
+
+  private static void print(String name, Stats stats) {
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%s: %d shots of %d KiB, %.1f shots/s, p50 %d ms, p99 %d ms, max %d ms,"
+                + " %d KiB allocated per shot, %d GCs (%d ms), %d KiB heap after GC",
+            name,
+            stats.shots,
+            PAYLOAD_BYTES / 1024,
+            stats.getShotsPerSecond(),
+            TimeUnit.NANOSECONDS.toMillis(stats.latency.getValueAtPercentile(50)),
+            TimeUnit.NANOSECONDS.toMillis(stats.latency.getValueAtPercentile(99)),
+            TimeUnit.NANOSECONDS.toMillis(stats.latency.getMaxNanos()),
+            stats.allocatedBytes.get() / stats.shots / 1024,
+            stats.gcCount,
+            stats.gcMillis,
+            stats.heapUsedBytes / 1024));
+  }
+
+  /** Bytes the current thread allocated so far, or 0 if the JVM does not count them. */
+  private static long getAllocatedBytes(ThreadMXBean threads) {
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return 0;
+    }
+    return ((com.sun.management.ThreadMXBean) threads)
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long getGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, collector.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long getGcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, collector.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static long getHeapUsedBytes() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  /** A look with an id from the catalog of {@link LocalLutProvider}, which looks it up. */
+  private static LookupTable createLook() {
+    return LookupTable.bake(
+        "Invert", /* id= */ 1, color -> ~color & 0xFFFFFF, LookupTable.MIN_LATTICE_SIZE);
+  }
+
+  /** What one run measured. */
+  private static final class Stats {
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong allocatedBytes = new AtomicLong();
+    volatile long endNanos;
+    int shots;
+    long elapsedNanos;
+    long gcCount;
+    long gcMillis;
+    long heapUsedBytes;
+
+    double getShotsPerSecond() {
+      return elapsedNanos > 0 ? shots * 1e9 / elapsedNanos : 0;
+    }
+  }
+}
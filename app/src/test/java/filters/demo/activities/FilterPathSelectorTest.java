@@ -0,0 +1,159 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+
+import filters.demo.activities.FilterPathSelector.Path;
+import filters.demo.activities.FilterPathSelector.Policy;
+import org.junit.Test;
+
+/** Tests for {@link FilterPathSelector}. */
+public class FilterPathSelectorTest {
+
+  private static final int USABLE_VERSION = FilterPathSelector.MINIMUM_APPLY_FILTER_VERSION;
+  private static final int OLD_VERSION = FilterPathSelector.MINIMUM_APPLY_FILTER_VERSION - 1;
+
+  @Test
+  public void choosePath_noLocalLut_alwaysPhotos() {
+    for (Policy policy : Policy.values()) {
+      FilterPathSelector selector = new FilterPathSelector(policy);
+      assertEquals(Path.PHOTOS, choose(selector, USABLE_VERSION, /* hasLocalLut= */ false));
+      assertEquals(Path.PHOTOS, choose(selector, OLD_VERSION, /* hasLocalLut= */ false));
+    }
+  }
+
+  @Test
+  public void choosePath_photosUnusable_alwaysLocal() {
+    for (Policy policy : Policy.values()) {
+      FilterPathSelector selector = new FilterPathSelector(policy);
+      assertEquals(Path.LOCAL, choose(selector, OLD_VERSION, /* hasLocalLut= */ true));
+      assertEquals(Path.LOCAL, choose(selector, -1, /* hasLocalLut= */ true));
+    }
+  }
+
+  @Test
+  public void choosePath_localOnlyLook_neverPhotos() {
+    for (Policy policy : Policy.values()) {
+      FilterPathSelector selector = new FilterPathSelector(policy);
+      // Photos is untried, which the fastest policy would try first.
+      assertEquals(policy.toString(), Path.LOCAL, chooseLocalOnly(selector));
+      // Then Photos has been the faster path.
+      selector.recordLatency(Path.PHOTOS, 100);
+      selector.recordLatency(Path.LOCAL, 200);
+      for (int i = 0; i < 2 * FilterPathSelector.RETRY_AFTER_CAPTURES; i++) {
+        assertEquals(policy.toString(), Path.LOCAL, chooseLocalOnly(selector));
+      }
+    }
+  }
+
+  @Test
+  public void choosePath_alwaysLocal() {
+    FilterPathSelector selector = new FilterPathSelector(Policy.ALWAYS_LOCAL);
+
+    assertEquals(Path.LOCAL, choose(selector, USABLE_VERSION, /* hasLocalLut= */ true));
+  }
+
+  @Test
+  public void choosePath_preferPhotos_evenAfterFailure() {
+    FilterPathSelector selector = new FilterPathSelector(Policy.PREFER_PHOTOS);
+    selector.recordFailure(Path.PHOTOS);
+
+    assertEquals(Path.PHOTOS, choose(selector, USABLE_VERSION, /* hasLocalLut= */ true));
+  }
+
+  @Test
+  public void choosePath_fastestObserved_triesBothThenPicksFaster() {
+    FilterPathSelector selector = new FilterPathSelector(Policy.FASTEST_OBSERVED);
+
+    assertEquals(Path.PHOTOS, choose(selector));
+    selector.recordLatency(Path.PHOTOS, 200);
+    assertEquals(Path.LOCAL, choose(selector));
+    selector.recordLatency(Path.LOCAL, 100);
+    assertEquals(Path.LOCAL, choose(selector));
+  }
+
+  @Test
+  public void choosePath_fastestObserved_followsMovingAverage() {
+    FilterPathSelector selector = new FilterPathSelector(Policy.FASTEST_OBSERVED);
+    selector.recordLatency(Path.PHOTOS, 200);
+    selector.recordLatency(Path.LOCAL, 100);
+
+    // One slow run does not outweigh the history, a few do.
+    selector.recordLatency(Path.LOCAL, 300);
+    assertEquals(Path.LOCAL, choose(selector));
+    selector.recordLatency(Path.LOCAL, 300);
+    selector.recordLatency(Path.LOCAL, 300);
+    assertEquals(Path.PHOTOS, choose(selector));
+  }
+
+  @Test
+  public void choosePath_fastestObserved_retriesFailedPathLater() {
+    FilterPathSelector selector = new FilterPathSelector(Policy.FASTEST_OBSERVED);
+    selector.recordLatency(Path.PHOTOS, 100);
+    selector.recordLatency(Path.LOCAL, 200);
+    selector.recordFailure(Path.PHOTOS);
+
+    for (int i = 1; i < FilterPathSelector.RETRY_AFTER_CAPTURES; i++) {
+      assertEquals(Path.LOCAL, choose(selector));
+    }
+    assertEquals(Path.PHOTOS, choose(selector));
+    selector.recordLatency(Path.PHOTOS, 100);
+    assertEquals(Path.PHOTOS, choose(selector));
+  }
+
+  @Test
+  public void choosePath_fastestObserved_failedRetryWaitsAgain() {
+    FilterPathSelector selector = new FilterPathSelector(Policy.FASTEST_OBSERVED);
+    selector.recordLatency(Path.PHOTOS, 100);
+    selector.recordLatency(Path.LOCAL, 200);
+    selector.recordFailure(Path.PHOTOS);
+    for (int i = 0; i < FilterPathSelector.RETRY_AFTER_CAPTURES; i++) {
+      choose(selector);
+    }
+
+    selector.recordFailure(Path.PHOTOS);
+
+    for (int i = 1; i < FilterPathSelector.RETRY_AFTER_CAPTURES; i++) {
+      assertEquals(Path.LOCAL, choose(selector));
+    }
+    assertEquals(Path.PHOTOS, choose(selector));
+  }
+
+  @Test
+  public void choosePath_fastestObserved_unreportedRetryIsRetriedAgain() {
+    FilterPathSelector selector = new FilterPathSelector(Policy.FASTEST_OBSERVED);
+    selector.recordLatency(Path.PHOTOS, 100);
+    selector.recordLatency(Path.LOCAL, 200);
+    selector.recordFailure(Path.PHOTOS);
+    for (int i = 0; i < FilterPathSelector.RETRY_AFTER_CAPTURES; i++) {
+      choose(selector);
+    }
+
+    // The retry never reported back, so the next one is another full wait away.
+    assertEquals(Path.LOCAL, choose(selector));
+  }
+
+  @Test
+  public void choosePath_fastestObserved_retriesFailedLocalPath() {
+    FilterPathSelector selector = new FilterPathSelector(Policy.FASTEST_OBSERVED);
+    selector.recordLatency(Path.PHOTOS, 200);
+    selector.recordLatency(Path.LOCAL, 100);
+    selector.recordFailure(Path.LOCAL);
+
+    for (int i = 1; i < FilterPathSelector.RETRY_AFTER_CAPTURES; i++) {
+      assertEquals(Path.PHOTOS, choose(selector));
+    }
+    assertEquals(Path.LOCAL, choose(selector));
+  }
+
+  private static Path choose(FilterPathSelector selector) {
+    return choose(selector, USABLE_VERSION, /* hasLocalLut= */ true);
+  }
+
+  private static Path chooseLocalOnly(FilterPathSelector selector) {
+    return selector.choosePath(USABLE_VERSION, /* hasLocalLut= */ true, /* isLocalOnly= */ true);
+  }
+
+  private static Path choose(FilterPathSelector selector, int photosVersion, boolean hasLocalLut) {
+    return selector.choosePath(photosVersion, hasLocalLut, /* isLocalOnly= */ false);
+  }
+}
@@ -0,0 +1,146 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.junit.Test;
+
+/** Round trips of {@link StripJpegEncoder} through the JDK's decoder. */
+public class StripJpegEncoderTest {
+
+  /** Not a multiple of the band height in either direction, so both edges are padded. */
+  private static final int WIDTH = 53;
+  private static final int HEIGHT = 37;
+  /** Mean error per channel allowed at quality 95, which leaves room for chroma subsampling. */
+  private static final double MAX_MEAN_ERROR = 3;
+
+  @Test
+  public void encode_decodesToSameSizeAndPixels() throws IOException {
+    int[] pixels = createGradient();
+
+    BufferedImage decoded = decode(encode(pixels, /* exifSegment= */ null, 5, 16, 16));
+
+    assertEquals(WIDTH, decoded.getWidth());
+    assertEquals(HEIGHT, decoded.getHeight());
+    assertTrue(getMeanError(pixels, decoded) < MAX_MEAN_ERROR);
+  }
+
+  @Test
+  public void encode_stripSizesDoNotMatter() throws IOException {
+    int[] pixels = createGradient();
+
+    byte[] inOneGo = encode(pixels, /* exifSegment= */ null, HEIGHT);
+    byte[] rowByRow = encode(pixels, /* exifSegment= */ null, 1);
+
+    assertArrayEquals(inOneGo, rowByRow);
+  }
+
+  @Test
+  public void encode_solidColor_decodesClose() throws IOException {
+    int[] pixels = new int[WIDTH * HEIGHT];
+    Arrays.fill(pixels, 0xFF3C78B4);
+
+    BufferedImage decoded = decode(encode(pixels, /* exifSegment= */ null, HEIGHT));
+
+    int rgb = decoded.getRGB(WIDTH / 2, HEIGHT / 2);
+    assertEquals(0x3C, (rgb >> 16) & 0xFF, 2);
+    assertEquals(0x78, (rgb >> 8) & 0xFF, 2);
+    assertEquals(0xB4, rgb & 0xFF, 2);
+  }
+
+  @Test
+  public void encode_withExif_keepsSegmentAndDecodes() throws IOException {
+    byte[] exifSegment = StripJpegEncoder.createOrientationExifSegment(/* rotationDegrees= */ 90);
+    int[] pixels = createGradient();
+
+    byte[] jpeg = encode(pixels, exifSegment, HEIGHT);
+
+    assertArrayEquals(exifSegment, StripJpegEncoder.extractExifSegment(jpeg));
+    BufferedImage decoded = decode(jpeg);
+    assertEquals(WIDTH, decoded.getWidth());
+    assertEquals(HEIGHT, decoded.getHeight());
+  }
+
+  @Test
+  public void extractExifSegment_noExif_returnsNull() throws IOException {
+    assertNull(
+        StripJpegEncoder.extractExifSegment(
+            encode(createGradient(), /* exifSegment= */ null, HEIGHT)));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void writeRows_pastHeight_throws() throws IOException {
+    StripJpegEncoder encoder =
+        new StripJpegEncoder(
+            new ByteArrayOutputStream(), WIDTH, HEIGHT, /* quality= */ 95, /* exifSegment= */ null);
+    encoder.writeRows(new int[WIDTH * (HEIGHT + 1)], 0, WIDTH, HEIGHT + 1);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void finish_missingRows_throws() throws IOException {
+    StripJpegEncoder encoder =
+        new StripJpegEncoder(
+            new ByteArrayOutputStream(), WIDTH, HEIGHT, /* quality= */ 95, /* exifSegment= */ null);
+    encoder.writeRows(new int[WIDTH * HEIGHT], 0, WIDTH, HEIGHT - 1);
+    encoder.finish();
+  }
+
+  /** Encodes {@code pixels} at quality 95, handing the rows over in the given counts. */
+  private static byte[] encode(int[] pixels, byte[] exifSegment, int... rowCounts)
+      throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    StripJpegEncoder encoder =
+        new StripJpegEncoder(output, WIDTH, HEIGHT, /* quality= */ 95, exifSegment);
+    int row = 0;
+    for (int i = 0; row < HEIGHT; i = Math.min(i + 1, rowCounts.length - 1)) {
+      int rowCount = Math.min(rowCounts[i], HEIGHT - row);
+      encoder.writeRows(pixels, row * WIDTH, WIDTH, rowCount);
+      row += rowCount;
+    }
+    encoder.finish();
+    return output.toByteArray();
+  }
+
+  private static BufferedImage decode(byte[] jpeg) throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+    assertNotNull("Not a decodable JPEG", image);
+    return image;
+  }
+
+  /** Smooth ramps in every channel, with alpha the encoder should ignore. */
+  private static int[] createGradient() {
+    int[] pixels = new int[WIDTH * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int red = x * 255 / (WIDTH - 1);
+        int green = y * 255 / (HEIGHT - 1);
+        int blue = (x + y) * 255 / (WIDTH + HEIGHT - 2);
+        pixels[y * WIDTH + x] = 0x7F000000 | (red << 16) | (green << 8) | blue;
+      }
+    }
+    return pixels;
+  }
+
+  private static double getMeanError(int[] pixels, BufferedImage decoded) {
+    long error = 0;
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int expected = pixels[y * WIDTH + x];
+        int actual = decoded.getRGB(x, y);
+        for (int shift = 0; shift <= 16; shift += 8) {
+          error += Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+        }
+      }
+    }
+    return (double) error / (WIDTH * HEIGHT * 3);
+  }
+}
@@ -0,0 +1,82 @@
+package filters.demo.activities;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * JPEG {@link Image}s without a camera, for running the save path on the JVM.
+ *
+ * <p>Payloads are direct buffers like the planes of an {@code ImageReader}, filled once with a
+ * JFIF header, incompressible data and an end marker. At most {@value #MAX_IMAGES} images are out
+ * at a time, as with the JPEG reader of {@link CameraModule}, so a saver that falls behind holds
+ * up the next capture the way it would hold up the camera.
+ */
+final class SyntheticCaptures {
+
+  /** Images the JPEG reader of {@link CameraModule} holds at most. */
+  static final int MAX_IMAGES = 2;
+
+  private static final byte[] JFIF_HEADER = {
+    (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0,
+    1, 0, 1, 0, 0,
+  };
+
+  private final ByteBuffer[] payloads = new ByteBuffer[MAX_IMAGES];
+  private final Semaphore freeImages = new Semaphore(MAX_IMAGES);
+  private int nextPayload;
+
+  SyntheticCaptures(int payloadBytes) {
+    byte[] jpeg = createJpeg(payloadBytes, new Random(42));
+    for (int i = 0; i < MAX_IMAGES; i++) {
+      payloads[i] = ByteBuffer.allocateDirect(payloadBytes);
+      payloads[i].put(jpeg).flip();
+    }
+  }
+
+  /** Returns the next image, waiting until an earlier one is closed if all are out. */
+  Image acquire() throws InterruptedException {
+    freeImages.acquire();
+    // Images are closed in the order they were saved, so the oldest payload is free again.
+    ByteBuffer payload = payloads[nextPayload].duplicate();
+    nextPayload = (nextPayload + 1) % MAX_IMAGES;
+
+    Image.Plane plane = mock(Image.Plane.class);
+    when(plane.getBuffer()).thenReturn(payload);
+    Image image = mock(Image.class);
+    when(image.getFormat()).thenReturn(ImageFormat.JPEG);
+    when(image.getPlanes()).thenReturn(new Image.Plane[] {plane});
+    AtomicBoolean closed = new AtomicBoolean();
+    doAnswer(
+            invocation -> {
+              if (closed.compareAndSet(false, true)) {
+                freeImages.release();
+              }
+              return null;
+            })
+        .when(image)
+        .close();
+    return image;
+  }
+
+  /** Returns {@code size} bytes that start and end like a JPEG, with random data in between. */
+  static byte[] createJpeg(int size, Random random) {
+    if (size < JFIF_HEADER.length + 2) {
+      throw new IllegalArgumentException("A JPEG needs at least " + (JFIF_HEADER.length + 2)
+          + " bytes, not " + size + ".");
+    }
+    byte[] jpeg = new byte[size];
+    random.nextBytes(jpeg);
+    System.arraycopy(JFIF_HEADER, 0, jpeg, 0, JFIF_HEADER.length);
+    jpeg[size - 2] = (byte) 0xFF;
+    jpeg[size - 1] = (byte) 0xD9;
+    return jpeg;
+  }
+}
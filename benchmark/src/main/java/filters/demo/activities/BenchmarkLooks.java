@@ -0,0 +1,43 @@
+package filters.demo.activities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Synthetic looks for the benchmarks, the same ones on every run. */
+final class BenchmarkLooks {
+
+  // Utility class
+  private BenchmarkLooks() {}
+
+  /** Returns a smooth look that differs per channel, with a gamma mix chosen by {@code id}. */
+  static LookupTable createLook(int id, int latticeSize) {
+    float gammaR = 0.6f + 0.8f * fraction(id * 0.37f);
+    float gammaG = 0.6f + 0.8f * fraction(id * 0.61f + 0.2f);
+    float gammaB = 0.6f + 0.8f * fraction(id * 0.83f + 0.5f);
+    return LookupTable.bake(
+        "Look " + id,
+        id,
+        color ->
+            (applyGamma((color >> 16) & 0xFF, gammaR) << 16)
+                | (applyGamma((color >> 8) & 0xFF, gammaG) << 8)
+                | applyGamma(color & 0xFF, gammaB),
+        latticeSize);
+  }
+
+  /** Returns {@code count} distinct looks of {@code latticeSize}. */
+  static List<LookupTable> createLooks(int count, int latticeSize) {
+    List<LookupTable> luts = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      luts.add(createLook(i, latticeSize));
+    }
+    return luts;
+  }
+
+  private static int applyGamma(int value, float gamma) {
+    return Math.round(255f * (float) Math.pow(value / 255f, gamma));
+  }
+
+  private static float fraction(float value) {
+    return value - (float) Math.floor(value);
+  }
+}
@@ -0,0 +1,70 @@
+package filters.demo.activities;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a capture sized buffer to a file with {@link BufferWriter}, from a byte array as
+ * FileUtil does and from a direct buffer as an image plane is. Includes the file system, so
+ * compare results taken on the same machine only.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class BufferWriteBenchmark {
+
+  /** Sizes of a small, a typical 12 MP and a high quality 12 MP JPEG. */
+  @Param({"1048576", "4194304", "12582912"})
+  public int size;
+
+  private ByteBuffer heapBuffer;
+  private ByteBuffer directBuffer;
+  private File file;
+
+  @Setup
+  public void setUp() throws IOException {
+    byte[] bytes = new byte[size];
+    new Random(42).nextBytes(bytes);
+    heapBuffer = ByteBuffer.wrap(bytes);
+    directBuffer = ByteBuffer.allocateDirect(size);
+    directBuffer.put(bytes).flip();
+    file = File.createTempFile("capture", ".jpg");
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public long writeHeap() throws IOException {
+    heapBuffer.rewind();
+    BufferWriter.write(heapBuffer, file);
+    return file.length();
+  }
+
+  @Benchmark
+  public long writeDirect() throws IOException {
+    directBuffer.rewind();
+    BufferWriter.write(directBuffer, file);
+    return file.length();
+  }
+}
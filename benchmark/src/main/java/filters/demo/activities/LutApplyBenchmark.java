@@ -0,0 +1,95 @@
+package filters.demo.activities;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The kernels that apply a look on the CPU: {@link LookupTable#apply} on ARGB pixels, as for JPEG
+ * captures, and {@link YuvLutConverter} on NV21 planes, as for YUV captures. One 12 MP frame per
+ * operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LutApplyBenchmark {
+
+  private static final int WIDTH = 4000;
+  private static final int HEIGHT = 3000;
+  /** Lattice size of the look that shapers are fitted to. */
+  private static final int SOURCE_LATTICE_SIZE = 65;
+
+  @Param({"9", "17", "33"})
+  public int latticeSize;
+
+  /** Whether the look carries shaper curves, which cost three table reads per pixel. */
+  @Param({"false", "true"})
+  public boolean shaper;
+
+  private LookupTable lut;
+  private int[] source;
+  private int[] pixels;
+  private YuvLutConverter converter;
+
+  @Setup
+  public void setUp() {
+    lut =
+        shaper
+            ? ShaperFitter.fit(
+                BenchmarkLooks.createLook(/* id= */ 7, SOURCE_LATTICE_SIZE), latticeSize)
+            : BenchmarkLooks.createLook(/* id= */ 7, latticeSize);
+    Random random = new Random(42);
+    source = new int[WIDTH * HEIGHT];
+    for (int i = 0; i < source.length; i++) {
+      source[i] = random.nextInt();
+    }
+    pixels = new int[source.length];
+
+    byte[] luma = new byte[WIDTH * HEIGHT];
+    byte[] chroma = new byte[WIDTH * HEIGHT / 2];
+    random.nextBytes(luma);
+    random.nextBytes(chroma);
+    ByteBuffer yPlane = ByteBuffer.allocateDirect(luma.length);
+    yPlane.put(luma).flip();
+    ByteBuffer vuPlane = ByteBuffer.allocateDirect(chroma.length);
+    vuPlane.put(chroma).flip();
+    // NV21: the U plane starts one byte into the interleaved VU plane.
+    ByteBuffer uPlane = vuPlane.duplicate();
+    uPlane.position(1);
+    converter =
+        new YuvLutConverter(
+            WIDTH,
+            HEIGHT,
+            new YuvLutConverter.Plane(yPlane, WIDTH, /* pixelStride= */ 1),
+            new YuvLutConverter.Plane(uPlane.slice(), WIDTH, /* pixelStride= */ 2),
+            new YuvLutConverter.Plane(vuPlane, WIDTH, /* pixelStride= */ 2),
+            lut);
+  }
+
+  @Benchmark
+  public int[] apply() {
+    System.arraycopy(source, 0, pixels, 0, source.length);
+    lut.apply(pixels, /* offset= */ 0, pixels.length);
+    return pixels;
+  }
+
+  @Benchmark
+  public int[] convertYuv() {
+    converter.convertRows(/* top= */ 0, HEIGHT, pixels);
+    return pixels;
+  }
+}
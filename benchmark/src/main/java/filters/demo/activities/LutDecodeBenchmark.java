@@ -0,0 +1,123 @@
+package filters.demo.activities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning LUT files into looks: parsing .cube text with {@link LutImporter}, reading a HaldCLUT
+ * image, and decoding every look of a {@link LutPack} of {@value #PACK_LOOKS_COUNT} looks in each
+ * of its encodings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LutDecodeBenchmark {
+
+  private static final int PACK_LOOKS_COUNT = 9;
+  /** HaldCLUT level 8, a 64^3 lattice in a 512 x 512 image. */
+  private static final int HALD_LEVEL = 8;
+
+  @Param({"17", "33", "65"})
+  public int latticeSize;
+
+  private byte[] cube;
+  private int[] haldPixels;
+  private byte[] rawPack;
+  private byte[] deltaPack;
+  private byte[] wideDeltaPack;
+
+  @Setup
+  public void setUp() throws IOException {
+    LookupTable look = BenchmarkLooks.createLook(/* id= */ 3, latticeSize);
+    cube = toCube(look);
+    haldPixels =
+        BenchmarkLooks.createLook(/* id= */ 3, HALD_LEVEL * HALD_LEVEL).getLatticePixels();
+    rawPack = toPack(8, LutPack.ENCODING_RAW);
+    deltaPack = toPack(8, LutPack.ENCODING_DELTA);
+    wideDeltaPack = toPack(16, LutPack.ENCODING_DELTA);
+  }
+
+  @Benchmark
+  public LookupTable readCube() throws IOException {
+    return LutImporter.readCube("Cube", /* id= */ 1, new ByteArrayInputStream(cube));
+  }
+
+  @Benchmark
+  public LookupTable fromHaldClut() {
+    int side = HALD_LEVEL * HALD_LEVEL * HALD_LEVEL;
+    return LutImporter.fromHaldClut("Hald", /* id= */ 1, haldPixels, side, side);
+  }
+
+  @Benchmark
+  public int decodeRawPack() throws IOException {
+    return decodeAll(rawPack);
+  }
+
+  @Benchmark
+  public int decodeDeltaPack() throws IOException {
+    return decodeAll(deltaPack);
+  }
+
+  @Benchmark
+  public int decodeWideDeltaPack() throws IOException {
+    return decodeAll(wideDeltaPack);
+  }
+
+  /** Decodes every look to upload ready pixels, as the renderer would. */
+  private static int decodeAll(byte[] bytes) throws IOException {
+    LutPack pack = LutPack.wrap(ByteBuffer.wrap(bytes));
+    int sum = 0;
+    for (int i = 0; i < pack.size(); i++) {
+      sum += pack.getTexturePixels(i).get(0);
+    }
+    return sum;
+  }
+
+  private byte[] toPack(int bitDepth, int encoding) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    LutPack.write(
+        BenchmarkLooks.createLooks(PACK_LOOKS_COUNT, latticeSize),
+        bitDepth,
+        encoding,
+        Channels.newChannel(output));
+    return output.toByteArray();
+  }
+
+  /** Writes {@code look} as .cube text with six decimals, as most grading tools export. */
+  private static byte[] toCube(LookupTable look) {
+    int size = look.getLatticeSize();
+    StringBuilder text = new StringBuilder();
+    text.append("TITLE \"").append(look.getName()).append("\"\n");
+    text.append("LUT_3D_SIZE ").append(size).append('\n');
+    for (int pixel : look.getLatticePixels()) {
+      text.append(
+          String.format(
+              Locale.US,
+              "%.6f %.6f %.6f\n",
+              ((pixel >> 16) & 0xFF) / 255f,
+              ((pixel >> 8) & 0xFF) / 255f,
+              (pixel & 0xFF) / 255f));
+    }
+    return text.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+}
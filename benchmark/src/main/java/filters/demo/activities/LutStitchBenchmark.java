@@ -0,0 +1,56 @@
+package filters.demo.activities;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the pixels of the LUT atlases from a catalog of 33^3 looks: the 17^3 preview atlas,
+ * resampled evenly or fitted with shaper curves, and the 33^3 capture atlas.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LutStitchBenchmark {
+
+  private static final int SOURCE_LATTICE_SIZE = 33;
+  private static final int PREVIEW_LATTICE_SIZE = 17;
+
+  @Param({"9", "64"})
+  public int looksCount;
+
+  private List<LookupTable> luts;
+
+  @Setup
+  public void setUp() {
+    luts = BenchmarkLooks.createLooks(looksCount, SOURCE_LATTICE_SIZE);
+  }
+
+  @Benchmark
+  public StitchedLuts stitchPreview() {
+    return StitchedLuts.stitch(luts, PREVIEW_LATTICE_SIZE, /* fitShapers= */ false);
+  }
+
+  @Benchmark
+  public StitchedLuts stitchPreviewWithShapers() {
+    return StitchedLuts.stitch(luts, PREVIEW_LATTICE_SIZE, /* fitShapers= */ true);
+  }
+
+  @Benchmark
+  public StitchedLuts stitchCapture() {
+    return StitchedLuts.stitch(luts, SOURCE_LATTICE_SIZE, /* fitShapers= */ false);
+  }
+}
@@ -0,0 +1,62 @@
+package filters.demo.activities;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stream size selection of {@link SizeSelector} over the output sizes a typical 12 MP sensor
+ * reports, for a portrait 1080 x 2280 view.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SizeSelectorBenchmark {
+
+  private static final int[][] SIZES = {
+    {4032, 3024}, {4000, 3000}, {4032, 2268}, {3840, 2160}, {3264, 2448}, {3200, 2400},
+    {3024, 3024}, {2976, 2976}, {2688, 1512}, {2592, 1944}, {2560, 1920}, {2560, 1440},
+    {2448, 2448}, {2400, 1800}, {2048, 1536}, {2048, 1152}, {1920, 1440}, {1920, 1080},
+    {1600, 1200}, {1600, 900}, {1440, 1080}, {1280, 960}, {1280, 720}, {1088, 1088},
+    {1024, 768}, {960, 720}, {960, 540}, {800, 600}, {800, 450}, {720, 720},
+    {720, 480}, {640, 480}, {640, 360}, {352, 288}, {320, 240}, {176, 144},
+  };
+
+  private final int[] widths = new int[SIZES.length];
+  private final int[] heights = new int[SIZES.length];
+
+  public SizeSelectorBenchmark() {
+    for (int i = 0; i < SIZES.length; i++) {
+      widths[i] = SIZES[i][0];
+      heights[i] = SIZES[i][1];
+    }
+  }
+
+  @Benchmark
+  public int chooseOptimalSize() {
+    // Sensor orientation swaps the view to 2280 x 1080.
+    return SizeSelector.chooseOptimalSize(
+        widths, heights, 2280, 1080, 1920, 1080, /* aspectWidth= */ 4032, /* aspectHeight= */ 3024);
+  }
+
+  @Benchmark
+  public int chooseLargestSize() {
+    return SizeSelector.chooseLargestSize(
+        widths, heights, /* aspectWidth= */ 4, /* aspectHeight= */ 3, /* maxDimension= */ 4096);
+  }
+
+  @Benchmark
+  public int chooseLargestArea() {
+    return SizeSelector.chooseLargestArea(widths, heights);
+  }
+}
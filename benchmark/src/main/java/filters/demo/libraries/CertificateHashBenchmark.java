@@ -0,0 +1,54 @@
+package filters.demo.libraries;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What checking a trusted partner costs besides the package manager: hex encoding a digest with
+ * {@link HexConvert} and hashing a signing certificate with {@link CertificateHashes}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CertificateHashBenchmark {
+
+  /** Size of a typical DER encoded RSA 2048 signing certificate. */
+  private static final int CERTIFICATE_SIZE = 1400;
+  private static final int SHA1_LENGTH = 20;
+
+  private byte[] certificate;
+  private byte[] digest;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    certificate = new byte[CERTIFICATE_SIZE];
+    random.nextBytes(certificate);
+    digest = new byte[SHA1_LENGTH];
+    random.nextBytes(digest);
+  }
+
+  @Benchmark
+  public String bytesToHex() {
+    return HexConvert.bytesToHex(digest);
+  }
+
+  @Benchmark
+  public String hashCertificate() throws NoSuchAlgorithmException {
+    return CertificateHashes.hash("SHA1", certificate);
+  }
+}
@@ -0,0 +1,171 @@
+package filters.demo.activities;
+
+/**
+ * Immutable set of parametric color adjustments: brightness, contrast, saturation, white balance
+ * and a shadows and highlights tone curve. Every parameter ranges from -1 to 1, 0 leaves the image
+ * unchanged.
+ *
+ * <p>Adjustments are never evaluated per pixel. {@code AdjustmentBaker} bakes them together with
+ * the selected look into a lattice, so any number of them costs one lookup when rendering.
+ */
+public final class Adjustments {
+
+  /** Adjustments that leave the image unchanged. */
+  public static final Adjustments NONE = new Adjustments(0f, 0f, 0f, 0f, 0f, 0f, 0f);
+
+  /** Largest brightness offset, as a fraction of full scale. */
+  private static final float MAX_BRIGHTNESS = 0.25f;
+  /** Largest change of the red and blue gains for temperature, or the green gain for tint. */
+  private static final float MAX_WHITE_BALANCE_GAIN = 0.2f;
+  /** Largest lift of the shadows or drop of the highlights, as a fraction of full scale. */
+  private static final float MAX_TONE_SHIFT = 0.25f;
+
+  private final float brightness;
+  private final float contrast;
+  private final float saturation;
+  private final float temperature;
+  private final float tint;
+  private final float shadows;
+  private final float highlights;
+  /** Per channel curves for each 8-bit value, everything except saturation. Red, green, blue. */
+  private final float[][] curves = new float[3][256];
+
+  private Adjustments(
+      float brightness,
+      float contrast,
+      float saturation,
+      float temperature,
+      float tint,
+      float shadows,
+      float highlights) {
+    this.brightness = clampParameter(brightness);
+    this.contrast = clampParameter(contrast);
+    this.saturation = clampParameter(saturation);
+    this.temperature = clampParameter(temperature);
+    this.tint = clampParameter(tint);
+    this.shadows = clampParameter(shadows);
+    this.highlights = clampParameter(highlights);
+    float[] gains = {
+      1f + MAX_WHITE_BALANCE_GAIN * this.temperature,
+      1f - MAX_WHITE_BALANCE_GAIN * this.tint,
+      1f - MAX_WHITE_BALANCE_GAIN * this.temperature,
+    };
+    for (int channel = 0; channel < 3; channel++) {
+      for (int value = 0; value < 256; value++) {
+        curves[channel][value] = applyCurve(value / 255f * gains[channel]);
+      }
+    }
+  }
+
+  /** Offsets every channel. Positive values brighten. */
+  public Adjustments withBrightness(float brightness) {
+    return new Adjustments(
+        brightness, contrast, saturation, temperature, tint, shadows, highlights);
+  }
+
+  /** Stretches values away from mid gray. -1 flattens the image to gray. */
+  public Adjustments withContrast(float contrast) {
+    return new Adjustments(
+        brightness, contrast, saturation, temperature, tint, shadows, highlights);
+  }
+
+  /** Scales the distance from luma. -1 turns the image gray. */
+  public Adjustments withSaturation(float saturation) {
+    return new Adjustments(
+        brightness, contrast, saturation, temperature, tint, shadows, highlights);
+  }
+
+  /** White balance along blue to yellow. Positive values warm the image. */
+  public Adjustments withTemperature(float temperature) {
+    return new Adjustments(
+        brightness, contrast, saturation, temperature, tint, shadows, highlights);
+  }
+
+  /** White balance along green to magenta. Positive values add magenta. */
+  public Adjustments withTint(float tint) {
+    return new Adjustments(
+        brightness, contrast, saturation, temperature, tint, shadows, highlights);
+  }
+
+  /** Tone curve for the dark end. Positive values lift the shadows. */
+  public Adjustments withShadows(float shadows) {
+    return new Adjustments(
+        brightness, contrast, saturation, temperature, tint, shadows, highlights);
+  }
+
+  /** Tone curve for the bright end. Negative values recover the highlights. */
+  public Adjustments withHighlights(float highlights) {
+    return new Adjustments(
+        brightness, contrast, saturation, temperature, tint, shadows, highlights);
+  }
+
+  /** Whether these adjustments leave every color unchanged. */
+  public boolean isIdentity() {
+    return equals(NONE);
+  }
+
+  /** Returns the adjusted 0xRRGGBB color of a 0xRRGGBB color. */
+  int apply(int color) {
+    float r = curves[0][(color >> 16) & 0xFF];
+    float g = curves[1][(color >> 8) & 0xFF];
+    float b = curves[2][color & 0xFF];
+    // Same luma weights as the grayscale looks.
+    float luma = 0.3f * r + 0.59f * g + 0.11f * b;
+    float scale = 1f + saturation;
+    r = luma + (r - luma) * scale;
+    g = luma + (g - luma) * scale;
+    b = luma + (b - luma) * scale;
+    return (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+  }
+
+  /** Brightness, contrast and tone curve of a white balanced channel value. */
+  private float applyCurve(float value) {
+    value += MAX_BRIGHTNESS * brightness;
+    value = (value - 0.5f) * (1f + contrast) + 0.5f;
+    value = Math.max(0f, Math.min(1f, value));
+    // Shift that fades out towards the other end of the range, so black and white stay put.
+    float dark = 1f - value;
+    value += MAX_TONE_SHIFT * shadows * dark * dark * value * 4f;
+    value += MAX_TONE_SHIFT * highlights * value * value * dark * 4f;
+    return value;
+  }
+
+  private static int toByte(float value) {
+    return Math.max(0, Math.min(255, Math.round(value * 255f)));
+  }
+
+  private static float clampParameter(float value) {
+    // Drops negative zero, which would compare equal but hash differently.
+    return value == 0f ? 0f : Math.max(-1f, Math.min(1f, value));
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other) {
+      return true;
+    }
+    if (!(other instanceof Adjustments)) {
+      return false;
+    }
+    Adjustments that = (Adjustments) other;
+    return brightness == that.brightness
+        && contrast == that.contrast
+        && saturation == that.saturation
+        && temperature == that.temperature
+        && tint == that.tint
+        && shadows == that.shadows
+        && highlights == that.highlights;
+  }
+
+  @Override
+  public int hashCode() {
+    int hash = Float.floatToIntBits(brightness);
+    hash = 31 * hash + Float.floatToIntBits(contrast);
+    hash = 31 * hash + Float.floatToIntBits(saturation);
+    hash = 31 * hash + Float.floatToIntBits(temperature);
+    hash = 31 * hash + Float.floatToIntBits(tint);
+    hash = 31 * hash + Float.floatToIntBits(shadows);
+    hash = 31 * hash + Float.floatToIntBits(highlights);
+    return hash;
+  }
+}
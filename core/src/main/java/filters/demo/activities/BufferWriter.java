@@ -0,0 +1,36 @@
+package filters.demo.activities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Writes the bytes of a buffer to a file. */
+final class BufferWriter {
+
+  // Utility class
+  private BufferWriter() {}
+
+  /**
+   * Writes the remaining bytes of {@code buffer} to {@code file}, replacing its contents, and
+   * advances the buffer to its limit.
+   *
+   * <p>Heap buffers are written from their array, as a channel would copy them into a temporary
+   * direct buffer first. Direct buffers, such as the planes of a capture, go through the channel
+   * without a copy.
+   */
+  static void write(ByteBuffer buffer, File file) throws IOException {
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      if (buffer.hasArray()) {
+        output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        buffer.position(buffer.limit());
+        return;
+      }
+      FileChannel channel = output.getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package filters.demo.activities;
+
+/**
+ * Lifecycle of the camera device owned by {@code CameraModule}.
+ *
+ * <pre>
+ *   CLOSED -> OPENING -> OPEN <-> CAPTURING
+ *      ^         |        |          |
+ *      |         v        v          v
+ *      +----- CLOSING <---+----------+
+ * </pre>
+ *
+ * <p>Transitions are driven by camera callbacks and never wait on one. A failed open goes straight
+ * back to {@link State#CLOSED}. This class is thread safe.
+ */
+final class CameraStateMachine {
+
+  enum State {
+    /** No device. The only state a new open may start from. */
+    CLOSED,
+    /** {@code openCamera} was called and {@code onOpened} has not arrived yet. */
+    OPENING,
+    /** The device is open and no still capture is in flight. */
+    OPEN,
+    /** At least one still capture has been submitted and not completed. */
+    CAPTURING,
+    /** {@code close} was called, or is due as soon as the device opens, and not yet confirmed. */
+    CLOSING,
+  }
+
+  private State state = State.CLOSED;
+
+  synchronized State getState() {
+    return state;
+  }
+
+  /**
+   * Moves to {@code to} if that is a valid transition from the current state.
+   *
+   * @return whether the transition happened.
+   */
+  synchronized boolean transition(State to) {
+    if (!isAllowed(state, to)) {
+      return false;
+    }
+    state = to;
+    return true;
+  }
+
+  /**
+   * Moves to {@code to} only if the current state is {@code from}.
+   *
+   * @return whether the transition happened.
+   */
+  synchronized boolean transition(State from, State to) {
+    return state == from && transition(to);
+  }
+
+  private static boolean isAllowed(State from, State to) {
+    switch (from) {
+      case CLOSED:
+        return to == State.OPENING;
+      case OPENING:
+        return to == State.OPEN || to == State.CLOSING || to == State.CLOSED;
+      case OPEN:
+        return to == State.CAPTURING || to == State.CLOSING;
+      case CAPTURING:
+        return to == State.OPEN || to == State.CLOSING;
+      case CLOSING:
+        return to == State.CLOSED;
+      default:
+        return false;
+    }
+  }
+}
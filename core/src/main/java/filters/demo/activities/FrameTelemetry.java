@@ -0,0 +1,145 @@
+package filters.demo.activities;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Camera side statistics of the repeating preview request: sensor frame duration, exposure time,
+ * the interval between sensor timestamps and frame numbers that never produced a result.
+ *
+ * <p>The last {@value #WINDOW_SIZE} frames are kept in primitive rings for windowed averages, and
+ * every frame also goes into {@link MetricsRegistry} histograms next to the render side ones, so
+ * {@code camera.frame_interval} can be read against {@code render.draw} and {@code
+ * render.vsync_to_drawn}. Recording does not allocate.
+ */
+final class FrameTelemetry {
+
+  private static final int WINDOW_SIZE = 64;
+  private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+  private static final LatencyHistogram frameDurationHistogram =
+      MetricsRegistry.histogram("camera.frame_duration");
+  private static final LatencyHistogram exposureHistogram =
+      MetricsRegistry.histogram("camera.exposure");
+  private static final LatencyHistogram frameIntervalHistogram =
+      MetricsRegistry.histogram("camera.frame_interval");
+  private static final LatencyHistogram sensorToDrawnHistogram =
+      MetricsRegistry.histogram("render.sensor_to_drawn");
+  private static final MetricsRegistry.Counter skippedFrameCounter =
+      MetricsRegistry.counter("camera.frames_skipped");
+  private static final MetricsRegistry.Counter failedFrameCounter =
+      MetricsRegistry.counter("camera.frames_failed");
+
+  private final long[] frameDurations = new long[WINDOW_SIZE];
+  private final long[] exposures = new long[WINDOW_SIZE];
+  private final long[] frameIntervals = new long[WINDOW_SIZE];
+  /** Number of frames recorded, the next slot is this modulo {@link #WINDOW_SIZE}. */
+  private long frameCount;
+  private long lastFrameNumber = -1;
+  private long lastTimestampNanos = -1;
+  private long windowSkippedFrames;
+  private long windowFailedFrames;
+  /** Whether sensor timestamps use the {@code elapsedRealtimeNanos} clock. */
+  private volatile boolean timestampsRealtime;
+
+  /** Sets whether sensor timestamps can be compared with {@code elapsedRealtimeNanos}. */
+  void setTimestampsRealtime(boolean timestampsRealtime) {
+    this.timestampsRealtime = timestampsRealtime;
+  }
+
+  /**
+   * Records a completed preview frame. Values the result did not carry are passed as -1.
+   *
+   * @param frameNumber {@code CaptureResult#getFrameNumber}.
+   * @param timestampNanos {@code SENSOR_TIMESTAMP}.
+   * @param frameDurationNanos {@code SENSOR_FRAME_DURATION}.
+   * @param exposureNanos {@code SENSOR_EXPOSURE_TIME}.
+   */
+  synchronized void onCaptureCompleted(
+      long frameNumber, long timestampNanos, long frameDurationNanos, long exposureNanos) {
+    if (lastFrameNumber >= 0 && frameNumber > lastFrameNumber + 1) {
+      long skipped = frameNumber - lastFrameNumber - 1;
+      skippedFrameCounter.add(skipped);
+      windowSkippedFrames += skipped;
+    }
+    lastFrameNumber = Math.max(lastFrameNumber, frameNumber);
+
+    long frameInterval = -1;
+    if (timestampNanos >= 0) {
+      if (lastTimestampNanos >= 0 && timestampNanos > lastTimestampNanos) {
+        frameInterval = timestampNanos - lastTimestampNanos;
+        frameIntervalHistogram.record(frameInterval);
+      }
+      lastTimestampNanos = timestampNanos;
+    }
+    if (frameDurationNanos >= 0) {
+      frameDurationHistogram.record(frameDurationNanos);
+    }
+    if (exposureNanos >= 0) {
+      exposureHistogram.record(exposureNanos);
+    }
+    int slot = (int) (frameCount % WINDOW_SIZE);
+    frameDurations[slot] = frameDurationNanos;
+    exposures[slot] = exposureNanos;
+    frameIntervals[slot] = frameInterval;
+    frameCount++;
+  }
+
+  /** Records a preview frame that failed, which also leaves a gap in the frame numbers. */
+  synchronized void onCaptureFailed(long frameNumber) {
+    failedFrameCounter.increment();
+    windowFailedFrames++;
+    // The gap is explained, so it is not counted as skipped as well.
+    lastFrameNumber = Math.max(lastFrameNumber, frameNumber);
+  }
+
+  /**
+   * Records that a still capture took frame number {@code frameNumber}, so the preview results do
+   * not count it as skipped. Still captures start before later preview results arrive.
+   */
+  synchronized void onStillCaptureStarted(long frameNumber) {
+    lastFrameNumber = Math.max(lastFrameNumber, frameNumber);
+  }
+
+  /**
+   * Records that the preview frame with sensor timestamp {@code sensorTimestampNanos} finished
+   * drawing at {@code drawnRealtimeNanos}, on the {@code elapsedRealtimeNanos} clock.
+   */
+  void onFrameDrawn(long sensorTimestampNanos, long drawnRealtimeNanos) {
+    if (timestampsRealtime && sensorTimestampNanos > 0) {
+      sensorToDrawnHistogram.record(drawnRealtimeNanos - sensorTimestampNanos);
+    }
+  }
+
+  /** Prints averages over the recent frames and resets the skipped and failed counts. */
+  synchronized void dump(String prefix, PrintWriter writer) {
+    int count = (int) Math.min(frameCount, WINDOW_SIZE);
+    writer.print(prefix);
+    writer.println(
+        String.format(
+            Locale.US,
+            "Last %d preview frames: duration=%.2f ms exposure=%.2f ms interval=%.2f ms,"
+                + " since the last dump: skipped=%d failed=%d",
+            count,
+            average(frameDurations, count) / NANOS_PER_MILLI,
+            average(exposures, count) / NANOS_PER_MILLI,
+            average(frameIntervals, count) / NANOS_PER_MILLI,
+            windowSkippedFrames,
+            windowFailedFrames));
+    windowSkippedFrames = 0;
+    windowFailedFrames = 0;
+  }
+
+  /** Averages the first {@code count} values, ignoring missing ones. */
+  private static double average(long[] values, int count) {
+    long sum = 0;
+    int present = 0;
+    for (int i = 0; i < count; i++) {
+      if (values[i] >= 0) {
+        sum += values[i];
+        present++;
+      }
+    }
+    return present == 0 ? 0 : (double) sum / present;
+  }
+}
@@ -0,0 +1,103 @@
+package filters.demo.activities;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of durations in nanoseconds, in the style of HdrHistogram.
+ *
+ * <p>Each power of two is split into {@value #SUB_BUCKET_COUNT} buckets, so reported percentiles
+ * are within about 6% of the recorded values, from a nanosecond up to about 18 minutes. Recording
+ * is lock free and does not allocate.
+ */
+final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  /** Values with a higher bit set share the last bucket. */
+  private static final int MAX_EXPONENT = 40;
+  private static final int OVERFLOW_BUCKET =
+      (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+  private static final int BUCKET_COUNT = OVERFLOW_BUCKET + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /** Records one duration. Negative durations count as zero. */
+  void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucketIndex(value));
+    totalCount.incrementAndGet();
+    long max;
+    do {
+      max = maxNanos.get();
+    } while (value > max && !maxNanos.compareAndSet(max, value));
+  }
+
+  long getCount() {
+    return totalCount.get();
+  }
+
+  long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * Returns the smallest recorded duration that {@code percentile} percent of the recordings do not
+   * exceed, rounded up to its bucket, or 0 if nothing was recorded.
+   *
+   * @param percentile Between 0 and 100.
+   */
+  long getValueAtPercentile(double percentile) {
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * Math.min(100, percentile) / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(bucketUpperBound(i), maxNanos.get());
+      }
+    }
+    // Recordings raced with this query, the max is the best answer left.
+    return maxNanos.get();
+  }
+
+  /** Forgets every recording. Recordings made concurrently may survive. */
+  void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    maxNanos.set(0);
+  }
+
+  private static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return OVERFLOW_BUCKET;
+    }
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /** Largest value that falls into bucket {@code index}. */
+  private static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    if (index == OVERFLOW_BUCKET) {
+      return Long.MAX_VALUE;
+    }
+    int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKET_COUNT;
+    int shift = exponent - SUB_BUCKET_BITS;
+    return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,484 @@
+package filters.demo.activities;
+
+import android.support.annotation.Nullable;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/** Simple Java class to hold some of the lookup table properties. */
+public final class LookupTable {
+
+  /** Lattice size of the LUTs returned by Photos in each of the three dimensions. */
+  public static final int DEFAULT_LATTICE_SIZE = 17;
+  /** Smallest and largest supported lattice sizes. */
+  public static final int MIN_LATTICE_SIZE = 2;
+  public static final int MAX_LATTICE_SIZE = 256;
+
+  /** Name representing the filter. */
+  private final String name;
+  /** Indicates that this filter is grayscale. */
+  private final boolean isGrayscale;
+  /** Ids to connect to the correct filter in Google Photos. */
+  private final int id;
+  /**
+   * Lattice points packed as 0xRRGGBB. Red varies fastest, then green, then blue, which matches
+   * the pixel order of the LUT bitmaps returned by Photos.
+   */
+  @Nullable
+  private final int[] lattice;
+  private final int latticeSize;
+  /**
+   * Optional red, green and blue curves applied before the lattice, each mapping the 256 8-bit
+   * values to a lattice coordinate from 0 to 1. They spend lattice points where the look changes
+   * fastest, typically the shadows, so a small lattice stays accurate. Null for evenly spaced
+   * lattice points.
+   */
+  @Nullable
+  private final float[][] shaper;
+  /** Lower lattice index for each 8-bit value, per channel. */
+  @Nullable
+  private final int[][] latticeIndex;
+  /** Interpolation weight (0..256) towards the upper lattice point for each 8-bit value. */
+  @Nullable
+  private final int[][] latticeWeight;
+  /** Set for looks made on this device, which no partner can apply by {@link #id}. */
+  private final boolean isLocalOnly;
+
+  public static LookupTable create(String name, boolean isGrayscale, int id) {
+    return new LookupTable(
+        name,
+        isGrayscale,
+        id,
+        /* lattice= */ null,
+        /* latticeSize= */ 0,
+        /* shaper= */ null,
+        /* isLocalOnly= */ false);
+  }
+
+  /**
+   * Creates a {@link LookupTable} that also carries its lattice so it can be applied on the CPU.
+   *
+   * @param lattice {@code latticeSize}^3 points packed as 0xRRGGBB, red varying fastest.
+   * @param latticeSize Number of lattice points in each of the three dimensions.
+   */
+  public static LookupTable create(
+      String name, boolean isGrayscale, int id, int[] lattice, int latticeSize) {
+    return create(name, isGrayscale, id, lattice, latticeSize, /* shaper= */ null);
+  }
+
+  /**
+   * Creates a {@link LookupTable} whose lattice is sampled through per channel shaper curves.
+   *
+   * @param shaper Red, green and blue curves of 256 non-decreasing lattice coordinates from 0 to
+   *     1, one for each 8-bit value, or null for evenly spaced lattice points.
+   */
+  public static LookupTable create(
+      String name,
+      boolean isGrayscale,
+      int id,
+      int[] lattice,
+      int latticeSize,
+      @Nullable float[][] shaper) {
+    if (shaper != null) {
+      checkShaper(shaper);
+    }
+    if (latticeSize < MIN_LATTICE_SIZE
+        || latticeSize > MAX_LATTICE_SIZE
+        || lattice.length != latticeSize * latticeSize * latticeSize) {
+      throw new IllegalArgumentException(
+          "Lattice of length " + lattice.length + " does not match size " + latticeSize);
+    }
+    return new LookupTable(
+        name, isGrayscale, id, lattice, latticeSize, shaper, /* isLocalOnly= */ false);
+  }
+
+  /**
+   * Bakes {@code looks}, applied one after the other, into a single lattice. Each look is
+   * evaluated at every lattice point exactly like {@link #lookup}, grayscale conversion included,
+   * so the chain costs one lookup per pixel on the GPU and the CPU. See {@link #bake}.
+   *
+   * <p>The result is never grayscale itself, as that step is already baked into its lattice.
+   *
+   * @param looks Looks in the order they apply. All of them must have a lattice.
+   * @param latticeSize Lattice size of the result, at least that of the looks to stay accurate.
+   */
+  public static LookupTable compose(
+      String name, int id, List<LookupTable> looks, int latticeSize) {
+    if (looks.isEmpty()) {
+      throw new IllegalArgumentException("Nothing to compose.");
+    }
+    for (LookupTable look : looks) {
+      if (!look.hasLattice()) {
+        throw new IllegalArgumentException("LookupTable " + look.name + " has no lattice.");
+      }
+    }
+    return bake(
+        name,
+        id,
+        color -> {
+          for (LookupTable look : looks) {
+            color = look.lookup(color);
+          }
+          return color;
+        },
+        latticeSize);
+  }
+
+  /**
+   * Returns a table with the grayscale conversion of this one folded into its lattice, or this
+   * table if there is nothing to fold. Every lattice point of the result is exactly what {@link
+   * #lookup} returns for it here, so the two only differ by interpolation between points. The
+   * result is an ordinary look that needs no grayscale handling when it is applied.
+   */
+  public LookupTable bakeGrayscale() {
+    if (!isGrayscale || lattice == null) {
+      return this;
+    }
+    return bake(name, id, this::lookup, latticeSize);
+  }
+
+  /** A color transform on 0xRRGGBB colors that can be baked into a lattice. */
+  interface ColorTransform {
+    int apply(int color);
+  }
+
+  /** Computes the 0xRRGGBB value of the lattice point at the given indices. */
+  private interface LatticeFunction {
+    int apply(int r, int g, int b);
+  }
+
+  /**
+   * Evaluates {@code transform} at every point of a new lattice, in parallel, one blue slice per
+   * task. {@code transform} must be safe to call from several threads.
+   */
+  static LookupTable bake(String name, int id, ColorTransform transform, int latticeSize) {
+    checkLatticeSize(latticeSize);
+    // 8-bit channel value of each lattice coordinate, rounded to nearest.
+    int maxIndex = latticeSize - 1;
+    int[] values = new int[latticeSize];
+    for (int i = 0; i < latticeSize; i++) {
+      values[i] = (i * 255 + maxIndex / 2) / maxIndex;
+    }
+    int[] lattice =
+        fillLattice(
+            latticeSize,
+            (r, g, b) -> transform.apply((values[r] << 16) | (values[g] << 8) | values[b]));
+    return new LookupTable(
+        name,
+        /* isGrayscale= */ false,
+        id,
+        lattice,
+        latticeSize,
+        /* shaper= */ null,
+        /* isLocalOnly= */ false);
+  }
+
+  /**
+   * Returns a table that applies {@code transform} to every output of this one. It keeps the
+   * lattice size, shaper and grayscale handling, and is exact at the lattice points, so the result
+   * is as accurate as this table. {@code transform} must be safe to call from several threads.
+   */
+  LookupTable transformOutputs(ColorTransform transform) {
+    if (lattice == null) {
+      throw new IllegalStateException("LookupTable " + name + " has no lattice data.");
+    }
+    int[] transformed = new int[lattice.length];
+    IntStream.range(0, lattice.length)
+        .parallel()
+        .forEach(i -> transformed[i] = transform.apply(lattice[i]));
+    return new LookupTable(
+        name, isGrayscale, id, transformed, latticeSize, shaper, isLocalOnly);
+  }
+
+  /**
+   * Returns this table with {@code latticeSize} points in each dimension, or this table if it
+   * already has that size. New points are trilinearly interpolated from the current lattice, in
+   * parallel, so upsampling keeps the look exactly and downsampling trades accuracy for a smaller
+   * table that stays in cache. Grayscale handling and the shaper are unchanged, the lattice is
+   * resampled in shaped coordinates.
+   */
+  public LookupTable resample(int latticeSize) {
+    if (lattice == null) {
+      throw new IllegalStateException("LookupTable " + name + " has no lattice data.");
+    }
+    checkLatticeSize(latticeSize);
+    if (latticeSize == this.latticeSize) {
+      return this;
+    }
+    // Position of each new coordinate between two points of the current lattice.
+    int maxIndex = latticeSize - 1;
+    int sourceMaxIndex = this.latticeSize - 1;
+    int[] sourceIndex = new int[latticeSize];
+    int[] sourceWeight = new int[latticeSize];
+    for (int i = 0; i < latticeSize; i++) {
+      int position = i * sourceMaxIndex;
+      int index = Math.min(position / maxIndex, sourceMaxIndex - 1);
+      sourceIndex[i] = index;
+      sourceWeight[i] = ((position - index * maxIndex) * 256 + maxIndex / 2) / maxIndex;
+    }
+    int rowStride = this.latticeSize;
+    int sliceStride = rowStride * rowStride;
+    int[] resampled =
+        fillLattice(
+            latticeSize,
+            (r, g, b) ->
+                interpolate(
+                    sourceIndex[r] + sourceIndex[g] * rowStride + sourceIndex[b] * sliceStride,
+                    sourceWeight[r],
+                    sourceWeight[g],
+                    sourceWeight[b]));
+    return new LookupTable(name, isGrayscale, id, resampled, latticeSize, shaper, isLocalOnly);
+  }
+
+  /** Fills a new lattice in parallel, one blue slice per task. */
+  private static int[] fillLattice(int latticeSize, LatticeFunction function) {
+    int[] lattice = new int[latticeSize * latticeSize * latticeSize];
+    IntStream.range(0, latticeSize)
+        .parallel()
+        .forEach(
+            b -> {
+              int index = b * latticeSize * latticeSize;
+              for (int g = 0; g < latticeSize; g++) {
+                for (int r = 0; r < latticeSize; r++) {
+                  lattice[index++] = function.apply(r, g, b) & 0xFFFFFF;
+                }
+              }
+            });
+    return lattice;
+  }
+
+  private static void checkLatticeSize(int latticeSize) {
+    if (latticeSize < MIN_LATTICE_SIZE || latticeSize > MAX_LATTICE_SIZE) {
+      throw new IllegalArgumentException("Unsupported lattice size " + latticeSize);
+    }
+  }
+
+  private static void checkShaper(float[][] shaper) {
+    if (shaper.length != 3) {
+      throw new IllegalArgumentException("Shaper needs 3 curves, got " + shaper.length);
+    }
+    for (float[] curve : shaper) {
+      if (curve.length != 256) {
+        throw new IllegalArgumentException("Shaper curve of length " + curve.length);
+      }
+      float previous = 0f;
+      for (float coordinate : curve) {
+        if (!(coordinate >= previous && coordinate <= 1f)) {
+          throw new IllegalArgumentException("Shaper curve is not non-decreasing in [0, 1].");
+        }
+        previous = coordinate;
+      }
+    }
+  }
+
+  private LookupTable(
+      String name,
+      boolean isGrayscale,
+      int id,
+      @Nullable int[] lattice,
+      int latticeSize,
+      @Nullable float[][] shaper,
+      boolean isLocalOnly) {
+    this.name = name;
+    this.isGrayscale = isGrayscale;
+    this.id = id;
+    this.lattice = lattice;
+    this.latticeSize = latticeSize;
+    this.shaper = shaper;
+    this.isLocalOnly = isLocalOnly;
+    if (lattice == null) {
+      latticeIndex = null;
+      latticeWeight = null;
+      return;
+    }
+    latticeIndex = new int[3][];
+    latticeWeight = new int[3][];
+    int maxIndex = latticeSize - 1;
+    for (int channel = 0; channel < 3; channel++) {
+      if (shaper == null && channel > 0) {
+        // Evenly spaced points are the same for every channel.
+        latticeIndex[channel] = latticeIndex[0];
+        latticeWeight[channel] = latticeWeight[0];
+        continue;
+      }
+      int[] indices = new int[256];
+      int[] weights = new int[256];
+      for (int value = 0; value < 256; value++) {
+        if (shaper == null) {
+          int position = value * maxIndex;
+          int index = Math.min(position / 255, maxIndex - 1);
+          indices[value] = index;
+          weights[value] = ((position - index * 255) * 256 + 127) / 255;
+        } else {
+          float position = shaper[channel][value] * maxIndex;
+          int index = Math.min((int) position, maxIndex - 1);
+          indices[value] = index;
+          weights[value] = Math.round((position - index) * 256);
+        }
+      }
+      latticeIndex[channel] = indices;
+      latticeWeight[channel] = weights;
+    }
+  }
+
+  // TODO(suhongjin): Display names along with the filters.
+  public String getName() {
+    return name;
+  }
+
+  public boolean isGrayscale() {
+    return isGrayscale;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Whether this look only exists on this device, like a look with adjustments baked in. Its id
+   * names the look it was made from, so it must be applied on the device to keep its changes.
+   */
+  public boolean isLocalOnly() {
+    return isLocalOnly;
+  }
+
+  /** Returns this table marked as {@link #isLocalOnly local only}. */
+  public LookupTable asLocalOnly() {
+    if (isLocalOnly) {
+      return this;
+    }
+    return new LookupTable(
+        name, isGrayscale, id, lattice, latticeSize, shaper, /* isLocalOnly= */ true);
+  }
+
+  /** Whether this table carries lattice data and can be applied with {@link #apply}. */
+  public boolean hasLattice() {
+    return lattice != null;
+  }
+
+  public int getLatticeSize() {
+    return latticeSize;
+  }
+
+  public boolean hasShaper() {
+    return shaper != null;
+  }
+
+  /**
+   * Returns the shaper as 256 opaque ARGB pixels, one per 8-bit value, with the lattice coordinate
+   * of each channel scaled to 0..255 in that channel. Evenly spaced coordinates if there is no
+   * shaper, so looks with and without one can share a shaper texture.
+   */
+  public int[] getShaperPixels() {
+    int[] pixels = new int[256];
+    for (int value = 0; value < 256; value++) {
+      int pixel = 0xFF000000;
+      for (int channel = 0; channel < 3; channel++) {
+        int coordinate =
+            shaper == null ? value : Math.round(shaper[channel][value] * 255f);
+        pixel |= coordinate << (16 - 8 * channel);
+      }
+      pixels[value] = pixel;
+    }
+    return pixels;
+  }
+
+  /** Returns the lattice coordinate of an 8-bit value of a channel, 0 red to 2 blue. */
+  float getShaperCoordinate(int channel, int value) {
+    return shaper == null ? value / 255f : shaper[channel][value];
+  }
+
+  /**
+   * Returns the lattice as opaque ARGB pixels in the layout of the LUT bitmaps from Photos, {@code
+   * latticeSize} wide and {@code latticeSize}^2 high, so that a composed look can be stitched into
+   * the atlas like any other.
+   */
+  public int[] getLatticePixels() {
+    if (lattice == null) {
+      throw new IllegalStateException("LookupTable " + name + " has no lattice data.");
+    }
+    int[] pixels = new int[lattice.length];
+    for (int i = 0; i < lattice.length; i++) {
+      pixels[i] = 0xFF000000 | lattice[i];
+    }
+    return pixels;
+  }
+
+  /**
+   * Applies this table in place to {@code count} ARGB pixels starting at {@code offset}.
+   *
+   * <p>Mirrors the shader: grayscale looks are converted to luma first, then the lattice is
+   * sampled with trilinear interpolation. Alpha is forced to opaque.
+   */
+  public void apply(int[] pixels, int offset, int count) {
+    if (lattice == null) {
+      throw new IllegalStateException("LookupTable " + name + " has no lattice data.");
+    }
+    for (int i = offset; i < offset + count; i++) {
+      pixels[i] = 0xFF000000 | lookup(pixels[i]);
+    }
+  }
+
+  /**
+   * Returns the 0xRRGGBB result of this table for a single 0xRRGGBB pixel. Lets other per-pixel
+   * passes fuse the lookup instead of running {@link #apply} as a separate pass.
+   */
+  int lookup(int color) {
+    int r = (color >> 16) & 0xFF;
+    int g = (color >> 8) & 0xFF;
+    int b = color & 0xFF;
+    if (isGrayscale) {
+      // Luma weights 0.3, 0.59 and 0.11 in 8-bit fixed point.
+      r = g = b = (77 * r + 151 * g + 28 * b) >> 8;
+    }
+    int rowStride = latticeSize;
+    int sliceStride = latticeSize * latticeSize;
+    int base =
+        latticeIndex[0][r] + latticeIndex[1][g] * rowStride + latticeIndex[2][b] * sliceStride;
+    return interpolate(base, latticeWeight[0][r], latticeWeight[1][g], latticeWeight[2][b]);
+  }
+
+  /**
+   * Returns the 0xRRGGBB value of the lattice at fractional channel values from 0 to 255, without
+   * the grayscale step or the shaper. Lets fitting tools evaluate this table between 8-bit values.
+   */
+  int sampleLattice(float r, float g, float b) {
+    int maxIndex = latticeSize - 1;
+    float positionR = r / 255f * maxIndex;
+    float positionG = g / 255f * maxIndex;
+    float positionB = b / 255f * maxIndex;
+    int indexR = Math.max(0, Math.min((int) positionR, maxIndex - 1));
+    int indexG = Math.max(0, Math.min((int) positionG, maxIndex - 1));
+    int indexB = Math.max(0, Math.min((int) positionB, maxIndex - 1));
+    return interpolate(
+        indexR + indexG * latticeSize + indexB * latticeSize * latticeSize,
+        Math.round((positionR - indexR) * 256),
+        Math.round((positionG - indexG) * 256),
+        Math.round((positionB - indexB) * 256));
+  }
+
+  /**
+   * Trilinearly interpolates the lattice cell whose lowest corner is at {@code base}, with weights
+   * in 0..256 towards the upper corner.
+   */
+  private int interpolate(int base, int wr, int wg, int wb) {
+    int rowStride = latticeSize;
+    int sliceStride = latticeSize * latticeSize;
+    int c00 = lerp(lattice[base], lattice[base + 1], wr);
+    int c10 = lerp(lattice[base + rowStride], lattice[base + rowStride + 1], wr);
+    int c01 = lerp(lattice[base + sliceStride], lattice[base + sliceStride + 1], wr);
+    int c11 =
+        lerp(
+            lattice[base + sliceStride + rowStride],
+            lattice[base + sliceStride + rowStride + 1],
+            wr);
+    return lerp(lerp(c00, c10, wg), lerp(c01, c11, wg), wb);
+  }
+
+  /** Interpolates two packed 0xRRGGBB colors with a weight in 0..256. */
+  private static int lerp(int from, int to, int weight) {
+    int inverse = 256 - weight;
+    int redBlue = ((from & 0xFF00FF) * inverse + (to & 0xFF00FF) * weight) >>> 8;
+    int green = ((from & 0x00FF00) * inverse + (to & 0x00FF00) * weight) >>> 8;
+    return (redBlue & 0xFF00FF) | (green & 0x00FF00);
+  }
+}
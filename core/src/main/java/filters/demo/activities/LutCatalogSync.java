@@ -0,0 +1,214 @@
+package filters.demo.activities;
+
+import android.support.annotation.Nullable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Brings the catalog of looks up to date with a provider, moving only what changed.
+ *
+ * <p>A sync first fetches the {@link Manifest}, the ids of the looks in catalog order and a
+ * content hash of each. Looks whose hash matches the pack cached by the previous sync are taken
+ * from that pack, which is memory mapped. The others are fetched as {@link LutPack}s of a few looks
+ * at a time in priority order: the selected look first, then the page the nine-tile view shows,
+ * then the rest. After every batch the callback gets the whole catalog, so the renderer can swap
+ * in updated looks while the remaining ones are still on their way. The first callback comes only
+ * once the selected look and the visible page are complete. Looks not fetched yet are identity
+ * placeholders until their batch arrives.
+ *
+ * <p>IPC volume therefore scales with what changed, and an unchanged catalog costs one manifest
+ * call.
+ */
+final class LutCatalogSync {
+
+  /** Number of looks the nine-tile view shows. */
+  static final int PAGE_SIZE = 9;
+  /** Looks fetched per call after the first page. */
+  private static final int BATCH_SIZE = 16;
+
+  /** Ids and content hashes of a catalog, in catalog order. */
+  static final class Manifest {
+    final int[] ids;
+    final long[] hashes;
+
+    Manifest(int[] ids, long[] hashes) {
+      if (ids.length != hashes.length) {
+        throw new IllegalArgumentException(
+            ids.length + " ids but " + hashes.length + " content hashes.");
+      }
+      this.ids = ids;
+      this.hashes = hashes;
+    }
+  }
+
+  /** Where looks come from, normally {@code PartnerContentProviderCaller}. */
+  interface Source {
+    /** Returns the manifest, or null if the provider does not support syncing. */
+    @Nullable
+    Manifest getManifest();
+
+    /** Returns a pack of the looks with {@code ids}, or null on failure. */
+    @Nullable
+    LutPack getLooks(int[] ids);
+  }
+
+  /** Receives the catalog on the syncing thread. */
+  interface Callback {
+    /** @param catalog Every look of the manifest, in catalog order. */
+    void onCatalogChanged(List<LookupTable> catalog);
+  }
+
+  private final Source source;
+  private final File cacheFile;
+  private final Callback callback;
+
+  /**
+   * @param cacheFile Pack of the catalog as of the previous sync, rewritten whenever a sync
+   *     fetched looks. Keeps the hashes of the manifest, so looks match it however they decode.
+   */
+  LutCatalogSync(Source source, File cacheFile, Callback callback) {
+    this.source = source;
+    this.cacheFile = cacheFile;
+    this.callback = callback;
+  }
+
+  /**
+   * Syncs on the calling thread, which must not be the main thread.
+   *
+   * @param selectedId Id of the selected look, fetched first, or an id not in the catalog if
+   *     none is selected.
+   * @return False if the provider has no manifest, in which case nothing was delivered. True if
+   *     the catalog was delivered, even if some looks could not be fetched and stayed placeholders.
+   */
+  boolean sync(int selectedId) {
+    Manifest manifest = source.getManifest();
+    if (manifest == null) {
+      return false;
+    }
+    int count = manifest.ids.length;
+    LookupTable[] catalog = new LookupTable[count];
+    Map<Integer, Integer> positions = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      positions.put(manifest.ids[i], i);
+    }
+
+    // Unchanged looks come from the cache.
+    LutPack cached = openCache();
+    for (int i = 0; cached != null && i < count; i++) {
+      int index = cached.indexOf(manifest.ids[i]);
+      if (index >= 0 && cached.getContentHash(index) == manifest.hashes[i]) {
+        catalog[i] = cached.toLookupTable(index);
+      }
+    }
+
+    // Everything else in priority order.
+    Set<Integer> missing = new LinkedHashSet<>();
+    Integer selected = positions.get(selectedId);
+    if (selected != null && catalog[selected] == null) {
+      missing.add(selected);
+    }
+    for (int i = 0; i < count; i++) {
+      if (catalog[i] == null) {
+        missing.add(i);
+      }
+    }
+    int firstBatchSize = 0;
+    for (int position : missing) {
+      if (position < PAGE_SIZE || (selected != null && position == selected)) {
+        firstBatchSize++;
+      }
+    }
+
+    List<Integer> queue = new ArrayList<>(missing);
+    boolean complete = true;
+    int start = 0;
+    if (firstBatchSize == 0) {
+      deliver(catalog, manifest);
+    }
+    while (start < queue.size()) {
+      int batchSize = start == 0 && firstBatchSize > 0 ? firstBatchSize : BATCH_SIZE;
+      List<Integer> batch = queue.subList(start, Math.min(queue.size(), start + batchSize));
+      start += batch.size();
+      complete &= fetch(batch, manifest, catalog);
+      deliver(catalog, manifest);
+    }
+    if (complete && !queue.isEmpty()) {
+      writeCache(catalog, manifest);
+    }
+    return true;
+  }
+
+  /** Fetches the looks at {@code batch} into {@code catalog}. Returns false if any failed. */
+  private boolean fetch(List<Integer> batch, Manifest manifest, LookupTable[] catalog) {
+    int[] ids = new int[batch.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = manifest.ids[batch.get(i)];
+    }
+    LutPack pack = source.getLooks(ids);
+    if (pack == null) {
+      return false;
+    }
+    boolean complete = true;
+    for (int position : batch) {
+      int index = pack.indexOf(manifest.ids[position]);
+      if (index < 0) {
+        complete = false;
+        continue;
+      }
+      catalog[position] = pack.toLookupTable(index);
+    }
+    return complete;
+  }
+
+  private void deliver(LookupTable[] catalog, Manifest manifest) {
+    List<LookupTable> looks = new ArrayList<>(catalog.length);
+    for (int i = 0; i < catalog.length; i++) {
+      looks.add(catalog[i] != null ? catalog[i] : createPlaceholder(manifest.ids[i]));
+    }
+    callback.onCatalogChanged(looks);
+  }
+
+  @Nullable
+  private LutPack openCache() {
+    if (!cacheFile.isFile()) {
+      return null;
+    }
+    try {
+      return LutPack.open(cacheFile);
+    } catch (IOException e) {
+      // A cache of another version or a torn write, everything is fetched again.
+      return null;
+    }
+  }
+
+  /** Replaces the cache. The old file stays mapped until its pack is collected. */
+  private void writeCache(LookupTable[] catalog, Manifest manifest) {
+    File temporary = new File(cacheFile.getPath() + ".tmp");
+    try (FileOutputStream output = new FileOutputStream(temporary)) {
+      LutPack.write(
+          Arrays.asList(catalog),
+          8,
+          LutPack.ENCODING_RAW,
+          manifest.hashes,
+          output.getChannel());
+    } catch (IOException e) {
+      temporary.delete();
+      return;
+    }
+    if (!temporary.renameTo(cacheFile)) {
+      temporary.delete();
+    }
+  }
+
+  private static LookupTable createPlaceholder(int id) {
+    return LookupTable.bake("", id, color -> color, LookupTable.MIN_LATTICE_SIZE);
+  }
+}
@@ -0,0 +1,438 @@
+package filters.demo.activities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Builds {@link LookupTable}s from files, so looks can be shipped without Photos: Adobe {@code
+ * .cube} files and HaldCLUT images.
+ *
+ * <p>{@code .cube} files are streamed through a fixed {@value #BUFFER_SIZE} byte buffer and parsed
+ * in place, with no per line strings or objects. The only allocations that grow with the file are
+ * the lattice and the 1D table. A 65^3 file, about 275 thousand lines, parses in tens of
+ * milliseconds.
+ *
+ * <p>Supported {@code .cube} keywords are {@code TITLE}, {@code LUT_3D_SIZE}, {@code LUT_1D_SIZE},
+ * {@code DOMAIN_MIN}, {@code DOMAIN_MAX}, {@code LUT_1D_INPUT_RANGE} and {@code
+ * LUT_3D_INPUT_RANGE}, other keywords are skipped. A 1D table in front of a 3D one, as written by
+ * Resolve, becomes the shaper of the look. A 1D table on its own is baked into a lattice.
+ */
+final class LutImporter {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /** Longest keyword that is recognized, longer ones are skipped. */
+  private static final int MAX_KEYWORD_LENGTH = 32;
+  /** Largest 1D table, per the specification. */
+  private static final int MAX_1D_SIZE = 65536;
+
+  private static final byte[] TITLE = ascii("TITLE");
+  private static final byte[] LUT_3D_SIZE = ascii("LUT_3D_SIZE");
+  private static final byte[] LUT_1D_SIZE = ascii("LUT_1D_SIZE");
+  private static final byte[] DOMAIN_MIN = ascii("DOMAIN_MIN");
+  private static final byte[] DOMAIN_MAX = ascii("DOMAIN_MAX");
+  private static final byte[] LUT_1D_INPUT_RANGE = ascii("LUT_1D_INPUT_RANGE");
+  private static final byte[] LUT_3D_INPUT_RANGE = ascii("LUT_3D_INPUT_RANGE");
+
+  private static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+    1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+  };
+
+  private static final int END_OF_FILE = -1;
+
+  private final ReadableByteChannel channel;
+  private final ByteBuffer buffer;
+  private final byte[] keyword = new byte[MAX_KEYWORD_LENGTH];
+  private int keywordLength;
+  private int line = 1;
+
+  private LutImporter(ReadableByteChannel channel) {
+    this.channel = channel;
+    buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    buffer.limit(0);
+  }
+
+  /** Reads a {@code .cube} file. */
+  static LookupTable readCube(String name, int id, File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return readCube(name, id, channel);
+    }
+  }
+
+  /** Reads a {@code .cube} file, for example from the assets. Does not close {@code input}. */
+  static LookupTable readCube(String name, int id, InputStream input) throws IOException {
+    return readCube(name, id, Channels.newChannel(input));
+  }
+
+  /**
+   * Reads a {@code .cube} file from {@code channel} up to its end. Does not close it.
+   *
+   * @throws IOException If reading fails or the file is malformed or unsupported. The message
+   *     names the line.
+   */
+  static LookupTable readCube(String name, int id, ReadableByteChannel channel)
+      throws IOException {
+    return new LutImporter(channel).parseCube(name, id);
+  }
+
+  /**
+   * Builds a look from the pixels of a HaldCLUT image of level {@code L}, which is {@code L}^3
+   * pixels square and holds a lattice of size {@code L}^2 in the same order as {@link
+   * LookupTable}, red fastest. Levels 2 to 16 are supported.
+   *
+   * @param pixels ARGB pixels, row by row. Alpha is ignored.
+   */
+  static LookupTable fromHaldClut(String name, int id, int[] pixels, int width, int height) {
+    int level = (int) Math.round(Math.cbrt(width));
+    int latticeSize = level * level;
+    if (width != height
+        || level * level * level != width
+        || latticeSize < LookupTable.MIN_LATTICE_SIZE
+        || latticeSize > LookupTable.MAX_LATTICE_SIZE
+        || pixels.length < width * height) {
+      throw new IllegalArgumentException(
+          "Not a supported HaldCLUT image: " + width + "x" + height);
+    }
+    int[] lattice = new int[width * height];
+    for (int i = 0; i < lattice.length; i++) {
+      lattice[i] = pixels[i] & 0xFFFFFF;
+    }
+    return LookupTable.create(name, /* isGrayscale= */ false, id, lattice, latticeSize);
+  }
+
+  private LookupTable parseCube(String name, int id) throws IOException {
+    int size3d = 0;
+    int size1d = 0;
+    float inputMin3d = 0f;
+    float inputMax3d = 1f;
+    int[] lattice = null;
+    float[][] table1d = null;
+    int count3d = 0;
+    int count1d = 0;
+
+    while (true) {
+      skipBlanks();
+      int c = peek();
+      if (c == END_OF_FILE) {
+        break;
+      }
+      if (c == '\n' || c == '#') {
+        skipLine();
+        continue;
+      }
+      if (isLetter(c)) {
+        readKeyword();
+        if (matchesKeyword(TITLE)) {
+          skipLine();
+          continue;
+        } else if (matchesKeyword(LUT_3D_SIZE)) {
+          size3d = readSize(LookupTable.MIN_LATTICE_SIZE, LookupTable.MAX_LATTICE_SIZE);
+          lattice = new int[size3d * size3d * size3d];
+        } else if (matchesKeyword(LUT_1D_SIZE)) {
+          size1d = readSize(2, MAX_1D_SIZE);
+          table1d = new float[3][size1d];
+        } else if (matchesKeyword(DOMAIN_MIN)) {
+          expectDomain(0f);
+        } else if (matchesKeyword(DOMAIN_MAX)) {
+          expectDomain(1f);
+        } else if (matchesKeyword(LUT_1D_INPUT_RANGE)) {
+          if (readFloat() != 0f || readFloat() != 1f) {
+            throw error("Only a 1D input range of 0 to 1 is supported");
+          }
+        } else if (matchesKeyword(LUT_3D_INPUT_RANGE)) {
+          inputMin3d = readFloat();
+          inputMax3d = readFloat();
+          if (!(inputMax3d > inputMin3d)) {
+            throw error("Empty 3D input range");
+          }
+        } else {
+          skipLine();
+          continue;
+        }
+        expectEndOfLine();
+        continue;
+      }
+
+      // A data line. The 1D table comes first if there are both.
+      float r = readFloat();
+      float g = readFloat();
+      float b = readFloat();
+      expectEndOfLine();
+      if (table1d != null && count1d < size1d) {
+        table1d[0][count1d] = r;
+        table1d[1][count1d] = g;
+        table1d[2][count1d] = b;
+        count1d++;
+      } else if (lattice != null && count3d < lattice.length) {
+        lattice[count3d++] = (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+      } else {
+        throw error("Unexpected data, no LUT size declared or too many entries");
+      }
+    }
+
+    if (table1d != null && count1d != size1d) {
+      throw error("Expected " + size1d + " 1D entries, got " + count1d);
+    }
+    if (lattice == null) {
+      if (table1d == null) {
+        throw error("No LUT_3D_SIZE or LUT_1D_SIZE");
+      }
+      float[][] curves = table1d;
+      return LookupTable.bake(
+          name,
+          id,
+          color ->
+              (toByte(evaluate(curves[0], (color >> 16) & 0xFF)) << 16)
+                  | (toByte(evaluate(curves[1], (color >> 8) & 0xFF)) << 8)
+                  | toByte(evaluate(curves[2], color & 0xFF)),
+          LookupTable.DEFAULT_LATTICE_SIZE);
+    }
+    if (count3d != lattice.length) {
+      throw error("Expected " + lattice.length + " 3D entries, got " + count3d);
+    }
+    float[][] shaper = null;
+    if (table1d != null) {
+      shaper = toShaper(table1d, inputMin3d, inputMax3d);
+    } else if (inputMin3d != 0f || inputMax3d != 1f) {
+      throw error("A 3D input range other than 0 to 1 needs a 1D table");
+    }
+    return LookupTable.create(name, /* isGrayscale= */ false, id, lattice, size3d, shaper);
+  }
+
+  /** Lattice coordinates of the 1D table outputs within the 3D input range, per 8-bit value. */
+  private float[][] toShaper(float[][] table1d, float inputMin3d, float inputMax3d)
+      throws IOException {
+    float[][] shaper = new float[3][256];
+    for (int channel = 0; channel < 3; channel++) {
+      float previous = 0f;
+      for (int value = 0; value < 256; value++) {
+        float coordinate =
+            (evaluate(table1d[channel], value) - inputMin3d) / (inputMax3d - inputMin3d);
+        if (coordinate < previous - 1e-3f) {
+          throw error("The 1D table must not decrease when used as a shaper");
+        }
+        // Within rounding of the file, but LookupTable wants exactly non-decreasing curves.
+        coordinate = Math.max(previous, Math.min(1f, coordinate));
+        shaper[channel][value] = coordinate;
+        previous = coordinate;
+      }
+    }
+    return shaper;
+  }
+
+  /** Linearly interpolates a 1D table at an 8-bit value. */
+  private static float evaluate(float[] table, int value) {
+    float position = value / 255f * (table.length - 1);
+    int index = Math.min((int) position, table.length - 2);
+    float fraction = position - index;
+    return table[index] + (table[index + 1] - table[index]) * fraction;
+  }
+
+  private void expectDomain(float expected) throws IOException {
+    for (int channel = 0; channel < 3; channel++) {
+      if (readFloat() != expected) {
+        throw error("Only a domain of 0 to 1 is supported");
+      }
+    }
+  }
+
+  private int readSize(int min, int max) throws IOException {
+    float size = readFloat();
+    if (size != (int) size || size < min || size > max) {
+      throw error("Unsupported LUT size " + size);
+    }
+    return (int) size;
+  }
+
+  /**
+   * Parses a decimal float such as {@code 0.5}, {@code -1} or {@code 1.25e-3}. Up to 18 significant
+   * digits are kept, which is far more than a float holds.
+   */
+  private float readFloat() throws IOException {
+    skipBlanks();
+    boolean negative = false;
+    int c = peek();
+    if (c == '-' || c == '+') {
+      negative = c == '-';
+      next();
+      c = peek();
+    }
+    long mantissa = 0;
+    int significantDigits = 0;
+    int exponent = 0;
+    boolean anyDigits = false;
+    while (isDigit(c)) {
+      if (significantDigits < 18) {
+        mantissa = mantissa * 10 + (c - '0');
+        if (mantissa != 0) {
+          significantDigits++;
+        }
+      } else {
+        exponent++;
+      }
+      anyDigits = true;
+      next();
+      c = peek();
+    }
+    if (c == '.') {
+      next();
+      c = peek();
+      while (isDigit(c)) {
+        if (significantDigits < 18) {
+          mantissa = mantissa * 10 + (c - '0');
+          if (mantissa != 0) {
+            significantDigits++;
+          }
+          exponent--;
+        }
+        anyDigits = true;
+        next();
+        c = peek();
+      }
+    }
+    if (!anyDigits) {
+      throw error("Expected a number");
+    }
+    if (c == 'e' || c == 'E') {
+      next();
+      c = peek();
+      boolean negativeExponent = false;
+      if (c == '-' || c == '+') {
+        negativeExponent = c == '-';
+        next();
+        c = peek();
+      }
+      if (!isDigit(c)) {
+        throw error("Expected an exponent");
+      }
+      int explicitExponent = 0;
+      while (isDigit(c)) {
+        explicitExponent = Math.min(explicitExponent * 10 + (c - '0'), 1000);
+        next();
+        c = peek();
+      }
+      exponent += negativeExponent ? -explicitExponent : explicitExponent;
+    }
+    if (c != END_OF_FILE && !isBlank(c) && c != '\n' && c != '#') {
+      throw error("Malformed number");
+    }
+
+    double value = mantissa;
+    int magnitude = Math.abs(exponent);
+    double scale =
+        magnitude < POWERS_OF_TEN.length ? POWERS_OF_TEN[magnitude] : Math.pow(10, magnitude);
+    value = exponent < 0 ? value / scale : value * scale;
+    return (float) (negative ? -value : value);
+  }
+
+  private void readKeyword() throws IOException {
+    keywordLength = 0;
+    int c = peek();
+    while (isLetter(c) || isDigit(c) || c == '_') {
+      if (keywordLength < MAX_KEYWORD_LENGTH) {
+        keyword[keywordLength] = (byte) c;
+      }
+      keywordLength++;
+      next();
+      c = peek();
+    }
+  }
+
+  private boolean matchesKeyword(byte[] expected) {
+    if (keywordLength != expected.length) {
+      return false;
+    }
+    for (int i = 0; i < keywordLength; i++) {
+      if (keyword[i] != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Skips blanks and a comment, then the line break. Anything else is an error. */
+  private void expectEndOfLine() throws IOException {
+    skipBlanks();
+    int c = peek();
+    if (c == '#' || c == '\n' || c == END_OF_FILE) {
+      skipLine();
+    } else {
+      throw error("Unexpected content at end of line");
+    }
+  }
+
+  /** Skips up to and including the next line break. */
+  private void skipLine() throws IOException {
+    int c;
+    do {
+      c = next();
+    } while (c != '\n' && c != END_OF_FILE);
+    if (c == '\n') {
+      line++;
+    }
+  }
+
+  private void skipBlanks() throws IOException {
+    while (isBlank(peek())) {
+      next();
+    }
+  }
+
+  /** Returns the next byte without consuming it, or {@link #END_OF_FILE}. */
+  private int peek() throws IOException {
+    if (!buffer.hasRemaining() && !fill()) {
+      return END_OF_FILE;
+    }
+    return buffer.get(buffer.position()) & 0xFF;
+  }
+
+  /** Consumes and returns the next byte, or {@link #END_OF_FILE}. */
+  private int next() throws IOException {
+    if (!buffer.hasRemaining() && !fill()) {
+      return END_OF_FILE;
+    }
+    return buffer.get() & 0xFF;
+  }
+
+  /** Reads the next chunk into the empty buffer. Returns false at the end of the channel. */
+  private boolean fill() throws IOException {
+    buffer.clear();
+    int read;
+    do {
+      read = channel.read(buffer);
+    } while (read == 0);
+    buffer.flip();
+    return read > 0;
+  }
+
+  private IOException error(String message) {
+    return new IOException("Line " + line + ": " + message + ".");
+  }
+
+  private static boolean isBlank(int c) {
+    return c == ' ' || c == '\t' || c == '\r';
+  }
+
+  private static boolean isDigit(int c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isLetter(int c) {
+    return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+  }
+
+  private static int toByte(float value) {
+    return Math.max(0, Math.min(255, Math.round(value * 255f)));
+  }
+
+  private static byte[] ascii(String value) {
+    return value.getBytes(StandardCharsets.US_ASCII);
+  }
+}
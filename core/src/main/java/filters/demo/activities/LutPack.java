@@ -0,0 +1,488 @@
+package filters.demo.activities;
+
+import android.support.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A catalog of looks in a versioned binary file that is memory mapped instead of parsed. Opening a
+ * pack only checks its header and entry table, so a whole catalog opens in well under a
+ * millisecond, and every process mapping the same file shares its pages.
+ *
+ * <p>Layout, little endian, version {@value #VERSION}:
+ *
+ * <pre>
+ * header   magic "LUTP", u16 version, u16 entry count, u32 names offset, u32 names length
+ * entries  u32 name offset, u16 name length, u16 flags, i32 id, u16 lattice size,
+ *          u8 bit depth (8 or 16), u8 encoding (raw or delta), u32 payload offset,
+ *          u32 payload length, u64 content hash (0 if unknown)
+ * names    UTF-8, not terminated
+ * payloads each aligned to {@value #PAYLOAD_ALIGNMENT} bytes: the shaper if flagged, as three
+ *          curves of 256 u16 coordinates, then the lattice in {@link LookupTable} order
+ * </pre>
+ *
+ * <p>8-bit lattices are RGBA, 4 bytes per point, so a raw one is {@code latticeSize} wide and
+ * {@code latticeSize}^2 high as is and goes to {@code glTexImage2D} without a copy, see {@link
+ * #getTexturePixels}. 16-bit lattices are RGB, 6 bytes per point. Delta coded lattices store each
+ * channel as the difference to the previous point, wrapping around, which makes smooth looks
+ * compress well when a pack is downloaded; they are decoded on use. This class has no Android
+ * dependencies.
+ */
+final class LutPack {
+
+  static final int VERSION = 1;
+  static final int ENCODING_RAW = 0;
+  static final int ENCODING_DELTA = 1;
+
+  private static final int MAGIC = 0x5054554C; // "LUTP", little endian.
+  private static final int HEADER_SIZE = 16;
+  private static final int ENTRY_SIZE = 32;
+  private static final int PAYLOAD_ALIGNMENT = 64;
+  private static final int SHAPER_SIZE = 3 * 256 * 2;
+  private static final int READ_CHUNK_SIZE = 256 * 1024;
+
+  private static final int FLAG_GRAYSCALE = 1;
+  private static final int FLAG_SHAPER = 2;
+
+  private static final int ENTRY_NAME_OFFSET = 0;
+  private static final int ENTRY_NAME_LENGTH = 4;
+  private static final int ENTRY_FLAGS = 6;
+  private static final int ENTRY_ID = 8;
+  private static final int ENTRY_LATTICE_SIZE = 12;
+  private static final int ENTRY_BIT_DEPTH = 14;
+  private static final int ENTRY_ENCODING = 15;
+  private static final int ENTRY_PAYLOAD_OFFSET = 16;
+  private static final int ENTRY_PAYLOAD_LENGTH = 20;
+  private static final int ENTRY_CONTENT_HASH = 24;
+
+  private static final long FNV_OFFSET_BASIS = 0xCBF29CE484222325L;
+  private static final long FNV_PRIME = 0x100000001B3L;
+
+  private final ByteBuffer buffer;
+  private final int count;
+  private final int namesOffset;
+
+  private LutPack(ByteBuffer buffer, int count, int namesOffset) {
+    this.buffer = buffer;
+    this.count = count;
+    this.namesOffset = namesOffset;
+  }
+
+  /** Maps a pack file read only. The mapping stays valid after the file is closed. */
+  static LutPack open(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return open(channel);
+    }
+  }
+
+  /**
+   * Maps the whole of a regular file read only, for example one handed over by another process as
+   * a file descriptor. Does not close {@code channel}.
+   */
+  static LutPack open(FileChannel channel) throws IOException {
+    return wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+  }
+
+  /**
+   * Reads a pack from a channel that cannot be mapped, such as a pipe, into a direct buffer. Does
+   * not close {@code channel}.
+   */
+  static LutPack read(ReadableByteChannel channel) throws IOException {
+    ByteBuffer pack = ByteBuffer.allocateDirect(READ_CHUNK_SIZE);
+    while (channel.read(pack) >= 0) {
+      if (!pack.hasRemaining()) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(pack.capacity() * 2);
+        pack.flip();
+        larger.put(pack);
+        pack = larger;
+      }
+    }
+    pack.flip();
+    return wrap(pack);
+  }
+
+  /**
+   * Uses {@code buffer} from its position to its limit as a pack, without copying it.
+   *
+   * @throws IOException If the header or an entry is malformed or of another version.
+   */
+  static LutPack wrap(ByteBuffer buffer) throws IOException {
+    ByteBuffer pack = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    int length = pack.limit();
+    if (length < HEADER_SIZE || pack.getInt(0) != MAGIC) {
+      throw new IOException("Not a LUT pack.");
+    }
+    int version = pack.getShort(4) & 0xFFFF;
+    if (version != VERSION) {
+      throw new IOException("Unsupported LUT pack version " + version + ".");
+    }
+    int count = pack.getShort(6) & 0xFFFF;
+    long namesOffset = pack.getInt(8) & 0xFFFFFFFFL;
+    long namesLength = pack.getInt(12) & 0xFFFFFFFFL;
+    if (HEADER_SIZE + (long) count * ENTRY_SIZE > length || namesOffset + namesLength > length) {
+      throw new IOException("Truncated LUT pack.");
+    }
+    LutPack lutPack = new LutPack(pack, count, (int) namesOffset);
+    for (int i = 0; i < count; i++) {
+      lutPack.checkEntry(i, namesLength);
+    }
+    return lutPack;
+  }
+
+  /**
+   * Writes {@code luts} as a pack. Grayscale looks keep their flag, their lattice is written as is.
+   *
+   * @param bitDepth 8 or 16. 16-bit lattices hold the 8-bit values of {@link LookupTable} scaled
+   *     up, for looks imported at a higher precision later.
+   * @param encoding {@link #ENCODING_RAW} or {@link #ENCODING_DELTA}.
+   */
+  static void write(List<LookupTable> luts, int bitDepth, int encoding, WritableByteChannel out)
+      throws IOException {
+    write(luts, bitDepth, encoding, /* contentHashes= */ null, out);
+  }
+
+  /**
+   * Writes {@code luts} as a pack with the given content hashes instead of their {@link
+   * #contentHash}, for looks that were decoded from another pack and are to keep its hashes.
+   */
+  static void write(
+      List<LookupTable> luts,
+      int bitDepth,
+      int encoding,
+      @Nullable long[] contentHashes,
+      WritableByteChannel out)
+      throws IOException {
+    if (contentHashes != null && contentHashes.length != luts.size()) {
+      throw new IllegalArgumentException("One content hash per look needed.");
+    }
+    if ((bitDepth != 8 && bitDepth != 16)
+        || (encoding != ENCODING_RAW && encoding != ENCODING_DELTA)
+        || luts.size() > 0xFFFF) {
+      throw new IllegalArgumentException("Unsupported bit depth, encoding or look count.");
+    }
+    byte[][] names = new byte[luts.size()][];
+    int namesLength = 0;
+    for (int i = 0; i < luts.size(); i++) {
+      LookupTable lut = luts.get(i);
+      if (!lut.hasLattice()) {
+        throw new IllegalArgumentException("LookupTable " + lut.getName() + " has no lattice.");
+      }
+      names[i] = lut.getName().getBytes(StandardCharsets.UTF_8);
+      namesLength += names[i].length;
+    }
+    int namesOffset = HEADER_SIZE + luts.size() * ENTRY_SIZE;
+    int[] payloadOffsets = new int[luts.size()];
+    int end = namesOffset + namesLength;
+    for (int i = 0; i < luts.size(); i++) {
+      payloadOffsets[i] = align(end);
+      end = payloadOffsets[i] + payloadLength(luts.get(i), bitDepth);
+    }
+
+    ByteBuffer pack = ByteBuffer.allocate(end).order(ByteOrder.LITTLE_ENDIAN);
+    pack.putInt(MAGIC)
+        .putShort((short) VERSION)
+        .putShort((short) luts.size())
+        .putInt(namesOffset)
+        .putInt(namesLength);
+    int nameOffset = 0;
+    for (int i = 0; i < luts.size(); i++) {
+      LookupTable lut = luts.get(i);
+      pack.putInt(nameOffset)
+          .putShort((short) names[i].length)
+          .putShort((short) flags(lut))
+          .putInt(lut.getId())
+          .putShort((short) lut.getLatticeSize())
+          .put((byte) bitDepth)
+          .put((byte) encoding)
+          .putInt(payloadOffsets[i])
+          .putInt(payloadLength(lut, bitDepth))
+          .putLong(contentHashes != null ? contentHashes[i] : contentHash(lut));
+      nameOffset += names[i].length;
+    }
+    for (byte[] name : names) {
+      pack.put(name);
+    }
+    for (int i = 0; i < luts.size(); i++) {
+      pack.position(payloadOffsets[i]);
+      writePayload(pack, luts.get(i), bitDepth, encoding);
+    }
+    pack.flip();
+    while (pack.hasRemaining()) {
+      out.write(pack);
+    }
+  }
+
+  int size() {
+    return count;
+  }
+
+  /** Returns the index of the entry with {@code id}, or -1. */
+  int indexOf(int id) {
+    for (int i = 0; i < count; i++) {
+      if (getId(i) == id) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** The {@link #contentHash} of an entry as written, or 0 if the writer did not record it. */
+  long getContentHash(int index) {
+    return buffer.getLong(entryOffset(index) + ENTRY_CONTENT_HASH);
+  }
+
+  /**
+   * Returns a 64-bit FNV-1a hash of everything a pack stores about {@code lut}: name, id, flags,
+   * lattice and shaper. Equal hashes mean a look need not be transferred again. Never 0.
+   */
+  static long contentHash(LookupTable lut) {
+    long hash = FNV_OFFSET_BASIS;
+    for (byte b : lut.getName().getBytes(StandardCharsets.UTF_8)) {
+      hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+    }
+    hash = hashInt(hash, lut.getId());
+    hash = hashInt(hash, flags(lut));
+    hash = hashInt(hash, lut.getLatticeSize());
+    if (lut.hasLattice()) {
+      for (int point : lut.getLatticePixels()) {
+        hash = hashInt(hash, point);
+      }
+    }
+    if (lut.hasShaper()) {
+      for (int channel = 0; channel < 3; channel++) {
+        for (int value = 0; value < 256; value++) {
+          hash = hashInt(hash, Float.floatToIntBits(lut.getShaperCoordinate(channel, value)));
+        }
+      }
+    }
+    return hash == 0 ? 1 : hash;
+  }
+
+  private static long hashInt(long hash, int value) {
+    for (int shift = 0; shift < 32; shift += 8) {
+      hash = (hash ^ ((value >> shift) & 0xFF)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  String getName(int index) {
+    int entry = entryOffset(index);
+    byte[] name = new byte[buffer.getShort(entry + ENTRY_NAME_LENGTH) & 0xFFFF];
+    ByteBuffer names = buffer.duplicate();
+    names.position(namesOffset + buffer.getInt(entry + ENTRY_NAME_OFFSET));
+    names.get(name);
+    return new String(name, StandardCharsets.UTF_8);
+  }
+
+  int getId(int index) {
+    return buffer.getInt(entryOffset(index) + ENTRY_ID);
+  }
+
+  boolean isGrayscale(int index) {
+    return (flags(index) & FLAG_GRAYSCALE) != 0;
+  }
+
+  int getLatticeSize(int index) {
+    return buffer.getShort(entryOffset(index) + ENTRY_LATTICE_SIZE) & 0xFFFF;
+  }
+
+  int getBitDepth(int index) {
+    return buffer.get(entryOffset(index) + ENTRY_BIT_DEPTH);
+  }
+
+  int getEncoding(int index) {
+    return buffer.get(entryOffset(index) + ENTRY_ENCODING);
+  }
+
+  /**
+   * Returns the lattice as RGBA bytes, {@code latticeSize} wide and {@code latticeSize}^2 high,
+   * ready for {@code glTexImage2D}. For raw 8-bit entries this is a read only view of the pack
+   * itself; other entries are decoded into a new buffer.
+   */
+  ByteBuffer getTexturePixels(int index) {
+    ByteBuffer lattice = latticeBytes(index);
+    if (getBitDepth(index) == 8 && getEncoding(index) == ENCODING_RAW) {
+      return lattice.asReadOnlyBuffer();
+    }
+    int[] points = decodeLattice(index);
+    ByteBuffer pixels = ByteBuffer.allocateDirect(points.length * 4);
+    for (int point : points) {
+      pixels.put((byte) (point >> 16)).put((byte) (point >> 8)).put((byte) point).put((byte) -1);
+    }
+    pixels.flip();
+    return pixels;
+  }
+
+  /** Decodes an entry for use on the CPU. */
+  LookupTable toLookupTable(int index) {
+    return LookupTable.create(
+        getName(index),
+        isGrayscale(index),
+        getId(index),
+        decodeLattice(index),
+        getLatticeSize(index),
+        decodeShaper(index));
+  }
+
+  /** Returns the lattice of an entry as 0xRRGGBB points. */
+  private int[] decodeLattice(int index) {
+    int size = getLatticeSize(index);
+    boolean delta = getEncoding(index) == ENCODING_DELTA;
+    boolean wide = getBitDepth(index) == 16;
+    ByteBuffer bytes = latticeBytes(index).order(ByteOrder.LITTLE_ENDIAN);
+    int[] lattice = new int[size * size * size];
+    int r = 0;
+    int g = 0;
+    int b = 0;
+    int mask = wide ? 0xFFFF : 0xFF;
+    for (int i = 0; i < lattice.length; i++) {
+      int nextR;
+      int nextG;
+      int nextB;
+      if (wide) {
+        nextR = bytes.getShort() & 0xFFFF;
+        nextG = bytes.getShort() & 0xFFFF;
+        nextB = bytes.getShort() & 0xFFFF;
+      } else {
+        nextR = bytes.get() & 0xFF;
+        nextG = bytes.get() & 0xFF;
+        nextB = bytes.get() & 0xFF;
+        bytes.get(); // Alpha.
+      }
+      r = delta ? (r + nextR) & mask : nextR;
+      g = delta ? (g + nextG) & mask : nextG;
+      b = delta ? (b + nextB) & mask : nextB;
+      lattice[i] =
+          wide
+              ? (to8Bit(r) << 16) | (to8Bit(g) << 8) | to8Bit(b)
+              : (r << 16) | (g << 8) | b;
+    }
+    return lattice;
+  }
+
+  @Nullable
+  private float[][] decodeShaper(int index) {
+    if ((flags(index) & FLAG_SHAPER) == 0) {
+      return null;
+    }
+    ByteBuffer bytes = payload(index).order(ByteOrder.LITTLE_ENDIAN);
+    float[][] shaper = new float[3][256];
+    for (int channel = 0; channel < 3; channel++) {
+      for (int value = 0; value < 256; value++) {
+        shaper[channel][value] = (bytes.getShort() & 0xFFFF) / 65535f;
+      }
+    }
+    return shaper;
+  }
+
+  private ByteBuffer latticeBytes(int index) {
+    ByteBuffer payload = payload(index);
+    if ((flags(index) & FLAG_SHAPER) != 0) {
+      payload.position(SHAPER_SIZE);
+      payload = payload.slice();
+    }
+    return payload;
+  }
+
+  private ByteBuffer payload(int index) {
+    int entry = entryOffset(index);
+    int offset = buffer.getInt(entry + ENTRY_PAYLOAD_OFFSET);
+    ByteBuffer payload = buffer.duplicate();
+    payload.limit(offset + buffer.getInt(entry + ENTRY_PAYLOAD_LENGTH)).position(offset);
+    return payload.slice();
+  }
+
+  private int flags(int index) {
+    return buffer.getShort(entryOffset(index) + ENTRY_FLAGS) & 0xFFFF;
+  }
+
+  private int entryOffset(int index) {
+    if (index < 0 || index >= count) {
+      throw new IndexOutOfBoundsException("Entry " + index + " of " + count);
+    }
+    return HEADER_SIZE + index * ENTRY_SIZE;
+  }
+
+  private void checkEntry(int index, long namesLength) throws IOException {
+    int entry = entryOffset(index);
+    long nameEnd =
+        (buffer.getInt(entry + ENTRY_NAME_OFFSET) & 0xFFFFFFFFL)
+            + (buffer.getShort(entry + ENTRY_NAME_LENGTH) & 0xFFFF);
+    int size = getLatticeSize(index);
+    int bitDepth = getBitDepth(index);
+    int encoding = getEncoding(index);
+    long offset = buffer.getInt(entry + ENTRY_PAYLOAD_OFFSET) & 0xFFFFFFFFL;
+    long length = buffer.getInt(entry + ENTRY_PAYLOAD_LENGTH) & 0xFFFFFFFFL;
+    if (nameEnd > namesLength
+        || size < LookupTable.MIN_LATTICE_SIZE
+        || size > LookupTable.MAX_LATTICE_SIZE
+        || (bitDepth != 8 && bitDepth != 16)
+        || (encoding != ENCODING_RAW && encoding != ENCODING_DELTA)
+        || offset + length > buffer.limit()
+        || length != payloadLength(size, bitDepth, (flags(index) & FLAG_SHAPER) != 0)) {
+      throw new IOException("Malformed LUT pack entry " + index + ".");
+    }
+  }
+
+  private static void writePayload(
+      ByteBuffer pack, LookupTable lut, int bitDepth, int encoding) {
+    if (lut.hasShaper()) {
+      for (int channel = 0; channel < 3; channel++) {
+        for (int value = 0; value < 256; value++) {
+          pack.putShort((short) Math.round(lut.getShaperCoordinate(channel, value) * 65535f));
+        }
+      }
+    }
+    boolean wide = bitDepth == 16;
+    int mask = wide ? 0xFFFF : 0xFF;
+    int previousR = 0;
+    int previousG = 0;
+    int previousB = 0;
+    for (int point : lut.getLatticePixels()) {
+      int scale = wide ? 257 : 1;
+      int r = ((point >> 16) & 0xFF) * scale;
+      int g = ((point >> 8) & 0xFF) * scale;
+      int b = (point & 0xFF) * scale;
+      int codedR = encoding == ENCODING_DELTA ? (r - previousR) & mask : r;
+      int codedG = encoding == ENCODING_DELTA ? (g - previousG) & mask : g;
+      int codedB = encoding == ENCODING_DELTA ? (b - previousB) & mask : b;
+      if (wide) {
+        pack.putShort((short) codedR).putShort((short) codedG).putShort((short) codedB);
+      } else {
+        pack.put((byte) codedR).put((byte) codedG).put((byte) codedB).put((byte) 0xFF);
+      }
+      previousR = r;
+      previousG = g;
+      previousB = b;
+    }
+  }
+
+  private static int flags(LookupTable lut) {
+    return (lut.isGrayscale() ? FLAG_GRAYSCALE : 0) | (lut.hasShaper() ? FLAG_SHAPER : 0);
+  }
+
+  private static int payloadLength(LookupTable lut, int bitDepth) {
+    return payloadLength(lut.getLatticeSize(), bitDepth, lut.hasShaper());
+  }
+
+  private static int payloadLength(int latticeSize, int bitDepth, boolean hasShaper) {
+    int points = latticeSize * latticeSize * latticeSize;
+    return (hasShaper ? SHAPER_SIZE : 0) + points * (bitDepth == 8 ? 4 : 6);
+  }
+
+  private static int align(int offset) {
+    return (offset + PAYLOAD_ALIGNMENT - 1) / PAYLOAD_ALIGNMENT * PAYLOAD_ALIGNMENT;
+  }
+
+  private static int to8Bit(int value) {
+    return (value * 255 + 32767) / 65535;
+  }
+}
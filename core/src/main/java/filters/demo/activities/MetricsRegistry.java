@@ -0,0 +1,101 @@
+package filters.demo.activities;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide counters, gauges and latency histograms. {@code DemoActivity} and {@code
+ * FilterDemoContentProvider} print them from {@code dump}, so {@code adb shell dumpsys activity
+ * filters.demo/.activities.DemoActivity} shows them on any build.
+ *
+ * <p>Metrics are looked up by name once, typically into a static field, and recording into them is
+ * lock free and does not allocate. Looking up a name again returns the same metric.
+ */
+final class MetricsRegistry {
+
+  private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+  private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+  private static final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+  private static final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+  /** A count of events that only goes up. */
+  static final class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    void increment() {
+      value.incrementAndGet();
+    }
+
+    void add(long delta) {
+      value.addAndGet(delta);
+    }
+
+    long get() {
+      return value.get();
+    }
+  }
+
+  /** The last reported value of something. */
+  static final class Gauge {
+    private final AtomicLong value = new AtomicLong();
+
+    void set(long newValue) {
+      value.set(newValue);
+    }
+
+    long get() {
+      return value.get();
+    }
+  }
+
+  private MetricsRegistry() {}
+
+  static Counter counter(String name) {
+    return counters.computeIfAbsent(name, unused -> new Counter());
+  }
+
+  static Gauge gauge(String name) {
+    return gauges.computeIfAbsent(name, unused -> new Gauge());
+  }
+
+  /** Returns the histogram of durations in nanoseconds with the given name. */
+  static LatencyHistogram histogram(String name) {
+    return histograms.computeIfAbsent(name, unused -> new LatencyHistogram());
+  }
+
+  /** Prints every metric, sorted by name, with histogram percentiles in milliseconds. */
+  static void dump(String prefix, PrintWriter writer) {
+    writer.print(prefix);
+    writer.println("Counters:");
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      writer.print(prefix);
+      writer.println("  " + entry.getKey() + " = " + entry.getValue().get());
+    }
+    writer.print(prefix);
+    writer.println("Gauges:");
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      writer.print(prefix);
+      writer.println("  " + entry.getKey() + " = " + entry.getValue().get());
+    }
+    writer.print(prefix);
+    writer.println("Latencies (ms):");
+    for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      writer.print(prefix);
+      writer.println(
+          String.format(
+              Locale.US,
+              "  %s n=%d p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+              entry.getKey(),
+              histogram.getCount(),
+              histogram.getValueAtPercentile(50) / NANOS_PER_MILLI,
+              histogram.getValueAtPercentile(90) / NANOS_PER_MILLI,
+              histogram.getValueAtPercentile(99) / NANOS_PER_MILLI,
+              histogram.getMaxNanos() / NANOS_PER_MILLI));
+    }
+  }
+}
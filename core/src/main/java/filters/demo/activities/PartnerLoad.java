@@ -0,0 +1,121 @@
+package filters.demo.activities;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load that {@code LocalLutProvider} puts on its calls to behave like a busy partner: a latency
+ * with random jitter on top, a share of calls that fail, and a limit on calls per second beyond
+ * which calls wait for their turn. Calls wait out their latencies in parallel, only their starts
+ * are spaced by the limit.
+ *
+ * <p>Jitter and failures come from a seeded generator and are drawn in call order, so the same
+ * settings and calls behave the same on every run.
+ */
+final class PartnerLoad {
+
+  /** Source of time, replaced in tests. */
+  interface Clock {
+    long nanoTime();
+
+    void sleepNanos(long nanos) throws InterruptedException;
+  }
+
+  private static final Clock SYSTEM_CLOCK =
+      new Clock() {
+        @Override
+        public long nanoTime() {
+          return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+          TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+      };
+
+  /** No latency, no failures and no limit. */
+  static final PartnerLoad NONE =
+      new PartnerLoad(
+          /* latencyNanos= */ 0,
+          /* jitterNanos= */ 0,
+          /* failureRate= */ 0,
+          /* callsPerSecond= */ 0,
+          /* seed= */ 0);
+
+  private final long latencyNanos;
+  private final long jitterNanos;
+  private final double failureRate;
+  /** Time between the starts of two calls, 0 for no limit. */
+  private final long periodNanos;
+  private final Random random;
+  private final Clock clock;
+  private boolean hasStarted;
+  private long nextStartNanos;
+
+  /**
+   * @param jitterNanos Upper bound of the random time added to {@code latencyNanos}.
+   * @param failureRate Share of calls that fail, between 0 and 1.
+   * @param callsPerSecond Most calls started per second, 0 for no limit.
+   */
+  PartnerLoad(
+      long latencyNanos, long jitterNanos, double failureRate, double callsPerSecond, long seed) {
+    this(latencyNanos, jitterNanos, failureRate, callsPerSecond, seed, SYSTEM_CLOCK);
+  }
+
+  PartnerLoad(
+      long latencyNanos,
+      long jitterNanos,
+      double failureRate,
+      double callsPerSecond,
+      long seed,
+      Clock clock) {
+    if (latencyNanos < 0 || jitterNanos < 0) {
+      throw new IllegalArgumentException(
+          "Latency " + latencyNanos + " ns and jitter " + jitterNanos + " ns can't be negative.");
+    }
+    if (!(failureRate >= 0 && failureRate <= 1)) {
+      throw new IllegalArgumentException("Failure rate " + failureRate + " is not in [0, 1].");
+    }
+    if (!(callsPerSecond >= 0)) {
+      throw new IllegalArgumentException("Calls per second " + callsPerSecond + " is negative.");
+    }
+    this.latencyNanos = latencyNanos;
+    this.jitterNanos = jitterNanos;
+    this.failureRate = failureRate;
+    this.periodNanos =
+        callsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / callsPerSecond) : 0;
+    this.random = new Random(seed);
+    this.clock = clock;
+  }
+
+  /**
+   * Holds the calling thread until its turn under the limit has come and its latency has passed.
+   *
+   * @return False if the call is to fail.
+   */
+  boolean await() throws InterruptedException {
+    long releaseNanos;
+    boolean fails;
+    synchronized (this) {
+      long startNanos = clock.nanoTime();
+      if (periodNanos > 0) {
+        if (hasStarted && nextStartNanos - startNanos > 0) {
+          startNanos = nextStartNanos;
+        }
+        hasStarted = true;
+        nextStartNanos = startNanos + periodNanos;
+      }
+      // Both are drawn for every call, so the sequence does not depend on the settings.
+      double jitter = random.nextDouble();
+      double failure = random.nextDouble();
+      releaseNanos = startNanos + latencyNanos + (long) (jitter * jitterNanos);
+      fails = failure < failureRate;
+    }
+    long waitNanos = releaseNanos - clock.nanoTime();
+    if (waitNanos > 0) {
+      clock.sleepNanos(waitNanos);
+    }
+    return !fails;
+  }
+}
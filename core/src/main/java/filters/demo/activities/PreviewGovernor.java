@@ -0,0 +1,269 @@
+package filters.demo.activities;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Steps the preview stream size and frame rate down when the renderer falls behind or the device
+ * heats up, and back up once it has headroom again.
+ *
+ * <p>Levels are ordered by pixel rate, so a step may lower the frame rate before it lowers the
+ * size. Frame statistics are evaluated over {@link #WINDOW_NANOS} windows. A step down needs
+ * {@link #STEP_DOWN_WINDOWS} consecutive windows under pressure, while a step up needs a longer
+ * run of windows with headroom, and that run doubles each time a step up is undone soon after.
+ * Thermal pressure and the nine-tile mode cap the level directly, without any hysteresis.
+ *
+ * <p>Frames may be reported from any thread.
+ */
+final class PreviewGovernor {
+
+  static final long WINDOW_NANOS = 1_000_000_000L;
+  static final int STEP_DOWN_WINDOWS = 2;
+  static final int INITIAL_STEP_UP_WINDOWS = 3;
+  static final int MAX_STEP_UP_WINDOWS = 48;
+  /** A step down this soon after a step up means the step up was premature. */
+  private static final long OSCILLATION_NANOS = 10 * WINDOW_NANOS;
+  /** Share of camera frames that may be dropped before the renderer is considered behind. */
+  private static final float PRESSURE_DROP_RATIO = 0.1f;
+  private static final float HEADROOM_DROP_RATIO = 0.02f;
+  /** Share of the frame budget the draw call may take, above which the renderer is behind. */
+  private static final float PRESSURE_DRAW_RATIO = 0.8f;
+  private static final float HEADROOM_DRAW_RATIO = 0.5f;
+  /** The nine tiles each show a third of the view, so a quarter of the stream area is plenty. */
+  private static final int NINE_TILES_AREA_DIVISOR = 4;
+
+  /** Severity of the device's thermal status, mirroring {@code PowerManager} status buckets. */
+  enum ThermalPressure {
+    NONE,
+    MODERATE,
+    SEVERE,
+    CRITICAL,
+  }
+
+  /** A preview stream configuration: buffer size and {@code CONTROL_AE_TARGET_FPS_RANGE}. */
+  static final class Level {
+    final int width;
+    final int height;
+    final int minFps;
+    final int maxFps;
+
+    Level(int width, int height, int minFps, int maxFps) {
+      this.width = width;
+      this.height = height;
+      this.minFps = minFps;
+      this.maxFps = maxFps;
+    }
+
+    long getPixelRate() {
+      return (long) width * height * maxFps;
+    }
+
+    @Override
+    public String toString() {
+      return width + "x" + height + "@[" + minFps + "," + maxFps + "]";
+    }
+  }
+
+  /** Receives level changes on the thread that reported the frame or status causing them. */
+  interface Listener {
+    void onLevelChanged(Level level);
+  }
+
+  private final List<Level> levels;
+  private final Listener listener;
+  private final int nineTilesIndex;
+  /** Camera frames made available since the window started. Written from the camera's thread. */
+  private final AtomicInteger availableFrames = new AtomicInteger();
+
+  // Guarded by this.
+  /** The level frame statistics alone would choose. */
+  private int loadIndex;
+  private int currentIndex;
+  private ThermalPressure thermalPressure = ThermalPressure.NONE;
+  private boolean nineTiles;
+  private long windowStartNanos = -1;
+  private int renderedFrames;
+  private long drawNanos;
+  private int pressureWindows;
+  private int headroomWindows;
+  private int stepUpWindows = INITIAL_STEP_UP_WINDOWS;
+  private long lastStepUpNanos = -1;
+
+  /**
+   * @param levels Candidate levels in any order. The one with the highest pixel rate is used
+   *     until the governor has a reason to step down.
+   */
+  PreviewGovernor(List<Level> levels, Listener listener) {
+    if (levels.isEmpty()) {
+      throw new IllegalArgumentException("At least one preview level is required.");
+    }
+    List<Level> sorted = new ArrayList<>(levels);
+    // Highest pixel rate first. Among equal rates prefer the larger buffer.
+    Collections.sort(
+        sorted,
+        (lhs, rhs) -> {
+          int byRate = Long.compare(rhs.getPixelRate(), lhs.getPixelRate());
+          return byRate != 0
+              ? byRate
+              : Long.compare((long) rhs.width * rhs.height, (long) lhs.width * lhs.height);
+        });
+    this.levels = Collections.unmodifiableList(sorted);
+    this.listener = listener;
+    this.nineTilesIndex = findNineTilesIndex(sorted);
+  }
+
+  /** All levels, best first. */
+  List<Level> getLevels() {
+    return levels;
+  }
+
+  synchronized Level getCurrentLevel() {
+    return levels.get(currentIndex);
+  }
+
+  /** Called for every frame the camera delivers to the preview texture. */
+  void onFrameAvailable() {
+    availableFrames.incrementAndGet();
+  }
+
+  /**
+   * Called after every preview frame the renderer draws.
+   *
+   * @param nowNanos Monotonic timestamp of the end of the draw.
+   * @param drawDurationNanos Time spent drawing the frame.
+   */
+  void onFrameRendered(long nowNanos, long drawDurationNanos) {
+    Level changed;
+    synchronized (this) {
+      if (windowStartNanos < 0) {
+        startWindow(nowNanos);
+        return;
+      }
+      renderedFrames++;
+      drawNanos += drawDurationNanos;
+      if (nowNanos - windowStartNanos < WINDOW_NANOS) {
+        return;
+      }
+      changed = evaluateWindow(nowNanos);
+      startWindow(nowNanos);
+    }
+    notifyListener(changed);
+  }
+
+  void setThermalPressure(ThermalPressure thermalPressure) {
+    Level changed;
+    synchronized (this) {
+      this.thermalPressure = thermalPressure;
+      changed = updateCurrentIndex();
+    }
+    notifyListener(changed);
+  }
+
+  void setNineTiles(boolean nineTiles) {
+    Level changed;
+    synchronized (this) {
+      this.nineTiles = nineTiles;
+      changed = updateCurrentIndex();
+    }
+    notifyListener(changed);
+  }
+
+  @Nullable
+  private Level evaluateWindow(long nowNanos) {
+    int available = availableFrames.get();
+    if (renderedFrames == 0 || available == 0) {
+      // The camera paused, for example while the session was being reconfigured.
+      return null;
+    }
+    Level level = levels.get(currentIndex);
+    float frameBudgetNanos = 1e9f / level.maxFps;
+    float dropRatio = Math.max(0f, 1f - (float) renderedFrames / available);
+    float drawRatio = drawNanos / (float) renderedFrames / frameBudgetNanos;
+
+    if (dropRatio > PRESSURE_DROP_RATIO || drawRatio > PRESSURE_DRAW_RATIO) {
+      headroomWindows = 0;
+      if (++pressureWindows >= STEP_DOWN_WINDOWS && currentIndex < levels.size() - 1) {
+        pressureWindows = 0;
+        if (lastStepUpNanos >= 0 && nowNanos - lastStepUpNanos < OSCILLATION_NANOS) {
+          stepUpWindows = Math.min(stepUpWindows * 2, MAX_STEP_UP_WINDOWS);
+        }
+        loadIndex = currentIndex + 1;
+        return updateCurrentIndex();
+      }
+    } else if (dropRatio <= HEADROOM_DROP_RATIO && drawRatio < HEADROOM_DRAW_RATIO) {
+      pressureWindows = 0;
+      if (++headroomWindows >= stepUpWindows && loadIndex > 0 && loadIndex >= currentIndex) {
+        headroomWindows = 0;
+        lastStepUpNanos = nowNanos;
+        loadIndex--;
+        return updateCurrentIndex();
+      }
+    } else {
+      pressureWindows = 0;
+      headroomWindows = 0;
+    }
+    return null;
+  }
+
+  /** Applies the caps to {@link #loadIndex}, returning the new level if it changed. */
+  @Nullable
+  private Level updateCurrentIndex() {
+    int index = Math.max(loadIndex, getThermalIndex());
+    if (nineTiles) {
+      index = Math.max(index, nineTilesIndex);
+    }
+    if (index == currentIndex) {
+      return null;
+    }
+    currentIndex = index;
+    // Frames from the old level say nothing about the new one.
+    windowStartNanos = -1;
+    pressureWindows = 0;
+    headroomWindows = 0;
+    return levels.get(index);
+  }
+
+  private int getThermalIndex() {
+    int last = levels.size() - 1;
+    switch (thermalPressure) {
+      case MODERATE:
+        return Math.min(1, last);
+      case SEVERE:
+        return last / 2;
+      case CRITICAL:
+        return last;
+      case NONE:
+      default:
+        return 0;
+    }
+  }
+
+  private void startWindow(long nowNanos) {
+    windowStartNanos = nowNanos;
+    renderedFrames = 0;
+    drawNanos = 0;
+    availableFrames.set(0);
+  }
+
+  private void notifyListener(@Nullable Level changed) {
+    if (changed != null) {
+      listener.onLevelChanged(changed);
+    }
+  }
+
+  /** The best level whose buffer is at most a quarter of the area of the best overall. */
+  private static int findNineTilesIndex(List<Level> levels) {
+    Level best = levels.get(0);
+    long maxArea = (long) best.width * best.height / NINE_TILES_AREA_DIVISOR;
+    for (int i = 0; i < levels.size(); i++) {
+      Level level = levels.get(i);
+      if ((long) level.width * level.height <= maxArea) {
+        return i;
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,145 @@
+package filters.demo.activities;
+
+/**
+ * Derives per channel shaper curves and a small lattice from a large {@link LookupTable}, so that
+ * for example a 17^3 lattice with a shaper follows a 33^3 look about as closely as the original.
+ *
+ * <p>Lattice points are spread along each channel in proportion to the square root of how much
+ * the look bends there, which is where evenly spaced trilinear interpolation loses accuracy. A
+ * floor on that density keeps points in flat regions too.
+ */
+final class ShaperFitter {
+
+  /** Distance in 8-bit values over which the bending of the look is measured. */
+  private static final int CURVATURE_STEP = 4;
+  /** Values of the other two channels the bending is averaged over. */
+  private static final int[] PROBE_VALUES = {0, 32, 64, 128, 192, 255};
+  /** Half width of the box filter that smooths the point density. */
+  private static final int SMOOTHING_RADIUS = 6;
+  /** Share of the point density that is spread evenly regardless of the look. */
+  private static final float UNIFORM_SHARE = 0.25f;
+
+  private ShaperFitter() {}
+
+  /**
+   * Returns a table with a fitted shaper and {@code latticeSize}^3 lattice points that
+   * approximates {@code source}.
+   *
+   * @param source Look to fit. Grayscale looks are baked first, see {@link
+   *     LookupTable#bakeGrayscale}. Must have a lattice and no shaper of its own.
+   */
+  static LookupTable fit(LookupTable source, int latticeSize) {
+    if (!source.hasLattice() || source.hasShaper()) {
+      throw new IllegalArgumentException(
+          "LookupTable " + source.getName() + " needs a lattice and no shaper to be fitted.");
+    }
+    LookupTable plain = source.bakeGrayscale();
+    float[][] shaper = new float[3][];
+    float[][] inverse = new float[3][];
+    for (int channel = 0; channel < 3; channel++) {
+      shaper[channel] = fitCurve(plain, channel);
+      inverse[channel] = invert(shaper[channel], latticeSize);
+    }
+    int[] lattice = new int[latticeSize * latticeSize * latticeSize];
+    int index = 0;
+    for (int b = 0; b < latticeSize; b++) {
+      for (int g = 0; g < latticeSize; g++) {
+        for (int r = 0; r < latticeSize; r++) {
+          lattice[index++] = plain.sampleLattice(inverse[0][r], inverse[1][g], inverse[2][b]);
+        }
+      }
+    }
+    return LookupTable.create(
+        source.getName(), /* isGrayscale= */ false, source.getId(), lattice, latticeSize, shaper);
+  }
+
+  /** Returns the shaper curve of one channel, the normalized integral of the point density. */
+  private static float[] fitCurve(LookupTable look, int channel) {
+    float[] curvature = new float[256];
+    float total = 0f;
+    for (int value = 0; value < 256; value++) {
+      int low = Math.max(0, value - CURVATURE_STEP);
+      int high = Math.min(255, value + CURVATURE_STEP);
+      float sum = 0f;
+      for (int first : PROBE_VALUES) {
+        for (int second : PROBE_VALUES) {
+          int lowColor = sampleAlong(look, channel, low, first, second);
+          int color = sampleAlong(look, channel, value, first, second);
+          int highColor = sampleAlong(look, channel, high, first, second);
+          sum += secondDifference(lowColor, color, highColor, value - low, high - value);
+        }
+      }
+      curvature[value] = (float) Math.sqrt(sum / (PROBE_VALUES.length * PROBE_VALUES.length));
+      total += curvature[value];
+    }
+
+    // Smooth, mix in an even share and integrate.
+    float uniform = Math.max(total / 256f, 1e-6f);
+    float[] curve = new float[256];
+    float integral = 0f;
+    for (int value = 0; value < 256; value++) {
+      float smoothed = 0f;
+      int count = 0;
+      for (int i = value - SMOOTHING_RADIUS; i <= value + SMOOTHING_RADIUS; i++) {
+        if (i >= 0 && i < 256) {
+          smoothed += curvature[i];
+          count++;
+        }
+      }
+      float density = (1f - UNIFORM_SHARE) * smoothed / count + UNIFORM_SHARE * uniform;
+      curve[value] = integral;
+      integral += density;
+    }
+    // Coordinates of the values 0 and 255 are exactly 0 and 1.
+    float last = curve[255];
+    for (int value = 0; value < 256; value++) {
+      curve[value] = Math.min(1f, curve[value] / last);
+    }
+    return curve;
+  }
+
+  /** Samples {@code look} at {@code value} along {@code axis}, the other channels held fixed. */
+  private static int sampleAlong(LookupTable look, int axis, int value, int first, int second) {
+    switch (axis) {
+      case 0:
+        return look.sampleLattice(value, first, second);
+      case 1:
+        return look.sampleLattice(first, value, second);
+      default:
+        return look.sampleLattice(first, second, value);
+    }
+  }
+
+  /** Largest second difference over the three output channels, per squared 8-bit step. */
+  private static float secondDifference(int low, int middle, int high, int lowStep, int highStep) {
+    if (lowStep == 0 || highStep == 0) {
+      return 0f;
+    }
+    float largest = 0f;
+    for (int shift = 0; shift < 24; shift += 8) {
+      float slopeLow = (((middle >> shift) & 0xFF) - ((low >> shift) & 0xFF)) / (float) lowStep;
+      float slopeHigh = (((high >> shift) & 0xFF) - ((middle >> shift) & 0xFF)) / (float) highStep;
+      largest = Math.max(largest, Math.abs(slopeHigh - slopeLow) * 2f / (lowStep + highStep));
+    }
+    return largest;
+  }
+
+  /**
+   * Returns the fractional 8-bit value at which {@code curve} reaches each of {@code latticeSize}
+   * evenly spaced coordinates.
+   */
+  private static float[] invert(float[] curve, int latticeSize) {
+    float[] values = new float[latticeSize];
+    int value = 0;
+    for (int i = 0; i < latticeSize; i++) {
+      float coordinate = (float) i / (latticeSize - 1);
+      while (value < 254 && curve[value + 1] < coordinate) {
+        value++;
+      }
+      float span = curve[value + 1] - curve[value];
+      float fraction = span > 0f ? (coordinate - curve[value]) / span : 0f;
+      values[i] = value + Math.max(0f, Math.min(1f, fraction));
+    }
+    return values;
+  }
+}
@@ -0,0 +1,96 @@
+package filters.demo.activities;
+
+/**
+ * Picks stream sizes out of those a camera supports. Sizes are given as parallel arrays of widths
+ * and heights, so the selection does not depend on {@code android.util.Size}. Ties in area go to
+ * the size listed first.
+ */
+final class SizeSelector {
+
+  // Utility class
+  private SizeSelector() {}
+
+  /**
+   * Chooses the smallest size that is at least as large as the respective texture view size, and
+   * that is at most as large as the respective max size, and whose aspect ratio matches with the
+   * specified value. If such size doesn't exist, chooses the largest one that is at most as large
+   * as the respective max size, and whose aspect ratio matches with the specified value.
+   *
+   * @return Index of the optimal size, or 0 if none matched the aspect ratio and max size
+   */
+  static int chooseOptimalSize(
+      int[] widths,
+      int[] heights,
+      int textureViewWidth,
+      int textureViewHeight,
+      int maxWidth,
+      int maxHeight,
+      int aspectWidth,
+      int aspectHeight) {
+    checkSizes(widths, heights);
+    int smallestBigEnough = -1;
+    int largestTooSmall = -1;
+    for (int i = 0; i < widths.length; i++) {
+      int width = widths[i];
+      int height = heights[i];
+      if (width > maxWidth || height > maxHeight || height != width * aspectHeight / aspectWidth) {
+        continue;
+      }
+      if (width >= textureViewWidth && height >= textureViewHeight) {
+        if (smallestBigEnough < 0
+            || area(widths, heights, i) < area(widths, heights, smallestBigEnough)) {
+          smallestBigEnough = i;
+        }
+      } else if (largestTooSmall < 0
+          || area(widths, heights, i) > area(widths, heights, largestTooSmall)) {
+        largestTooSmall = i;
+      }
+    }
+    if (smallestBigEnough >= 0) {
+      return smallestBigEnough;
+    }
+    return largestTooSmall >= 0 ? largestTooSmall : 0;
+  }
+
+  /**
+   * Returns the index of the largest size with the aspect ratio of {@code aspectWidth} by {@code
+   * aspectHeight} whose sides both fit in {@code maxDimension}, or -1 if there is none.
+   */
+  static int chooseLargestSize(
+      int[] widths, int[] heights, int aspectWidth, int aspectHeight, int maxDimension) {
+    checkSizes(widths, heights);
+    int largest = -1;
+    for (int i = 0; i < widths.length; i++) {
+      if (widths[i] <= maxDimension
+          && heights[i] <= maxDimension
+          && (long) heights[i] * aspectWidth == (long) widths[i] * aspectHeight
+          && (largest < 0 || area(widths, heights, i) > area(widths, heights, largest))) {
+        largest = i;
+      }
+    }
+    return largest;
+  }
+
+  /** Returns the index of the size with the largest area, or -1 if there are no sizes. */
+  static int chooseLargestArea(int[] widths, int[] heights) {
+    checkSizes(widths, heights);
+    int largest = -1;
+    for (int i = 0; i < widths.length; i++) {
+      if (largest < 0 || area(widths, heights, i) > area(widths, heights, largest)) {
+        largest = i;
+      }
+    }
+    return largest;
+  }
+
+  private static long area(int[] widths, int[] heights, int index) {
+    return (long) widths[index] * heights[index];
+  }
+
+  private static void checkSizes(int[] widths, int[] heights) {
+    if (widths.length != heights.length) {
+      throw new IllegalArgumentException(
+          widths.length + " widths but " + heights.length + " heights.");
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package filters.demo.activities;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Looks resampled to one lattice size and laid out side by side as ARGB pixels, each {@code
+ * latticeSize} wide and {@code latticeSize}^2 high in the layout of the LUT bitmaps from Photos.
+ * The renderer turns them into the bitmaps of its LUT atlases.
+ *
+ * <p>If any look has shaper curves, {@link #shaperPixels} holds them as well, 256 wide and one row
+ * per look. Looks without a shaper get identity curves.
+ */
+final class StitchedLuts {
+
+  /** Width of the shaper rows, one pixel per 8-bit value. */
+  static final int SHAPER_WIDTH = 256;
+
+  final int[] pixels;
+  final int width;
+  final int height;
+  final int latticeSize;
+  /** {@link #SHAPER_WIDTH} wide and one row per look, or null if no look has a shaper. */
+  @Nullable final int[] shaperPixels;
+
+  private StitchedLuts(int[] pixels, int latticeSize, int count, @Nullable int[] shaperPixels) {
+    this.pixels = pixels;
+    this.width = latticeSize * count;
+    this.height = latticeSize * latticeSize;
+    this.latticeSize = latticeSize;
+    this.shaperPixels = shaperPixels;
+  }
+
+  /**
+   * Resamples every look to {@code latticeSize} and stitches them. All need a lattice.
+   *
+   * @param fitShapers Whether looks with a larger lattice are fitted with shaper curves by {@link
+   *     ShaperFitter} instead of resampled evenly, which keeps small lattices closer to the look.
+   */
+  static StitchedLuts stitch(List<LookupTable> luts, int latticeSize, boolean fitShapers) {
+    List<LookupTable> resampled = new ArrayList<>(luts.size());
+    boolean anyShaper = false;
+    for (LookupTable lut : luts) {
+      LookupTable look =
+          fitShapers && !lut.hasShaper() && lut.getLatticeSize() > latticeSize
+              ? ShaperFitter.fit(lut, latticeSize)
+              : lut.resample(latticeSize);
+      anyShaper |= look.hasShaper();
+      resampled.add(look);
+    }
+
+    int count = resampled.size();
+    int width = latticeSize * count;
+    int height = latticeSize * latticeSize;
+    int[] pixels = new int[width * height];
+    int[] shaperPixels = anyShaper ? new int[SHAPER_WIDTH * count] : null;
+    for (int i = 0; i < count; i++) {
+      LookupTable look = resampled.get(i);
+      int[] lattice = look.getLatticePixels();
+      for (int row = 0; row < height; row++) {
+        System.arraycopy(
+            lattice, row * latticeSize, pixels, row * width + i * latticeSize, latticeSize);
+      }
+      if (shaperPixels != null) {
+        System.arraycopy(
+            look.getShaperPixels(), 0, shaperPixels, i * SHAPER_WIDTH, SHAPER_WIDTH);
+      }
+    }
+    return new StitchedLuts(pixels, latticeSize, count, shaperPixels);
+  }
+}
@@ -0,0 +1,125 @@
+package filters.demo.activities;
+
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Converts YUV_420_888 planes to ARGB and applies a {@link LookupTable} in the same pass.
+ *
+ * <p>Samples are read directly from the plane buffers using their row and pixel strides, so both
+ * planar (I420) and semi-planar (NV12/NV21) layouts work without a repacking copy. Rows are
+ * converted in parallel. The planes only use absolute reads, so they may be shared between threads.
+ */
+public final class YuvLutConverter {
+
+  /** Rows handed to one worker at a time. Small enough to balance, large enough to amortize. */
+  private static final int ROWS_PER_TASK = 8;
+  private static final int FIXED_POINT_SHIFT = 16;
+  private static final int FIXED_POINT_HALF = 1 << (FIXED_POINT_SHIFT - 1);
+
+  // Full range BT.601 (JFIF) coefficients in 16.16 fixed point, indexed by the chroma sample.
+  private static final int[] RED_FROM_V = new int[256];
+  private static final int[] GREEN_FROM_U = new int[256];
+  private static final int[] GREEN_FROM_V = new int[256];
+  private static final int[] BLUE_FROM_U = new int[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      int chroma = i - 128;
+      RED_FROM_V[i] = Math.round(1.402f * (1 << FIXED_POINT_SHIFT)) * chroma;
+      GREEN_FROM_U[i] = -Math.round(0.344136f * (1 << FIXED_POINT_SHIFT)) * chroma;
+      GREEN_FROM_V[i] = -Math.round(0.714136f * (1 << FIXED_POINT_SHIFT)) * chroma;
+      BLUE_FROM_U[i] = Math.round(1.772f * (1 << FIXED_POINT_SHIFT)) * chroma;
+    }
+  }
+
+  /** One plane of a YUV_420_888 image, mirroring {@code android.media.Image.Plane}. */
+  public static final class Plane {
+    final ByteBuffer buffer;
+    final int rowStride;
+    final int pixelStride;
+
+    public Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+      this.buffer = buffer;
+      this.rowStride = rowStride;
+      this.pixelStride = pixelStride;
+    }
+  }
+
+  private final int width;
+  private final int height;
+  private final Plane yPlane;
+  private final Plane uPlane;
+  private final Plane vPlane;
+  @Nullable
+  private final LookupTable lut;
+
+  /**
+   * @param lut The look to apply, or null to only convert. Must carry a lattice if not null.
+   */
+  public YuvLutConverter(
+      int width, int height, Plane yPlane, Plane uPlane, Plane vPlane, @Nullable LookupTable lut) {
+    if (lut != null && !lut.hasLattice()) {
+      throw new IllegalArgumentException("LookupTable " + lut.getName() + " has no lattice.");
+    }
+    this.width = width;
+    this.height = height;
+    this.yPlane = yPlane;
+    this.uPlane = uPlane;
+    this.vPlane = vPlane;
+    this.lut = lut;
+  }
+
+  /**
+   * Converts rows {@code top} to {@code top + rowCount - 1} into {@code output}, one row every
+   * {@code width} pixels starting at index 0.
+   */
+  public void convertRows(int top, int rowCount, int[] output) {
+    if (top < 0 || rowCount < 0 || top + rowCount > height) {
+      throw new IndexOutOfBoundsException(
+          "Rows " + top + "+" + rowCount + " outside of image height " + height);
+    }
+    int taskCount = (rowCount + ROWS_PER_TASK - 1) / ROWS_PER_TASK;
+    IntStream.range(0, taskCount)
+        .parallel()
+        .forEach(
+            task -> {
+              int first = task * ROWS_PER_TASK;
+              int last = Math.min(first + ROWS_PER_TASK, rowCount);
+              for (int row = first; row < last; row++) {
+                convertRow(top + row, output, row * width);
+              }
+            });
+  }
+
+  private void convertRow(int y, int[] output, int outputOffset) {
+    ByteBuffer luma = yPlane.buffer;
+    ByteBuffer u = uPlane.buffer;
+    ByteBuffer v = vPlane.buffer;
+    int lumaRow = y * yPlane.rowStride;
+    int lumaStride = yPlane.pixelStride;
+    int uRow = (y >> 1) * uPlane.rowStride;
+    int vRow = (y >> 1) * vPlane.rowStride;
+    int uStride = uPlane.pixelStride;
+    int vStride = vPlane.pixelStride;
+    for (int x = 0; x < width; x++) {
+      int luminance = (luma.get(lumaRow + x * lumaStride) & 0xFF) << FIXED_POINT_SHIFT;
+      int chromaX = x >> 1;
+      int cb = u.get(uRow + chromaX * uStride) & 0xFF;
+      int cr = v.get(vRow + chromaX * vStride) & 0xFF;
+      int r = clamp((luminance + RED_FROM_V[cr] + FIXED_POINT_HALF) >> FIXED_POINT_SHIFT);
+      int g =
+          clamp(
+              (luminance + GREEN_FROM_U[cb] + GREEN_FROM_V[cr] + FIXED_POINT_HALF)
+                  >> FIXED_POINT_SHIFT);
+      int b = clamp((luminance + BLUE_FROM_U[cb] + FIXED_POINT_HALF) >> FIXED_POINT_SHIFT);
+      int rgb = (r << 16) | (g << 8) | b;
+      output[outputOffset + x] = 0xFF000000 | (lut == null ? rgb : lut.lookup(rgb));
+    }
+  }
+
+  private static int clamp(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+}
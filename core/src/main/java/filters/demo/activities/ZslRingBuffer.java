@@ -0,0 +1,98 @@
+package filters.demo.activities;
+
+import android.support.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+/**
+ * Bounded buffer of the most recent camera frames for zero shutter lag capture.
+ *
+ * <p>Adding to a full buffer releases the oldest frame, so the producer never waits for space.
+ * Frames that are removed belong to the caller, every other frame is released by the buffer.
+ * This class is thread safe.
+ *
+ * @param <T> The frame type, for example {@code android.media.Image}.
+ */
+final class ZslRingBuffer<T> {
+
+  private final int capacity;
+  private final Consumer<T> releaser;
+  /** Oldest frame first. */
+  private final ArrayDeque<Frame<T>> frames;
+
+  private static final class Frame<T> {
+    final T item;
+    final long timestampNanos;
+
+    Frame(T item, long timestampNanos) {
+      this.item = item;
+      this.timestampNanos = timestampNanos;
+    }
+  }
+
+  /**
+   * @param capacity Most frames held at once.
+   * @param releaser Called with frames the buffer drops, for example {@code Image::close}.
+   */
+  ZslRingBuffer(int capacity, Consumer<T> releaser) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    this.releaser = releaser;
+    this.frames = new ArrayDeque<>(capacity);
+  }
+
+  /** Adds a frame captured at {@code timestampNanos}, releasing the oldest one if full. */
+  synchronized void add(T item, long timestampNanos) {
+    if (frames.size() == capacity) {
+      releaser.accept(frames.removeFirst().item);
+    }
+    frames.addLast(new Frame<>(item, timestampNanos));
+  }
+
+  /** Releases the oldest frames until at most {@code maxSize} remain. */
+  synchronized void trimTo(int maxSize) {
+    while (frames.size() > Math.max(0, maxSize)) {
+      releaser.accept(frames.removeFirst().item);
+    }
+  }
+
+  /**
+   * Removes and returns the frame whose timestamp is closest to {@code timestampNanos}, or null if
+   * the buffer is empty. The caller becomes responsible for releasing it.
+   */
+  @Nullable
+  synchronized T removeClosest(long timestampNanos) {
+    Frame<T> closest = null;
+    long closestDistance = Long.MAX_VALUE;
+    for (Frame<T> frame : frames) {
+      long distance = Math.abs(frame.timestampNanos - timestampNanos);
+      if (distance < closestDistance) {
+        closest = frame;
+        closestDistance = distance;
+      }
+    }
+    if (closest == null) {
+      return null;
+    }
+    frames.remove(closest);
+    return closest.item;
+  }
+
+  /** Removes and returns the most recent frame, or null if the buffer is empty. */
+  @Nullable
+  synchronized T removeNewest() {
+    Frame<T> newest = frames.pollLast();
+    return newest == null ? null : newest.item;
+  }
+
+  synchronized int size() {
+    return frames.size();
+  }
+
+  /** Releases every frame. */
+  synchronized void clear() {
+    trimTo(0);
+  }
+}
@@ -0,0 +1,25 @@
+package filters.demo.libraries;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes signing certificates into the hex strings that {@code TrustedPartners} compares against
+ * its set of trusted hashes.
+ */
+final class CertificateHashes {
+  // Utility class
+  private CertificateHashes() { }
+
+  /**
+   * Returns the upper case hex digest of {@code certificate}.
+   *
+   * @param algorithm A {@link MessageDigest} algorithm, e.g. SHA1
+   * @param certificate The encoded certificate, as from {@code Signature.toByteArray()}
+   */
+  static String hash(String algorithm, byte[] certificate) throws NoSuchAlgorithmException {
+    MessageDigest digest = MessageDigest.getInstance(algorithm);
+    digest.update(certificate);
+    return HexConvert.bytesToHex(digest.digest());
+  }
+}
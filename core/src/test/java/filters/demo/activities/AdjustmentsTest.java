@@ -0,0 +1,153 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests for {@link Adjustments}. */
+public class AdjustmentsTest {
+
+  private static final int GRAY = 0x808080;
+  private static final int DARK_GRAY = 0x303030;
+  private static final int LIGHT_GRAY = 0xD0D0D0;
+  private static final int MUTED_RED = 0xA06050;
+
+  @Test
+  public void none_isIdentity() {
+    assertTrue(Adjustments.NONE.isIdentity());
+    for (int color = 0; color <= 0xFFFFFF; color += 0x010305) {
+      assertEquals(Integer.toHexString(color), color, Adjustments.NONE.apply(color));
+    }
+  }
+
+  @Test
+  public void zeroParameters_equalNone() {
+    Adjustments adjustments =
+        Adjustments.NONE.withBrightness(0.5f).withBrightness(-0f).withContrast(0f);
+
+    assertTrue(adjustments.isIdentity());
+    assertEquals(Adjustments.NONE.hashCode(), adjustments.hashCode());
+  }
+
+  @Test
+  public void anyParameter_isNotIdentity() {
+    assertFalse(Adjustments.NONE.withSaturation(0.1f).isIdentity());
+    assertNotEquals(Adjustments.NONE.withTint(0.1f), Adjustments.NONE.withTemperature(0.1f));
+  }
+
+  @Test
+  public void brightness_movesEveryChannel() {
+    assertTrue(luma(Adjustments.NONE.withBrightness(0.5f).apply(GRAY)) > luma(GRAY));
+    assertTrue(luma(Adjustments.NONE.withBrightness(-0.5f).apply(GRAY)) < luma(GRAY));
+  }
+
+  @Test
+  public void contrast_stretchesAwayFromMidGray() {
+    Adjustments more = Adjustments.NONE.withContrast(0.5f);
+    assertTrue(luma(more.apply(DARK_GRAY)) < luma(DARK_GRAY));
+    assertTrue(luma(more.apply(LIGHT_GRAY)) > luma(LIGHT_GRAY));
+
+    Adjustments less = Adjustments.NONE.withContrast(-0.5f);
+    assertTrue(luma(less.apply(DARK_GRAY)) > luma(DARK_GRAY));
+    assertTrue(luma(less.apply(LIGHT_GRAY)) < luma(LIGHT_GRAY));
+  }
+
+  @Test
+  public void contrast_minusOne_flattensToGray() {
+    Adjustments flat = Adjustments.NONE.withContrast(-1f);
+
+    assertEquals(flat.apply(0x000000), flat.apply(0xFFFFFF));
+  }
+
+  @Test
+  public void temperature_warmsOrCools() {
+    int warm = Adjustments.NONE.withTemperature(0.5f).apply(GRAY);
+    assertTrue(red(warm) > green(warm));
+    assertTrue(blue(warm) < green(warm));
+
+    int cool = Adjustments.NONE.withTemperature(-0.5f).apply(GRAY);
+    assertTrue(red(cool) < green(cool));
+    assertTrue(blue(cool) > green(cool));
+  }
+
+  @Test
+  public void tint_addsMagentaOrGreen() {
+    int magenta = Adjustments.NONE.withTint(0.5f).apply(GRAY);
+    assertTrue(green(magenta) < red(magenta));
+    assertEquals(red(magenta), blue(magenta));
+
+    int green = Adjustments.NONE.withTint(-0.5f).apply(GRAY);
+    assertTrue(green(green) > red(green));
+  }
+
+  @Test
+  public void shadows_liftDarkEndOnly() {
+    Adjustments lifted = Adjustments.NONE.withShadows(1f);
+
+    int darkDelta = luma(lifted.apply(DARK_GRAY)) - luma(DARK_GRAY);
+    int lightDelta = luma(lifted.apply(LIGHT_GRAY)) - luma(LIGHT_GRAY);
+    assertTrue(darkDelta > 0);
+    assertTrue(darkDelta > lightDelta);
+    assertEquals(0x000000, lifted.apply(0x000000));
+    assertEquals(0xFFFFFF, lifted.apply(0xFFFFFF));
+  }
+
+  @Test
+  public void highlights_recoverBrightEndOnly() {
+    Adjustments recovered = Adjustments.NONE.withHighlights(-1f);
+
+    int darkDelta = luma(DARK_GRAY) - luma(recovered.apply(DARK_GRAY));
+    int lightDelta = luma(LIGHT_GRAY) - luma(recovered.apply(LIGHT_GRAY));
+    assertTrue(lightDelta > 0);
+    assertTrue(lightDelta > darkDelta);
+    assertEquals(0x000000, recovered.apply(0x000000));
+    assertEquals(0xFFFFFF, recovered.apply(0xFFFFFF));
+  }
+
+  @Test
+  public void saturation_scalesDistanceFromLuma() {
+    int vivid = Adjustments.NONE.withSaturation(0.5f).apply(MUTED_RED);
+    assertTrue(spread(vivid) > spread(MUTED_RED));
+
+    int gray = Adjustments.NONE.withSaturation(-1f).apply(MUTED_RED);
+    assertEquals(red(gray), green(gray), 1);
+    assertEquals(green(gray), blue(gray), 1);
+    assertEquals(luma(MUTED_RED), luma(gray), 1);
+  }
+
+  @Test
+  public void saturation_leavesGrayAlone() {
+    assertEquals(GRAY, Adjustments.NONE.withSaturation(1f).apply(GRAY));
+  }
+
+  @Test
+  public void parameters_clampedToRange() {
+    assertEquals(Adjustments.NONE.withContrast(1f), Adjustments.NONE.withContrast(3f));
+    assertEquals(Adjustments.NONE.withShadows(-1f), Adjustments.NONE.withShadows(-2f));
+  }
+
+  private static int red(int color) {
+    return (color >> 16) & 0xFF;
+  }
+
+  private static int green(int color) {
+    return (color >> 8) & 0xFF;
+  }
+
+  private static int blue(int color) {
+    return color & 0xFF;
+  }
+
+  /** Same weights as {@link Adjustments}. */
+  private static int luma(int color) {
+    return Math.round(0.3f * red(color) + 0.59f * green(color) + 0.11f * blue(color));
+  }
+
+  private static int spread(int color) {
+    return Math.max(red(color), Math.max(green(color), blue(color)))
+        - Math.min(red(color), Math.min(green(color), blue(color)));
+  }
+}
@@ -0,0 +1,111 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import filters.demo.activities.CameraStateMachine.State;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+/** Tests for {@link CameraStateMachine}. */
+public class CameraStateMachineTest {
+
+  /** Every transition the camera may take, as drawn in the class comment. */
+  private static final Map<State, Set<State>> ALLOWED = new EnumMap<>(State.class);
+
+  static {
+    ALLOWED.put(State.CLOSED, EnumSet.of(State.OPENING));
+    // A failed open goes straight back to CLOSED.
+    ALLOWED.put(State.OPENING, EnumSet.of(State.OPEN, State.CLOSING, State.CLOSED));
+    ALLOWED.put(State.OPEN, EnumSet.of(State.CAPTURING, State.CLOSING));
+    ALLOWED.put(State.CAPTURING, EnumSet.of(State.OPEN, State.CLOSING));
+    ALLOWED.put(State.CLOSING, EnumSet.of(State.CLOSED));
+  }
+
+  @Test
+  public void startsClosed() {
+    assertEquals(State.CLOSED, new CameraStateMachine().getState());
+  }
+
+  @Test
+  public void transition_everyPair_matchesDiagram() {
+    for (State from : State.values()) {
+      for (State to : State.values()) {
+        CameraStateMachine machine = createIn(from);
+        boolean allowed = ALLOWED.get(from).contains(to);
+
+        assertEquals(from + " -> " + to, allowed, machine.transition(to));
+        assertEquals(from + " -> " + to, allowed ? to : from, machine.getState());
+      }
+    }
+  }
+
+  @Test
+  public void transitionFrom_everyPair_requiresCurrentState() {
+    for (State current : State.values()) {
+      for (State from : State.values()) {
+        for (State to : State.values()) {
+          CameraStateMachine machine = createIn(current);
+          boolean allowed = current == from && ALLOWED.get(from).contains(to);
+
+          assertEquals(
+              current + ": " + from + " -> " + to, allowed, machine.transition(from, to));
+          assertEquals(allowed ? to : current, machine.getState());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void failedOpen_canOpenAgain() {
+    CameraStateMachine machine = createIn(State.OPENING);
+
+    assertTrue(machine.transition(State.OPENING, State.CLOSED));
+
+    assertTrue(machine.transition(State.OPENING));
+  }
+
+  @Test
+  public void closeDuringCapture_rejectsLateCompletion() {
+    CameraStateMachine machine = createIn(State.CAPTURING);
+    assertTrue(machine.transition(State.CLOSING));
+
+    // A capture completing after close must not reopen the device.
+    assertFalse(machine.transition(State.CAPTURING, State.OPEN));
+    assertFalse(machine.transition(State.OPEN));
+    assertEquals(State.CLOSING, machine.getState());
+  }
+
+  /** Returns a machine that reached {@code state} through allowed transitions. */
+  private static CameraStateMachine createIn(State state) {
+    CameraStateMachine machine = new CameraStateMachine();
+    switch (state) {
+      case CLOSED:
+        break;
+      case OPENING:
+        assertTrue(machine.transition(State.OPENING));
+        break;
+      case OPEN:
+        assertTrue(machine.transition(State.OPENING));
+        assertTrue(machine.transition(State.OPEN));
+        break;
+      case CAPTURING:
+        assertTrue(machine.transition(State.OPENING));
+        assertTrue(machine.transition(State.OPEN));
+        assertTrue(machine.transition(State.CAPTURING));
+        break;
+      case CLOSING:
+        assertTrue(machine.transition(State.OPENING));
+        assertTrue(machine.transition(State.CLOSING));
+        break;
+      default:
+        throw new AssertionError(state);
+    }
+    assertEquals(state, machine.getState());
+    return machine;
+  }
+}
@@ -0,0 +1,132 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests for {@link LatencyHistogram}. */
+public class LatencyHistogramTest {
+
+  /** A power of two is split into 16 buckets, so a bucket spans at most 1/16 of its values. */
+  private static final double MAX_RELATIVE_ERROR = 1.0 / 16;
+  /** Largest value below the overflow bucket. */
+  private static final long LARGEST_TRACKED_NANOS = (1L << 41) - 1;
+
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  @Test
+  public void empty_everyPercentileIsZero() {
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMaxNanos());
+    assertEquals(0, histogram.getValueAtPercentile(0));
+    assertEquals(0, histogram.getValueAtPercentile(50));
+    assertEquals(0, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void smallValues_areExact() {
+    for (long nanos = 0; nanos < 16; nanos++) {
+      histogram.reset();
+      histogram.record(nanos);
+      histogram.record(1000);
+
+      assertEquals(nanos, histogram.getValueAtPercentile(50));
+    }
+  }
+
+  @Test
+  public void percentile_withinBoundAcrossDecades() {
+    for (long nanos = 10; nanos <= LARGEST_TRACKED_NANOS / 10; nanos *= 10) {
+      for (long value : new long[] {nanos, nanos + nanos / 3, 2 * nanos - 1}) {
+        histogram.reset();
+        histogram.record(value);
+        // A larger max keeps the bucket bound from being clamped to the recorded value.
+        histogram.record(LARGEST_TRACKED_NANOS);
+
+        assertWithinBound(value, histogram.getValueAtPercentile(50));
+      }
+    }
+  }
+
+  @Test
+  public void percentile_randomValues_withinBound() {
+    Random random = new Random(42);
+    for (int i = 0; i < 10_000; i++) {
+      // Log-uniform, from 16 ns to about 18 minutes.
+      long value = (long) Math.pow(2, 4 + random.nextDouble() * 36);
+      histogram.reset();
+      histogram.record(value);
+      histogram.record(LARGEST_TRACKED_NANOS);
+
+      assertWithinBound(value, histogram.getValueAtPercentile(50));
+    }
+  }
+
+  @Test
+  public void percentile_picksRank() {
+    for (int i = 1; i <= 100; i++) {
+      histogram.record(i * 1_000_000L);
+    }
+
+    assertWithinBound(1_000_000, histogram.getValueAtPercentile(0));
+    assertWithinBound(50_000_000, histogram.getValueAtPercentile(50));
+    assertWithinBound(99_000_000, histogram.getValueAtPercentile(99));
+    assertEquals(100_000_000, histogram.getValueAtPercentile(100));
+    assertEquals(100_000_000, histogram.getValueAtPercentile(200));
+    assertEquals(100, histogram.getCount());
+  }
+
+  @Test
+  public void percentile_neverAboveMax() {
+    histogram.record(1_000_001);
+
+    assertEquals(1_000_001, histogram.getValueAtPercentile(50));
+  }
+
+  @Test
+  public void overflow_sharesLastBucketAndReportsMax() {
+    long overflow = 1L << 45;
+    histogram.record(LARGEST_TRACKED_NANOS + 1);
+    histogram.record(overflow);
+
+    assertEquals(overflow, histogram.getValueAtPercentile(50));
+    assertEquals(overflow, histogram.getMaxNanos());
+  }
+
+  @Test
+  public void overflow_largestValue() {
+    histogram.record(Long.MAX_VALUE);
+
+    assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(99));
+  }
+
+  @Test
+  public void record_negative_countsAsZero() {
+    histogram.record(-5);
+
+    assertEquals(1, histogram.getCount());
+    assertEquals(0, histogram.getMaxNanos());
+    assertEquals(0, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void reset_forgetsRecordings() {
+    histogram.record(1_000);
+    histogram.record(2_000);
+
+    histogram.reset();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMaxNanos());
+    assertEquals(0, histogram.getValueAtPercentile(50));
+  }
+
+  private static void assertWithinBound(long expected, long actual) {
+    assertTrue(actual + " is below " + expected, actual >= expected);
+    assertTrue(
+        actual + " is too far above " + expected,
+        actual <= expected * (1 + MAX_RELATIVE_ERROR));
+  }
+}
@@ -0,0 +1,314 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests for {@link LookupTable}. */
+public class LookupTableTest {
+
+  private static final int SIZE = LookupTable.DEFAULT_LATTICE_SIZE;
+
+  @Test
+  public void compose_atLatticePoints_matchesComposedFunction() {
+    LookupTable warm = createLook(/* isGrayscale= */ false, LookupTableTest::warm);
+    LookupTable contrast = createLook(/* isGrayscale= */ false, LookupTableTest::contrast);
+    int[] composed =
+        LookupTable.compose("composed", /* id= */ 7, Arrays.asList(warm, contrast), SIZE)
+            .getLatticePixels();
+
+    int index = 0;
+    int maxError = 0;
+    for (int b = 0; b < SIZE; b++) {
+      for (int g = 0; g < SIZE; g++) {
+        for (int r = 0; r < SIZE; r++) {
+          int color = (latticeValue(r) << 16) | (latticeValue(g) << 8) | latticeValue(b);
+          int expected = contrast(warm(color));
+          int actual = composed[index++];
+          assertEquals(0xFF, actual >>> 24);
+          for (int shift = 0; shift < 24; shift += 8) {
+            int error = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+            maxError = Math.max(maxError, error);
+          }
+        }
+      }
+    }
+    // Warm moves lattice points off the lattice, where contrast is only known by interpolation.
+    assertTrue("Max error " + maxError, maxError <= 3);
+  }
+
+  @Test
+  public void compose_order_matters() {
+    LookupTable warm = createLook(/* isGrayscale= */ false, LookupTableTest::warm);
+    LookupTable contrast = createLook(/* isGrayscale= */ false, LookupTableTest::contrast);
+    int color = 0xF0F0F0;
+
+    int warmFirst =
+        LookupTable.compose("composed", /* id= */ 7, Arrays.asList(warm, contrast), SIZE)
+            .lookup(color);
+    int contrastFirst =
+        LookupTable.compose("composed", /* id= */ 7, Arrays.asList(contrast, warm), SIZE)
+            .lookup(color);
+
+    // Red clips at white either way, blue tells the two apart. Off the lattice, both lookups of
+    // the chain interpolate.
+    assertEquals(contrast(warm(color)) & 0xFF, warmFirst & 0xFF, 4);
+    assertEquals(warm(contrast(color)) & 0xFF, contrastFirst & 0xFF, 4);
+    assertTrue(Math.abs((warmFirst & 0xFF) - (contrastFirst & 0xFF)) > 8);
+  }
+
+  @Test
+  public void compose_betweenLatticePoints_staysCloseToSequentialLookups() {
+    LookupTable gray = createLook(/* isGrayscale= */ true, LookupTableTest::warm);
+    LookupTable contrast = createLook(/* isGrayscale= */ false, LookupTableTest::contrast);
+    LookupTable warm = createLook(/* isGrayscale= */ false, LookupTableTest::warm);
+    List<LookupTable> chain = Arrays.asList(gray, contrast, warm);
+    LookupTable composed = LookupTable.compose("composed", /* id= */ 7, chain, SIZE);
+
+    Random random = new Random(42);
+    long totalError = 0;
+    int maxError = 0;
+    int samples = 20_000;
+    for (int i = 0; i < samples; i++) {
+      int color = random.nextInt() & 0xFFFFFF;
+      int expected = applyInSequence(chain, color);
+      int actual = composed.lookup(color);
+      for (int shift = 0; shift < 24; shift += 8) {
+        int error = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+        maxError = Math.max(maxError, error);
+        totalError += error;
+      }
+    }
+    // Between lattice points the two differ by the curvature of the chain, and every sequential
+    // lookup also rounds down once more than the single composed one.
+    double meanError = (double) totalError / (3 * samples);
+    assertTrue("Max error " + maxError, maxError <= 4);
+    assertTrue("Mean error " + meanError, meanError < 2);
+  }
+
+  @Test
+  public void compose_bakesGrayscaleStep() {
+    LookupTable gray = createLook(/* isGrayscale= */ true, color -> color);
+    LookupTable composed =
+        LookupTable.compose("gray", /* id= */ 1, Collections.singletonList(gray), SIZE);
+
+    assertFalse(composed.isGrayscale());
+    int result = composed.lookup(0xFF0000);
+    int red = (result >> 16) & 0xFF;
+    assertEquals(red, (result >> 8) & 0xFF, 1);
+    assertEquals(red, result & 0xFF, 1);
+    // 0.3 of full red.
+    assertEquals(77, red, 2);
+  }
+
+  @Test
+  public void bakeGrayscale_agreesWithUnbakedLookupWithinInterpolationError() {
+    LookupTable unbaked = createLook(/* isGrayscale= */ true, LookupTableTest::contrast);
+    LookupTable baked = unbaked.bakeGrayscale();
+
+    assertFalse(baked.isGrayscale());
+    assertEquals(SIZE, baked.getLatticeSize());
+    // Exact at the lattice points.
+    int[] pixels = baked.getLatticePixels();
+    int index = 0;
+    for (int b = 0; b < SIZE; b++) {
+      for (int g = 0; g < SIZE; g++) {
+        for (int r = 0; r < SIZE; r++) {
+          int color = (latticeValue(r) << 16) | (latticeValue(g) << 8) | latticeValue(b);
+          assertEquals(unbaked.lookup(color), pixels[index++] & 0xFFFFFF);
+        }
+      }
+    }
+    // Close in between, where the unbaked path interpolates along the gray axis instead.
+    Random random = new Random(7);
+    for (int i = 0; i < 20_000; i++) {
+      int color = random.nextInt() & 0xFFFFFF;
+      int expected = unbaked.lookup(color);
+      int actual = baked.lookup(color);
+      for (int shift = 0; shift < 24; shift += 8) {
+        int error = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+        assertTrue("Error " + error + " for " + Integer.toHexString(color), error <= 4);
+      }
+    }
+  }
+
+  @Test
+  public void bakeGrayscale_keepsColorLook() {
+    LookupTable warm = createLook(/* isGrayscale= */ false, LookupTableTest::warm);
+
+    assertSame(warm, warm.bakeGrayscale());
+  }
+
+  @Test
+  public void resample_upToMultipleOfCells_keepsLook() {
+    LookupTable contrast = createLook(/* isGrayscale= */ false, LookupTableTest::contrast);
+    LookupTable large = contrast.resample(33);
+
+    assertEquals(33, large.getLatticeSize());
+    assertMaxError(contrast, large, /* maxError= */ 1);
+  }
+
+  @Test
+  public void resample_down_staysCloseToLook() {
+    LookupTable contrast = createLook(/* isGrayscale= */ true, LookupTableTest::contrast);
+    LookupTable small = contrast.resample(9);
+
+    assertEquals(9, small.getLatticeSize());
+    assertTrue(small.isGrayscale());
+    // Half as many points per dimension only follow the smooth curve approximately.
+    assertMaxError(contrast, small, /* maxError= */ 4);
+    assertSame(contrast, contrast.resample(SIZE));
+  }
+
+  @Test
+  public void getLatticePixels_isOpaqueCopyOfLattice() {
+    LookupTable warm = createLook(/* isGrayscale= */ false, LookupTableTest::warm);
+    int[] pixels = warm.getLatticePixels();
+
+    assertEquals(SIZE * SIZE * SIZE, pixels.length);
+    for (int pixel : pixels) {
+      assertEquals(0xFF, pixel >>> 24);
+    }
+    int topCorner = SIZE * SIZE * SIZE - 1;
+    assertEquals(warm(0xFFFFFF), pixels[topCorner] & 0xFFFFFF);
+  }
+
+  @Test
+  public void asLocalOnly_keepsLookAndSurvivesResample() {
+    LookupTable warm = createLook(/* isGrayscale= */ false, LookupTableTest::warm);
+    assertFalse(warm.isLocalOnly());
+
+    LookupTable local = warm.asLocalOnly();
+
+    assertTrue(local.isLocalOnly());
+    assertEquals(warm.getId(), local.getId());
+    assertEquals(warm.lookup(0x336699), local.lookup(0x336699));
+    assertTrue(local.resample(33).isLocalOnly());
+    assertSame(local, local.asLocalOnly());
+  }
+
+  @Test
+  public void transformOutputs_atLatticePoints_isExact() {
+    LookupTable warm = createLook(/* isGrayscale= */ false, LookupTableTest::warm).asLocalOnly();
+    LookupTable adjusted = warm.transformOutputs(LookupTableTest::contrast);
+
+    assertEquals(SIZE, adjusted.getLatticeSize());
+    assertEquals(warm.getId(), adjusted.getId());
+    assertTrue(adjusted.isLocalOnly());
+    int index = 0;
+    int[] pixels = adjusted.getLatticePixels();
+    for (int b = 0; b < SIZE; b++) {
+      for (int g = 0; g < SIZE; g++) {
+        for (int r = 0; r < SIZE; r++) {
+          int color = (latticeValue(r) << 16) | (latticeValue(g) << 8) | latticeValue(b);
+          assertEquals(contrast(warm(color)), pixels[index++] & 0xFFFFFF);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void transformOutputs_keepsShaper() throws IOException {
+    // Squares the inputs before an identity lattice.
+    StringBuilder cube = new StringBuilder("LUT_1D_SIZE 3\nLUT_3D_SIZE 2\n");
+    cube.append("0 0 0\n0.25 0.25 0.25\n1 1 1\n");
+    for (int b = 0; b < 2; b++) {
+      for (int g = 0; g < 2; g++) {
+        for (int r = 0; r < 2; r++) {
+          cube.append(r).append(' ').append(g).append(' ').append(b).append('\n');
+        }
+      }
+    }
+    LookupTable shaped =
+        LutImporter.readCube(
+            "shaped",
+            /* id= */ 0,
+            new ByteArrayInputStream(cube.toString().getBytes(StandardCharsets.US_ASCII)));
+
+    LookupTable adjusted = shaped.transformOutputs(color -> color);
+
+    assertTrue(adjusted.hasShaper());
+    assertArrayEquals(shaped.getShaperPixels(), adjusted.getShaperPixels());
+    assertEquals(shaped.lookup(0x808080), adjusted.lookup(0x808080));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void compose_withoutLattice_throws() {
+    LookupTable noLattice = LookupTable.create("none", /* isGrayscale= */ false, /* id= */ 0);
+    LookupTable.compose("composed", /* id= */ 1, Collections.singletonList(noLattice), SIZE);
+  }
+
+  private interface ColorFunction {
+    int apply(int color);
+  }
+
+  private static LookupTable createLook(boolean isGrayscale, ColorFunction function) {
+    int[] lattice = new int[SIZE * SIZE * SIZE];
+    int index = 0;
+    for (int b = 0; b < SIZE; b++) {
+      for (int g = 0; g < SIZE; g++) {
+        for (int r = 0; r < SIZE; r++) {
+          int color = (latticeValue(r) << 16) | (latticeValue(g) << 8) | latticeValue(b);
+          lattice[index++] = function.apply(color);
+        }
+      }
+    }
+    return LookupTable.create("look", isGrayscale, /* id= */ 0, lattice, SIZE);
+  }
+
+  private static int latticeValue(int index) {
+    return (index * 255 + (SIZE - 1) / 2) / (SIZE - 1);
+  }
+
+  private static void assertMaxError(LookupTable expected, LookupTable actual, int maxError) {
+    Random random = new Random(3);
+    for (int i = 0; i < 20_000; i++) {
+      int color = random.nextInt() & 0xFFFFFF;
+      int expectedColor = expected.lookup(color);
+      int actualColor = actual.lookup(color);
+      for (int shift = 0; shift < 24; shift += 8) {
+        int error = Math.abs(((expectedColor >> shift) & 0xFF) - ((actualColor >> shift) & 0xFF));
+        assertTrue("Error " + error + " for " + Integer.toHexString(color), error <= maxError);
+      }
+    }
+  }
+
+  private static int applyInSequence(List<LookupTable> chain, int color) {
+    for (LookupTable look : chain) {
+      color = look.lookup(color);
+    }
+    return color;
+  }
+
+  /** Lifts red and lowers blue. */
+  private static int warm(int color) {
+    int r = (color >> 16) & 0xFF;
+    int g = (color >> 8) & 0xFF;
+    int b = color & 0xFF;
+    r = Math.min(255, r + 20);
+    b = b * 9 / 10;
+    return (r << 16) | (g << 8) | b;
+  }
+
+  /** Smooth S curve on every channel. */
+  private static int contrast(int color) {
+    int result = 0;
+    for (int shift = 0; shift < 24; shift += 8) {
+      double value = ((color >> shift) & 0xFF) / 255.0;
+      double curved = value * value * (3 - 2 * value);
+      result |= (int) Math.round(curved * 255) << shift;
+    }
+    return result;
+  }
+}
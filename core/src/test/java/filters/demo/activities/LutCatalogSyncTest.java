@@ -0,0 +1,210 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link LutCatalogSync}. */
+public class LutCatalogSyncTest {
+
+  private static final int LOOKS_COUNT = 40;
+  /** What the renderer reports when no look is selected. */
+  private static final int NO_SELECTION = -1;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final FakeSource source = new FakeSource();
+  private final List<List<LookupTable>> deliveries = new ArrayList<>();
+  private File cacheFile;
+
+  @Before
+  public void setUp() {
+    for (int i = 0; i < LOOKS_COUNT; i++) {
+      source.catalog.add(createLook(/* id= */ 100 + i, /* gamma= */ 0.5f + i * 0.05f));
+    }
+    cacheFile = new File(temporaryFolder.getRoot(), "catalog.lutpack");
+  }
+
+  @Test
+  public void sync_firstTime_fetchesSelectedAndPageFirst() {
+    assertTrue(createSync().sync(/* selectedId= */ 130));
+
+    int[] first = source.requests.get(0);
+    assertEquals(LutCatalogSync.PAGE_SIZE + 1, first.length);
+    assertEquals(130, first[0]);
+    for (int i = 1; i < first.length; i++) {
+      assertEquals(100 + i - 1, first[i]);
+    }
+    assertEquals(LOOKS_COUNT, requestedCount());
+    assertCatalogMatches(deliveries.get(deliveries.size() - 1));
+  }
+
+  @Test
+  public void sync_firstDelivery_hasSelectedAndPage() {
+    createSync().sync(/* selectedId= */ 130);
+
+    List<LookupTable> first = deliveries.get(0);
+    assertEquals(LOOKS_COUNT, first.size());
+    assertSameLook(source.catalog.get(30), first.get(30));
+    for (int i = 0; i < LutCatalogSync.PAGE_SIZE; i++) {
+      assertSameLook(source.catalog.get(i), first.get(i));
+    }
+    // Not fetched yet, so a placeholder of the right id.
+    assertEquals(139, first.get(39).getId());
+    assertEquals("", first.get(39).getName());
+  }
+
+  @Test
+  public void sync_unchangedCatalog_fetchesNothing() {
+    createSync().sync(NO_SELECTION);
+    source.requests.clear();
+    deliveries.clear();
+
+    assertTrue(createSync().sync(NO_SELECTION));
+
+    assertTrue(source.requests.isEmpty());
+    assertEquals(1, deliveries.size());
+    assertCatalogMatches(deliveries.get(0));
+  }
+
+  @Test
+  public void sync_changedLook_fetchesOnlyThatLook() {
+    createSync().sync(NO_SELECTION);
+    source.requests.clear();
+    source.catalog.set(20, createLook(/* id= */ 120, /* gamma= */ 2.2f));
+
+    createSync().sync(NO_SELECTION);
+
+    assertEquals(1, source.requests.size());
+    assertArrayEquals(new int[] {120}, source.requests.get(0));
+    assertCatalogMatches(deliveries.get(deliveries.size() - 1));
+  }
+
+  @Test
+  public void sync_reorderedAndNewLooks_followManifestOrder() {
+    createSync().sync(NO_SELECTION);
+    source.requests.clear();
+    LookupTable moved = source.catalog.remove(5);
+    source.catalog.add(0, moved);
+    source.catalog.add(createLook(/* id= */ 500, /* gamma= */ 1.7f));
+
+    createSync().sync(NO_SELECTION);
+
+    assertEquals(1, requestedCount());
+    assertCatalogMatches(deliveries.get(deliveries.size() - 1));
+  }
+
+  @Test
+  public void sync_failedBatch_keepsPlaceholdersAndRetriesNextTime() {
+    source.failing = true;
+    assertTrue(createSync().sync(NO_SELECTION));
+    assertFalse(cacheFile.exists());
+
+    source.failing = false;
+    source.requests.clear();
+    createSync().sync(NO_SELECTION);
+
+    assertEquals(LOOKS_COUNT, requestedCount());
+    assertCatalogMatches(deliveries.get(deliveries.size() - 1));
+  }
+
+  @Test
+  public void sync_noManifest_returnsFalse() {
+    source.catalog = null;
+
+    assertFalse(createSync().sync(NO_SELECTION));
+    assertTrue(deliveries.isEmpty());
+  }
+
+  private LutCatalogSync createSync() {
+    return new LutCatalogSync(source, cacheFile, deliveries::add);
+  }
+
+  private int requestedCount() {
+    int count = 0;
+    for (int[] ids : source.requests) {
+      count += ids.length;
+    }
+    return count;
+  }
+
+  private void assertCatalogMatches(List<LookupTable> delivered) {
+    assertEquals(source.catalog.size(), delivered.size());
+    for (int i = 0; i < delivered.size(); i++) {
+      assertSameLook(source.catalog.get(i), delivered.get(i));
+    }
+  }
+
+  private static void assertSameLook(LookupTable expected, LookupTable actual) {
+    assertEquals(expected.getId(), actual.getId());
+    assertEquals(expected.getName(), actual.getName());
+    assertArrayEquals(expected.getLatticePixels(), actual.getLatticePixels());
+  }
+
+  private static LookupTable createLook(int id, float gamma) {
+    return LookupTable.bake(
+        "Look " + id,
+        id,
+        color -> {
+          int red = Math.round(255f * (float) Math.pow(((color >> 16) & 0xFF) / 255f, gamma));
+          return (red << 16) | (color & 0xFFFF);
+        },
+        /* size= */ 9);
+  }
+
+  /** Serves its catalog the way a provider would, as packs written to bytes. */
+  private static final class FakeSource implements LutCatalogSync.Source {
+    List<LookupTable> catalog = new ArrayList<>();
+    final List<int[]> requests = new ArrayList<>();
+    boolean failing;
+
+    @Override
+    public LutCatalogSync.Manifest getManifest() {
+      if (catalog == null) {
+        return null;
+      }
+      int[] ids = new int[catalog.size()];
+      long[] hashes = new long[catalog.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = catalog.get(i).getId();
+        hashes[i] = LutPack.contentHash(catalog.get(i));
+      }
+      return new LutCatalogSync.Manifest(ids, hashes);
+    }
+
+    @Override
+    public LutPack getLooks(int[] ids) {
+      requests.add(ids);
+      if (failing) {
+        return null;
+      }
+      List<LookupTable> looks = new ArrayList<>();
+      for (LookupTable lut : catalog) {
+        if (Arrays.stream(ids).anyMatch(id -> id == lut.getId())) {
+          looks.add(lut);
+        }
+      }
+      try {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        LutPack.write(looks, 8, LutPack.ENCODING_RAW, Channels.newChannel(output));
+        return LutPack.wrap(ByteBuffer.wrap(output.toByteArray()));
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
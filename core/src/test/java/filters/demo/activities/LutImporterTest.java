@@ -0,0 +1,203 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import org.junit.Test;
+
+/** Tests for {@link LutImporter}. */
+public class LutImporterTest {
+
+  @Test
+  public void readCube_parsesHeaderCommentsAndNumberFormats() throws IOException {
+    String cube =
+        "# Written by hand\r\n"
+            + "TITLE \"Swap red and blue\"\r\n"
+            + "LUT_3D_SIZE 2\r\n"
+            + "DOMAIN_MIN 0 0 0\r\n"
+            + "DOMAIN_MAX 1.0 1.0 1.0\r\n"
+            + "\r\n"
+            + "0 0 0\r\n"
+            + "0 0 1.0 # red\r\n"
+            + "0.0 1 0\r\n"
+            + "+0 1 1\r\n"
+            + "1e0 0 0\r\n"
+            + "1 0 1\r\n"
+            + "10.0E-1 1 .0\r\n"
+            + "1 1 1";
+    LookupTable lut = read(cube);
+
+    assertEquals(2, lut.getLatticeSize());
+    assertFalse(lut.hasShaper());
+    assertEquals(0x0000FF, lut.lookup(0xFF0000));
+    assertEquals(0xFF0000, lut.lookup(0x0000FF));
+    assertEquals(0x00FF00, lut.lookup(0x00FF00));
+    assertEquals(0xFFFFFF, lut.lookup(0xFFFFFF));
+  }
+
+  @Test
+  public void readCube_size65_keepsIdentity() throws IOException {
+    LookupTable lut = read(identityCube(65));
+
+    assertEquals(65, lut.getLatticeSize());
+    for (int color = 0; color < 0x1000000; color += 0x010307) {
+      assertColorNear(color, lut.lookup(color), 1);
+    }
+  }
+
+  @Test
+  public void readCube_acrossBufferRefills_matchesSingleRead() throws IOException {
+    String cube = identityCube(9);
+    LookupTable whole = read(cube);
+    LookupTable trickled =
+        LutImporter.readCube("trickled", /* id= */ 0, new TrickleChannel(cube, /* chunk= */ 7));
+
+    assertArrayEquals(whole.getLatticePixels(), trickled.getLatticePixels());
+  }
+
+  @Test
+  public void readCube_with1dTable_usesItAsShaper() throws IOException {
+    StringBuilder cube = new StringBuilder("LUT_1D_SIZE 3\nLUT_3D_SIZE 2\n");
+    // Squares the inputs before an identity lattice.
+    cube.append("0 0 0\n0.25 0.25 0.25\n1 1 1\n");
+    cube.append(identityCube(2).substring("LUT_3D_SIZE 2\n".length()));
+    LookupTable lut = read(cube.toString());
+
+    assertTrue(lut.hasShaper());
+    assertColorNear(0x404040, lut.lookup(0x808080), 1);
+    assertColorNear(0xFFFFFF, lut.lookup(0xFFFFFF), 0);
+  }
+
+  @Test
+  public void readCube_1dOnly_isBakedIntoLattice() throws IOException {
+    LookupTable lut = read("LUT_1D_SIZE 2\n1 0 0\n0 1 1\n");
+
+    assertEquals(LookupTable.DEFAULT_LATTICE_SIZE, lut.getLatticeSize());
+    assertColorNear(0xFF0000, lut.lookup(0x000000), 1);
+    assertColorNear(0x00FFFF, lut.lookup(0xFFFFFF), 1);
+  }
+
+  @Test
+  public void readCube_malformedNumber_namesLine() {
+    assertThrowsWithMessage("LUT_3D_SIZE 2\n0 0 0\n0 0 1x\n", "Line 3");
+  }
+
+  @Test
+  public void readCube_missingEntries_throws() {
+    assertThrowsWithMessage("LUT_3D_SIZE 2\n0 0 0\n", "Expected 8 3D entries, got 1");
+  }
+
+  @Test
+  public void readCube_unsupportedDomain_throws() {
+    assertThrowsWithMessage("DOMAIN_MAX 2 2 2\n", "domain");
+  }
+
+  @Test
+  public void fromHaldClut_identityLevel4_keepsColors() {
+    int level = 4;
+    int size = level * level;
+    int width = level * level * level;
+    int[] pixels = new int[width * width];
+    int index = 0;
+    for (int b = 0; b < size; b++) {
+      for (int g = 0; g < size; g++) {
+        for (int r = 0; r < size; r++) {
+          pixels[index++] =
+              0xFF000000 | (latticeValue(r, size) << 16) | (latticeValue(g, size) << 8)
+                  | latticeValue(b, size);
+        }
+      }
+    }
+    LookupTable lut = LutImporter.fromHaldClut("hald", /* id= */ 3, pixels, width, width);
+
+    assertEquals(size, lut.getLatticeSize());
+    assertEquals(3, lut.getId());
+    for (int color = 0; color < 0x1000000; color += 0x050B11) {
+      assertColorNear(color, lut.lookup(color), 1);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void fromHaldClut_notACube_throws() {
+    LutImporter.fromHaldClut("hald", /* id= */ 0, new int[100 * 100], 100, 100);
+  }
+
+  private static LookupTable read(String cube) throws IOException {
+    return LutImporter.readCube(
+        "cube", /* id= */ 0, new ByteArrayInputStream(cube.getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  private static void assertThrowsWithMessage(String cube, String expected) {
+    try {
+      read(cube);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(expected));
+    }
+  }
+
+  private static String identityCube(int size) {
+    StringBuilder cube = new StringBuilder("LUT_3D_SIZE ").append(size).append('\n');
+    for (int b = 0; b < size; b++) {
+      for (int g = 0; g < size; g++) {
+        for (int r = 0; r < size; r++) {
+          float max = size - 1;
+          cube.append(String.format(Locale.US, "%.6f %.6f %.6f\n", r / max, g / max, b / max));
+        }
+      }
+    }
+    return cube.toString();
+  }
+
+  private static int latticeValue(int index, int size) {
+    return Math.round(index * 255f / (size - 1));
+  }
+
+  private static void assertColorNear(int expected, int actual, int tolerance) {
+    for (int shift = 0; shift < 24; shift += 8) {
+      int error = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+      assertTrue(
+          String.format("Expected %06x, got %06x", expected, actual), error <= tolerance);
+    }
+  }
+
+  /** Hands out at most {@code chunk} bytes per read, to exercise buffer refills. */
+  private static final class TrickleChannel implements ReadableByteChannel {
+    private final byte[] data;
+    private final int chunk;
+    private int position;
+
+    TrickleChannel(String data, int chunk) {
+      this.data = data.getBytes(StandardCharsets.US_ASCII);
+      this.chunk = chunk;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) {
+      if (position == data.length) {
+        return -1;
+      }
+      int count = Math.min(Math.min(chunk, destination.remaining()), data.length - position);
+      destination.put(data, position, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {}
+  }
+}
@@ -0,0 +1,181 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests for {@link LutPack}. */
+public class LutPackTest {
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void write_thenWrap_keepsEveryLook() throws IOException {
+    for (int bitDepth : new int[] {8, 16}) {
+      for (int encoding : new int[] {LutPack.ENCODING_RAW, LutPack.ENCODING_DELTA}) {
+        List<LookupTable> luts = createLooks();
+        LutPack pack = LutPack.wrap(ByteBuffer.wrap(write(luts, bitDepth, encoding)));
+
+        assertEquals(luts.size(), pack.size());
+        for (int i = 0; i < luts.size(); i++) {
+          LookupTable expected = luts.get(i);
+          LookupTable actual = pack.toLookupTable(i);
+          assertEquals(expected.getName(), pack.getName(i));
+          assertEquals(expected.getId(), actual.getId());
+          assertEquals(expected.isGrayscale(), actual.isGrayscale());
+          assertEquals(bitDepth, pack.getBitDepth(i));
+          assertEquals(encoding, pack.getEncoding(i));
+          assertArrayEquals(expected.getLatticePixels(), actual.getLatticePixels());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void write_thenWrap_keepsShaper() throws IOException {
+    LookupTable fitted = ShaperFitter.fit(createLook("source", 1, 17, false), 9);
+    LutPack pack =
+        LutPack.wrap(ByteBuffer.wrap(write(Arrays.asList(fitted), 8, LutPack.ENCODING_RAW)));
+
+    LookupTable actual = pack.toLookupTable(0);
+    assertTrue(actual.hasShaper());
+    assertArrayEquals(fitted.getShaperPixels(), actual.getShaperPixels());
+    for (int color = 0; color < 0x1000000; color += 0x030507) {
+      assertEquals(fitted.lookup(color), actual.lookup(color));
+    }
+  }
+
+  @Test
+  public void getTexturePixels_rawEntry_isViewOfPack() throws IOException {
+    List<LookupTable> luts = createLooks();
+    ByteBuffer bytes = ByteBuffer.wrap(write(luts, 8, LutPack.ENCODING_RAW));
+    LutPack pack = LutPack.wrap(bytes);
+
+    ByteBuffer pixels = pack.getTexturePixels(1);
+    assertTrue(pixels.isReadOnly());
+    assertFalse(pixels.isDirect());
+    assertArrayEquals(toRgba(luts.get(1).getLatticePixels()), remaining(pixels));
+  }
+
+  @Test
+  public void getTexturePixels_deltaEntry_matchesRawEntry() throws IOException {
+    List<LookupTable> luts = createLooks();
+    LutPack raw = LutPack.wrap(ByteBuffer.wrap(write(luts, 8, LutPack.ENCODING_RAW)));
+    LutPack delta = LutPack.wrap(ByteBuffer.wrap(write(luts, 16, LutPack.ENCODING_DELTA)));
+
+    for (int i = 0; i < luts.size(); i++) {
+      assertArrayEquals(remaining(raw.getTexturePixels(i)), remaining(delta.getTexturePixels(i)));
+    }
+  }
+
+  @Test
+  public void open_mapsFile() throws IOException {
+    List<LookupTable> luts = createLooks();
+    File file = temporaryFolder.newFile("looks.lutpack");
+    try (FileOutputStream output = new FileOutputStream(file)) {
+      output.write(write(luts, 8, LutPack.ENCODING_RAW));
+    }
+
+    LutPack pack = LutPack.open(file);
+    assertEquals(luts.size(), pack.size());
+    assertArrayEquals(
+        luts.get(2).getLatticePixels(), pack.toLookupTable(2).getLatticePixels());
+  }
+
+  @Test
+  public void read_fromStream_growsBufferAndKeepsEveryLook() throws IOException {
+    // Over 1 MB, more than the first read buffer.
+    List<LookupTable> luts = Arrays.asList(createLook("Large", 1, 65, false));
+    byte[] bytes = write(luts, 8, LutPack.ENCODING_DELTA);
+
+    LutPack pack = LutPack.read(Channels.newChannel(new ByteArrayInputStream(bytes)));
+    assertEquals(luts.size(), pack.size());
+    for (int i = 0; i < luts.size(); i++) {
+      assertArrayEquals(
+          luts.get(i).getLatticePixels(), pack.toLookupTable(i).getLatticePixels());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void wrap_badMagic_throws() throws IOException {
+    byte[] bytes = write(createLooks(), 8, LutPack.ENCODING_RAW);
+    bytes[0] = 'X';
+    LutPack.wrap(ByteBuffer.wrap(bytes));
+  }
+
+  @Test(expected = IOException.class)
+  public void wrap_otherVersion_throws() throws IOException {
+    byte[] bytes = write(createLooks(), 8, LutPack.ENCODING_RAW);
+    bytes[4] = LutPack.VERSION + 1;
+    LutPack.wrap(ByteBuffer.wrap(bytes));
+  }
+
+  @Test(expected = IOException.class)
+  public void wrap_truncated_throws() throws IOException {
+    byte[] bytes = write(createLooks(), 8, LutPack.ENCODING_RAW);
+    LutPack.wrap(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 1)));
+  }
+
+  private static byte[] write(List<LookupTable> luts, int bitDepth, int encoding)
+      throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    LutPack.write(luts, bitDepth, encoding, Channels.newChannel(output));
+    return output.toByteArray();
+  }
+
+  private static List<LookupTable> createLooks() {
+    return Arrays.asList(
+        createLook("Warm", 4, 17, false),
+        createLook("Grau\u00df", 9, 17, true),
+        createLook("Fine", 12, 33, false));
+  }
+
+  /** A smooth look that differs per channel, so deltas wrap in places. */
+  private static LookupTable createLook(String name, int id, int size, boolean isGrayscale) {
+    int[] lattice = new int[size * size * size];
+    int index = 0;
+    for (int b = 0; b < size; b++) {
+      for (int g = 0; g < size; g++) {
+        for (int r = 0; r < size; r++) {
+          float max = size - 1;
+          int red = Math.round(255 * (float) Math.sqrt(r / max));
+          int green = Math.round(255 * (g / max) * (g / max));
+          int blue = 255 - Math.round(255 * b / max);
+          lattice[index++] = (red << 16) | (green << 8) | blue;
+        }
+      }
+    }
+    return LookupTable.create(name, isGrayscale, id, lattice, size);
+  }
+
+  private static byte[] toRgba(int[] pixels) {
+    byte[] rgba = new byte[pixels.length * 4];
+    for (int i = 0; i < pixels.length; i++) {
+      rgba[4 * i] = (byte) (pixels[i] >> 16);
+      rgba[4 * i + 1] = (byte) (pixels[i] >> 8);
+      rgba[4 * i + 2] = (byte) pixels[i];
+      rgba[4 * i + 3] = (byte) (pixels[i] >> 24);
+    }
+    return rgba;
+  }
+
+  private static byte[] remaining(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+}
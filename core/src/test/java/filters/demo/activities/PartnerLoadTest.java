@@ -0,0 +1,115 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Tests for {@link PartnerLoad}. */
+public class PartnerLoadTest {
+
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final FakeClock clock = new FakeClock();
+
+  @Test
+  public void await_none_neitherWaitsNorFails() throws InterruptedException {
+    for (int i = 0; i < 100; i++) {
+      assertTrue(PartnerLoad.NONE.await());
+    }
+  }
+
+  @Test
+  public void await_latency_waitsLatencyPlusJitter() throws InterruptedException {
+    PartnerLoad load = createLoad(/* failureRate= */ 0, /* callsPerSecond= */ 0, /* seed= */ 1);
+
+    for (int i = 0; i < 100; i++) {
+      long startNanos = clock.nowNanos;
+      load.await();
+      long waitedNanos = clock.nowNanos - startNanos;
+      assertTrue(waitedNanos >= 50 * MILLIS);
+      assertTrue(waitedNanos < 60 * MILLIS);
+    }
+  }
+
+  @Test
+  public void await_callsPerSecond_spacesStarts() throws InterruptedException {
+    PartnerLoad load =
+        new PartnerLoad(
+            /* latencyNanos= */ 0,
+            /* jitterNanos= */ 0,
+            /* failureRate= */ 0,
+            /* callsPerSecond= */ 10,
+            /* seed= */ 1,
+            clock);
+
+    load.await();
+    assertEquals(0, clock.nowNanos);
+    load.await();
+    assertEquals(100 * MILLIS, clock.nowNanos);
+    // Idle time is not saved up for later calls.
+    clock.nowNanos += 1000 * MILLIS;
+    load.await();
+    load.await();
+    assertEquals(1200 * MILLIS, clock.nowNanos);
+  }
+
+  @Test
+  public void await_failureRate_failsThatShare() throws InterruptedException {
+    PartnerLoad load = createLoad(/* failureRate= */ 0.25, /* callsPerSecond= */ 0, /* seed= */ 1);
+
+    int failures = 0;
+    for (int i = 0; i < 4000; i++) {
+      if (!load.await()) {
+        failures++;
+      }
+    }
+    assertEquals(1000, failures, /* delta= */ 100);
+  }
+
+  @Test
+  public void await_sameSeed_behavesTheSame() throws InterruptedException {
+    assertEquals(record(/* seed= */ 7), record(/* seed= */ 7));
+    assertFalse(record(/* seed= */ 7).equals(record(/* seed= */ 8)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_failureRateAboveOne_throws() {
+    createLoad(/* failureRate= */ 1.5, /* callsPerSecond= */ 0, /* seed= */ 1);
+  }
+
+  /** Returns the wait and outcome of a run of calls. */
+  private List<Long> record(long seed) throws InterruptedException {
+    PartnerLoad load = createLoad(/* failureRate= */ 0.5, /* callsPerSecond= */ 0, seed);
+    List<Long> outcomes = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      long startNanos = clock.nowNanos;
+      boolean succeeded = load.await();
+      outcomes.add(succeeded ? clock.nowNanos - startNanos : -1);
+    }
+    return outcomes;
+  }
+
+  private PartnerLoad createLoad(double failureRate, double callsPerSecond, long seed) {
+    return new PartnerLoad(50 * MILLIS, 10 * MILLIS, failureRate, callsPerSecond, seed, clock);
+  }
+
+  /** Moves only when slept on. */
+  private static final class FakeClock implements PartnerLoad.Clock {
+    long nowNanos;
+
+    @Override
+    public long nanoTime() {
+      return nowNanos;
+    }
+
+    @Override
+    public void sleepNanos(long nanos) {
+      nowNanos += nanos;
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link PreviewGovernor}. */
+public class PreviewGovernorTest {
+
+  private static final int FPS = 30;
+  private static final long LIGHT_DRAW_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  private final List<PreviewGovernor.Level> changes = new ArrayList<>();
+  private PreviewGovernor governor;
+  private long nowNanos;
+  private boolean windowStarted;
+
+  @Before
+  public void setUp() {
+    // Given out of order, the governor sorts them best first.
+    governor =
+        new PreviewGovernor(
+            Arrays.asList(
+                new PreviewGovernor.Level(1280, 720, FPS, FPS),
+                new PreviewGovernor.Level(640, 360, FPS, FPS),
+                new PreviewGovernor.Level(1920, 1080, FPS, FPS),
+                new PreviewGovernor.Level(960, 540, FPS, FPS)),
+            level -> {
+              changes.add(level);
+              // A new level starts its statistics afresh.
+              windowStarted = false;
+            });
+  }
+
+  @Test
+  public void levels_sortedByPixelRate() {
+    assertEquals(1920, level(0).width);
+    assertEquals(1280, level(1).width);
+    assertEquals(960, level(2).width);
+    assertEquals(640, level(3).width);
+    assertSame(level(0), governor.getCurrentLevel());
+  }
+
+  @Test
+  public void stepDown_afterTwoWindowsUnderPressure() {
+    runPressureWindow();
+    assertTrue(changes.isEmpty());
+
+    runPressureWindow();
+
+    assertEquals(Arrays.asList(level(1)), changes);
+  }
+
+  @Test
+  public void stepDown_slowDrawsAreEnough() {
+    long slowDrawNanos = TimeUnit.MILLISECONDS.toNanos(30);
+    runWindow(/* availableFrames= */ FPS, /* renderedFrames= */ FPS, slowDrawNanos);
+    runWindow(/* availableFrames= */ FPS, /* renderedFrames= */ FPS, slowDrawNanos);
+
+    assertEquals(Arrays.asList(level(1)), changes);
+  }
+
+  @Test
+  public void stepDown_interruptedPressure_doesNotStep() {
+    runPressureWindow();
+    // Neither pressure nor headroom.
+    runWindow(/* availableFrames= */ FPS, /* renderedFrames= */ FPS - 2, LIGHT_DRAW_NANOS);
+    runPressureWindow();
+
+    assertTrue(changes.isEmpty());
+  }
+
+  @Test
+  public void stepUp_afterInitialHeadroomWindows() {
+    stepDown();
+    advanceWithoutFrames(20);
+    for (int i = 0; i < PreviewGovernor.INITIAL_STEP_UP_WINDOWS - 1; i++) {
+      runHeadroomWindow();
+    }
+    assertSame(level(1), governor.getCurrentLevel());
+
+    runHeadroomWindow();
+
+    assertSame(level(0), governor.getCurrentLevel());
+  }
+
+  @Test
+  public void stepUp_quickReversal_doublesWait() {
+    stepDown();
+    for (int i = 0; i < PreviewGovernor.INITIAL_STEP_UP_WINDOWS; i++) {
+      runHeadroomWindow();
+    }
+    assertSame(level(0), governor.getCurrentLevel());
+    // Back under pressure right after the step up.
+    stepDown();
+
+    int doubled = PreviewGovernor.INITIAL_STEP_UP_WINDOWS * 2;
+    for (int i = 0; i < doubled - 1; i++) {
+      runHeadroomWindow();
+    }
+    assertSame(level(1), governor.getCurrentLevel());
+    runHeadroomWindow();
+    assertSame(level(0), governor.getCurrentLevel());
+  }
+
+  @Test
+  public void stepUp_slowReversal_keepsWait() {
+    stepDown();
+    for (int i = 0; i < PreviewGovernor.INITIAL_STEP_UP_WINDOWS; i++) {
+      runHeadroomWindow();
+    }
+    advanceWithoutFrames(20);
+    stepDown();
+
+    for (int i = 0; i < PreviewGovernor.INITIAL_STEP_UP_WINDOWS; i++) {
+      runHeadroomWindow();
+    }
+    assertSame(level(0), governor.getCurrentLevel());
+  }
+
+  @Test
+  public void stepDown_atLowestLevel_staysThere() {
+    for (int i = 0; i < 10; i++) {
+      runPressureWindow();
+    }
+
+    assertEquals(Arrays.asList(level(1), level(2), level(3)), changes);
+  }
+
+  @Test
+  public void pausedCamera_windowIgnored() {
+    runPressureWindow();
+    runWindow(/* availableFrames= */ 0, /* renderedFrames= */ FPS, LIGHT_DRAW_NANOS);
+    assertTrue(changes.isEmpty());
+    runPressureWindow();
+
+    assertEquals(Arrays.asList(level(1)), changes);
+  }
+
+  @Test
+  public void thermalPressure_capsLevelWithoutHysteresis() {
+    governor.setThermalPressure(PreviewGovernor.ThermalPressure.MODERATE);
+    assertSame(level(1), governor.getCurrentLevel());
+    governor.setThermalPressure(PreviewGovernor.ThermalPressure.SEVERE);
+    assertSame(level(1), governor.getCurrentLevel());
+    governor.setThermalPressure(PreviewGovernor.ThermalPressure.CRITICAL);
+    assertSame(level(3), governor.getCurrentLevel());
+
+    // Headroom does not lift the cap.
+    for (int i = 0; i < 10; i++) {
+      runHeadroomWindow();
+    }
+    assertSame(level(3), governor.getCurrentLevel());
+
+    governor.setThermalPressure(PreviewGovernor.ThermalPressure.NONE);
+    assertSame(level(0), governor.getCurrentLevel());
+  }
+
+  @Test
+  public void nineTiles_capsToQuarterArea() {
+    governor.setNineTiles(true);
+    assertSame(level(2), governor.getCurrentLevel());
+
+    governor.setNineTiles(false);
+    assertSame(level(0), governor.getCurrentLevel());
+  }
+
+  @Test
+  public void nineTiles_belowCap_keepsLoadLevel() {
+    for (int i = 0; i < 6; i++) {
+      runPressureWindow();
+    }
+    assertSame(level(3), governor.getCurrentLevel());
+    changes.clear();
+
+    governor.setNineTiles(true);
+
+    assertTrue(changes.isEmpty());
+  }
+
+  private void stepDown() {
+    PreviewGovernor.Level before = governor.getCurrentLevel();
+    for (int i = 0; i < PreviewGovernor.STEP_DOWN_WINDOWS; i++) {
+      runPressureWindow();
+    }
+    assertTrue(governor.getCurrentLevel() != before);
+  }
+
+  /** A third of the camera frames are dropped. */
+  private void runPressureWindow() {
+    runWindow(/* availableFrames= */ FPS, /* renderedFrames= */ FPS * 2 / 3, LIGHT_DRAW_NANOS);
+  }
+
+  /** Every camera frame is drawn in a fraction of its budget. */
+  private void runHeadroomWindow() {
+    runWindow(/* availableFrames= */ FPS, /* renderedFrames= */ FPS, LIGHT_DRAW_NANOS);
+  }
+
+  /** Reports one window of frames, the last of which closes it. */
+  private void runWindow(int availableFrames, int renderedFrames, long drawNanos) {
+    if (!windowStarted) {
+      governor.onFrameRendered(nowNanos, drawNanos);
+      windowStarted = true;
+    }
+    for (int i = 0; i < availableFrames; i++) {
+      governor.onFrameAvailable();
+    }
+    long frameNanos = PreviewGovernor.WINDOW_NANOS / renderedFrames;
+    for (int i = 0; i < renderedFrames; i++) {
+      nowNanos += i == renderedFrames - 1
+          ? PreviewGovernor.WINDOW_NANOS - frameNanos * (renderedFrames - 1)
+          : frameNanos;
+      governor.onFrameRendered(nowNanos, drawNanos);
+    }
+  }
+
+  /** Lets time pass with the preview stopped, which also ends the current window. */
+  private void advanceWithoutFrames(int windows) {
+    nowNanos += windows * PreviewGovernor.WINDOW_NANOS;
+    windowStarted = false;
+    // The next frame closes the stale window without frames from the camera, which is ignored.
+    governor.onFrameRendered(nowNanos, LIGHT_DRAW_NANOS);
+  }
+
+  private PreviewGovernor.Level level(int index) {
+    return governor.getLevels().get(index);
+  }
+}
@@ -0,0 +1,99 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+/** Tests for {@link ShaperFitter}. */
+public class ShaperFitterTest {
+
+  private static final int SOURCE_SIZE = 33;
+
+  @Test
+  public void fit_followsLookMoreCloselyThanEvenResampling() {
+    LookupTable source = createGammaLook();
+    double[] evenErrors = measureShadowErrors(source, source.resample(17));
+    double[] fittedErrors = measureShadowErrors(source, ShaperFitter.fit(source, 17));
+
+    assertTrue("Max errors " + fittedErrors[0] + ", " + evenErrors[0],
+        fittedErrors[0] < evenErrors[0] / 2);
+    assertTrue("Mean errors " + fittedErrors[1] + ", " + evenErrors[1],
+        fittedErrors[1] < evenErrors[1]);
+  }
+
+  @Test
+  public void fit_keepsEndpointsAndIncreases() {
+    LookupTable fitted = ShaperFitter.fit(createGammaLook(), 9);
+
+    assertTrue(fitted.hasShaper());
+    assertFalse(fitted.isGrayscale());
+    assertEquals(9, fitted.getLatticeSize());
+    int[] shaper = fitted.getShaperPixels();
+    assertEquals(256, shaper.length);
+    assertEquals(0xFF000000, shaper[0]);
+    assertEquals(0xFFFFFFFF, shaper[255]);
+    for (int value = 1; value < 256; value++) {
+      for (int shift = 0; shift < 24; shift += 8) {
+        assertTrue(((shaper[value] >> shift) & 0xFF) >= ((shaper[value - 1] >> shift) & 0xFF));
+      }
+    }
+    // The steep shadows get more than their even share of the lattice.
+    assertTrue((shaper[32] & 0xFF) > 32);
+  }
+
+  @Test
+  public void fit_resampleKeepsShaper() {
+    LookupTable fitted = ShaperFitter.fit(createGammaLook(), 17);
+
+    assertTrue(fitted.resample(9).hasShaper());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void fit_withShaper_throws() {
+    ShaperFitter.fit(ShaperFitter.fit(createGammaLook(), 17), 9);
+  }
+
+  /** Returns the largest and the mean channel error in the shadows, at inputs below 64. */
+  private static double[] measureShadowErrors(LookupTable expected, LookupTable actual) {
+    Random random = new Random(11);
+    int maxError = 0;
+    long totalError = 0;
+    int samples = 20_000;
+    for (int i = 0; i < samples; i++) {
+      int color = random.nextInt() & 0x3F3F3F;
+      int expectedColor = expected.lookup(color);
+      int actualColor = actual.lookup(color);
+      for (int shift = 0; shift < 24; shift += 8) {
+        int error = Math.abs(((expectedColor >> shift) & 0xFF) - ((actualColor >> shift) & 0xFF));
+        maxError = Math.max(maxError, error);
+        totalError += error;
+      }
+    }
+    return new double[] {maxError, (double) totalError / (3 * samples)};
+  }
+
+  /** A look that brightens the shadows steeply, like a log to display transform. */
+  private static LookupTable createGammaLook() {
+    int[] lattice = new int[SOURCE_SIZE * SOURCE_SIZE * SOURCE_SIZE];
+    int index = 0;
+    for (int b = 0; b < SOURCE_SIZE; b++) {
+      for (int g = 0; g < SOURCE_SIZE; g++) {
+        for (int r = 0; r < SOURCE_SIZE; r++) {
+          lattice[index++] = (encode(r, g) << 16) | (encode(g, b) << 8) | encode(b, r);
+        }
+      }
+    }
+    return LookupTable.create(
+        "gamma", /* isGrayscale= */ false, /* id= */ 0, lattice, SOURCE_SIZE);
+  }
+
+  private static int encode(int index, int crossIndex) {
+    double value = (double) index / (SOURCE_SIZE - 1);
+    double cross = (double) crossIndex / (SOURCE_SIZE - 1);
+    double encoded = 0.9 * Math.pow(value, 1 / 2.4) + 0.1 * cross;
+    return (int) Math.round(Math.min(1, encoded) * 255);
+  }
+}
@@ -0,0 +1,49 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/** Tests for {@link SizeSelector}. */
+public class SizeSelectorTest {
+
+  private static final int[] WIDTHS = {4032, 1920, 1440, 1280, 960, 640, 320};
+  private static final int[] HEIGHTS = {3024, 1080, 1080, 960, 720, 480, 240};
+
+  @Test
+  public void chooseOptimalSize_picksSmallestBigEnough() {
+    int index = SizeSelector.chooseOptimalSize(WIDTHS, HEIGHTS, 900, 700, 1920, 1080, 4, 3);
+
+    assertEquals(4, index);
+  }
+
+  @Test
+  public void chooseOptimalSize_noneBigEnough_picksLargestThatFits() {
+    int index = SizeSelector.chooseOptimalSize(WIDTHS, HEIGHTS, 2000, 1500, 1920, 1080, 4, 3);
+
+    assertEquals(2, index);
+  }
+
+  @Test
+  public void chooseOptimalSize_noneMatches_picksFirst() {
+    int index = SizeSelector.chooseOptimalSize(WIDTHS, HEIGHTS, 100, 100, 1920, 1080, 21, 9);
+
+    assertEquals(0, index);
+  }
+
+  @Test
+  public void chooseLargestSize_respectsAspectRatioAndMaxDimension() {
+    assertEquals(0, SizeSelector.chooseLargestSize(WIDTHS, HEIGHTS, 4, 3, 4096));
+    assertEquals(2, SizeSelector.chooseLargestSize(WIDTHS, HEIGHTS, 4, 3, 1920));
+    assertEquals(1, SizeSelector.chooseLargestSize(WIDTHS, HEIGHTS, 16, 9, 4096));
+    assertEquals(-1, SizeSelector.chooseLargestSize(WIDTHS, HEIGHTS, 21, 9, 4096));
+  }
+
+  @Test
+  public void chooseLargestArea_tieGoesToFirst() {
+    int[] widths = {1000, 2000, 1000};
+    int[] heights = {2000, 1000, 1000};
+
+    assertEquals(0, SizeSelector.chooseLargestArea(widths, heights));
+  }
+}
@@ -0,0 +1,63 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/** Tests for {@link StitchedLuts}. */
+public class StitchedLutsTest {
+
+  @Test
+  public void stitch_placesLooksSideBySide() {
+    List<LookupTable> luts =
+        Arrays.asList(createLook("Dark", 1, 1.4f), createLook("Bright", 2, 0.7f));
+
+    StitchedLuts stitched = StitchedLuts.stitch(luts, 9, /* fitShapers= */ false);
+
+    assertEquals(18, stitched.width);
+    assertEquals(81, stitched.height);
+    assertNull(stitched.shaperPixels);
+    for (int i = 0; i < luts.size(); i++) {
+      int[] lattice = luts.get(i).resample(9).getLatticePixels();
+      int[] tile = new int[lattice.length];
+      for (int row = 0; row < stitched.height; row++) {
+        System.arraycopy(stitched.pixels, row * stitched.width + i * 9, tile, row * 9, 9);
+      }
+      assertArrayEquals(lattice, tile);
+    }
+  }
+
+  @Test
+  public void stitch_fitShapers_addsRowPerLook() {
+    List<LookupTable> luts =
+        Arrays.asList(createLook("Dark", 1, 1.4f), createLook("Bright", 2, 0.7f));
+
+    StitchedLuts stitched = StitchedLuts.stitch(luts, 9, /* fitShapers= */ true);
+
+    assertNotNull(stitched.shaperPixels);
+    assertEquals(StitchedLuts.SHAPER_WIDTH * luts.size(), stitched.shaperPixels.length);
+    int[] firstRow = Arrays.copyOf(stitched.shaperPixels, StitchedLuts.SHAPER_WIDTH);
+    assertArrayEquals(ShaperFitter.fit(luts.get(0), 9).getShaperPixels(), firstRow);
+  }
+
+  /** A 17^3 look that applies {@code gamma} to every channel. */
+  private static LookupTable createLook(String name, int id, float gamma) {
+    return LookupTable.bake(
+        name,
+        id,
+        color -> {
+          int result = 0;
+          for (int shift = 0; shift < 24; shift += 8) {
+            float value = ((color >> shift) & 0xFF) / 255f;
+            result |= Math.round(255f * (float) Math.pow(value, gamma)) << shift;
+          }
+          return result;
+        },
+        LookupTable.DEFAULT_LATTICE_SIZE);
+  }
+}
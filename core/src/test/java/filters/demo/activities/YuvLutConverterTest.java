@@ -0,0 +1,154 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests for {@link YuvLutConverter} using synthetic YUV_420_888 planes. */
+public class YuvLutConverterTest {
+
+  private static final int WIDTH = 37;
+  private static final int HEIGHT = 29;
+  private static final int CHROMA_WIDTH = (WIDTH + 1) / 2;
+  private static final int CHROMA_HEIGHT = (HEIGHT + 1) / 2;
+
+  private final byte[] luma = new byte[WIDTH * HEIGHT];
+  private final byte[] cb = new byte[CHROMA_WIDTH * CHROMA_HEIGHT];
+  private final byte[] cr = new byte[CHROMA_WIDTH * CHROMA_HEIGHT];
+
+  @Before
+  public void setUp() {
+    Random random = new Random(42);
+    random.nextBytes(luma);
+    random.nextBytes(cb);
+    random.nextBytes(cr);
+  }
+
+  @Test
+  public void convertRows_matchesFloatingPointReference() {
+    int[] output = new int[WIDTH * HEIGHT];
+    createPlanarConverter(/* lut= */ null).convertRows(0, HEIGHT, output);
+
+    for (int y = 0; y < HEIGHT; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int expected = referenceColor(x, y);
+        int actual = output[y * WIDTH + x];
+        assertEquals(0xFF, actual >>> 24);
+        for (int shift = 0; shift < 24; shift += 8) {
+          int difference = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+          assertEquals("Channel mismatch at " + x + "," + y, 0, difference, 1);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convertRows_semiPlanarLayoutMatchesPlanar() {
+    // NV21: one interleaved VU plane with a pixel stride of 2 and padded rows.
+    int rowStride = CHROMA_WIDTH * 2 + 6;
+    byte[] interleaved = new byte[rowStride * CHROMA_HEIGHT];
+    for (int y = 0; y < CHROMA_HEIGHT; y++) {
+      for (int x = 0; x < CHROMA_WIDTH; x++) {
+        interleaved[y * rowStride + 2 * x] = cr[y * CHROMA_WIDTH + x];
+        interleaved[y * rowStride + 2 * x + 1] = cb[y * CHROMA_WIDTH + x];
+      }
+    }
+    ByteBuffer vPlane = ByteBuffer.wrap(interleaved);
+    ByteBuffer uPlane = ByteBuffer.wrap(interleaved, 1, interleaved.length - 1).slice();
+    YuvLutConverter semiPlanar =
+        new YuvLutConverter(
+            WIDTH,
+            HEIGHT,
+            new YuvLutConverter.Plane(ByteBuffer.wrap(luma), WIDTH, 1),
+            new YuvLutConverter.Plane(uPlane, rowStride, 2),
+            new YuvLutConverter.Plane(vPlane, rowStride, 2),
+            /* lut= */ null);
+
+    int[] expected = new int[WIDTH * HEIGHT];
+    int[] actual = new int[WIDTH * HEIGHT];
+    createPlanarConverter(/* lut= */ null).convertRows(0, HEIGHT, expected);
+    semiPlanar.convertRows(0, HEIGHT, actual);
+
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void convertRows_withLookupTable_matchesSeparateLookupPass() {
+    LookupTable lut = createInvertingLookupTable();
+    int[] expected = new int[WIDTH * HEIGHT];
+    createPlanarConverter(/* lut= */ null).convertRows(0, HEIGHT, expected);
+    lut.apply(expected, /* offset= */ 0, expected.length);
+
+    int[] actual = new int[WIDTH * HEIGHT];
+    createPlanarConverter(lut).convertRows(0, HEIGHT, actual);
+
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void convertRows_inStrips_matchesWholeImage() {
+    YuvLutConverter converter = createPlanarConverter(createInvertingLookupTable());
+    int[] whole = new int[WIDTH * HEIGHT];
+    converter.convertRows(0, HEIGHT, whole);
+
+    int[] strip = new int[WIDTH * 8];
+    for (int top = 0; top < HEIGHT; top += 8) {
+      int rows = Math.min(8, HEIGHT - top);
+      converter.convertRows(top, rows, strip);
+      for (int i = 0; i < WIDTH * rows; i++) {
+        assertEquals(whole[top * WIDTH + i], strip[i]);
+      }
+    }
+  }
+
+  private YuvLutConverter createPlanarConverter(LookupTable lut) {
+    // Pad the luma rows to check that the row stride is honored.
+    int lumaRowStride = WIDTH + 3;
+    byte[] paddedLuma = new byte[lumaRowStride * HEIGHT];
+    for (int y = 0; y < HEIGHT; y++) {
+      System.arraycopy(luma, y * WIDTH, paddedLuma, y * lumaRowStride, WIDTH);
+    }
+    return new YuvLutConverter(
+        WIDTH,
+        HEIGHT,
+        new YuvLutConverter.Plane(ByteBuffer.wrap(paddedLuma), lumaRowStride, 1),
+        new YuvLutConverter.Plane(ByteBuffer.wrap(cb), CHROMA_WIDTH, 1),
+        new YuvLutConverter.Plane(ByteBuffer.wrap(cr), CHROMA_WIDTH, 1),
+        lut);
+  }
+
+  private int referenceColor(int x, int y) {
+    int chromaIndex = (y / 2) * CHROMA_WIDTH + x / 2;
+    float lumaValue = luma[y * WIDTH + x] & 0xFF;
+    float u = (cb[chromaIndex] & 0xFF) - 128f;
+    float v = (cr[chromaIndex] & 0xFF) - 128f;
+    int r = clamp(Math.round(lumaValue + 1.402f * v));
+    int g = clamp(Math.round(lumaValue - 0.344136f * u - 0.714136f * v));
+    int b = clamp(Math.round(lumaValue + 1.772f * u));
+    return (r << 16) | (g << 8) | b;
+  }
+
+  private static int clamp(int value) {
+    return Math.max(0, Math.min(255, value));
+  }
+
+  private static LookupTable createInvertingLookupTable() {
+    int size = LookupTable.DEFAULT_LATTICE_SIZE;
+    int[] lattice = new int[size * size * size];
+    for (int b = 0; b < size; b++) {
+      for (int g = 0; g < size; g++) {
+        for (int r = 0; r < size; r++) {
+          int red = 255 - r * 255 / (size - 1);
+          int green = 255 - g * 255 / (size - 1);
+          int blue = 255 - b * 255 / (size - 1);
+          lattice[r + g * size + b * size * size] = (red << 16) | (green << 8) | blue;
+        }
+      }
+    }
+    return LookupTable.create("invert", /* isGrayscale= */ false, /* id= */ 1, lattice, size);
+  }
+}
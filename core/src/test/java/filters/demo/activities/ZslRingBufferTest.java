@@ -0,0 +1,157 @@
+package filters.demo.activities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+/** Tests for {@link ZslRingBuffer}, counting which frames get released. */
+public class ZslRingBufferTest {
+
+  private final List<String> released = new ArrayList<>();
+  private final ZslRingBuffer<String> buffer = new ZslRingBuffer<>(3, released::add);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_zeroCapacity_throws() {
+    new ZslRingBuffer<String>(0, released::add);
+  }
+
+  @Test
+  public void add_belowCapacity_releasesNothing() {
+    buffer.add("a", 10);
+    buffer.add("b", 20);
+    buffer.add("c", 30);
+
+    assertEquals(3, buffer.size());
+    assertTrue(released.isEmpty());
+  }
+
+  @Test
+  public void add_whenFull_releasesOldestFirst() {
+    buffer.add("a", 10);
+    buffer.add("b", 20);
+    buffer.add("c", 30);
+
+    buffer.add("d", 40);
+    buffer.add("e", 50);
+
+    assertEquals(Arrays.asList("a", "b"), released);
+    assertEquals(3, buffer.size());
+    assertEquals("e", buffer.removeNewest());
+  }
+
+  @Test
+  public void removeClosest_returnsNearestWithoutReleasing() {
+    buffer.add("a", 10);
+    buffer.add("b", 20);
+    buffer.add("c", 30);
+
+    assertEquals("b", buffer.removeClosest(22));
+    assertEquals("c", buffer.removeClosest(100));
+    assertEquals("a", buffer.removeClosest(0));
+    assertTrue(released.isEmpty());
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void removeClosest_tie_prefersOlder() {
+    buffer.add("a", 10);
+    buffer.add("b", 20);
+
+    assertEquals("a", buffer.removeClosest(15));
+  }
+
+  @Test
+  public void removeClosest_empty_returnsNull() {
+    assertNull(buffer.removeClosest(10));
+    assertNull(buffer.removeNewest());
+  }
+
+  @Test
+  public void removeClosest_freesSpace() {
+    buffer.add("a", 10);
+    buffer.add("b", 20);
+    buffer.add("c", 30);
+    buffer.removeClosest(20);
+
+    buffer.add("d", 40);
+
+    assertTrue(released.isEmpty());
+    assertEquals(3, buffer.size());
+  }
+
+  @Test
+  public void trimTo_releasesOldest() {
+    buffer.add("a", 10);
+    buffer.add("b", 20);
+    buffer.add("c", 30);
+
+    buffer.trimTo(1);
+
+    assertEquals(Arrays.asList("a", "b"), released);
+    assertEquals("c", buffer.removeNewest());
+  }
+
+  @Test
+  public void trimTo_largerThanSize_releasesNothing() {
+    buffer.add("a", 10);
+
+    buffer.trimTo(5);
+
+    assertTrue(released.isEmpty());
+    assertEquals(1, buffer.size());
+  }
+
+  @Test
+  public void trimTo_negative_releasesAll() {
+    buffer.add("a", 10);
+    buffer.add("b", 20);
+
+    buffer.trimTo(-1);
+
+    assertEquals(Arrays.asList("a", "b"), released);
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void everyFrameReleasedOrHandedOutExactlyOnce() {
+    List<String> removed = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      buffer.add("f" + i, i * 10);
+      if (i % 4 == 3) {
+        removed.add(buffer.removeClosest(i * 10 - 15));
+      }
+      if (i % 7 == 6) {
+        buffer.trimTo(1);
+      }
+    }
+    buffer.clear();
+
+    List<String> all = new ArrayList<>(released);
+    all.addAll(removed);
+    Collections.sort(all);
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      expected.add("f" + i);
+    }
+    Collections.sort(expected);
+    assertEquals(expected, all);
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  public void clear_releasesEverything() {
+    buffer.add("a", 10);
+    buffer.add("b", 20);
+
+    buffer.clear();
+    buffer.clear();
+
+    assertEquals(Arrays.asList("a", "b"), released);
+  }
+}